@@ -0,0 +1,138 @@
+package org.pokenet.chat.server;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Delivers chat room messages as soon as they are queued, on a small shared pool of threads.
+ * A room is handed to the pool when its first message is queued and drains its queue in order,
+ * so there is no polling and messages of a room never overtake each other.
+ * Each message is encoded once and every recipient is sent a view of the same buffer.
+ * Statistics of every room with traffic are reported each minute.
+ * If a chat log is set, delivered messages are queued to it.
+ * @author shadowkanji
+ *
+ */
+public class ChatDispatcher {
+	private static final int REPORT_INTERVAL = 60;
+	private static ExecutorService m_pool = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				private int m_count = 0;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ChatDispatcher-" + (m_count++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private static ConcurrentHashMap<Integer, ChatRoom> m_rooms = new ConcurrentHashMap<Integer, ChatRoom>();
+	private static ScheduledExecutorService m_reporter = null;
+	private static volatile ChatLog m_log = null;
+
+	/**
+	 * Starts reporting statistics
+	 */
+	public static synchronized void start() {
+		if(m_reporter != null)
+			return;
+		m_reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ChatDispatcher-Reporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		m_reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+		System.out.println("INFO: Chat dispatcher started");
+	}
+
+	/**
+	 * Sets the log delivered messages are written to
+	 * @param log
+	 */
+	public static void setLog(ChatLog log) {
+		m_log = log;
+	}
+
+	/**
+	 * Queues a delivered message to the chat log, if there is one
+	 * @param r
+	 * @param line
+	 */
+	public static void log(ChatRoom r, String line) {
+		ChatLog log = m_log;
+		if(log != null)
+			log.log("room " + r.getId() + " " + r.getName(), line);
+	}
+
+	/**
+	 * Adds a room to the statistics
+	 * @param r
+	 */
+	public static void register(ChatRoom r) {
+		m_rooms.put(r.getId(), r);
+	}
+
+	/**
+	 * Removes a room from the statistics
+	 * @param r
+	 */
+	public static void unregister(ChatRoom r) {
+		m_rooms.remove(r.getId(), r);
+	}
+
+	/**
+	 * Hands a room with queued messages to the pool
+	 * @param r
+	 */
+	public static void dispatch(ChatRoom r) {
+		m_pool.execute(r);
+	}
+
+	/**
+	 * Encodes a line the way the text line codec would, so it can be sent to
+	 * several sessions without being encoded for each of them
+	 * @param line
+	 * @return
+	 */
+	public static IoBuffer encode(String line) {
+		CharsetEncoder encoder = ChatServer.CHARSET.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		IoBuffer buffer = IoBuffer.allocate(line.length() + 1);
+		try {
+			buffer.putString(line, encoder);
+		} catch (CharacterCodingException e) {
+			/* Not thrown, characters which can't be encoded are replaced */
+		}
+		buffer.put((byte) '\n');
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Prints the statistics of rooms which had messages since the last report
+	 */
+	private static void report() {
+		Iterator<ChatRoom> it = m_rooms.values().iterator();
+		while(it.hasNext()) {
+			String stats = it.next().getStatistics(REPORT_INTERVAL);
+			if(stats != null)
+				System.out.println("INFO: " + stats);
+		}
+	}
+}
@@ -1,7 +1,7 @@
 package org.pokenet.chat.server;
 
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
@@ -13,10 +13,10 @@ import org.pokenet.chat.server.User.Language;
  *
  */
 public class ChatProtocolHandler extends IoHandlerAdapter {
-	private static HashMap<Integer, ChatRoom> m_chatrooms;
+	private static ConcurrentHashMap<Integer, ChatRoom> m_chatrooms;
 	private int m_roomCount = 12;
 	private LoginManager m_loginManager;
-	private static HashMap<String, User> m_users;
+	private static UserRegistry m_users;
 	/* Amount of chatrooms server should be limited to (does not include private chats) */
 	private static int ROOMLIMIT = 10000;
 	
@@ -25,9 +25,8 @@ public class ChatProtocolHandler extends IoHandlerAdapter {
 	 */
 	public ChatProtocolHandler() {
 		m_loginManager = new LoginManager();
-		new Thread(m_loginManager).start();
-		m_users = new HashMap<String, User>();
-		m_chatrooms = new HashMap<Integer, ChatRoom>();
+		m_users = new UserRegistry();
+		m_chatrooms = new ConcurrentHashMap<Integer, ChatRoom>();
 		/*
 		 * Create reserved chatrooms
 		 */
@@ -72,29 +71,24 @@ public class ChatProtocolHandler extends IoHandlerAdapter {
 			switch(message.charAt(0)) {
 			case 'a':
 				//Add a friend
-				u.addFriend(MySqlManager.parseSQL(message.substring(1)));
+				details = new String[] { MySqlManager.parseSQL(message.substring(1)) };
+				if(u.addFriend(details[0]))
+					m_users.addFriend(u, details[0]);
 				break;
 			case 'r':
 				//Remove a friend
-				u.removeFriend(message.substring(1));
+				if(u.removeFriend(message.substring(1)))
+					m_users.removeFriend(u, message.substring(1));
 				break;
 			case 'm':
 				//Make a new chatroom
-				while(m_chatrooms.containsKey(m_roomCount) && m_roomCount > 0) {
-					m_roomCount = m_roomCount == ROOMLIMIT ? 0 : m_roomCount + 1;
-				}
-				if(m_roomCount == 0) {
+				r = createChatRoom(message.substring(1), u);
+				if(r == null) {
 					//Room could not be created
 					u.getSession().write("C");
 					return;
 				}
-				//Else, make room
-				synchronized(m_chatrooms) {
-					r = new ChatRoom(message.substring(1), 
-							m_roomCount, u.getLevel(), 
-							u.getLanguage());
-					r.addUser(u);
-				}
+				r.addUser(u);
 				break;
 			case 'j':
 				//Join chatroom - jROOMNUMBER
@@ -107,15 +101,15 @@ public class ChatProtocolHandler extends IoHandlerAdapter {
 				//Leave chatroom - lROOMNUMBER
 				r = m_chatrooms.get(Integer.parseInt(message.substring(1)));
 				if(r != null) {
-					r.removeUser(u.getUsername());
+					r.removeUser(u);
 				}
 				break;
 			case 'p':
 				//Private chat - pUSER,MESSAGE
 				details = message.substring(1).split(",");
-				synchronized(m_users) {
-					m_users.get(details[0]).getSession().write("p" + u.getUsername() + "," + details[1]);
-				}
+				User target = m_users.get(details[0]);
+				if(target != null)
+					target.getSession().write("p" + u.getUsername() + "," + details[1]);
 				break;
 			case 'c':
 				//Normal Chat - cROOMID,MESSAGE
@@ -132,11 +126,9 @@ public class ChatProtocolHandler extends IoHandlerAdapter {
 			case '!':
 				//Announcement
 				if(u.getLevel() >= 6) {
-					synchronized(m_users) {
-						Iterator<User> it = m_users.values().iterator();
-						while(it.hasNext()) {
-							it.next().getSession().write("!" + message.substring(1));
-						}
+					Iterator<User> it = m_users.getUsers().iterator();
+					while(it.hasNext()) {
+						it.next().getSession().write("!" + message.substring(1));
 					}
 				}
 				break;
@@ -149,14 +141,17 @@ public class ChatProtocolHandler extends IoHandlerAdapter {
 	 */
 	public void sessionClosed(IoSession session) throws Exception {
 		if(session.getAttribute("user") != null) {
-			//Remove user from all chatrooms
 			User u = (User) session.getAttribute("user");
-			//Inform friends that the player has logged off
-			alertLogon(u, false);
-			Iterator<ChatRoom> it = m_chatrooms.values().iterator();
+			//Remove user from all chatrooms, rooms a new login with the same name joined are left alone
+			Iterator<Integer> it = u.getRooms().iterator();
 			while(it.hasNext()) {
-				it.next().removeUser(u.getUsername());
+				ChatRoom r = m_chatrooms.get(it.next());
+				if(r != null)
+					r.removeUser(u);
 			}
+			//Inform friends that the player has logged off, unless they logged in again
+			if(m_users.remove(u))
+				alertLogon(u, false);
 		}
 	}
 	
@@ -165,62 +160,74 @@ public class ChatProtocolHandler extends IoHandlerAdapter {
 	 * @param chatroom
 	 */
 	public static void removeChatRoom(int chatroom) {
-		synchronized(m_chatrooms) {
-			m_chatrooms.remove(chatroom);
-		}
+		ChatRoom r = m_chatrooms.remove(chatroom);
+		if(r != null)
+			ChatDispatcher.unregister(r);
 	}
 	
 	/**
-	 * Returns hashmap of users on the server
+	 * Creates a chatroom with the next free id, or returns null if the room limit is reached
+	 * @param name
+	 * @param u - the user creating the room
 	 * @return
 	 */
-	public static void addUser(User u) {
-		synchronized(m_chatrooms) {
-			/* Send chat rooms to user */
-			Iterator<Integer> it = m_chatrooms.keySet().iterator();
-			ChatRoom r = null;
-			while(it.hasNext()) {
-				int i = it.next();
-				r = m_chatrooms.get(i);
-				if(r.isJoinable(u)) {
-					u.getSession().write("R" + r.getId() + "," + r.getName());
-				}
+	private synchronized ChatRoom createChatRoom(String name, User u) {
+		for(int i = 12; i <= ROOMLIMIT; i++) {
+			if(!m_chatrooms.containsKey(m_roomCount)) {
+				ChatRoom r = new ChatRoom(name, m_roomCount, u.getLevel(), u.getLanguage());
+				m_chatrooms.put(m_roomCount, r);
+				return r;
 			}
+			m_roomCount = m_roomCount == ROOMLIMIT ? 12 : m_roomCount + 1;
 		}
-		synchronized(m_users) {
-			//Find all friends
-			Iterator<String> it = u.getFriends().iterator();
-			String friends = "f";
-			while(it.hasNext()) {
-				String s = it.next();
-				if(m_users.containsKey(s)) {
-					friends = friends + s + ",";
-				}
+		return null;
+	}
+	
+	/**
+	 * Adds a user who logged in, sends them the chat rooms they can join and
+	 * which friends are online, and tells users who have them as a friend
+	 * @param u
+	 */
+	public static void addUser(User u) {
+		/* Send chat rooms to user */
+		Iterator<ChatRoom> rooms = m_chatrooms.values().iterator();
+		while(rooms.hasNext()) {
+			ChatRoom r = rooms.next();
+			if(r.isJoinable(u)) {
+				u.getSession().write("R" + r.getId() + "," + r.getName());
 			}
-			if(friends.endsWith(",")) {
-				friends = friends.substring(0, friends.length() - 1);
-				u.getSession().write(friends);
+		}
+		//Find all friends
+		Iterator<String> it = u.getFriends().iterator();
+		StringBuilder friends = new StringBuilder("f");
+		while(it.hasNext()) {
+			String s = it.next();
+			if(m_users.isOnline(s)) {
+				friends.append(s).append(',');
 			}
-			//Add user
-			m_users.put(u.getUsername(), u);
 		}
+		if(friends.length() > 1) {
+			friends.setLength(friends.length() - 1);
+			u.getSession().write(friends.toString());
+		}
+		//Add user
+		User old = m_users.add(u);
+		if(old != null && old != u)
+			old.getSession().close(true);
+		u.getSession().setAttribute("user", u);
+		alertLogon(u, true);
 	}
 	
 	/**
-	 * Alerts a user's when the user logs on/off
+	 * Alerts the users who have a user as a friend when the user logs on/off
 	 * @param u The user that logged on or off
 	 * @param connected True for log-on, False for log-off
 	 */
 	public static void alertLogon(User u, boolean connected){
-		//Check for online friends
-		for (String s : u.getFriends()){
-			if (m_users.containsKey(s)){
-				//Send online friends a packet so clients can update
-				if (connected)
-					m_users.get(s).getSession().write("Fn" + u.getUsername());
-				else
-					m_users.get(s).getSession().write("Ff" + u.getUsername());
-			}
+		String packet = (connected ? "Fn" : "Ff") + u.getUsername();
+		for (User friend : m_users.getFollowers(u.getUsername())){
+			//Send online friends a packet so clients can update
+			friend.getSession().write(packet);
 		}
 	}
 }
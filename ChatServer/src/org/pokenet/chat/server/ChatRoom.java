@@ -1,25 +1,59 @@
 package org.pokenet.chat.server;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.pokenet.chat.server.User.Language;
 
 /**
- * Represents a chat room
+ * Represents a chat room. Queued messages are delivered by the ChatDispatcher,
+ * which runs the room whenever it has messages waiting.
+ * The last messages delivered are kept and sent to users joining the room.
  * @author shadowkanji
  *
  */
 public class ChatRoom implements Runnable {
+	/* How many messages are sent to users joining the room */
+	public static final int HISTORY_SIZE = 50;
 	private int m_level;
 	private String m_team;
-	private HashMap<String, User> m_users;
-	private Queue<String> m_messageQueue;
+	private ConcurrentHashMap<String, User> m_users;
+	private Queue<QueuedMessage> m_messageQueue;
+	private AtomicBoolean m_dispatching = new AtomicBoolean(false);
+	/* Also locked while a message is delivered, so joining users see each message exactly once */
+	private ChatHistory<String> m_history = new ChatHistory<String>(HISTORY_SIZE);
 	private String m_name;
 	private int m_id;
 	private Language m_language;
+	/* Statistics */
+	private AtomicLong m_messages = new AtomicLong(0);
+	private AtomicLong m_deliveries = new AtomicLong(0);
+	private AtomicLong m_lag = new AtomicLong(0);
+	private AtomicLong m_maxLag = new AtomicLong(0);
+	private long m_reportedMessages = 0;
+	private long m_reportedDeliveries = 0;
+	private long m_reportedLag = 0;
+
+	/**
+	 * A message, its encoding for sending, and when it was queued
+	 */
+	private static class QueuedMessage {
+		private final String m_line;
+		private final IoBuffer m_buffer;
+		private final long m_queued;
+
+		public QueuedMessage(String line) {
+			m_line = line;
+			m_buffer = ChatDispatcher.encode(line);
+			m_queued = System.nanoTime();
+		}
+	}
 	
 	/**
 	 * Constructor
@@ -32,40 +66,45 @@ public class ChatRoom implements Runnable {
 		m_name = name;
 		m_id = id;
 		m_level = level;
-		m_users = new HashMap<String, User>();
-		m_messageQueue = new LinkedList<String>();
+		m_users = new ConcurrentHashMap<String, User>();
+		m_messageQueue = new ConcurrentLinkedQueue<QueuedMessage>();
 		m_language = l;
+		ChatDispatcher.register(this);
 	}
 
-	@Override
+	/**
+	 * Sends queued messages to everyone in the room, until the queue is empty.
+	 * Called by the ChatDispatcher, never by two threads at once.
+	 */
 	public void run() {
-		String message = null;
 		while(true) {
-			synchronized(m_messageQueue) {
-				message = m_messageQueue.poll();
-			}
-			if(message != null) {
-				//Send to everyone in room
-				synchronized(m_users) {
+			QueuedMessage message;
+			while((message = m_messageQueue.poll()) != null) {
+				long lag = System.nanoTime() - message.m_queued;
+				int sent = 0;
+				synchronized(m_history) {
+					m_history.add(message.m_line);
 					Iterator<User> it = m_users.values().iterator();
 					while(it.hasNext()) {
 						User u = it.next();
-						if(u != null) {
-							u.getSession().write("c" + m_id + "," + message);
+						if(u != null && u.getSession() != null) {
+							/* Each session reads its own view of the shared buffer */
+							u.getSession().write(message.m_buffer.duplicate());
+							sent++;
 						}
 					}
 				}
+				ChatDispatcher.log(this, message.m_line);
+				m_messages.incrementAndGet();
+				m_deliveries.addAndGet(sent);
+				m_lag.addAndGet(lag);
+				long max;
+				while(lag > (max = m_maxLag.get()) && !m_maxLag.compareAndSet(max, lag));
 			}
-			try {
-				Thread.sleep(250);
-			} catch (Exception e) {}
-			/* If nobody is in the room, end the room if it is not a reserved room */
-			if(m_users.size() == 0) {
-				if(m_id >= 12) {
-					ChatProtocolHandler.removeChatRoom(m_id);
-				}
+			m_dispatching.set(false);
+			/* A message queued after the last poll would otherwise wait for the next one */
+			if(m_messageQueue.isEmpty() || !m_dispatching.compareAndSet(false, true))
 				return;
-			}
 		}
 	}
 
@@ -76,11 +115,41 @@ public class ChatRoom implements Runnable {
 	 */
 	public void queueMessage(User u, String message) {
 		if(m_users.containsKey(u.getUsername())) {
-			synchronized(m_messageQueue) {
-				m_messageQueue.offer("<" + u.getUsername() + "> " + message);
-			}
+			m_messageQueue.offer(new QueuedMessage("c" + m_id + ",<" + u.getUsername() + "> " + message));
+			if(m_dispatching.compareAndSet(false, true))
+				ChatDispatcher.dispatch(this);
 		}
 	}
+
+	/**
+	 * Returns the room's statistics since they were last returned, or null if
+	 * no messages were sent since then
+	 * @param seconds - the time since they were last returned
+	 * @return
+	 */
+	public synchronized String getStatistics(int seconds) {
+		long messages = m_messages.get() - m_reportedMessages;
+		if(messages == 0)
+			return null;
+		long deliveries = m_deliveries.get() - m_reportedDeliveries;
+		long lag = m_lag.get() - m_reportedLag;
+		m_reportedMessages += messages;
+		m_reportedDeliveries += deliveries;
+		m_reportedLag += lag;
+		return "Chat room " + m_name + " (" + m_id + "): " + format(messages / (double) seconds) +
+			" messages/s, " + format(deliveries / (double) seconds) + " deliveries/s, avg lag " +
+			(lag / messages / 1000) + "us (max " + (m_maxLag.get() / 1000) + "us), " +
+			m_users.size() + " users";
+	}
+	
+	/**
+	 * Formats a number with two decimal places
+	 * @param d
+	 * @return
+	 */
+	private static String format(double d) {
+		return String.valueOf(Math.round(d * 100) / 100.0);
+	}
 	
 	/**
 	 * Returns true if a user can join this chatroom
@@ -107,35 +176,47 @@ public class ChatRoom implements Runnable {
 	}
 	
 	/**
-	 * Adds a user to a chatroom. Returns false if they do
-	 * not have appropriate permissions to join.
+	 * Adds a user to a chatroom and sends them the recent messages in one write.
+	 * Returns false if they do not have appropriate permissions to join.
 	 * @param u
 	 */
 	public boolean addUser(User u) {
 		if(isJoinable(u)) {
-			synchronized(m_users) {
+			synchronized(m_history) {
 				m_users.put(u.getUsername(), u);
+				u.getRooms().add(m_id);
+				u.getSession().write("j" + m_id + "," + m_name);
+				List<String> recent = m_history.getMessages();
+				if(!recent.isEmpty()) {
+					StringBuilder lines = new StringBuilder();
+					for(int i = 0; i < recent.size(); i++) {
+						if(i > 0)
+							lines.append('\n');
+						lines.append(recent.get(i));
+					}
+					u.getSession().write(ChatDispatcher.encode(lines.toString()));
+				}
 			}
-			u.getSession().write("j" + m_id + "," + m_name);
 			return true;
 		}
 		return false;
 	}
 	
 	/**
-	 * Removes a user from the chatroom
-	 * @param username
+	 * Removes a user from the chatroom. Does nothing if the user has since been
+	 * replaced by a new login with the same name.
+	 * @param u
 	 */
-	public boolean removeUser(String username) {
-		boolean found = false;
-		synchronized(m_users) {
-			User u = m_users.remove(username);
-			if(u != null) {
-				u.getSession().write("lr" + m_id);
-				found = true;
-			}
+	public boolean removeUser(User u) {
+		if(!m_users.remove(u.getUsername(), u))
+			return false;
+		u.getRooms().remove(m_id);
+		u.getSession().write("lr" + m_id);
+		/* If nobody is in the room, end the room if it is not a reserved room */
+		if(m_users.isEmpty() && m_id >= 12) {
+			ChatProtocolHandler.removeChatRoom(m_id);
 		}
-		return found;
+		return true;
 	}
 	
 	/**
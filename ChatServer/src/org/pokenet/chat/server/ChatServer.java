@@ -1,5 +1,6 @@
 package org.pokenet.chat.server;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 
@@ -8,19 +9,27 @@ import org.apache.mina.filter.codec.textline.TextLineCodecFactory;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 
 /**
- * Starts up chat server
+ * Starts up chat server.
+ * Run with -chatlog DIRECTORY to log chat messages to files in that directory.
  * @author shadowkanji
  *
  */
 public class ChatServer {
+	public static final Charset CHARSET = Charset.forName("US-ASCII");
+
 	public static void main(String [] args) {
 		NioSocketAcceptor m_tcpAcceptor = new NioSocketAcceptor();
 		m_tcpAcceptor.getFilterChain().addLast("codec", 
-				new ProtocolCodecFilter(new TextLineCodecFactory(
-				Charset.forName("US-ASCII"))));
+				new ProtocolCodecFilter(new TextLineCodecFactory(CHARSET)));
 		m_tcpAcceptor.setHandler(new ChatProtocolHandler());
 		try {
 			m_tcpAcceptor.bind(new InetSocketAddress(7001)); 
+			ChatDispatcher.start();
+			if(args.length > 1 && args[0].equals("-chatlog")) {
+				ChatLog log = new ChatLog(new File(args[1]));
+				log.start();
+				ChatDispatcher.setLog(log);
+			}
 			System.out.println("INFO: Chat server started.");
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,139 @@
+package org.pokenet.chat.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of MySQL connections, so logins don't open a new connection each time.
+ * @author shadowkanji
+ *
+ */
+public class DatabaseConnectionPool {
+	/* How many connections a pool may open */
+	public static final int MAX_CONNECTIONS = 4;
+	/* How long a caller will wait for a free connection before giving up */
+	private static final long BORROW_TIMEOUT = 10000;
+	private static HashMap<String, DatabaseConnectionPool> m_pools = new HashMap<String, DatabaseConnectionPool>();
+
+	private final String m_url;
+	private final String m_username;
+	private final String m_password;
+	private final LinkedBlockingQueue<Connection> m_idle = new LinkedBlockingQueue<Connection>();
+	private final AtomicInteger m_created = new AtomicInteger(0);
+	/* Statistics */
+	private final AtomicLong m_borrows = new AtomicLong(0);
+	private final AtomicLong m_waits = new AtomicLong(0);
+	private final AtomicLong m_timeouts = new AtomicLong(0);
+
+	/**
+	 * Returns the pool for a server and login, creating it if needed
+	 * @param server
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	public static synchronized DatabaseConnectionPool getPool(String server, String username, String password) {
+		String key = server + "/" + username;
+		DatabaseConnectionPool pool = m_pools.get(key);
+		if(pool == null) {
+			pool = new DatabaseConnectionPool(server, username, password);
+			m_pools.put(key, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Constructor
+	 * @param server
+	 * @param username
+	 * @param password
+	 */
+	private DatabaseConnectionPool(String server, String username, String password) {
+		m_url = "jdbc:mysql://" + server + "?autoReconnect=true";
+		m_username = username;
+		m_password = password;
+	}
+
+	/**
+	 * Takes a connection from the pool. Opens a new connection if none are free and the pool is not full,
+	 * otherwise waits for one to be released. Returns null if no connection could be obtained.
+	 * @return
+	 */
+	public Connection borrow() {
+		m_borrows.incrementAndGet();
+		Connection c = m_idle.poll();
+		try {
+			while(c == null || c.isClosed()) {
+				if(c != null) {
+					/* Stale connection, throw it away */
+					dispose(c);
+				}
+				if(m_created.incrementAndGet() <= MAX_CONNECTIONS) {
+					try {
+						c = DriverManager.getConnection(m_url, m_username, m_password);
+					} catch (Exception e) {
+						m_created.decrementAndGet();
+						throw e;
+					}
+				} else {
+					/* The pool is saturated, wait for a connection to be released */
+					m_created.decrementAndGet();
+					m_waits.incrementAndGet();
+					c = m_idle.poll(BORROW_TIMEOUT, TimeUnit.MILLISECONDS);
+					if(c == null) {
+						m_timeouts.incrementAndGet();
+						System.err.println("ERROR: Timed out waiting for a database connection. " + toString());
+						return null;
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		return c;
+	}
+
+	/**
+	 * Returns a connection to the pool
+	 * @param c
+	 * @param broken - true if the connection failed and should be thrown away
+	 */
+	public void release(Connection c, boolean broken) {
+		if(c == null)
+			return;
+		boolean closed = true;
+		try {
+			closed = c.isClosed();
+		} catch (Exception e) {}
+		if(broken || closed)
+			dispose(c);
+		else
+			m_idle.offer(c);
+	}
+
+	/**
+	 * Closes a connection that is no longer part of the pool
+	 * @param c
+	 */
+	private void dispose(Connection c) {
+		m_created.decrementAndGet();
+		try {
+			c.close();
+		} catch (Exception e) {}
+	}
+
+	/**
+	 * Returns a summary of the pool's statistics
+	 */
+	public String toString() {
+		return "Database pool " + m_url + ": " + m_created.get() + "/" + MAX_CONNECTIONS + " open, " +
+			m_idle.size() + " idle, " + m_waits.get() + " of " + m_borrows.get() + " borrows waited, " +
+			m_timeouts.get() + " timed out";
+	}
+}
@@ -2,22 +2,46 @@ package org.pokenet.chat.server;
 
 import java.io.File;
 import java.sql.ResultSet;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.mina.core.session.IoSession;
 import org.pokenet.chat.server.User.Language;
 
 /**
- * Handles log ins
+ * Handles log ins.
+ * Logins are checked by several worker threads, each borrowing a pooled database connection.
+ * The queue of waiting logins is bounded, when it is full the login is refused.
+ * Logins verified recently are remembered, so clients reconnecting at once don't all query the database.
+ * The remembered logins are checked against the stored passwords every REVALIDATE_INTERVAL
+ * in a few queries, so password changes made on the game server are picked up.
  * @author shadowkanji
  *
  */
-public class LoginManager implements Runnable {
-	 Queue<Object []> m_queue = new LinkedList<Object []>();
-	private MySqlManager m_mysql = new MySqlManager();
+public class LoginManager {
+	/* How many logins are checked at once, one per pooled connection */
+	public static final int WORKERS = DatabaseConnectionPool.MAX_CONNECTIONS;
+	/* The most logins that can be waiting at once */
+	public static final int MAX_QUEUE_SIZE = 500;
+	/* How often remembered logins are checked against the database */
+	public static final long REVALIDATE_INTERVAL = 30 * 1000;
+	/* How many users are checked per query */
+	private static final int REVALIDATE_BATCH = 50;
+	private ThreadPoolExecutor m_workers;
+	private VerifiedLoginCache m_cache = new VerifiedLoginCache();
 	private String m_dbServer, m_dbUser, m_dbPass, m_dbDatabase;
+	/* Statistics */
+	private AtomicLong m_logins = new AtomicLong(0);
+	private AtomicLong m_cached = new AtomicLong(0);
+	private AtomicLong m_rejected = new AtomicLong(0);
 	
 	/**
 	 * Constructor
@@ -37,6 +61,60 @@ public class LoginManager implements Runnable {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		m_workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_QUEUE_SIZE), new ThreadFactory() {
+					private int m_count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						return new Thread(r, "ChatLoginManager-" + (m_count++));
+					}
+				});
+		Thread revalidator = new Thread(new Runnable() {
+			public void run() {
+				while(true) {
+					try {
+						Thread.sleep(REVALIDATE_INTERVAL);
+						revalidateCache();
+					} catch (InterruptedException e) {
+						return;
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "ChatLoginRevalidator");
+		revalidator.setDaemon(true);
+		revalidator.start();
+	}
+	
+	/**
+	 * Checks every remembered login against the password stored in the database
+	 * and forgets those that no longer match
+	 */
+	private void revalidateCache() throws Exception {
+		ArrayList<String> usernames = m_cache.getUsernames();
+		if(usernames.isEmpty())
+			return;
+		MySqlManager mysql = new MySqlManager();
+		try {
+			if(!mysql.connect(m_dbServer, m_dbUser, m_dbPass) || !mysql.selectDatabase(m_dbDatabase))
+				return;
+			for(int start = 0; start < usernames.size(); start += REVALIDATE_BATCH) {
+				List<String> batch = usernames.subList(start, Math.min(start + REVALIDATE_BATCH, usernames.size()));
+				StringBuilder sql = new StringBuilder("SELECT username, password FROM pn_members WHERE username IN (");
+				for(int i = 0; i < batch.size(); i++)
+					sql.append(i == 0 ? "?" : ", ?");
+				sql.append(")");
+				HashMap<String, String> stored = new HashMap<String, String>();
+				ResultSet result = mysql.executeQuery(sql.toString(), batch.toArray());
+				while(result.next())
+					stored.put(result.getString("username"), result.getString("password"));
+				for(String username : batch)
+					m_cache.revalidate(username, stored.get(username));
+			}
+		} finally {
+			mysql.close();
+		}
 	}
 	
 	/**
@@ -45,37 +123,19 @@ public class LoginManager implements Runnable {
 	 * @param username
 	 * @param password
 	 */
-	public void queueLogin(IoSession s, String username, String password, char l) {
-		synchronized(m_queue) {
-			m_queue.offer(new Object [] { s, username, password, l });
-		}
-	}
-
-	@Override
-	public void run() {
-		Object [] tmp = null;
-		IoSession s = null;
-		String username = null;
-		String password = null;
-		char language;
-		while(true) {
-			synchronized(m_queue) {
-				tmp = m_queue.poll();
-			}
-			if(tmp != null) {
-				s = (IoSession) tmp[0];
-				username = (String) tmp[1];
-				password = (String) tmp[2];
-				language = (Character) tmp[3];
-				User u = login(s, username, password, language);
-				if(u != null) {
-					ChatProtocolHandler.addUser(u);
+	public void queueLogin(final IoSession s, final String username, final String password, final char l) {
+		try {
+			m_workers.execute(new Runnable() {
+				public void run() {
+					User u = login(s, username, password, l);
+					if(u != null) {
+						ChatProtocolHandler.addUser(u);
+					}
 				}
-				tmp = null;
-			}
-			try {
-				Thread.sleep(500);
-			} catch (Exception e) {}
+			});
+		} catch (RejectedExecutionException e) {
+			m_rejected.incrementAndGet();
+			s.write("lc");
 		}
 	}
 
@@ -88,45 +148,81 @@ public class LoginManager implements Runnable {
 	 * @return
 	 */
 	private User login(IoSession s, String username, String password, char language) {
-		username = MySqlManager.parseSQL(username);
-		password = MySqlManager.parseSQL(password);
-		if(m_mysql.connect(m_dbServer, m_dbUser, m_dbPass)) {
-			m_mysql.selectDatabase(m_dbDatabase);
-			ResultSet result = m_mysql.query("SELECT party, adminLevel" +
-					" FROM pn_members WHERE username='" + username + "' AND password='" +
-					password + "'");
-			if(result != null) {
-				//Valid user, yay!
-				User user = new User(getLanguageByChar(language));
-				/* Set user information */
-				user.setUsername(username);
-				try {
-					user.setLevel(result.getInt("adminLevel"));
-				} catch (Exception e) { user.setLevel(0); }
-				try {
-					user.setTeam(result.getString("team"));
-				} catch (Exception e) { user.setTeam(""); }
-				user.setSession(s);
-				/* TODO: Get friends list */
-				//Inform friends that the user is online
-				ChatProtocolHandler.alertLogon(user, true);
-				s.write("ls");
-				m_mysql.close();
-				
-				System.out.println("ChatServ: Login Successful for User: " + username);
-				return user;
+		m_logins.incrementAndGet();
+		if(!s.isConnected())
+			return null;
+		/* Check if they logged in a moment ago */
+		VerifiedLoginCache.Entry cached = m_cache.get(username, password);
+		if(cached != null) {
+			m_cached.incrementAndGet();
+			return createUser(s, username, language, cached.getLevel(), cached.getTeam());
+		}
+		MySqlManager mysql = new MySqlManager();
+		try {
+			if(mysql.connect(m_dbServer, m_dbUser, m_dbPass) && mysql.selectDatabase(m_dbDatabase)) {
+				ResultSet result = mysql.executeQuery("SELECT party, adminLevel" +
+						" FROM pn_members WHERE username=? AND password=?", username, password);
+				if(result.first()) {
+					//Valid user, yay!
+					int level = 0;
+					String team = "";
+					try {
+						level = result.getInt("adminLevel");
+					} catch (Exception e) { level = 0; }
+					try {
+						team = result.getString("team");
+					} catch (Exception e) { team = ""; }
+					m_cache.put(username, password, level, team);
+					return createUser(s, username, language, level, team);
+				} else {
+					//Invalid username or password
+					m_cache.remove(username);
+					System.out.println("ChatServ: login failed for User: " + username);
+					s.write("le");
+				}
 			} else {
-				//Invalid username or password
-				System.out.println("ChatServ: login failed for User: " + username);
-				s.write("le");
+				s.write("lc");
 			}
-			m_mysql.close();
-		} else {
+		} catch (Exception e) {
+			e.printStackTrace();
 			s.write("lc");
+		} finally {
+			mysql.close();
 		}
 		return null;
 	}
 	
+	/**
+	 * Creates the user object for a successful login
+	 * @param s
+	 * @param username
+	 * @param language
+	 * @param level
+	 * @param team
+	 * @return
+	 */
+	private User createUser(IoSession s, String username, char language, int level, String team) {
+		User user = new User(getLanguageByChar(language));
+		/* Set user information */
+		user.setUsername(username);
+		user.setLevel(level);
+		user.setTeam(team);
+		user.setSession(s);
+		/* TODO: Get friends list */
+		s.write("ls");
+		System.out.println("ChatServ: Login Successful for User: " + username);
+		return user;
+	}
+	
+	/**
+	 * Returns a summary of the login statistics
+	 */
+	public String toString() {
+		return "Chat Login Manager: " + m_logins.get() + " logins (" + m_cached.get() + " from cache), " +
+			m_rejected.get() + " turned away, " + m_workers.getQueue().size() + " queued, " +
+			m_cache.size() + " cached";
+	}
+	
 	/**
 	 * Returns a language based on a character
 	 * @param c
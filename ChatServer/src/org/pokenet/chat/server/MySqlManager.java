@@ -5,18 +5,24 @@ package org.pokenet.chat.server;
  * Makes it similair to PHP
  */
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 
 /**
- * Handles MySql connections
+ * Handles MySql connections.
+ * Connections are borrowed from a DatabaseConnectionPool on connect() and returned on close(),
+ * so close() must always be called once finished.
  * @author Daniel Morante
  */
 public class MySqlManager {
+    private DatabaseConnectionPool mysql_pool;
     private Connection mysql_connection;
     private ResultSet mysql_result;    
-    private String mysql_connectionURL;
+    private ArrayList<Statement> mysql_statements = new ArrayList<Statement>();
+    private boolean mysql_broken = false;
     
     /**
      * Connects to the server. Returns true on success.
@@ -27,13 +33,12 @@ public class MySqlManager {
      */
     public boolean connect(String server, String username, String password) {
         try {
-            //Open Connection
-            mysql_connectionURL = "jdbc:mysql://" + server+"?autoReconnect=true";
-            mysql_connection = DriverManager.getConnection(mysql_connectionURL, username, password);
-            if(!mysql_connection.isClosed())
-            	return true;
-            else
-            	return false;
+            //Borrow a connection from the pool
+            if(mysql_connection != null)
+            	close();
+            mysql_pool = DatabaseConnectionPool.getPool(server, username, password);
+            mysql_connection = mysql_pool.borrow();
+            return mysql_connection != null;
         } catch( Exception x ) {
           x.printStackTrace();
           return false;
@@ -47,23 +52,37 @@ public class MySqlManager {
      */
     public boolean selectDatabase(String database) {
     	try {
+    		//Pooled connections keep the database they last used
+    		if(database.equals(mysql_connection.getCatalog()))
+    			return true;
         	Statement stm = mysql_connection.createStatement();
         	stm.executeQuery("USE " + database);
+        	stm.close();
         	return true;
     	} catch (Exception e) {
+    		mysql_broken = true;
     		e.printStackTrace();
     		return false;
     	}
     }
     
     /**
-     * Closes the connection to the mysql server. Returns true on success.
+     * Returns the connection to the pool. Returns true on success.
      * @return
      */
     public boolean close(){
         try{
-            mysql_connection.close();
+        	for(int i = 0; i < mysql_statements.size(); i++) {
+        		try {
+        			mysql_statements.get(i).close();
+        		} catch (Exception e) {}
+        	}
+        	mysql_statements.clear();
+        	mysql_result = null;
+        	if(mysql_connection != null)
+        		mysql_pool.release(mysql_connection, mysql_broken);
             mysql_connection = null;
+            mysql_broken = false;
             return true;
         }
         catch (Exception x) {
@@ -100,6 +119,7 @@ public class MySqlManager {
             try{
                 //Execute Query
                 stmt = mysql_connection.createStatement();
+                mysql_statements.add(stmt);
                 mysql_result = stmt.executeQuery(query);
             }
             catch(Exception x) {
@@ -116,6 +136,7 @@ public class MySqlManager {
             try{
                 //Execute Query
                 stmt = mysql_connection.createStatement();
+                mysql_statements.add(stmt);
                 stmt.executeUpdate(query);
             }
             catch(Exception x) {
@@ -127,6 +148,26 @@ public class MySqlManager {
         }
     }    
     
+    /**
+     * Runs a SELECT query with parameters bound to its '?' placeholders
+     * @param sql
+     * @param params
+     * @return
+     * @throws SQLException
+     */
+    public ResultSet executeQuery(String sql, Object... params) throws SQLException {
+    	try {
+    		PreparedStatement stmt = mysql_connection.prepareStatement(sql);
+    		mysql_statements.add(stmt);
+    		for(int i = 0; i < params.length; i++)
+    			stmt.setObject(i + 1, params[i]);
+    		return stmt.executeQuery();
+    	} catch (SQLException e) {
+    		mysql_broken = true;
+    		throw e;
+    	}
+    }
+    
     /**
      * Returns a sql-safe string
      * @param text
@@ -1,6 +1,9 @@
 package org.pokenet.chat.server;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.apache.mina.core.session.IoSession;
 
@@ -16,13 +19,15 @@ public class User {
 	private int m_level;
 	private String m_team;
 	private IoSession m_session;
-	private ArrayList<String> m_friends;
+	private List<String> m_friends;
+	private Set<Integer> m_rooms;
 	
 	/**
 	 * Constructor
 	 */
 	public User(Language l) {
-		m_friends = new ArrayList<String>();
+		m_friends = new CopyOnWriteArrayList<String>();
+		m_rooms = new CopyOnWriteArraySet<Integer>();
 		m_language = l;
 	}
 	
@@ -38,27 +43,42 @@ public class User {
 	 * Returns friends list
 	 * @return
 	 */
-	public ArrayList<String> getFriends() {
+	public List<String> getFriends() {
 		return m_friends;
 	}
 	
+	/**
+	 * Returns the ids of the chat rooms the user is in
+	 * @return
+	 */
+	public Set<Integer> getRooms() {
+		return m_rooms;
+	}
+	
 	/**
 	 * Adds a friend to friends list
 	 * @param s
+	 * @return false if they were already a friend
 	 */
-	public void addFriend(String s) {
+	public boolean addFriend(String s) {
+		if(m_friends.contains(s))
+			return false;
 		m_friends.add(s);
 		m_session.write("a" + s);
+		return true;
 	}
 	
 	/**
 	 * Removes a friend
 	 * @param s
+	 * @return false if they were not a friend
 	 */
-	public void removeFriend(String s) {
+	public boolean removeFriend(String s) {
 		if(m_friends.remove(s)) {
 			m_session.write("r" + s);
+			return true;
 		}
+		return false;
 	}
 	
 	/**
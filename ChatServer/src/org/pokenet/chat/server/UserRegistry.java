@@ -0,0 +1,145 @@
+package org.pokenet.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * The users logged in to the chat server, with an index of who has each username
+ * as a friend, so presence can be sent to the right users without walking everyone.
+ * Safe to use from several threads at once. Followers are stored as the User objects themselves,
+ * so removing a user who logged in again only removes the old login's entries and never the new one's.
+ * @author shadowkanji
+ *
+ */
+public class UserRegistry {
+	private ConcurrentHashMap<String, User> m_users = new ConcurrentHashMap<String, User>();
+	/* Username -> online users who have them as a friend */
+	private ConcurrentHashMap<String, Set<User>> m_followers = new ConcurrentHashMap<String, Set<User>>();
+
+	/**
+	 * Adds a user, replacing anyone logged in with the same username
+	 * @param u
+	 * @return the user who was replaced, if any
+	 */
+	public User add(User u) {
+		User old = m_users.put(u.getUsername(), u);
+		if(old != null && old != u)
+			unfollowAll(old);
+		Iterator<String> it = u.getFriends().iterator();
+		while(it.hasNext())
+			follow(u, it.next());
+		return old;
+	}
+
+	/**
+	 * Removes a user, if they are still the one logged in with their username
+	 * @param u
+	 * @return true if they were removed
+	 */
+	public boolean remove(User u) {
+		if(!m_users.remove(u.getUsername(), u))
+			return false;
+		unfollowAll(u);
+		return true;
+	}
+
+	/**
+	 * Returns a user who is logged in, or null
+	 * @param username
+	 * @return
+	 */
+	public User get(String username) {
+		return m_users.get(username);
+	}
+
+	/**
+	 * Returns true if a user is logged in
+	 * @param username
+	 * @return
+	 */
+	public boolean isOnline(String username) {
+		return m_users.containsKey(username);
+	}
+
+	/**
+	 * Returns all users logged in
+	 * @return
+	 */
+	public Collection<User> getUsers() {
+		return m_users.values();
+	}
+
+	/**
+	 * Returns the users logged in who have a username as a friend
+	 * @param username
+	 * @return
+	 */
+	public List<User> getFollowers(String username) {
+		List<User> result = new ArrayList<User>();
+		Set<User> followers = m_followers.get(username);
+		if(followers != null) {
+			Iterator<User> it = followers.iterator();
+			while(it.hasNext()) {
+				User u = it.next();
+				if(m_users.get(u.getUsername()) == u)
+					result.add(u);
+				else
+					/* Added by a friend request that raced with the user logging out */
+					followers.remove(u);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records that a user added a friend
+	 * @param u
+	 * @param friend
+	 */
+	public void addFriend(User u, String friend) {
+		if(m_users.get(u.getUsername()) == u)
+			follow(u, friend);
+	}
+
+	/**
+	 * Records that a user removed a friend
+	 * @param u
+	 * @param friend
+	 */
+	public void removeFriend(User u, String friend) {
+		Set<User> followers = m_followers.get(friend);
+		if(followers != null)
+			followers.remove(u);
+	}
+
+	/**
+	 * Adds a user to the followers of a friend
+	 * @param u
+	 * @param friend
+	 */
+	private void follow(User u, String friend) {
+		Set<User> followers = m_followers.get(friend);
+		if(followers == null) {
+			Set<User> created = new CopyOnWriteArraySet<User>();
+			followers = m_followers.putIfAbsent(friend, created);
+			if(followers == null)
+				followers = created;
+		}
+		followers.add(u);
+	}
+
+	/**
+	 * Removes a user from the followers of all their friends
+	 * @param u
+	 */
+	private void unfollowAll(User u) {
+		Iterator<String> it = u.getFriends().iterator();
+		while(it.hasNext())
+			removeFriend(u, it.next());
+	}
+}
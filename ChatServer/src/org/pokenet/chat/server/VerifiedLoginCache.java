@@ -0,0 +1,157 @@
+package org.pokenet.chat.server;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers logins which were recently checked against the database for a short time,
+ * so a client reconnecting to the chat server (e.g. after a network drop) is logged in without a query.
+ * Only logins to this chat server are remembered, the first chat login after a game login is still
+ * checked against the database as the two servers only share the database.
+ * Only a digest of the password is kept. Entries are checked against the stored passwords
+ * regularly, so a password changed on the game server stops working here soon after.
+ * @author shadowkanji
+ *
+ */
+public class VerifiedLoginCache {
+	/* How long a verified login is remembered */
+	public static final long TTL = 5 * 60 * 1000;
+	/* Expired entries are swept once the cache grows past this */
+	private static final int SWEEP_SIZE = 2000;
+	private ConcurrentHashMap<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * A verified login
+	 */
+	public static class Entry {
+		private final byte [] m_digest;
+		private final int m_level;
+		private final String m_team;
+		private final long m_expires;
+
+		private Entry(byte [] digest, int level, String team, long expires) {
+			m_digest = digest;
+			m_level = level;
+			m_team = team;
+			m_expires = expires;
+		}
+
+		/**
+		 * Returns the admin level of the user
+		 * @return
+		 */
+		public int getLevel() {
+			return m_level;
+		}
+
+		/**
+		 * Returns the team of the user
+		 * @return
+		 */
+		public String getTeam() {
+			return m_team;
+		}
+	}
+
+	/**
+	 * Returns the cached login if the username and password were verified recently, otherwise null
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	public Entry get(String username, String password) {
+		Entry e = m_entries.get(username);
+		if(e == null)
+			return null;
+		if(e.m_expires < System.currentTimeMillis()) {
+			m_entries.remove(username, e);
+			return null;
+		}
+		return Arrays.equals(e.m_digest, digest(username, password)) ? e : null;
+	}
+
+	/**
+	 * Stores a login which was verified against the database
+	 * @param username
+	 * @param password
+	 * @param level
+	 * @param team
+	 */
+	public void put(String username, String password, int level, String team) {
+		byte [] digest = digest(username, password);
+		if(digest == null)
+			return;
+		m_entries.put(username, new Entry(digest, level, team, System.currentTimeMillis() + TTL));
+		if(m_entries.size() > SWEEP_SIZE)
+			sweep();
+	}
+
+	/**
+	 * Forgets a login unless it matches the password stored in the database
+	 * @param username
+	 * @param stored - the stored password, or null if the user no longer exists
+	 */
+	public void revalidate(String username, String stored) {
+		Entry e = m_entries.get(username);
+		if(e != null && (stored == null || !Arrays.equals(e.m_digest, digest(username, stored))))
+			m_entries.remove(username, e);
+	}
+
+	/**
+	 * Returns the usernames of all cached logins
+	 * @return
+	 */
+	public ArrayList<String> getUsernames() {
+		return new ArrayList<String>(m_entries.keySet());
+	}
+
+	/**
+	 * Forgets a login, e.g. when it was rejected by the database
+	 * @param username
+	 */
+	public void remove(String username) {
+		m_entries.remove(username);
+	}
+
+	/**
+	 * Returns how many logins are cached
+	 * @return
+	 */
+	public int size() {
+		return m_entries.size();
+	}
+
+	/**
+	 * Removes expired entries
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = m_entries.values().iterator();
+		while(it.hasNext()) {
+			if(it.next().m_expires < now)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Returns the SHA-1 digest of a username and password, or null if it's not available
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	private static byte [] digest(String username, String password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(username.getBytes("UTF-8"));
+			md.update((byte) 0);
+			md.update(password.getBytes("UTF-8"));
+			return md.digest();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
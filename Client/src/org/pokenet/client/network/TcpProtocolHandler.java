@@ -846,6 +846,10 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 				m_game.getTimeService().setTime(Integer.parseInt(details[1].substring(0, 2)), 
 						Integer.parseInt(details[1].substring(2)));
 				break;
+			case 'q':
+				//Waiting in the login queue
+				m_game.getLoadingScreen().setQueuePosition(Integer.parseInt(message.substring(2)));
+				break;
 			case 'u':
 				//Unknown problem occurred
 				GameClient.messageDialog("An unknown problem occurred!", GameClient.getInstance().getDisplay());
@@ -13,6 +13,7 @@ import org.newdawn.slick.Image;
  */
 public class LoadingScreen extends Frame {
 	private Label m_bg;
+	private Label m_status;
 	
 	/**
 	 * Default constructor
@@ -36,10 +37,33 @@ public class LoadingScreen extends Frame {
 			m_bg.setVisible(true);
 			this.add(m_bg);
 			
+			m_status = new Label("");
+			m_status.setForeground(Color.white);
+			m_status.setVisible(true);
+			this.add(m_status);
+			
 			this.setVisible(false);
 			this.setAlwaysOnTop(true);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Shows the player's position in the server's login queue
+	 * @param position
+	 */
+	public void setQueuePosition(int position) {
+		m_status.setText("You are number " + position + " in the login queue");
+		m_status.pack();
+		m_status.setLocation(400 - (m_status.getWidth() / 2), m_bg.getY() + m_bg.getHeight() + 8);
+	}
+	
+	@Override
+	public void setVisible(boolean visible) {
+		/* The queue position only applies to the login it was sent for */
+		if(!visible && m_status != null)
+			m_status.setText("");
+		super.setVisible(visible);
+	}
 }
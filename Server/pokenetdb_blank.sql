@@ -24,6 +24,10 @@ USE pokenet;
 --
 -- Definition of table `pokenet`.`pn_bag`
 --
+-- pn_bag is InnoDB so bag changes are rolled back with the rest of a failed save.
+-- Existing databases created as MyISAM can be converted with:
+--   ALTER TABLE `pokenet`.`pn_bag` ENGINE=InnoDB;
+--
 
 DROP TABLE IF EXISTS `pokenet`.`pn_bag`;
 CREATE TABLE  `pokenet`.`pn_bag` (
@@ -32,7 +36,7 @@ CREATE TABLE  `pokenet`.`pn_bag` (
   `quantity` int(11) NOT NULL,
   UNIQUE KEY `memberitem` (`member`,`item`),
   KEY `Memberid` (`member`)
-) ENGINE=MyISAM DEFAULT CHARSET=ascii;
+) ENGINE=InnoDB DEFAULT CHARSET=ascii;
 
 --
 -- Dumping data for table `pokenet`.`pn_bag`
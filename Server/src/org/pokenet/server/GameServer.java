@@ -54,7 +54,11 @@ public class GameServer {
 	private static GameServer m_instance;
 	private static final long serialVersionUID = 1L;
 	private static ServiceManager m_serviceManager;
-	private static int m_maxPlayers, m_movementThreads;
+	private static int m_maxPlayers, m_movementThreads, m_dbConnections, m_loginThreads, m_battleThreads;
+	private static int m_autosaveInterval = 5;
+	private static int m_writeLimit = 512;
+	private static String m_chatLogDirectory = null;
+	private static String m_battleLogDirectory = null;
 	private static String m_dbServer, m_dbName, m_dbUsername, m_dbPassword, m_serverName;
 	private static boolean m_boolGui;
 	private JTextField m_dbS, m_dbN, m_dbU, m_name;
@@ -441,6 +445,10 @@ public class GameServer {
 		Options options = new Options();
 		options.addOption("s","settings", true, "Can be low, medium, or high.");
 		options.addOption("p","players", true, "Sets the max number of players.");
+		options.addOption("a", "autosave", true, "Sets how often (in minutes) online players are saved. 0 disables autosaving.");
+		options.addOption("w", "writelimit", true, "Sets how many kilobytes may be waiting to be sent to a player before they are disconnected.");
+		options.addOption("cl", "chatlog", true, "Logs chat messages to files in the given directory.");
+		options.addOption("bl", "battlelog", true, "Logs the seed and players of each battle to files in the given directory.");
 		options.addOption("ng", "nogui", false, "Starts server in headless mode.");
 		options.addOption("ar", "autorun", false, "Runs without asking a single question.");
 		options.addOption("h", "help", false, "Shows this menu.");
@@ -460,10 +468,19 @@ public class GameServer {
 		        	String settings = line.getOptionValue( "settings" );
 		        	if(settings.equalsIgnoreCase("low")) {
 						m_movementThreads = 4;
+						m_dbConnections = 6;
+						m_loginThreads = 2;
+						m_battleThreads = 4;
 					} else if(settings.equalsIgnoreCase("medium")) {
 						m_movementThreads = 8;
+						m_dbConnections = 12;
+						m_loginThreads = 4;
+						m_battleThreads = 8;
 					} else if(settings.equalsIgnoreCase("high")) {
 						m_movementThreads = 12;
+						m_dbConnections = 20;
+						m_loginThreads = 6;
+						m_battleThreads = 16;
 					} else {
 						System.err.println("Server requires a settings parameter");
 						HelpFormatter formatter = new HelpFormatter();
@@ -486,6 +503,22 @@ public class GameServer {
 					m_maxPlayers = 500;
 				}
 		        
+		        if(line.hasOption("autosave")) {
+		        	m_autosaveInterval = Integer.parseInt(line.getOptionValue("autosave"));
+		        }
+		        
+		        if(line.hasOption("writelimit")) {
+		        	m_writeLimit = Integer.parseInt(line.getOptionValue("writelimit"));
+		        }
+		        
+		        if(line.hasOption("chatlog")) {
+		        	m_chatLogDirectory = line.getOptionValue("chatlog");
+		        }
+		        
+		        if(line.hasOption("battlelog")) {
+		        	m_battleLogDirectory = line.getOptionValue("battlelog");
+		        }
+		        
 		        if(line.hasOption("help")){
 		        	HelpFormatter formatter = new HelpFormatter();
 					System.err.println("Server requires a settings parameter");
@@ -550,6 +583,62 @@ public class GameServer {
 		return m_movementThreads;
 	}
 	
+	/**
+	 * Returns the maximum amount of database connections this server will keep open
+	 * @return
+	 */
+	public static int getDatabaseConnectionAmount() {
+		return m_dbConnections;
+	}
+	
+	/**
+	 * Returns the amount of login threads running in this server
+	 * @return
+	 */
+	public static int getLoginThreadAmount() {
+		return m_loginThreads;
+	}
+	
+	/**
+	 * Returns the amount of threads battle turns are executed on
+	 * @return
+	 */
+	public static int getBattleThreadAmount() {
+		return m_battleThreads;
+	}
+	
+	/**
+	 * Returns how often (in minutes) online players are saved, 0 if autosaving is disabled
+	 * @return
+	 */
+	public static int getAutosaveInterval() {
+		return m_autosaveInterval;
+	}
+	
+	/**
+	 * Returns how many bytes may be waiting to be sent to a player before they are disconnected
+	 * @return
+	 */
+	public static int getWriteLimit() {
+		return m_writeLimit * 1024;
+	}
+	
+	/**
+	 * Returns the directory chat is logged to, or null if chat is not logged
+	 * @return
+	 */
+	public static String getChatLogDirectory() {
+		return m_chatLogDirectory;
+	}
+	
+	/**
+	 * Returns the directory the start of battles is logged to, or null if battles are not logged
+	 * @return
+	 */
+	public static String getBattleLogDirectory() {
+		return m_battleLogDirectory;
+	}
+	
 	/**
 	 * Returns the database host
 	 * @return
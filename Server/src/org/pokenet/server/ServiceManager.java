@@ -3,6 +3,7 @@ package org.pokenet.server;
 import org.pokenet.server.backend.MovementService;
 import org.pokenet.server.backend.SpriteList;
 import org.pokenet.server.backend.item.ItemDatabase;
+import org.pokenet.server.battle.BattleExecutor;
 import org.pokenet.server.battle.DataService;
 import org.pokenet.server.feature.JythonService;
 import org.pokenet.server.feature.TimeService;
@@ -118,6 +119,7 @@ public class ServiceManager {
 		m_timeService.stop();
 		m_movementService.stop();
 		m_networkService.stop();
+		BattleExecutor.shutdown();
 		System.out.println("INFO: Service Manager stopped.");
 	}
 
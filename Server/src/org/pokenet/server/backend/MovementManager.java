@@ -1,132 +1,216 @@
 package org.pokenet.server.backend;
 
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.pokenet.server.GameServer;
 import org.pokenet.server.backend.entity.Char;
 import org.pokenet.server.backend.entity.HMObject;
 import org.pokenet.server.backend.entity.HMObject.objectType;
+import org.pokenet.server.backend.map.ServerMap;
 
 /**
- * Loops through all players and moves them if they request to be moved
+ * A movement shard. Every tick, all chars on the maps assigned to this shard
+ * have their entire movement queue processed.
+ * Chars that walk onto a map owned by another shard are handed over to that shard.
  * @author shadowkanji
  *
  */
 public class MovementManager implements Runnable {
-	private Queue<Char> m_waiting;
-	private Queue<Char> m_moved;
+	/* How often (in milliseconds) a tick is run */
+	public static final int TICK_INTERVAL = 100;
+	private CopyOnWriteArrayList<Char> m_chars;
+	/* Maps which have movement waiting to be broadcast at the end of the tick */
+	private Queue<ServerMap> m_dirtyMaps;
 	private Thread m_thread;
-	private boolean m_isRunning;
-	private int m_pLoad = 0;
-	/** Comparator for comparing chars */
-	private Comparator<Char> m_comp;
-	
+	private volatile boolean m_isRunning;
+	private int m_shard;
+	/* Tick statistics, all times are in nanoseconds */
+	private volatile long m_lastTickTime = 0;
+	private volatile long m_maxTickTime = 0;
+	private volatile long m_totalTickTime = 0;
+	private volatile long m_ticks = 0;
+	private volatile int m_backlog = 0;
+
 	/**
 	 * Default constructor.
 	 */
 	public MovementManager() {
-		m_comp = new Comparator<Char>() {
-			public int compare(Char arg0, Char arg1) {
-				return arg0.getPriority() - arg1.getPriority();
-			}};
-		m_waiting = new PriorityQueue<Char>(11, m_comp);
-		m_moved = new PriorityQueue<Char>(1, m_comp);
+		this(0);
+	}
+
+	/**
+	 * Constructor
+	 * @param shard - the index of this shard in the movement service
+	 */
+	public MovementManager(int shard) {
+		m_shard = shard;
+		m_chars = new CopyOnWriteArrayList<Char>();
+		m_dirtyMaps = new ConcurrentLinkedQueue<ServerMap>();
 	}
 	
+	/**
+	 * Queues a map to have its buffered movements broadcast at the end of the current tick
+	 * @param map
+	 */
+	public void queueMapFlush(ServerMap map) {
+		m_dirtyMaps.offer(map);
+	}
+
 	/**
 	 * Adds a player to this movement service
 	 * @param player
 	 */
 	public void addPlayer(Char player) {
-		synchronized(m_waiting) {
-			m_pLoad++;
-			m_waiting.offer(player);
-		}
+		m_chars.addIfAbsent(player);
 	}
-	
+
 	public void addHMObject(HMObject obj){
-		synchronized(m_waiting) {
-			if (obj.getType() == objectType.STRENGTH_BOULDER){
-				m_pLoad++;
-				m_waiting.add(obj);
-			}
+		if (obj.getType() == objectType.STRENGTH_BOULDER){
+			addPlayer(obj);
 		}
 	}
-	
+
 	/**
 	 * Returns how many players are in this thread (the processing load)
 	 */
 	public int getProcessingLoad() {
-		return m_pLoad;
+		return m_chars.size();
 	}
-	
+
+	/**
+	 * Returns the index of this shard
+	 * @return
+	 */
+	public int getShard() {
+		return m_shard;
+	}
+
+	/**
+	 * Returns how long the last tick took in nanoseconds
+	 * @return
+	 */
+	public long getLastTickTime() {
+		return m_lastTickTime;
+	}
+
+	/**
+	 * Returns the longest tick processed so far in nanoseconds
+	 * @return
+	 */
+	public long getMaxTickTime() {
+		return m_maxTickTime;
+	}
+
+	/**
+	 * Returns the average tick duration in nanoseconds
+	 * @return
+	 */
+	public long getAverageTickTime() {
+		long ticks = m_ticks;
+		return ticks == 0 ? 0 : m_totalTickTime / ticks;
+	}
+
+	/**
+	 * Returns how many ticks have been processed
+	 * @return
+	 */
+	public long getTickCount() {
+		return m_ticks;
+	}
+
+	/**
+	 * Returns the amount of movements that were queued at the start of the last tick
+	 * @return
+	 */
+	public int getBacklog() {
+		return m_backlog;
+	}
+
 	/**
 	 * Removes a player from this movement service, returns true if the player was in the thread and was removed.
 	 * Otherwise, returns false.
 	 * @param player
 	 */
 	public boolean removePlayer(String player) {
-		/* Check waiting list */
-		synchronized(m_waiting) {
-			Iterator<Char> it = m_waiting.iterator();
-			while(it.hasNext()) {
-				Char c = it.next();
-				if(c.getName().equalsIgnoreCase(player)) {
-					m_waiting.remove(c);
-					m_pLoad--;
-					return true;
-				}
+		Iterator<Char> it = m_chars.iterator();
+		while(it.hasNext()) {
+			Char c = it.next();
+			if(c.getName().equalsIgnoreCase(player)) {
+				return m_chars.remove(c);
 			}
 		}
-		/* Check moved list */
-		synchronized(m_moved) {
-			Iterator<Char> it = m_moved.iterator();
-			while(it.hasNext()) {
-				Char c = it.next();
-				if(c.getName().equalsIgnoreCase(player)) {
-					m_moved.remove(c);
-					m_pLoad--;
-					return true;
-				}
+		return false;
+	}
+
+	/**
+	 * Removes a char from this shard, returns true if it was here.
+	 * Used by MovementService to hand chars over.
+	 * @param c
+	 * @return
+	 */
+	boolean remove(Char c) {
+		return m_chars.remove(c);
+	}
+
+	/**
+	 * Processes all movement queued for chars on this shard.
+	 */
+	private void tick() {
+		MovementService service = GameServer.getServiceManager().getMovementService();
+		int backlog = 0;
+		long start = System.nanoTime();
+		for(Char c : m_chars) {
+			/* Hand the char over if they've moved onto another shard's map */
+			MovementManager owner = service.getMovementManager(c.getMap());
+			if(owner != this) {
+				service.handOver(c, this, owner);
+				continue;
 			}
+			backlog += c.getQueuedMovementCount();
+			/* Move character */
+			c.move();
 		}
-		return false;
+		/* Send one movement frame per player for every map that had movement */
+		ServerMap map;
+		while((map = m_dirtyMaps.poll()) != null) {
+			map.flushMovements();
+		}
+		long time = System.nanoTime() - start;
+		m_backlog = backlog;
+		m_lastTickTime = time;
+		m_totalTickTime += time;
+		m_ticks++;
+		if(time > m_maxTickTime)
+			m_maxTickTime = time;
 	}
-	
+
 	/**
-	 * Called by m_thread.start(). Loops through all players calling PlayerChar.move() if the player requested to be moved.
+	 * Called by m_thread.start(). Runs a tick every TICK_INTERVAL milliseconds.
 	 */
 	public void run() {
-		Char tmp = null;
-		//ArrayList<Char> tmpArray = null;
+		long nextTick = System.currentTimeMillis();
 		while(m_isRunning) {
-			/* Pull char of highest priority */
-			if(m_waiting != null && m_waiting.size() > 0) {
-				synchronized(m_waiting) {
-					tmp = m_waiting.poll();
-				}
-				/* Move character */
-				tmp.move();
-				/* Place him in moved array */
-				synchronized(m_moved) {
-					m_moved.offer(tmp);
-				}
+			try {
+				tick();
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-			/* If waiting array is empty, swap arrays */
-			synchronized(m_waiting) {
-				if(m_waiting.size() == 0) {
-					m_waiting = m_moved;
-					m_moved = new PriorityQueue<Char>(1, m_comp);
-				}
+			/* Sleep until the next tick, skip ahead if we're running behind */
+			nextTick += TICK_INTERVAL;
+			long delay = nextTick - System.currentTimeMillis();
+			if(delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (Exception e) {}
+			} else {
+				nextTick = System.currentTimeMillis();
 			}
-			try {
-				Thread.sleep(100);
-			} catch (Exception e) {}
 		}
 	}
-	
+
 	/**
 	 * Returns true if the movement manager is running
 	 * @return
@@ -134,23 +218,31 @@ public class MovementManager implements Runnable {
 	public boolean isRunning() {
 		return m_thread != null && m_thread.isAlive();
 	}
-	
+
 	/**
 	 * Starts the movement thread
 	 */
 	public void start() {
-		m_thread = new Thread(this);
+		m_thread = new Thread(this, "MovementManager-" + m_shard);
 		m_isRunning = true;
 		m_thread.start();
 	}
-	
+
 	/**
 	 * Stops the movement thread
 	 */
 	public void stop() {
-		m_moved.clear();
-		m_waiting.clear();
+		m_chars.clear();
+		m_dirtyMaps.clear();
 		m_isRunning = false;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Returns a summary of this shard's statistics
+	 */
+	public String toString() {
+		return "Movement shard " + m_shard + ": " + m_chars.size() + " chars, backlog " + m_backlog +
+			", last tick " + (m_lastTickTime / 1000) + "us, avg " + (getAverageTickTime() / 1000) +
+			"us, max " + (m_maxTickTime / 1000) + "us";
+	}
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.HashMap;
 
 import org.pokenet.server.GameServer;
+import org.pokenet.server.backend.entity.Char;
 import org.pokenet.server.backend.entity.PlayerChar;
 import org.pokenet.server.backend.map.ServerMap;
 import org.pokenet.server.backend.map.ServerMapMatrix;
@@ -13,6 +14,8 @@ import tiled.io.xml.XMLMapTransformer;
 
 /**
  * Stores the map matrix and movement managers.
+ * Chars are handed between shards and removed under the same lock, so a char
+ * moving to another shard's map can't be missed when it is removed.
  * @author shadowkanji
  *
  */
@@ -21,12 +24,16 @@ public class MovementService {
 	private ServerMapMatrix m_mapMatrix;
 	private ServerMap m_tempMap;
 	private NpcSleepTimer m_sleepTimer;
+	/* Held while a char is handed to another shard or removed */
+	private final Object m_shardLock = new Object();
 	
 	/**
 	 * Default constructor
 	 */
 	public MovementService() {
-		m_movementManager = new MovementManager[GameServer.getMovementThreadAmount()];
+		m_movementManager = new MovementManager[Math.max(1, GameServer.getMovementThreadAmount())];
+		for(int i = 0; i < m_movementManager.length; i++)
+			m_movementManager[i] = new MovementManager(i);
 		m_mapMatrix = new ServerMapMatrix();
 		m_sleepTimer = new NpcSleepTimer();
 	}
@@ -36,32 +43,71 @@ public class MovementService {
 	 * @param username
 	 */
 	public void removePlayer(String username) {
-		for(int i = 0; i < m_movementManager.length; i++) {
-			if(m_movementManager[i].removePlayer(username)) {
-				return;
+		synchronized(m_shardLock) {
+			for(int i = 0; i < m_movementManager.length; i++) {
+				if(m_movementManager[i].removePlayer(username)) {
+					return;
+				}
 			}
 		}
 	}
 	
 	/**
-	 * Returns the movement manager with the smallest processing load
-	 * @return
+	 * Moves a char from one shard to another, unless it was removed in the meantime
+	 * @param c
+	 * @param from
+	 * @param to
 	 */
-	public MovementManager getMovementManager() {
-		int smallest = 0;
-		if(m_movementManager.length > 1) {
-			for(int i = 0; i < m_movementManager.length; i++) {
-				if(m_movementManager[i].getProcessingLoad() < m_movementManager[smallest].getProcessingLoad())
-					smallest = i;
-			}
+	public void handOver(Char c, MovementManager from, MovementManager to) {
+		synchronized(m_shardLock) {
+			if(from.remove(c))
+				to.addPlayer(c);
 		}
-		if(m_movementManager[smallest] == null) {
-			m_movementManager[smallest] = new MovementManager();
+	}
+	
+	/**
+	 * Returns the index of the shard responsible for a map.
+	 * It is worked out once per map and stored on the map.
+	 * @param map
+	 * @return
+	 */
+	private int getShard(ServerMap map) {
+		if(map == null || m_movementManager.length == 1)
+			return 0;
+		int shard = map.getMovementShard();
+		if(shard < 0) {
+			shard = ((map.getX() + 50) * 100 + (map.getY() + 50)) % m_movementManager.length;
+			map.setMovementShard(shard);
 		}
-		if(!m_movementManager[smallest].isRunning()) {
-			m_movementManager[smallest].start();
+		return shard;
+	}
+	
+	/**
+	 * Returns the movement manager (shard) responsible for a map.
+	 * All chars on the same map are always moved by the same shard.
+	 * @param map
+	 * @return
+	 */
+	public MovementManager getMovementManager(ServerMap map) {
+		return m_movementManager[getShard(map)];
+	}
+	
+	/**
+	 * Returns all movement managers (shards)
+	 * @return
+	 */
+	public MovementManager[] getMovementManagers() {
+		return m_movementManager;
+	}
+	
+	/**
+	 * Prints the tick duration and backlog of every movement shard
+	 */
+	public void printStatistics() {
+		for(int i = 0; i < m_movementManager.length; i++) {
+			if(m_movementManager[i] != null)
+				System.out.println("INFO: " + m_movementManager[i].toString());
 		}
-		return m_movementManager[smallest];
 	}
 	
 	/**
@@ -136,7 +182,6 @@ public class MovementService {
 		this.reloadMaps(true);
 		m_sleepTimer.start();
 		for(int i = 0; i < m_movementManager.length; i++) {
-			m_movementManager[i] = new MovementManager();
 			m_movementManager[i].start();
 		}
 		System.out.println("INFO: Movement Service started");
@@ -147,6 +192,7 @@ public class MovementService {
 	 */
 	public void stop() {
 		m_sleepTimer.stop();
+		printStatistics();
 		for(int i = 0; i < m_movementManager.length; i++) {
 			m_movementManager[i].stop();
 		}
@@ -1,9 +1,12 @@
 package org.pokenet.server.backend.entity;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
- * Represents a player's bag
+ * Represents a player's bag.
+ * Items are changed by packet and battle threads while the bag may be saved,
+ * so every method that reads or changes the items holds the bag's lock.
  * @author shadowkanji
  *
  */
@@ -11,6 +14,9 @@ public class Bag {
 	private ArrayList<BagItem> m_items;
 	private int m_memberId;
 	public static int m_bagsize = 30;//30 is the artificial bag size, right?
+	/* Item quantities as they are stored in the database, null if unknown */
+	private HashMap<Integer, Integer> m_savedItems = null;
+	private boolean m_isDirty = true;
 	
 	/**
 	 * Default constructor
@@ -25,7 +31,7 @@ public class Bag {
 	 * @param id
 	 * @return
 	 */
-	public boolean hasSpace(int itemid) {
+	public synchronized boolean hasSpace(int itemid) {
 			if(containsItem(itemid) >= 0 || m_items.size() < m_bagsize)
 				return true;
 			else
@@ -37,14 +43,16 @@ public class Bag {
 	 * @param itemNumber
 	 * @param quantity
 	 */
-	public boolean addItem(int itemNumber, int quantity) {
+	public synchronized boolean addItem(int itemNumber, int quantity) {
 		int bagIndex = containsItem(itemNumber);
 		if(bagIndex > -1){
 			m_items.get(bagIndex).setQuantity(m_items.get(bagIndex).getQuantity()+quantity);
+			m_isDirty = true;
 			return true;
 		}else{
 			if(m_items.size()<30){
 				m_items.add(new BagItem(itemNumber,quantity));
+				m_isDirty = true;
 				return true;
 			}else{
 				return false;
@@ -58,13 +66,14 @@ public class Bag {
 	 * @param quantity
 	 * @return
 	 */
-	public boolean removeItem(int itemNumber, int quantity) {
+	public synchronized boolean removeItem(int itemNumber, int quantity) {
 		for(int i = 0; i < m_items.size(); i++) {
 			if(m_items.get(i).getItemNumber() == itemNumber) {
 				if(m_items.get(i).getQuantity() - quantity > 0)
 					m_items.get(i).setQuantity(m_items.get(i).getQuantity() - quantity);
 				else
 					m_items.remove(i);
+				m_isDirty = true;
 				return true;
 			}
 		}
@@ -76,7 +85,7 @@ public class Bag {
 	 * @param itemNumber
 	 * @param quantity
 	 */
-	public int containsItem(int itemNumber) {
+	public synchronized int containsItem(int itemNumber) {
 		int bagIndex = -1;
 		for(int i = 0; i < m_items.size(); i++) {
 			if(m_items.get(i).getItemNumber() == itemNumber){
@@ -92,7 +101,7 @@ public class Bag {
 	 * @param itemNumber
 	 * @param quantity
 	 */
-	public int getItemQuantity(int itemNumber) {
+	public synchronized int getItemQuantity(int itemNumber) {
 		int quantity = 0;
 		for(int i = 0; i < m_items.size(); i++) {
 			if(m_items.get(i).getItemNumber() == itemNumber){
@@ -104,12 +113,59 @@ public class Bag {
 	}
 	
 	/**
-	 * Returns all the items in the bag
+	 * Returns all the items in the bag.
+	 * NOTE: Synchronize on the bag while iterating over them.
 	 */
 	public ArrayList<BagItem> getItems() {
 		return m_items;
 	}
 	
+	/**
+	 * Returns true if items were added or removed since the bag was last saved
+	 * @return
+	 */
+	public boolean isDirty() {
+		return m_isDirty;
+	}
+	
+	/**
+	 * Returns the item quantities as they are stored in the database,
+	 * or null if the bag was never loaded or saved
+	 * @return
+	 */
+	public HashMap<Integer, Integer> getSavedItems() {
+		return m_savedItems;
+	}
+	
+	/**
+	 * Sets if the bag needs to be saved
+	 * @param b
+	 */
+	public void setDirty(boolean b) {
+		m_isDirty = b;
+	}
+	
+	/**
+	 * Sets the item quantities that are stored in the database
+	 * @param items
+	 */
+	public void setSavedItems(HashMap<Integer, Integer> items) {
+		m_savedItems = items;
+	}
+	
+	/**
+	 * Returns the quantity of each item in the bag
+	 * @return
+	 */
+	public synchronized HashMap<Integer, Integer> getItemQuantities() {
+		HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+		for(int i = 0; i < m_items.size(); i++) {
+			if(m_items.get(i) != null)
+				result.put(m_items.get(i).getItemNumber(), m_items.get(i).getQuantity());
+		}
+		return result;
+	}
+	
 	/**
 	 * Sets the member id of this bag
 	 * @param id
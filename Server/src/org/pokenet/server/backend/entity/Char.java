@@ -1,7 +1,7 @@
 package org.pokenet.server.backend.entity;
 
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.pokenet.server.backend.map.ServerMap;
 import org.pokenet.server.network.message.SpriteChangeMessage;
@@ -19,9 +19,10 @@ public class Char implements Positionable {
 	protected ServerMap m_map;
 	private boolean m_boostPriority = false;
 	/*
-	 * Stores a queue of movements for processing
+	 * Stores a queue of movements for processing.
+	 * Filled by the network threads and drained by the movement shard.
 	 */
-	protected Queue<Direction> m_movementQueue = new LinkedList<Direction>();
+	protected Queue<Direction> m_movementQueue = new ConcurrentLinkedQueue<Direction>();
 	
 	/**
 	 * Returns the priority of this player to be move checked
@@ -55,11 +56,17 @@ public class Char implements Positionable {
 	 * @return
 	 */
 	public Direction getNextMovement() {
-		if(m_movementQueue.size() == 0)
-			return null;
 		return m_movementQueue.poll();
 	}
 	
+	/**
+	 * Returns how many movements are waiting to be processed
+	 * @return
+	 */
+	public int getQueuedMovementCount() {
+		return m_movementQueue.size();
+	}
+	
 	/**
 	 * Returns the direction this char is facing
 	 */
@@ -146,7 +153,7 @@ public class Char implements Positionable {
 		m_sprite = sprite;
 		//Inform everyone of sprite change
 		if(m_map != null)
-			m_map.sendToAll(new SpriteChangeMessage(m_id, this.getSprite()));
+			m_map.sendToObservers(this, new SpriteChangeMessage(m_id, this.getSprite()));
 	}
 
 	/**
@@ -265,6 +272,8 @@ public class Char implements Positionable {
 	 */
 	public void setX(int x) {
 		m_x = x;
+		if(m_map != null)
+			m_map.positionChanged(this);
 	}
 
 	/**
@@ -272,6 +281,8 @@ public class Char implements Positionable {
 	 */
 	public void setY(int y) {
 		m_y = y;
+		if(m_map != null)
+			m_map.positionChanged(this);
 	}
 	
 	/**
@@ -297,7 +308,7 @@ public class Char implements Positionable {
 	public void setSurfing(boolean b) {
 		m_isSurfing = b;
 		if(m_map != null)
-			m_map.sendToAll(new SpriteChangeMessage(m_id, this.getSprite()));
+			m_map.sendToObservers(this, new SpriteChangeMessage(m_id, this.getSprite()));
 	}
 	
 	/**
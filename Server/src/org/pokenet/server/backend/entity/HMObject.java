@@ -93,7 +93,7 @@ public class HMObject extends NonPlayerChar {
 			case STRENGTH_BOULDER :
 				queueMovement(p.getFacing());
 				if (addToMovementManager) {
-					GameServer.getServiceManager().getMovementService().getMovementManager().addHMObject(this);
+					GameServer.getServiceManager().getMovementService().getMovementManager(getMap()).addHMObject(this);
 					addToMovementManager = false;
 				}
 				// Return to original position 30 seconds after last movement
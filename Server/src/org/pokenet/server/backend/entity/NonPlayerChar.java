@@ -7,6 +7,7 @@ import java.util.Random;
 import org.pokenet.server.battle.DataService;
 import org.pokenet.server.battle.Pokemon;
 import org.pokenet.server.battle.impl.NpcBattleField;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
 import org.pokenet.server.network.TcpProtocolHandler;
 import org.pokenet.server.network.message.NpcSpeechMessage;
 import org.pokenet.server.network.message.SpriteSelectMessage;
@@ -303,7 +304,7 @@ public class NonPlayerChar extends Char {
 		Pokemon poke;
 		int level;
 		String name;
-		Random r = DataService.getBattleMechanics().getRandom();
+		Random r = BattleMechanics.getThreadRandom();
 		if(isGymLeader()) {
 			if(p.getBadgeCount() > 7) {
 				/* If a player has 8 badges, level 80s all round */
@@ -16,8 +16,11 @@ import org.pokenet.server.battle.PokemonSpecies;
 import org.pokenet.server.battle.impl.PvPBattleField;
 import org.pokenet.server.battle.impl.WildBattleField;
 import org.pokenet.server.battle.mechanics.moves.PokemonMove;
+import org.pokenet.server.feature.ChatHistory;
+import org.pokenet.server.feature.ChatRateLimiter;
 import org.pokenet.server.feature.TimeService;
 import org.pokenet.server.network.MySqlManager;
+import org.pokenet.server.network.OutboundChannel;
 import org.pokenet.server.network.TcpProtocolHandler;
 import org.pokenet.server.network.message.ItemMessage;
 import org.pokenet.server.network.message.SpriteChangeMessage;
@@ -28,7 +31,9 @@ import org.pokenet.server.network.message.shop.ShopNoSpaceMessage;
 import org.pokenet.server.network.message.shop.ShopSellMessage;
 
 /**
- * Represents a player
+ * Represents a player.
+ * Changes to the player's party, boxes and money that must be saved together hold the player's lock,
+ * as do trades and PlayerSave while it takes a snapshot of the player.
  * @author shadowkanji
  *
  */
@@ -43,6 +48,8 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	public enum Language { ENGLISH, PORTUGESE, ITALIAN, FRENCH, FINNISH, SPANISH, GERMAN, DUTCH }
 
 	private Language m_language;
+	/* The last message of each map chat history this player has seen */
+	private HashMap<ChatHistory<?>, Long> m_chatSeen = new HashMap<ChatHistory<?>, Long>();
 	private Bag m_bag;
 	private int m_battleId;
 	private Pokemon[] m_pokemon;
@@ -57,6 +64,8 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	private int m_money;
 	private ArrayList<String> m_friends;
 	private long m_lastLogin;
+	/* The column values last read from or written to the database */
+	private Object [][] m_savedValues = null;
 	private int m_skillHerbExp = 0;
 	private int m_skillCraftExp = 0;
 	private int m_skillFishExp = 0;
@@ -68,14 +77,10 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	private int m_healX, m_healY, m_healMapX, m_healMapY;
 	private int m_adminLevel = 0;
 	private boolean m_isMuted, m_isFishing; 
+	private ChatRateLimiter m_chatLimiter = new ChatRateLimiter();
 	private Shop m_currentShop = null;
 	private int m_repel = 0;
 	private long m_lastTrade = 0;
-	/*
-	 * Stores movement of other players to be
-	 * sent in bulk to client
-	 */
-	private String [] m_movements = new String [7];
 	/*
 	 * Kicking timer
 	 */
@@ -114,34 +119,6 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 		m_requests = new HashMap<String, RequestType>();
 	}
 	
-	/**
-	 * Queues other player movements to be sent to client in bulk
-	 * @param d
-	 * @param player
-	 */
-	public void queueOtherPlayerMovement(Direction d, int player) {
-		String s = d.name().toUpperCase().charAt(0) + String.valueOf(player);
-		/* Queue the movement */
-		for(int i = 0; i < m_movements.length; i++) {
-			if(m_movements[i] == null) {
-				m_movements[i] = s;
-				return;
-			}
-		}
-		/* 
-		 * Unsuccessful, queue is full!
-		 * Send queue and place at 0
-		 */
-		String message = "M";
-		for(int i = 0; i < m_movements.length; i++) {
-			message = message + m_movements[i] + ",";
-			m_movements[i] = null;
-		}
-		message = message.substring(0, message.length() - 1);
-		m_tcpSession.write(message);
-		m_movements[0] = s;
-	}
-
 	/**
 	 * Returns this player's ip address
 	 * @return
@@ -179,7 +156,7 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * @param box
 	 * @param slot
 	 */
-	public void releasePokemon(int box, int slot) {
+	public synchronized void releasePokemon(int box, int slot) {
 		/* If the box doesn't exist, return */
 		if(m_boxes[box] == null)
 			return;
@@ -213,7 +190,7 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * @param boxSlot
 	 * @param partySlot
 	 */
-	public void swapFromBox(int box, int boxSlot, int partySlot) {
+	public synchronized void swapFromBox(int box, int boxSlot, int partySlot) {
 		if(box < 0 || box > 8)
 			return;
 		/* Ensure the box exists */
@@ -271,6 +248,25 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 		m_language = l;
 	}
 
+	/**
+	 * Returns the number of the last message of a chat history this player has seen, or 0
+	 * @param history
+	 * @return
+	 */
+	public long getChatSeen(ChatHistory<?> history) {
+		Long seen = m_chatSeen.get(history);
+		return seen == null ? 0 : seen.longValue();
+	}
+
+	/**
+	 * Stores the number of the last message of a chat history this player has seen
+	 * @param history
+	 * @param sequence
+	 */
+	public void setChatSeen(ChatHistory<?> history, long sequence) {
+		m_chatSeen.put(history, sequence);
+	}
+
 	/**
 	 * Returns true if the player is trading
 	 * @return
@@ -583,6 +579,14 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 		m_isMuted = b;
 	}
 
+	/**
+	 * Returns the limit on how often this player may chat
+	 * @return
+	 */
+	public ChatRateLimiter getChatRateLimiter() {
+		return m_chatLimiter;
+	}
+
 	/**
 	 * If the player's first Pokemon in party has 0 HP, 
 	 * it puts the first Pokemon in their party with more
@@ -604,7 +608,7 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * @param a
 	 * @param b
 	 */
-	public void swapPokemon(int a, int b) {
+	public synchronized void swapPokemon(int a, int b) {
 		if(a >= 0 && a < 6 && b >= 0 && b < 6) {
 			Pokemon temp = m_pokemon[a];
 			m_pokemon[a] = m_pokemon[b];
@@ -757,6 +761,17 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 */
 	public void setTcpSession(IoSession session) {
 		m_tcpSession = session;
+		if(session != null)
+			session.setAttribute(OutboundChannel.ATTRIBUTE, new OutboundChannel(session, this));
+	}
+
+	/**
+	 * Returns the channel which queues packets sent to this player over TCP
+	 * @return
+	 */
+	public OutboundChannel getOutboundChannel() {
+		return m_tcpSession == null ? null :
+			(OutboundChannel) m_tcpSession.getAttribute(OutboundChannel.ATTRIBUTE);
 	}
 
 	/**
@@ -1167,7 +1182,7 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * Adds a pokemon to this player's party or box
 	 * @param p
 	 */
-	public void addPokemon(Pokemon p) {
+	public synchronized void addPokemon(Pokemon p) {
 		/* See if there is space in the player's party */
 		for(int i = 0; i < 6; i++) {
 			if(m_pokemon[i] == null) {
@@ -1211,6 +1226,23 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	public long getLastLoginTime() {
 		return m_lastLogin;
 	}
+	
+	/**
+	 * Returns the column values this player had when they were last saved, or null if they were never saved.
+	 * Used to only write the columns that have changed.
+	 * @return
+	 */
+	public Object [][] getSavedValues() {
+		return m_savedValues;
+	}
+	
+	/**
+	 * Sets the column values this player had when they were last saved
+	 * @param values
+	 */
+	public void setSavedValues(Object [][] values) {
+		m_savedValues = values;
+	}
 
 	/**
 	 * Returns the player's bag
@@ -1257,8 +1289,8 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 		m_tcpSession.write("ms" + direction + map.getX() + "," + map.getY() + "," + (map.isWeatherForced() ? map.getWeatherId() : TimeService.getWeatherId()));
 		Char c;
 		String packet = "mi";
-		//Send all player information to the client
-		for(PlayerChar p : map.getPlayers().values()) {
+		//Send information about all players in view to the client
+		for(PlayerChar p : map.getPlayersInView(this)) {
 			c = p;
 			packet = packet + c.getName() + "," + 
 			c.getId() + "," + c.getSprite() + "," + c.getX() + "," + c.getY() + "," + 
@@ -1503,7 +1535,7 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * @param id
 	 * @param q
 	 */
-	public void buyItem(int id, int q) {
+	public synchronized void buyItem(int id, int q) {
 		/* If the player isn't shopping, ignore this */
 		if(m_currentShop == null)
 			return;
@@ -1536,7 +1568,7 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * @param id
 	 * @param q
 	 */
-	public void sellItem(int id, int q) {
+	public synchronized void sellItem(int id, int q) {
 		/* If the player isn't shopping, ignore this */
 		if(m_currentShop == null)
 			return;
@@ -1589,8 +1621,10 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * Sends all bag information to the client
 	 */
 	public void updateClientBag() {
-		for(int i = 0; i < this.getBag().getItems().size(); i++) {
-			updateClientBag(i);
+		synchronized(getBag()) {
+			for(int i = 0; i < this.getBag().getItems().size(); i++) {
+				updateClientBag(i);
+			}
 		}
 	}
 
@@ -1693,10 +1727,12 @@ public class PlayerChar extends Char implements Battleable, Tradeable {
 	 * @param index
 	 */
 	public void updateClientBag(int i) {
-		if(this.getBag().getItems().get(i) != null) {
-			TcpProtocolHandler.writeMessage(m_tcpSession, new ItemMessage(true, 
-					getBag().getItems().get(i).getItemNumber(), 
-					getBag().getItems().get(i).getQuantity()));
+		synchronized(getBag()) {
+			if(i < this.getBag().getItems().size() && this.getBag().getItems().get(i) != null) {
+				TcpProtocolHandler.writeMessage(m_tcpSession, new ItemMessage(true, 
+						getBag().getItems().get(i).getItemNumber(), 
+						getBag().getItems().get(i).getQuantity()));
+			}
 		}
 	}
 }
@@ -9,6 +9,7 @@ import org.pokenet.server.battle.Pokemon;
  */
 public class PokemonBox {
 	private Pokemon [] m_pokemon;
+	private boolean m_isDirty = true;
 	
 	/**
 	 * Sets the pokemon in this box
@@ -16,6 +17,23 @@ public class PokemonBox {
 	 */
 	public void setPokemon(Pokemon [] pokes) {
 		m_pokemon = pokes;
+		m_isDirty = true;
+	}
+	
+	/**
+	 * Returns true if pokemon were placed in or taken out of this box since it was last saved
+	 * @return
+	 */
+	public boolean isDirty() {
+		return m_isDirty;
+	}
+	
+	/**
+	 * Sets if this box needs to be saved
+	 * @param b
+	 */
+	public void setDirty(boolean b) {
+		m_isDirty = b;
 	}
 	
 	/**
@@ -42,5 +60,6 @@ public class PokemonBox {
 	 */
 	public void setPokemon(int index, Pokemon p) {
 		m_pokemon[index] = p;
+		m_isDirty = true;
 	}
 }
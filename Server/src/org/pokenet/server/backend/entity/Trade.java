@@ -192,15 +192,50 @@ public class Trade implements Runnable{
 	 */
 	public void checkForExecution() {
 		Iterator<Tradeable> i = m_offers.keySet().iterator();
-		if(i.next().acceptedTradeOffer() && i.next().acceptedTradeOffer()) {
-			try{
-				executeTrade();
-			} catch (Exception e){
-				e.printStackTrace();
+		Tradeable player1 = i.next();
+		Tradeable player2 = i.next();
+		if(player1.acceptedTradeOffer() && player2.acceptedTradeOffer()) {
+			/*
+			 * Hold both players' locks so neither can be saved halfway through the trade.
+			 * Players are locked in order of their ids so two trades can't deadlock.
+			 */
+			Object first = getLock(player1);
+			Object second = getLock(player2);
+			if(getLockOrder(player2) < getLockOrder(player1)) {
+				first = getLock(player2);
+				second = getLock(player1);
+			}
+			synchronized(first) {
+				synchronized(second) {
+					try{
+						executeTrade();
+					} catch (Exception e){
+						e.printStackTrace();
+					}
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Returns the lock held for a trader while the trade executes.
+	 * Only players are saved, so other traders use the trade's lock.
+	 * @param t
+	 * @return
+	 */
+	private Object getLock(Tradeable t) {
+		return t instanceof PlayerChar ? t : this;
+	}
+	
+	/**
+	 * Returns the order a trader's lock is taken in
+	 * @param t
+	 * @return
+	 */
+	private int getLockOrder(Tradeable t) {
+		return t instanceof PlayerChar ? ((PlayerChar) t).getId() : Integer.MAX_VALUE;
+	}
+	
 	/**
 	 * Executes the trade
 	 */
@@ -347,6 +382,10 @@ public class Trade implements Runnable{
 				
 				/* Store transactions on DB */
 				new Thread(this).start();
+				/* Save both players together so the trade is never stored for only one of them */
+				if(player1 instanceof PlayerChar && player2 instanceof PlayerChar)
+					GameServer.getServiceManager().getNetworkService().getLogoutManager()
+						.queueTradeSave((PlayerChar) player1, (PlayerChar) player2);
 				
 				/* End the trade */
 				m_isExecuting = false;
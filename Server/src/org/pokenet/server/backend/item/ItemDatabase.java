@@ -3,13 +3,13 @@ package org.pokenet.server.backend.item;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.pokenet.server.backend.item.Item.ItemAttribute;
+import org.pokenet.server.battle.NameIndex;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -25,6 +25,8 @@ import org.xml.sax.SAXParseException;
  */
 public class ItemDatabase {
 	private static HashMap<Integer, Item> m_items;
+	/* Index of items by name, rebuilt when items are added */
+	private static volatile NameIndex<Item> m_names = null;
 	
 	public void initialise() {
 		try {
@@ -104,6 +106,8 @@ public class ItemDatabase {
 					}
 				}
 			}
+			m_names = null;
+			buildIndex();
 		} catch (SAXParseException err) {
 			System.out.println("** Parsing error, line "
 					+ err.getLineNumber() + ", uri " + err.getSystemId());
@@ -130,6 +134,7 @@ public class ItemDatabase {
 		if(m_items == null)
 			m_items = new HashMap<Integer, Item>();
 		m_items.put(id, i);
+		m_names = null;
 	}
 	
 	/**
@@ -147,16 +152,29 @@ public class ItemDatabase {
 	 * @return
 	 */
 	public Item getItem(String name) {
-		Iterator<Item> it = m_items.values().iterator();
-		Item i;
-		while(it.hasNext()) {
-			i = it.next();
-			if(i.getName().equalsIgnoreCase(name))
-				return i;
+		NameIndex<Item> index = m_names;
+		if(index == null) {
+			index = buildIndex();
 		}
-		return null;
+		return index.get(name);
+	}
+	
+	/**
+	 * Builds the index of item names
+	 * @return
+	 */
+	private static synchronized NameIndex<Item> buildIndex() {
+		if(m_names != null)
+			return m_names;
+		NameIndex<Item> index = new NameIndex<Item>(m_items == null ? 0 : m_items.size());
+		if(m_items != null) {
+			for(Item i : m_items.values()) {
+				index.put(i.getName(), i);
+			}
+		}
+		m_names = index;
+		return index;
 	}
-		
 	
 	/**
 	 * Returns the instance of items in the database
@@ -0,0 +1,144 @@
+package org.pokenet.server.backend.map;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Picks wild species in constant time using Vose's alias method.
+ *
+ * Maps list a chance (0-100) for each species. An encounter used to be generated by rolling
+ * nextInt(101) once per species, keeping the species whose roll was below their chance, repeating
+ * until at least one species was kept, and then picking one of the kept species at random.
+ * So a species with chance c is kept with probability p = min(c, 101) / 101, and it is picked with
+ * probability p * E[1 / (1 + K)] / (1 - P(no species kept)), where K is the number of other species kept.
+ * This table computes those probabilities exactly when the map is loaded.
+ * If no species can be kept (all chances are 0), every species is equally likely.
+ * @author shadowkanji
+ *
+ */
+public class EncounterTable {
+	private final String [] m_species;
+	private final double [] m_weights;
+	private final double [] m_probability;
+	private final int [] m_alias;
+
+	/**
+	 * Constructor
+	 * @param chances - the chance of each species, as listed in the map
+	 */
+	public EncounterTable(HashMap<String, Integer> chances) {
+		int n = chances.size();
+		m_species = chances.keySet().toArray(new String[n]);
+		m_weights = getWeights(m_species, chances);
+		m_probability = new double[n];
+		m_alias = new int[n];
+		buildAliasTable();
+	}
+
+	/**
+	 * Returns the chance of each species being picked by the old rejection loop
+	 * @param species
+	 * @param chances
+	 * @return
+	 */
+	private static double [] getWeights(String [] species, HashMap<String, Integer> chances) {
+		int n = species.length;
+		double [] p = new double[n];
+		double none = 1;
+		for(int i = 0; i < n; i++) {
+			p[i] = Math.max(0, Math.min(chances.get(species[i]), 101)) / 101.0;
+			none *= 1 - p[i];
+		}
+		double [] weights = new double[n];
+		if(none >= 1) {
+			/* Nothing could ever be kept, treat all species equally */
+			for(int i = 0; i < n; i++)
+				weights[i] = 1.0 / n;
+			return weights;
+		}
+		double [] others = new double[n];
+		for(int i = 0; i < n; i++) {
+			/* Distribution of how many other species are kept */
+			others[0] = 1;
+			int count = 0;
+			for(int j = 0; j < n; j++) {
+				if(j == i)
+					continue;
+				count++;
+				others[count] = 0;
+				for(int k = count; k > 0; k--)
+					others[k] = others[k] * (1 - p[j]) + others[k - 1] * p[j];
+				others[0] *= 1 - p[j];
+			}
+			double expected = 0;
+			for(int k = 0; k <= count; k++)
+				expected += others[k] / (k + 1);
+			weights[i] = p[i] * expected / (1 - none);
+		}
+		return weights;
+	}
+
+	/**
+	 * Builds the probability and alias tables (Vose's method)
+	 */
+	private void buildAliasTable() {
+		int n = m_species.length;
+		double [] scaled = new double[n];
+		double total = 0;
+		for(int i = 0; i < n; i++)
+			total += m_weights[i];
+		ArrayList<Integer> small = new ArrayList<Integer>();
+		ArrayList<Integer> large = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++) {
+			scaled[i] = m_weights[i] * n / total;
+			if(scaled[i] < 1)
+				small.add(i);
+			else
+				large.add(i);
+		}
+		while(!small.isEmpty() && !large.isEmpty()) {
+			int s = small.remove(small.size() - 1);
+			int l = large.remove(large.size() - 1);
+			m_probability[s] = scaled[s];
+			m_alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1;
+			if(scaled[l] < 1)
+				small.add(l);
+			else
+				large.add(l);
+		}
+		/* Whatever is left is 1 apart from rounding errors */
+		for(int i : large) {
+			m_probability[i] = 1;
+			m_alias[i] = i;
+		}
+		for(int i : small) {
+			m_probability[i] = 1;
+			m_alias[i] = i;
+		}
+	}
+
+	/**
+	 * Returns a random species
+	 * @param random
+	 * @return
+	 */
+	public String getSpecies(Random random) {
+		int i = random.nextInt(m_species.length);
+		return random.nextDouble() < m_probability[i] ? m_species[i] : m_species[m_alias[i]];
+	}
+
+	/**
+	 * Returns the chance of a species being picked, between 0 and 1
+	 * @param species
+	 * @return
+	 */
+	public double getChance(String species) {
+		for(int i = 0; i < m_species.length; i++) {
+			if(m_species[i].equals(species))
+				return m_weights[i];
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,130 @@
+package org.pokenet.server.backend.map;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks that an EncounterTable picks species as often as the rejection loop maps used before it.
+ * Both are sampled for a few tables taken from the maps, plus tables where every chance is low
+ * so the old loop had to roll many times. Each species' frequency must be within a few standard
+ * errors of the other method's frequency and of the chance the table reports.
+ * Exits with status 1 if any check fails.
+ * @author shadowkanji
+ *
+ */
+public class EncounterTableCheck {
+	/* How many standard errors two frequencies may differ by */
+	private static final double TOLERANCE = 5;
+
+	/**
+	 * Picks a species the way maps used to, by rolling for every species until at least one is kept
+	 * @param chances
+	 * @param random
+	 * @return
+	 */
+	private static String rollUntilPass(HashMap<String, Integer> chances, Random random) {
+		ArrayList<String> potentialSpecies = new ArrayList<String>();
+		do {
+			for (String species : chances.keySet()) {
+				if (random.nextInt(101) < chances.get(species))
+					potentialSpecies.add(species);
+			}
+		} while (potentialSpecies.size() <= 0);
+		return potentialSpecies.get(random.nextInt(potentialSpecies.size()));
+	}
+
+	/**
+	 * Parses a table in the format used by the map properties, e.g. Geodude,50;Spearow,30;
+	 * @param property
+	 * @return
+	 */
+	private static HashMap<String, Integer> parse(String property) {
+		HashMap<String, Integer> chances = new HashMap<String, Integer>();
+		for(String entry : property.split(";")) {
+			String [] details = entry.split(",");
+			chances.put(details[0], Integer.parseInt(details[1]));
+		}
+		return chances;
+	}
+
+	/**
+	 * Samples a table with both methods and compares the frequencies. Returns true if they match.
+	 * @param property
+	 * @param samples
+	 * @param seed
+	 * @return
+	 */
+	private static boolean check(String property, int samples, long seed) {
+		HashMap<String, Integer> chances = parse(property);
+		EncounterTable table = new EncounterTable(chances);
+		Random random = new Random(seed);
+		HashMap<String, Integer> alias = new HashMap<String, Integer>();
+		HashMap<String, Integer> loop = new HashMap<String, Integer>();
+		for(String species : chances.keySet()) {
+			alias.put(species, 0);
+			loop.put(species, 0);
+		}
+		for(int i = 0; i < samples; i++) {
+			String a = table.getSpecies(random);
+			alias.put(a, alias.get(a) + 1);
+			String l = rollUntilPass(chances, random);
+			loop.put(l, loop.get(l) + 1);
+		}
+		boolean success = true;
+		System.out.println("INFO: " + property);
+		for(String species : chances.keySet()) {
+			double expected = table.getChance(species);
+			double a = alias.get(species) / (double) samples;
+			double l = loop.get(species) / (double) samples;
+			double error = Math.sqrt(Math.max(expected * (1 - expected), 1.0 / samples) / samples);
+			boolean match = Math.abs(a - l) <= TOLERANCE * error * Math.sqrt(2) &&
+				Math.abs(a - expected) <= TOLERANCE * error && Math.abs(l - expected) <= TOLERANCE * error;
+			System.out.println((match ? "INFO:  " : "ERROR: ") + species + " expected " + format(expected) +
+					", alias table " + format(a) + ", rejection loop " + format(l));
+			success &= match;
+		}
+		return success;
+	}
+
+	/**
+	 * Formats a probability as a percentage with two decimal places
+	 * @param d
+	 * @return
+	 */
+	private static String format(double d) {
+		return String.valueOf(Math.round(d * 10000) / 100.0) + "%";
+	}
+
+	/**
+	 * Runs the checks. The first argument sets how many samples are taken per table.
+	 * @param args
+	 */
+	public static void main(String [] args) {
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		String [] tables = {
+				/* From the maps */
+				"Geodude,50;Spearow,30;Rattata,15;Phanpy,2;Jigglypuff,3",
+				"Tangela,30;Poliwag,15;Bellsprout,20;Weepinbell,10;Poliwhirl,5;Lickitung,20",
+				"Poliwag,90;Poliwhirl,10",
+				/* Low chances, the old loop usually keeps nothing and rolls again */
+				"Abra,1;Chansey,2;Dratini,1",
+				"Eevee,5;Snorlax,1;Lapras,3;Porygon,2;Ditto,4",
+				"Mew,1",
+				/* Chances over 100 are kept every roll */
+				"Magikarp,100;Goldeen,150;Gyarados,1"
+		};
+		boolean success = true;
+		for(int i = 0; i < tables.length; i++)
+			success &= check(tables[i], samples, i);
+		/* The old loop never ends if every chance is 0, the table treats all species equally */
+		EncounterTable none = new EncounterTable(parse("Pidgey,0;Rattata,0"));
+		if(Math.abs(none.getChance("Pidgey") - 0.5) > 1e-9) {
+			System.out.println("ERROR: A table with no chances is not uniform");
+			success = false;
+		}
+		System.out.println(success ? "INFO: All encounter tables match" : "ERROR: Encounter tables do not match");
+		if(!success)
+			System.exit(1);
+	}
+}
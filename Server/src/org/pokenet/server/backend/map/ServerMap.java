@@ -4,8 +4,13 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.mina.core.session.IoSession;
+import org.pokenet.server.GameServer;
 import org.pokenet.server.backend.DataLoader;
 import org.pokenet.server.backend.entity.Char;
 import org.pokenet.server.backend.entity.HMObject;
@@ -13,13 +18,15 @@ import org.pokenet.server.backend.entity.NonPlayerChar;
 import org.pokenet.server.backend.entity.PlayerChar;
 import org.pokenet.server.backend.entity.PlayerChar.Language;
 import org.pokenet.server.backend.entity.Positionable.Direction;
-import org.pokenet.server.battle.DataService;
 import org.pokenet.server.battle.Pokemon;
 import org.pokenet.server.battle.impl.NpcBattleLauncher;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
+import org.pokenet.server.feature.ChatHistory;
 import org.pokenet.server.feature.TimeService;
 import org.pokenet.server.feature.TimeService.Weather;
 import org.pokenet.server.network.TcpProtocolHandler;
 import org.pokenet.server.network.message.ChatMessage;
+import org.pokenet.server.network.message.MovementMessage;
 import org.pokenet.server.network.message.PokenetMessage;
 import org.pokenet.server.network.message.ChatMessage.ChatMessageType;
 
@@ -46,6 +53,9 @@ public class ServerMap {
 	private Weather m_forcedWeather = null;
 	//Players and NPCs
 	private HashMap<String, PlayerChar> m_players;
+	/* Recent local chat of each language, replayed to players entering the map. Guarded by m_players */
+	public static final int CHAT_HISTORY_SIZE = 20;
+	private HashMap<Language, ChatHistory<String>> m_chatHistory = new HashMap<Language, ChatHistory<String>>();
 	private ArrayList<NonPlayerChar> m_npcs;
 	private ArrayList<WarpTile> m_warps;
 	private ArrayList<MapItem> m_items;
@@ -58,6 +68,10 @@ public class ServerMap {
 	private HashMap<String, Integer> m_waterPokemonChances;
 	private HashMap<String, int[]> m_fishPokemonLevels;
 	private HashMap<String, Integer> m_fishPokemonChances;
+	private EncounterTable m_dayEncounters = null;
+	private EncounterTable m_nightEncounters = null;
+	private EncounterTable m_waterEncounters = null;
+	private EncounterTable m_fishEncounters = null;
 	private int m_wildProbability;
 	//The following stores collision information
 	private ServerTileLayer m_blocked = null;
@@ -66,8 +80,22 @@ public class ServerMap {
 	private ServerTileLayer m_ledgesDown = null;
 	private ServerTileLayer m_ledgesLeft = null;
 	private ServerTileLayer m_ledgesRight = null;
-	//Misc
-	private Random m_random = DataService.getBattleMechanics().getRandom();
+	//Area of interest, stores which players each player currently knows about
+	private static final int AOI_CELL_SIZE = 16;
+	private HashMap<PlayerChar, HashSet<PlayerChar>> m_known = new HashMap<PlayerChar, HashSet<PlayerChar>>();
+	private ArrayList<PlayerChar> [] m_cells = null;
+	//Movements made on this map during the current movement tick
+	private final Object m_movementLock = new Object();
+	private int [] m_movementIds = new int[32];
+	private char [] m_movementDirs = new char[32];
+	private int m_movementCount = 0;
+	private boolean m_flushQueued = false;
+	/* The movement shard this map belongs to, or -1 if it has not been worked out */
+	private volatile int m_movementShard = -1;
+	/* Set when a player was placed without moving, so who can see who is worked out at the next flush */
+	private final AtomicBoolean m_viewChanged = new AtomicBoolean(false);
+	/* Players who are sent everyone nearby again at the next flush */
+	private HashSet<PlayerChar> m_resync = new HashSet<PlayerChar>();
 	
 	/**
 	 * Default constructor
@@ -262,6 +290,24 @@ public class ServerMap {
 			species = new String[] { "" };
 			levels = new String[] { "" };
 		}
+		/*
+		 * Build the encounter tables, these are rebuilt whenever maps are reloaded
+		 */
+		m_dayEncounters = createEncounterTable(m_dayPokemonChances);
+		m_nightEncounters = createEncounterTable(m_nightPokemonChances);
+		m_waterEncounters = createEncounterTable(m_waterPokemonChances);
+		m_fishEncounters = createEncounterTable(m_fishPokemonChances);
+	}
+	
+	/**
+	 * Returns an encounter table for the chances given, or null if there are none
+	 * @param chances
+	 * @return
+	 */
+	private EncounterTable createEncounterTable(HashMap<String, Integer> chances) {
+		if(chances == null || chances.size() == 0)
+			return null;
+		return new EncounterTable(chances);
 	}
 	
 	/**
@@ -283,12 +329,18 @@ public class ServerMap {
 	}
 	
 	/**
-     * Sends a chat message to everyone of the same language
+     * Sends a chat message to everyone of the same language and adds it to the map's chat history
      * @param message
      * @param l
      */
     public void sendChatMessage(String message, Language l) {
             synchronized(m_players) {
+                    ChatHistory<String> history = m_chatHistory.get(l);
+                    if(history == null) {
+                            history = new ChatHistory<String>(CHAT_HISTORY_SIZE);
+                            m_chatHistory.put(l, history);
+                    }
+                    history.add(message);
                     Collection<PlayerChar> list = m_players.values();
                     for(PlayerChar p: list) {
                             if(p.getLanguage() == l) {
@@ -391,6 +443,22 @@ public class ServerMap {
 			return 0;
 	}
 	
+	/**
+	 * Returns the movement shard this map belongs to, or -1 if it has not been worked out yet
+	 * @return
+	 */
+	public int getMovementShard() {
+		return m_movementShard;
+	}
+	
+	/**
+	 * Stores the movement shard this map belongs to
+	 * @param shard
+	 */
+	public void setMovementShard(int shard) {
+		m_movementShard = shard;
+	}
+	
 	/**
 	 * Sets the map matrix
 	 * @param matrix
@@ -400,36 +468,147 @@ public class ServerMap {
 	}
 	
 	/**
-	 * Adds a player to this map and notifies all other clients on the map.
+	 * Adds a player to this map and notifies all other clients in view.
+	 * NPCs are always announced to everyone on the map.
 	 * @param player
 	 */
 	public void addChar(Char c) {
-		if(c instanceof PlayerChar) {
-			m_players.put(c.getName(), (PlayerChar) c);
-		} else if(c instanceof NonPlayerChar || c instanceof HMObject) {
+		if(c instanceof NonPlayerChar || c instanceof HMObject) {
 			//Set the id of the npc
 			c.setId(-1 - m_npcs.size());
 			m_npcs.add((NonPlayerChar) c);
 		}
 		synchronized(m_players) {
-			for(PlayerChar p : m_players.values()) {
-				if(c.getId() != p.getId()) {
-					String name = c.getName();
-					if(c instanceof NonPlayerChar) {
-						name = "!NPC!";
+			Collection<PlayerChar> observers;
+			if(c instanceof PlayerChar) {
+				PlayerChar player = (PlayerChar) c;
+				m_players.put(c.getName(), player);
+				/* Introduce the player to everyone in view and vice versa */
+				HashSet<PlayerChar> visible = new HashSet<PlayerChar>();
+				for(PlayerChar p : m_players.values()) {
+					if(p != player && isInView(player, p)) {
+						visible.add(p);
+						HashSet<PlayerChar> known = m_known.get(p);
+						if(known != null)
+							known.add(player);
 					}
-					p.getTcpSession().write("ma" + name + "," + 
-							c.getId() + "," + c.getSprite() + "," + c.getX() + "," + c.getY() + "," + 
-							(c.getFacing() == Direction.Down ? "D" : 
-								c.getFacing() == Direction.Up ? "U" :
-									c.getFacing() == Direction.Left ? "L" :
-										"R"));
 				}
-
+				m_known.put(player, visible);
+				observers = visible;
+				sendChatHistory(player);
+			} else {
+				observers = m_players.values();
 			}
+			String packet = getAddPacket(c);
+			for(PlayerChar p : observers) {
+				if(c.getId() != p.getId()) {
+					p.getTcpSession().write(packet);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sends a player entering the map the recent local chat in their language that they have
+	 * not seen yet, e.g. on an earlier visit. The messages are queued together so they reach
+	 * the client in a single write.
+	 * @param p
+	 */
+	private void sendChatHistory(PlayerChar p) {
+		ChatHistory<String> history = m_chatHistory.get(p.getLanguage());
+		if(history == null)
+			return;
+		Iterator<String> it = history.getMessagesSince(p.getChatSeen(history)).iterator();
+		while(it.hasNext())
+			TcpProtocolHandler.writeMessage(p.getTcpSession(), new ChatMessage(ChatMessageType.LOCAL, it.next()));
+	}
+	
+	/**
+	 * Returns the packet which tells a client to add a char to their map
+	 * @param c
+	 * @return
+	 */
+	private String getAddPacket(Char c) {
+		String name = c.getName();
+		if(c instanceof NonPlayerChar) {
+			name = "!NPC!";
+		}
+		return "ma" + name + "," + 
+			c.getId() + "," + c.getSprite() + "," + c.getX() + "," + c.getY() + "," + 
+			(c.getFacing() == Direction.Down ? "D" : 
+				c.getFacing() == Direction.Up ? "U" :
+					c.getFacing() == Direction.Left ? "L" :
+						"R");
+	}
+	
+	/**
+	 * Returns true if two chars are within view range of each other.
+	 * The map is split into cells of AOI_CELL_SIZE tiles, chars can see their own cell and all
+	 * neighbouring cells.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private boolean isInView(Char a, Char b) {
+		return Math.abs(getCellX(a) - getCellX(b)) <= 1 && Math.abs(getCellY(a) - getCellY(b)) <= 1;
+	}
+	
+	/**
+	 * Returns the x co-ordinate of the interest cell a char is in
+	 * @param c
+	 * @return
+	 */
+	private int getCellX(Char c) {
+		return Math.max(Math.min(c.getX() / 32, m_width - 1), 0) / AOI_CELL_SIZE;
+	}
+	
+	/**
+	 * Returns the y co-ordinate of the interest cell a char is in
+	 * @param c
+	 * @return
+	 */
+	private int getCellY(Char c) {
+		return Math.max(Math.min((c.getY() + 8) / 32, m_heigth - 1), 0) / AOI_CELL_SIZE;
+	}
+	
+	/**
+	 * Places every player on the map into their interest cell.
+	 * Must be called while holding the lock on m_players.
+	 */
+	private void updateCells() {
+		int width = (Math.max(m_width, 1) + AOI_CELL_SIZE - 1) / AOI_CELL_SIZE;
+		if(m_cells == null) {
+			int height = (Math.max(m_heigth, 1) + AOI_CELL_SIZE - 1) / AOI_CELL_SIZE;
+			@SuppressWarnings("unchecked")
+			ArrayList<PlayerChar> [] cells = (ArrayList<PlayerChar> []) new ArrayList<?>[width * height];
+			m_cells = cells;
+			for(int i = 0; i < m_cells.length; i++)
+				m_cells[i] = new ArrayList<PlayerChar>();
+		}
+		for(int i = 0; i < m_cells.length; i++)
+			m_cells[i].clear();
+		for(PlayerChar p : m_players.values()) {
+			m_cells[getCellY(p) * width + getCellX(p)].add(p);
 		}
 	}
 	
+	/**
+	 * Returns all players in view of a player, including the player themself
+	 * @param p
+	 * @return
+	 */
+	public ArrayList<PlayerChar> getPlayersInView(PlayerChar p) {
+		ArrayList<PlayerChar> result = new ArrayList<PlayerChar>();
+		synchronized(m_players) {
+			HashSet<PlayerChar> known = m_known.get(p);
+			if(known != null)
+				result.addAll(known);
+			if(m_players.containsValue(p))
+				result.add(p);
+		}
+		return result;
+	}
+	
 	/**
 	 * Adds a char and sets their x y based on a 32 by 32 pixel grid.
 	 * Allows easier adding of NPCs as the x,y can easily be counted via Tiled
@@ -496,16 +675,25 @@ public class ServerMap {
 	 * @param c
 	 */
 	public void removeChar(Char c) {
-		if(c instanceof PlayerChar) {
-			synchronized(m_players) {
-				m_players.remove(c.getName());
-			}
-		} else if(c instanceof NonPlayerChar) {
+		if(c instanceof NonPlayerChar) {
 			m_npcs.remove((NonPlayerChar) c);
 			m_npcs.trimToSize();
 		}
 		synchronized(m_players) {
+			if(c instanceof PlayerChar) {
+				m_known.remove(c);
+				/* They saw the chat up to now while they were here */
+				ChatHistory<String> history = m_chatHistory.get(((PlayerChar) c).getLanguage());
+				if(m_players.remove(c.getName()) == c && history != null)
+					((PlayerChar) c).setChatSeen(history, history.getSequence());
+			}
 			for(PlayerChar p : m_players.values()) {
+				/* Only players who could see the char know about it */
+				if(c instanceof PlayerChar) {
+					HashSet<PlayerChar> known = m_known.get(p);
+					if(known == null || !known.remove(c))
+						continue;
+				}
 				p.getTcpSession().write("mr" + c.getId());
 			}
 		}
@@ -873,7 +1061,7 @@ public class ServerMap {
 	 * @return
 	 */
 	public boolean isWildBattle(int x, int y, PlayerChar p) {
-		if (m_random.nextInt(2874) < m_wildProbability * 16) {
+		if (BattleMechanics.getThreadRandom().nextInt(2874) < m_wildProbability * 16) {
 			if(p.isSurfing()) {
 				if(m_waterPokemonChances != null && m_waterPokemonLevels != null)
 					return true;
@@ -893,31 +1081,32 @@ public class ServerMap {
 	 * @return
 	 */
 	public Pokemon getWildPokemon(PlayerChar player) {
+		Random random = BattleMechanics.getThreadRandom();
 		int [] range;
 		String species;
 		if(player.isSurfing()) {
 			//Generate a Pokemon from the water
 			species = getWildSpeciesWater();
 			range = m_waterPokemonLevels.get(species);
-			return Pokemon.getRandomPokemon(species, (m_random.nextInt((range[1] - range[0]) + 1)) + range[0]);
+			return Pokemon.getRandomPokemon(species, (random.nextInt((range[1] - range[0]) + 1)) + range[0]);
 		} 
 		else if(player.isFishing()) {
 			//Generate a pokemon caught by fishing
 			species = getWildSpeciesFish();
 			range = m_fishPokemonLevels.get(species);
-			return Pokemon.getRandomPokemon(species, (m_random.nextInt((range[1] - range[0]) + 1)) + range[0]);
+			return Pokemon.getRandomPokemon(species, (random.nextInt((range[1] - range[0]) + 1)) + range[0]);
 		}
 		else {
 			if(TimeService.isNight()) {
 				//Generate a nocturnal Pokemon
 				species = getWildSpeciesNight();
 				range = m_nightPokemonLevels.get(species);
-				return Pokemon.getRandomPokemon(species, (m_random.nextInt((range[1] - range[0]) + 1)) + range[0]);
+				return Pokemon.getRandomPokemon(species, (random.nextInt((range[1] - range[0]) + 1)) + range[0]);
 			} else {
 				//Generate a day Pokemon
 				species = getWildSpeciesDay();
 				range = m_dayPokemonLevels.get(species);
-				return Pokemon.getRandomPokemon(species, (m_random.nextInt((range[1] - range[0]) + 1)) + range[0]);
+				return Pokemon.getRandomPokemon(species, (random.nextInt((range[1] - range[0]) + 1)) + range[0]);
 			}
 		}
 	}
@@ -927,14 +1116,7 @@ public class ServerMap {
 	 * @return
 	 */
 	private String getWildSpeciesDay() {
-		ArrayList<String> potentialSpecies = new ArrayList<String>();
-		do {
-			for (String species : m_dayPokemonChances.keySet()) {
-				if (m_random.nextInt(101) < m_dayPokemonChances.get(species))
-					potentialSpecies.add(species);
-			}
-		} while (potentialSpecies.size() <= 0);
-		return potentialSpecies.get(m_random.nextInt(potentialSpecies.size()));
+		return m_dayEncounters == null ? null : m_dayEncounters.getSpecies(BattleMechanics.getThreadRandom());
 	}
 	
 	/**
@@ -942,14 +1124,7 @@ public class ServerMap {
 	 * @return
 	 */
 	private String getWildSpeciesNight() {
-		ArrayList<String> potentialSpecies = new ArrayList<String>();
-		do {
-			for (String species : m_nightPokemonChances.keySet()) {
-				if (m_random.nextInt(101) < m_nightPokemonChances.get(species))
-					potentialSpecies.add(species);
-			}
-		} while (potentialSpecies.size() <= 0);
-		return potentialSpecies.get(m_random.nextInt(potentialSpecies.size()));
+		return m_nightEncounters == null ? null : m_nightEncounters.getSpecies(BattleMechanics.getThreadRandom());
 	}
 	
 	/**
@@ -957,14 +1132,7 @@ public class ServerMap {
 	 * @return
 	 */
 	private String getWildSpeciesWater() {
-		ArrayList<String> potentialSpecies = new ArrayList<String>();
-		do {
-			for (String species : m_waterPokemonChances.keySet()) {
-				if (m_random.nextInt(101) < m_waterPokemonChances.get(species))
-					potentialSpecies.add(species);
-			}
-		} while (potentialSpecies.size() <= 0);
-		return potentialSpecies.get(m_random.nextInt(potentialSpecies.size()));
+		return m_waterEncounters == null ? null : m_waterEncounters.getSpecies(BattleMechanics.getThreadRandom());
 	}
 	
 	/**
@@ -972,14 +1140,7 @@ public class ServerMap {
 	 * @return
 	 */
 	private String getWildSpeciesFish() {
-		ArrayList<String> potentialSpecies = new ArrayList<String>();
-		do {
-			for (String species : m_fishPokemonChances.keySet()) {
-				if (m_random.nextInt(101) < m_fishPokemonChances.get(species))
-					potentialSpecies.add(species);
-			}
-		} while (potentialSpecies.size() <= 0);
-		return potentialSpecies.get(m_random.nextInt(potentialSpecies.size()));
+		return m_fishEncounters == null ? null : m_fishEncounters.getSpecies(BattleMechanics.getThreadRandom());
 	}
 	
 	/**
@@ -995,6 +1156,29 @@ public class ServerMap {
 		}
 	}
 	
+	/**
+	 * Sends a packet about a char to everyone who can see it.
+	 * Packets about players go to the player and players in view, packets about npcs go to everyone.
+	 * @param c
+	 * @param m
+	 */
+	public void sendToObservers(Char c, PokenetMessage m) {
+		if(!(c instanceof PlayerChar)) {
+			sendToAll(m);
+			return;
+		}
+		synchronized(m_players) {
+			if(m_players.containsValue(c))
+				TcpProtocolHandler.writeMessage(((PlayerChar) c).getTcpSession(), m);
+			HashSet<PlayerChar> known;
+			for(PlayerChar p : m_players.values()) {
+				known = m_known.get(p);
+				if(known != null && known.contains(c))
+					TcpProtocolHandler.writeMessage(p.getTcpSession(), m);
+			}
+		}
+	}
+	
 	/**
 	 * Returns the arraylist of players
 	 * @return
@@ -1012,35 +1196,203 @@ public class ServerMap {
 	}
 
 	/**
-	 * Sends a movement packet to everyone
-	 * @param moveMessage
-	 * @param char1
+	 * Buffers a movement to be sent to everyone on the map at the end of the movement tick.
+	 * Players are never sent their own movement as it is sent over TCP.
+	 * @param d
+	 * @param c
 	 */
 	public void sendMovementToAll(Direction d, Char c) {
-		if(c instanceof PlayerChar) {
-			/*
-			 * If a player, send movement to everyone but themselves
-			 * Movement for themself is sent over TCP
-			 */
-			PlayerChar p = (PlayerChar) c;
-			synchronized(m_players) {
-				Collection<PlayerChar> list = m_players.values();
-				for(PlayerChar pl: list) {
-					if(p != pl) {
-						pl.queueOtherPlayerMovement(d, c.getId());
-					}
+		boolean queueFlush;
+		synchronized(m_movementLock) {
+			if(m_movementCount == m_movementIds.length) {
+				int [] ids = new int[m_movementIds.length * 2];
+				char [] dirs = new char[ids.length];
+				System.arraycopy(m_movementIds, 0, ids, 0, m_movementCount);
+				System.arraycopy(m_movementDirs, 0, dirs, 0, m_movementCount);
+				m_movementIds = ids;
+				m_movementDirs = dirs;
+			}
+			m_movementIds[m_movementCount] = c.getId();
+			m_movementDirs[m_movementCount] = d.name().charAt(0);
+			m_movementCount++;
+			queueFlush = !m_flushQueued;
+			m_flushQueued = true;
+		}
+		if(queueFlush) {
+			GameServer.getServiceManager().getMovementService()
+				.getMovementManager(this).queueMapFlush(this);
+		}
+	}
+	
+	/**
+	 * Resends the positions of every char a player can see at the next flush.
+	 * Used when movements could not be sent to a slow client.
+	 * Only locks m_resync, as it is called while writing to players.
+	 * @param p
+	 */
+	public void resync(PlayerChar p) {
+		boolean queueFlush;
+		synchronized(m_resync) {
+			queueFlush = m_resync.add(p);
+		}
+		if(queueFlush) {
+			GameServer.getServiceManager().getMovementService()
+				.getMovementManager(this).queueMapFlush(this);
+		}
+	}
+	
+	/**
+	 * Called when a char is placed somewhere without moving (e.g. warped), so the players
+	 * who can see them are worked out again at the end of the tick even if nobody moves.
+	 * Does not lock, as it is called while the map is being changed.
+	 * @param c
+	 */
+	public void positionChanged(Char c) {
+		if(c instanceof PlayerChar && m_viewChanged.compareAndSet(false, true)) {
+			GameServer.getServiceManager().getMovementService()
+				.getMovementManager(this).queueMapFlush(this);
+		}
+	}
+	
+	/**
+	 * Sends all movements buffered during this tick to the players on the map.
+	 * Each player receives a single write for the whole tick, containing:
+	 *  - removals for players who left their view
+	 *  - additions for players who came into view
+	 *  - movements of npcs and of players who stayed in view
+	 * Players waiting to be resynced are instead sent every char in view, npcs included, again.
+	 * Also runs when a player was placed without moving, so the view is never stale.
+	 * Players are never sent their own movement as it is sent over TCP.
+	 */
+	public void flushMovements() {
+		synchronized(m_movementLock) {
+			m_flushQueued = false;
+			HashSet<PlayerChar> resyncs;
+			synchronized(m_resync) {
+				resyncs = new HashSet<PlayerChar>(m_resync);
+				m_resync.clear();
+			}
+			boolean viewChanged = m_viewChanged.getAndSet(false);
+			if(m_movementCount == 0 && resyncs.isEmpty() && !viewChanged)
+				return;
+			/* Encode the movements once per char */
+			HashMap<Integer, CharMovement> movements = new HashMap<Integer, CharMovement>();
+			ArrayList<CharMovement> npcMovements = new ArrayList<CharMovement>();
+			CharMovement movement;
+			for(int i = 0; i < m_movementCount; i++) {
+				movement = movements.get(m_movementIds[i]);
+				if(movement == null) {
+					movement = new CharMovement(m_movementIds[i]);
+					movements.put(m_movementIds[i], movement);
+					if(m_movementIds[i] < 0)
+						npcMovements.add(movement);
 				}
+				movement.add(m_movementDirs[i]);
 			}
-		} else {
-			/*
-			 * Else, send the movement to everyone
-			 */
+			m_movementCount = 0;
 			synchronized(m_players) {
-				Collection<PlayerChar> list = m_players.values();
-				for(PlayerChar pl: list) {
-					pl.queueOtherPlayerMovement(d, c.getId());
+				updateCells();
+				int cellsX = (Math.max(m_width, 1) + AOI_CELL_SIZE - 1) / AOI_CELL_SIZE;
+				int cellsY = m_cells.length / cellsX;
+				StringBuilder packets = new StringBuilder();
+				for(PlayerChar pl : m_players.values()) {
+					IoSession session = pl.getTcpSession();
+					HashSet<PlayerChar> known = m_known.get(pl);
+					if(known == null) {
+						known = new HashSet<PlayerChar>();
+						m_known.put(pl, known);
+					}
+					MovementMessage moves = new MovementMessage();
+					packets.setLength(0);
+					/* Players who left view */
+					boolean resync = resyncs.contains(pl);
+					Iterator<PlayerChar> it = known.iterator();
+					while(it.hasNext()) {
+						PlayerChar other = it.next();
+						if(resync || other.getMap() != this || !isInView(pl, other)) {
+							/* Movements were dropped for a slow client, re-add everyone at their current position */
+							it.remove();
+							appendPacket(packets, "mr" + other.getId());
+						}
+					}
+					if(resync) {
+						for(int i = 0; i < m_npcs.size(); i++) {
+							appendPacket(packets, "mr" + m_npcs.get(i).getId());
+							appendPacket(packets, getAddPacket(m_npcs.get(i)));
+						}
+					}
+					/* Players who came into view, and movements of those already in view */
+					int cellX = getCellX(pl);
+					int cellY = getCellY(pl);
+					for(int y = Math.max(cellY - 1, 0); y <= Math.min(cellY + 1, cellsY - 1); y++) {
+						for(int x = Math.max(cellX - 1, 0); x <= Math.min(cellX + 1, cellsX - 1); x++) {
+							for(PlayerChar other : m_cells[y * cellsX + x]) {
+								if(other == pl)
+									continue;
+								if(known.add(other)) {
+									appendPacket(packets, getAddPacket(other));
+								} else {
+									movement = movements.get(other.getId());
+									if(movement != null)
+										moves.addMovement(movement.m_id, movement.m_steps, movement.m_count, movement.m_text);
+								}
+							}
+						}
+					}
+					if(session == null || !session.isConnected())
+						continue;
+					if(!resync) {
+						for(CharMovement npc : npcMovements)
+							moves.addMovement(npc.m_id, npc.m_steps, npc.m_count, npc.m_text);
+					}
+					if(packets.length() > 0)
+						session.write(packets.toString());
+					if(!moves.isEmpty())
+						session.write(moves);
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Appends a packet on its own line
+	 * @param packets
+	 * @param packet
+	 */
+	private static void appendPacket(StringBuilder packets, String packet) {
+		if(packets.length() > 0)
+			packets.append('\n');
+		packets.append(packet);
+	}
+	
+	/**
+	 * The movements of one char during a tick, encoded for both protocols
+	 */
+	private static class CharMovement {
+		private int m_id;
+		private StringBuilder m_text = new StringBuilder();
+		private byte [] m_steps = new byte[4];
+		private int m_count = 0;
+		
+		public CharMovement(int id) {
+			m_id = id;
+		}
+		
+		/**
+		 * Adds a step
+		 * @param direction
+		 */
+		public void add(char direction) {
+			if(m_text.length() > 0)
+				m_text.append(',');
+			m_text.append(direction);
+			m_text.append(m_id);
+			if(m_count == m_steps.length) {
+				byte [] steps = new byte[m_steps.length * 2];
+				System.arraycopy(m_steps, 0, steps, 0, m_count);
+				m_steps = steps;
+			}
+			m_steps[m_count++] = (byte) direction;
+		}
+	}
 }
@@ -0,0 +1,204 @@
+package org.pokenet.server.battle;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pokenet.server.GameServer;
+
+/**
+ * Executes battle turns on a fixed pool of threads instead of starting a thread per turn.
+ * A turn waiting for a player (e.g. for a forced switch) tells the executor it is blocked,
+ * and the pool grows by one thread for as long as it waits so other battles are not held up.
+ * The pool grows by at most MAX_BLOCKED_THREADS, past that blocked turns use the normal threads.
+ * @author shadowkanji
+ *
+ */
+public class BattleExecutor {
+	/* The most threads added to the pool for turns waiting for players */
+	public static final int MAX_BLOCKED_THREADS = 64;
+	private static ThreadPoolExecutor m_pool = null;
+	private static ScheduledThreadPoolExecutor m_timer = null;
+	private static int m_threads;
+	private static int m_blocked = 0;
+	/* Statistics */
+	private static AtomicLong m_turns = new AtomicLong(0);
+	private static AtomicLong m_turnTime = new AtomicLong(0);
+	private static AtomicLong m_maxTurnTime = new AtomicLong(0);
+	private static AtomicLong m_waitTime = new AtomicLong(0);
+	private static AtomicLong m_maxWaitTime = new AtomicLong(0);
+	private static AtomicInteger m_maxQueueDepth = new AtomicInteger(0);
+
+	/**
+	 * Returns the pool, creating it if needed
+	 * @return
+	 */
+	private static synchronized ThreadPoolExecutor getPool() {
+		if(m_pool == null) {
+			m_threads = Math.max(2, GameServer.getBattleThreadAmount());
+			m_pool = new ThreadPoolExecutor(m_threads, m_threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private int m_count = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "BattleExecutor-" + (m_count++));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return m_pool;
+	}
+
+	/**
+	 * Executes a battle turn
+	 * @param turn
+	 */
+	public static void execute(final Runnable turn) {
+		final long queued = System.nanoTime();
+		ThreadPoolExecutor pool = getPool();
+		pool.execute(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				updateMax(m_maxWaitTime, start - queued);
+				m_waitTime.addAndGet(start - queued);
+				try {
+					turn.run();
+				} catch (Throwable t) {
+					t.printStackTrace();
+				} finally {
+					long time = System.nanoTime() - start;
+					m_turns.incrementAndGet();
+					m_turnTime.addAndGet(time);
+					updateMax(m_maxTurnTime, time);
+				}
+			}
+		});
+		int depth = pool.getQueue().size();
+		int max;
+		while(depth > (max = m_maxQueueDepth.get())) {
+			if(m_maxQueueDepth.compareAndSet(max, depth))
+				break;
+		}
+	}
+
+	/**
+	 * Executes a task on the pool once a delay has passed, instead of a thread sleeping
+	 * for it. Used for delays which give the client time to show something.
+	 * @param task
+	 * @param delay - the delay in milliseconds
+	 */
+	public static void schedule(final Runnable task, long delay) {
+		ScheduledThreadPoolExecutor timer;
+		synchronized(BattleExecutor.class) {
+			if(m_timer == null) {
+				m_timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "BattleExecutor-Timer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				/* Pending delays are dropped on shutdown */
+				m_timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			}
+			timer = m_timer;
+		}
+		timer.schedule(new Runnable() {
+			public void run() {
+				getPool().execute(new Runnable() {
+					public void run() {
+						try {
+							task.run();
+						} catch (Throwable t) {
+							t.printStackTrace();
+						}
+					}
+				});
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Called by a turn before it waits for a player. Adds a thread to the pool while it waits,
+	 * unless MAX_BLOCKED_THREADS were already added.
+	 */
+	public static void beginBlocking() {
+		ThreadPoolExecutor pool = getPool();
+		synchronized(BattleExecutor.class) {
+			m_blocked++;
+			pool.setMaximumPoolSize(m_threads + Math.min(m_blocked, MAX_BLOCKED_THREADS));
+			pool.setCorePoolSize(m_threads + Math.min(m_blocked, MAX_BLOCKED_THREADS));
+		}
+	}
+
+	/**
+	 * Called by a turn once it stops waiting for a player
+	 */
+	public static void endBlocking() {
+		ThreadPoolExecutor pool = getPool();
+		synchronized(BattleExecutor.class) {
+			m_blocked--;
+			pool.setCorePoolSize(m_threads + Math.min(m_blocked, MAX_BLOCKED_THREADS));
+			pool.setMaximumPoolSize(m_threads + Math.min(m_blocked, MAX_BLOCKED_THREADS));
+		}
+	}
+
+	/**
+	 * Returns how many turns are waiting for a thread
+	 * @return
+	 */
+	public static int getQueueDepth() {
+		return m_pool == null ? 0 : m_pool.getQueue().size();
+	}
+
+	/**
+	 * Returns the average time a turn took to execute, in microseconds
+	 * @return
+	 */
+	public static long getAverageTurnTime() {
+		long turns = m_turns.get();
+		return turns == 0 ? 0 : m_turnTime.get() / turns / 1000;
+	}
+
+	/**
+	 * Stores value in max if it is larger
+	 * @param max
+	 * @param value
+	 */
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while(value > (current = max.get())) {
+			if(max.compareAndSet(current, value))
+				return;
+		}
+	}
+
+	/**
+	 * Stops the pool once queued turns are executed
+	 */
+	public static synchronized void shutdown() {
+		if(m_timer != null)
+			m_timer.shutdown();
+		if(m_pool != null) {
+			m_pool.shutdown();
+			System.out.println("INFO: " + getStatistics());
+		}
+	}
+
+	/**
+	 * Returns a summary of the executor's statistics
+	 * @return
+	 */
+	public static String getStatistics() {
+		long turns = m_turns.get();
+		return "Battle Executor: " + turns + " turns (avg " + getAverageTurnTime() + "us, max " +
+			(m_maxTurnTime.get() / 1000) + "us), avg wait " + (turns == 0 ? 0 : m_waitTime.get() / turns / 1000) +
+			"us (max " + (m_maxWaitTime.get() / 1000) + "us), " + getQueueDepth() + " queued (max " +
+			m_maxQueueDepth.get() + "), " + m_blocked + " waiting for players";
+	}
+}
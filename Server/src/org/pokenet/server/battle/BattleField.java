@@ -30,6 +30,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
+import org.pokenet.server.GameServer;
 import org.pokenet.server.backend.entity.PlayerChar;
 import org.pokenet.server.battle.mechanics.BattleMechanics;
 import org.pokenet.server.battle.mechanics.ModData;
@@ -42,7 +43,9 @@ import org.pokenet.server.battle.mechanics.moves.MoveListEntry;
 import org.pokenet.server.battle.mechanics.moves.PokemonMove;
 import org.pokenet.server.battle.mechanics.moves.MoveList.SpeedSwapEffect;
 import org.pokenet.server.battle.mechanics.statuses.StatusEffect;
+import org.pokenet.server.battle.mechanics.statuses.StatusList;
 import org.pokenet.server.battle.mechanics.statuses.field.FieldEffect;
+import org.pokenet.server.feature.ChatLog;
 
 /**
  *
@@ -63,13 +66,14 @@ public abstract class BattleField {
 	 * Store lists of spectators and effects
 	 */
 	private ArrayList<PlayerChar> m_spectators = new ArrayList<PlayerChar>();
-	protected ArrayList<FieldEffect> m_effects = new ArrayList<FieldEffect>();
+	protected StatusList<FieldEffect> m_effects = new StatusList<FieldEffect>();
 	/*
 	 * The Pokemon in this battlefield
 	 */
 	protected Pokemon[][] m_pokemon;
 	protected int[] m_active = { 0, 0 };
 	private BattleMechanics m_mechanics;
+	private long m_seed;
 	private boolean m_narration = true;
 	/*
 	 * Needed for request and wait for switch
@@ -77,13 +81,32 @@ public abstract class BattleField {
 	 */
 	protected boolean [] m_replace;
 	/*
-	 * The dispatch thread
+	 * The turn being executed by the BattleExecutor, and the thread executing it
 	 */
-	protected Thread m_dispatch = null;
+	private boolean m_isDispatching = false;
+	private Thread m_dispatchThread = null;
+	/* Set once the battle ends, the turn being executed stops at the next step */
+	private volatile boolean m_isStopped = false;
+	private final Object m_dispatchLock = new Object();
+	/*
+	 * Signalled when a forced switch is received or the battle is disposed
+	 */
+	private final Object m_switchLock = new Object();
 
 	// Cache of Struggle.
+	/* How long a turn waits for a player to choose a pokemon before one is chosen for them */
+	public static final long SWITCH_TIMEOUT = 60000;
 	private static final MoveListEntry m_struggle = MoveList.getDefaultData().getMove("Struggle");
 
+	/**
+	 * Orders pokemon by speed, fastest first
+	 */
+	private static final Comparator<Pokemon> m_speedOrder = new Comparator<Pokemon>() {
+		public int compare(Pokemon p1, Pokemon p2) {
+			return PokemonWrapper.compareSpeed(p1, p2);
+		}
+	};
+
 	public static MoveListEntry getStruggle() {
 		return m_struggle;
 	}
@@ -162,11 +185,189 @@ public abstract class BattleField {
 		m_pokemon = null;
 		m_active = null;
 		m_mechanics = null;
+		synchronized(m_switchLock) {
+			m_switchLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Executes a turn on the BattleExecutor. Only one turn per battle is executed at a time,
+	 * returns false if a turn is already being executed.
+	 * @param turn
+	 * @return
+	 */
+	protected boolean dispatchTurn(final Runnable turn) {
+		synchronized(m_dispatchLock) {
+			if(m_isDispatching)
+				return false;
+			m_isDispatching = true;
+		}
+		BattleExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					synchronized(m_dispatchLock) {
+						m_dispatchThread = Thread.currentThread();
+					}
+					if(!m_isStopped)
+						turn.run();
+				} catch (RuntimeException e) {
+					/* The battle was disposed under the turn, there is nothing left to do */
+					if(m_isStopped)
+						return;
+					/* The seed lets the battle be replayed to find the problem */
+					System.err.println("ERROR: Turn of battle with seed " + m_seed + " failed");
+					throw e;
+				} finally {
+					synchronized(m_dispatchLock) {
+						m_dispatchThread = null;
+						m_isDispatching = false;
+						/* Clear an interrupt from stopTurn() before the thread runs another battle */
+						Thread.interrupted();
+						m_dispatchLock.notifyAll();
+					}
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Returns true if a turn is being executed
+	 * @return
+	 */
+	public boolean isDispatching() {
+		synchronized(m_dispatchLock) {
+			return m_isDispatching;
+		}
+	}
+
+	/**
+	 * Waits until no turn is being executed
+	 */
+	public void waitForTurn() {
+		synchronized(m_dispatchLock) {
+			while(m_isDispatching && m_dispatchThread != Thread.currentThread()) {
+				try {
+					m_dispatchLock.wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the turn being executed, if any. Used when a battle ends in the middle of a turn.
+	 * The turn checks isTurnStopped() between steps, and is interrupted if it is waiting.
+	 */
+	protected void stopTurn() {
+		m_isStopped = true;
+		synchronized(m_dispatchLock) {
+			if(m_dispatchThread != null && m_dispatchThread != Thread.currentThread())
+				m_dispatchThread.interrupt();
+		}
+	}
+
+	/**
+	 * Returns true if the battle ended and the turn being executed should stop
+	 * @return
+	 */
+	protected boolean isTurnStopped() {
+		return m_isStopped;
+	}
+
+	/**
+	 * Waits until a forced switch is received from a party, or the battle is disposed.
+	 * If no switch is received within SWITCH_TIMEOUT, the party's first healthy pokemon is switched in.
+	 * Must be called from the turn being executed.
+	 * @param party
+	 */
+	protected void waitForSwitch(int party) {
+		m_isWaiting = true;
+		BattleExecutor.beginBlocking();
+		try {
+			long deadline = System.currentTimeMillis() + SWITCH_TIMEOUT;
+			synchronized(m_switchLock) {
+				while(m_replace != null && m_replace[party] && m_pokemon != null) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) {
+						/* The player didn't choose, switch in for them so the battle can go on */
+						int slot = getDefaultSwitch(party);
+						if(slot >= 0)
+							switchInPokemon(party, slot);
+						switchReceived(party);
+						return;
+					}
+					try {
+						m_switchLock.wait(remaining);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		} finally {
+			BattleExecutor.endBlocking();
+		}
+	}
+
+	/**
+	 * Returns the first party slot holding a pokemon which can replace a party's active pokemon,
+	 * or -1 if there is none
+	 * @param party
+	 * @return
+	 */
+	private int getDefaultSwitch(int party) {
+		for(int i = 0; i < m_pokemon[party].length; i++) {
+			if(m_pokemon[party][i] != null && !m_pokemon[party][i].isFainted() && i != m_active[party])
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Switches in the pokemon a party chose to replace its active pokemon, and wakes the waiting turn.
+	 * Returns false if the party no longer has to make a switch, e.g. because it was made for them.
+	 * @param party
+	 * @param slot
+	 * @return
+	 */
+	protected boolean replacePokemon(int party, int slot) {
+		synchronized(m_switchLock) {
+			if(m_replace == null || !m_replace[party])
+				return false;
+			switchInPokemon(party, slot);
+			switchReceived(party);
+			return true;
+		}
+	}
+
+	/**
+	 * Called once a party has made a forced switch, wakes the waiting turn
+	 * @param party
+	 */
+	protected void switchReceived(int party) {
+		synchronized(m_switchLock) {
+			m_replace[party] = false;
+			m_isWaiting = false;
+			m_switchLock.notifyAll();
+		}
 	}
 
 	/** Creates a new instance of BattleField */
 	public BattleField(BattleMechanics mech, Pokemon[][] pokemon) {
-		m_mechanics = mech;
+		this(mech, pokemon, BattleMechanics.nextSeed());
+	}
+
+	/**
+	 * Creates a new instance of BattleField whose random numbers are generated
+	 * from seed. Given the same parties, seed and moves a battle plays out the same way.
+	 * @param mech
+	 * @param pokemon
+	 * @param seed
+	 */
+	public BattleField(BattleMechanics mech, Pokemon[][] pokemon, long seed) {
+		m_seed = seed;
+		m_mechanics = mech.createInstance(seed);
 		m_pokemon = pokemon;
 		/*
 		 * Set m_hasSwitched to 4 to allow for 2 v 2 battles in future
@@ -189,7 +390,8 @@ public abstract class BattleField {
 	 * @param mech
 	 */
 	protected BattleField(BattleMechanics mech) {
-		m_mechanics = mech;
+		m_seed = BattleMechanics.nextSeed();
+		m_mechanics = mech.createInstance(m_seed);
 	}
 
 	/**
@@ -199,6 +401,47 @@ public abstract class BattleField {
 		return m_mechanics;
 	}
 
+	/**
+	 * Returns the seed of this battle's random numbers
+	 * @return
+	 */
+	public long getSeed() {
+		return m_seed;
+	}
+
+	/**
+	 * Records the seed of this battle with who is taking part and their pokemon,
+	 * so a battle can be replayed when a player reports a problem with it.
+	 * Does nothing if battles are not logged.
+	 * @param type - the kind of battle, e.g. wild
+	 * @param names - the name of each party's trainer
+	 */
+	protected void logStart(String type, String [] names) {
+		if(GameServer.getServiceManager() == null || GameServer.getServiceManager().getNetworkService() == null)
+			return;
+		ChatLog log = GameServer.getServiceManager().getNetworkService().getBattleLog();
+		if(log == null)
+			return;
+		StringBuilder s = new StringBuilder();
+		for(int i = 0; i < names.length; i++) {
+			if(i > 0)
+				s.append(" vs ");
+			s.append(names[i]).append(" (");
+			boolean first = true;
+			for(Pokemon p : m_pokemon[i]) {
+				if(p == null)
+					continue;
+				if(!first)
+					s.append(", ");
+				s.append(p.getSpeciesName()).append(' ').append(p.getLevel());
+				first = false;
+			}
+			s.append(')');
+		}
+		s.append(", seed ").append(getSeed());
+		log.log(type, s.toString());
+	}
+
 	/**
 	 * Return the instance of Random used on this BattleField.
 	 */
@@ -314,13 +557,7 @@ public abstract class BattleField {
 		 }
 
 		 // Check any clauses.
-		 Collections.sort(m_effects, new Comparator<Object>() {
-			 public int compare(Object o1, Object o2) {
-				 StatusEffect e1 = (StatusEffect)o1;
-				 StatusEffect e2 = (StatusEffect)o2;
-				 return e1.getTier() - e2.getTier();
-			 }
-		 });
+		 m_effects.sortByTier();
 		 Iterator<FieldEffect> i = m_effects.iterator();
 		 while (i.hasNext()) {
 			 StatusEffect eff = (StatusEffect)i.next();
@@ -367,11 +604,15 @@ public abstract class BattleField {
 	  */
 	 @SuppressWarnings("unchecked")
 	 public FieldEffect getEffectByType(Class type) {
-		 ArrayList list = getEffectsByType(type);
-		 if (list.size() == 0) {
-			 return null;
+		 final int size = m_effects.size();
+		 for (int i = 0; i < size; ++i) {
+			 FieldEffect effect = m_effects.get(i);
+			 if ((effect != null) && effect.isActive()
+					 && type.isAssignableFrom(effect.getClass())) {
+				 return effect;
+			 }
 		 }
-		 return (FieldEffect)list.get(0);
+		 return null;
 	 }
 
 	 /**
@@ -605,13 +846,8 @@ public abstract class BattleField {
 	  */
 	 @SuppressWarnings("unchecked")
 	 private void sortBySpeed(Pokemon[] active) {
-		 // Sort pokemon by speed.
-		 ArrayList<Pokemon> list = new ArrayList<Pokemon>(Arrays.asList(active));
-		 Collections.sort(list, new Comparator() {
-			 public int compare(Object o1, Object o2) {
-				 return PokemonWrapper.compareSpeed((Pokemon)o1, (Pokemon)o2);
-			 }
-		 });
+		 // Sort pokemon by speed, in place. Callers pass a copy of the active array.
+		 Arrays.sort(active, m_speedOrder);
 	 }
 
 	 /**
@@ -659,6 +895,39 @@ public abstract class BattleField {
 		 return alive;
 	 }
 
+	 /**
+	  * Return a random move slot of a trainer's active pokemon which holds a move
+	  * with pp left, or -1 (struggle) if there is none. Picks in one step instead
+	  * of retrying random slots.
+	  */
+	 public int getRandomMove(int trainer) {
+		 Pokemon poke = m_pokemon[trainer][m_active[trainer]];
+		 int[] moves = new int[4];
+		 int count = 0;
+		 for (int i = 0; i < moves.length; ++i) {
+			 if (poke.getMove(i) != null && poke.getPp(i) > 0) {
+				 moves[count++] = i;
+			 }
+		 }
+		 return (count == 0) ? -1 : moves[getRandom().nextInt(count)];
+	 }
+
+	 /**
+	  * Return a random party slot holding a pokemon which can be switched in
+	  * for a trainer's active pokemon, or -1 if there is none.
+	  */
+	 public int getRandomSwitch(int trainer) {
+		 Pokemon[] pokemon = m_pokemon[trainer];
+		 int[] alive = new int[pokemon.length];
+		 int count = 0;
+		 for (int i = 0; i < pokemon.length; ++i) {
+			 if (pokemon[i] != null && !pokemon[i].isFainted() && i != m_active[trainer]) {
+				 alive[count++] = i;
+			 }
+		 }
+		 return (count == 0) ? -1 : alive[getRandom().nextInt(count)];
+	 }
+
 	 /**
 	  * Check if one party has won the battle and inform victory if so.
 	  */
@@ -791,13 +1060,16 @@ public abstract class BattleField {
 			 if (turn != null) {
 				 executeTurn(turn, order[i], other);
 			 }
+			 if (isTurnStopped())
+				 return;
 		 }
 
-		 // Refresh the active array in case a trainer switched.
+		 // Ticking sorts its array by speed, so refresh the active array afterwards.
+		 tickStatuses(getActivePokemon());
+		 if (isTurnStopped())
+			 return;
 		 active = getActivePokemon();
 
-		 tickStatuses(active);
-
 		 boolean request = true;
 		 for (int i = 0; i < active.length; ++i) {
 			 // Synchronise statuses.
@@ -0,0 +1,506 @@
+package org.pokenet.server.battle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pokenet.server.backend.item.DropData;
+import org.pokenet.server.battle.Pokemon.ExpTypes;
+import org.pokenet.server.battle.PokemonEvolution.EvolutionTypes;
+import org.pokenet.server.battle.mechanics.PokemonType;
+import org.pokenet.server.battle.mechanics.moves.MoveSet;
+import org.pokenet.server.battle.mechanics.moves.MoveSetData;
+
+/**
+ * A binary pack of the species and move set databases, as they are once DataService has
+ * loaded dpspecies.db, pokemon.ini, tms.ini, itemdrops.txt and movesets.xml.
+ * The pack records the size and modification time of each of those files and is ignored
+ * once any of them change. It is memory mapped and its sections are read in parallel.
+ * Build it with "java org.pokenet.server.battle.DataPack" from the server directory,
+ * or let the server write it the first time it loads the sources.
+ * @author shadowkanji
+ *
+ */
+public class DataPack {
+	public static final String FILE = "res/data.pack";
+	public static final String [] SOURCES = { "res/dpspecies.db", "res/pokemon.ini",
+		"res/tms.ini", "res/itemdrops.txt", "res/movesets.xml" };
+	private static final int MAGIC = 0x504e4450;
+	private static final int VERSION = 1;
+	private static final int SPECIES = 0;
+	private static final int MOVESETS = 1;
+	/* The number of entries in a section, so large databases are read by several threads */
+	private static final int SECTION_SIZE = 64;
+
+	private PokemonSpecies [] m_species;
+	private MoveSet [] m_moveSets;
+
+	/**
+	 * Constructor
+	 * @param species
+	 * @param moveSets
+	 */
+	private DataPack(PokemonSpecies [] species, MoveSet [] moveSets) {
+		m_species = species;
+		m_moveSets = moveSets;
+	}
+
+	/**
+	 * Returns the species database
+	 * @return
+	 */
+	public PokemonSpecies [] getSpecies() {
+		return m_species;
+	}
+
+	/**
+	 * Returns the move sets, indexed by species
+	 * @return
+	 */
+	public MoveSet [] getMoveSets() {
+		return m_moveSets;
+	}
+
+	/**
+	 * Loads a data pack, reading its sections on a pool of threads.
+	 * Returns null if there is no pack, or it is from another version or older sources.
+	 * The calling thread waits for the sections, so the pool must not be waiting on it.
+	 * @param file
+	 * @param pool
+	 * @return
+	 */
+	public static DataPack load(File file, ExecutorService pool) throws Exception {
+		if(!file.exists())
+			return null;
+		FileInputStream input = new FileInputStream(file);
+		final ByteBuffer buffer;
+		try {
+			FileChannel channel = input.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			input.close();
+		}
+		if(buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			return null;
+		int sources = buffer.getInt();
+		if(sources != SOURCES.length)
+			return null;
+		for(int i = 0; i < sources; i++) {
+			File source = new File(readString(buffer));
+			if(source.length() != buffer.getLong() || source.lastModified() != buffer.getLong())
+				return null;
+		}
+		final PokemonSpecies [] species = new PokemonSpecies[buffer.getInt()];
+		final MoveSet [] moveSets = new MoveSet[buffer.getInt()];
+		int sections = buffer.getInt();
+		List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+		for(int i = 0; i < sections; i++) {
+			final int type = buffer.getInt();
+			final int start = buffer.getInt();
+			final int count = buffer.getInt();
+			final int offset = buffer.getInt();
+			final int length = buffer.getInt();
+			tasks.add(pool.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					ByteBuffer section = buffer.duplicate();
+					section.limit(offset + length);
+					section.position(offset);
+					for(int j = start; j < start + count; j++) {
+						if(type == SPECIES)
+							species[j] = readSpecies(section);
+						else
+							moveSets[j] = readMoveSet(section);
+					}
+					return null;
+				}
+			}));
+		}
+		for(Future<Object> task : tasks)
+			task.get();
+		return new DataPack(species, moveSets);
+	}
+
+	/**
+	 * Writes a data pack
+	 * @param file
+	 * @param species
+	 * @param moveSets
+	 */
+	public static void write(File file, PokemonSpeciesData species, MoveSetData moveSets)
+			throws IOException {
+		PokemonSpecies [] database = species.getSpecies();
+		MoveSet [] sets = moveSets.getMoveSets();
+		/* Write the sections first so the header knows where they are */
+		List<int []> table = new ArrayList<int []>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		for(int type = SPECIES; type <= MOVESETS; type++) {
+			int size = type == SPECIES ? database.length : sets.length;
+			for(int start = 0; start < size; start += SECTION_SIZE) {
+				int count = Math.min(SECTION_SIZE, size - start);
+				int offset = out.size();
+				for(int i = start; i < start + count; i++) {
+					if(type == SPECIES)
+						writeSpecies(out, database[i]);
+					else
+						writeMoveSet(out, sets[i]);
+				}
+				table.add(new int [] { type, start, count, offset, out.size() - offset });
+			}
+		}
+		out.flush();
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		out = new DataOutputStream(head);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(SOURCES.length);
+		for(int i = 0; i < SOURCES.length; i++) {
+			File source = new File(SOURCES[i]);
+			writeString(out, SOURCES[i]);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+		}
+		out.writeInt(database.length);
+		out.writeInt(sets.length);
+		out.writeInt(table.size());
+		/* Offsets are from the start of the file */
+		int headerSize = out.size() + table.size() * 20;
+		for(int [] section : table) {
+			out.writeInt(section[0]);
+			out.writeInt(section[1]);
+			out.writeInt(section[2]);
+			out.writeInt(section[3] + headerSize);
+			out.writeInt(section[4]);
+		}
+		out.flush();
+		/* Write to a temporary file so a running server never sees half a pack */
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temp);
+		try {
+			head.writeTo(output);
+			body.writeTo(output);
+		} finally {
+			output.close();
+		}
+		if(file.exists() && !file.delete())
+			throw new IOException("Could not replace " + file.getPath());
+		if(!temp.renameTo(file))
+			throw new IOException("Could not rename " + temp.getPath());
+	}
+
+	/**
+	 * Writes a species
+	 * @param out
+	 * @param s
+	 */
+	private static void writeSpecies(DataOutputStream out, PokemonSpecies s) throws IOException {
+		out.writeBoolean(s != null);
+		if(s == null)
+			return;
+		out.writeInt(s.m_species);
+		writeString(out, s.m_name);
+		writeInts(out, s.m_base);
+		out.writeInt(s.m_genders);
+		if(s.m_type == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(s.m_type.length);
+			for(int i = 0; i < s.m_type.length; i++)
+				out.writeInt(s.m_type[i] == null ? -1 : s.m_type[i].getType());
+		}
+		writeString(out, s.m_internalName);
+		writeString(out, s.m_kind);
+		writeString(out, s.m_pokedex);
+		writeString(out, s.m_type1);
+		writeString(out, s.m_type2);
+		writeInts(out, s.m_baseStats);
+		out.writeInt(s.m_rareness);
+		out.writeInt(s.m_baseEXP);
+		out.writeInt(s.m_happiness);
+		writeString(out, s.m_growthRate == null ? null : s.m_growthRate.name());
+		out.writeInt(s.m_stepsToHatch);
+		writeString(out, s.m_color);
+		writeString(out, s.m_habitat);
+		writeInts(out, s.m_effortPoints);
+		writeStrings(out, s.m_abilities);
+		writeInts(out, s.m_compatibility);
+		out.writeFloat(s.m_height);
+		out.writeFloat(s.m_weight);
+		out.writeInt(s.m_femalePercentage);
+		if(s.m_levelMoves == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(s.m_levelMoves.size());
+			Iterator<Map.Entry<Integer, String>> i = s.m_levelMoves.entrySet().iterator();
+			while(i.hasNext()) {
+				Map.Entry<Integer, String> move = i.next();
+				out.writeInt(move.getKey());
+				writeString(out, move.getValue());
+			}
+		}
+		writeStrings(out, s.m_starterMoves);
+		writeStrings(out, s.m_eggMoves);
+		if(s.m_evolutions == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(s.m_evolutions.length);
+			for(int i = 0; i < s.m_evolutions.length; i++) {
+				PokemonEvolution evo = s.m_evolutions[i];
+				out.writeBoolean(evo != null);
+				if(evo == null)
+					continue;
+				writeString(out, evo.getType() == null ? null : evo.getType().name());
+				out.writeInt(evo.getLevel());
+				writeString(out, evo.getAttribute());
+				writeString(out, evo.getEvolveTo());
+			}
+		}
+		writeStrings(out, s.m_tmMoves);
+		if(s.m_drops == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(s.m_drops.length);
+			for(int i = 0; i < s.m_drops.length; i++) {
+				out.writeBoolean(s.m_drops[i] != null);
+				if(s.m_drops[i] == null)
+					continue;
+				out.writeInt(s.m_drops[i].getItemNumber());
+				out.writeInt(s.m_drops[i].getProbability());
+			}
+		}
+	}
+
+	/**
+	 * Reads a species
+	 * @param in
+	 * @return
+	 */
+	private static PokemonSpecies readSpecies(ByteBuffer in) throws IOException {
+		if(in.get() == 0)
+			return null;
+		PokemonSpecies s = new PokemonSpecies(in.getInt(), readString(in), readInts(in), 0);
+		s.m_genders = in.getInt();
+		int types = in.getInt();
+		if(types >= 0) {
+			s.m_type = new PokemonType[types];
+			for(int i = 0; i < types; i++) {
+				int type = in.getInt();
+				s.m_type[i] = type < 0 ? null : PokemonType.getType(type);
+			}
+		}
+		s.m_internalName = readString(in);
+		s.m_kind = readString(in);
+		s.m_pokedex = readString(in);
+		s.m_type1 = readString(in);
+		s.m_type2 = readString(in);
+		s.m_baseStats = readInts(in);
+		s.m_rareness = in.getInt();
+		s.m_baseEXP = in.getInt();
+		s.m_happiness = in.getInt();
+		String growth = readString(in);
+		s.m_growthRate = growth == null ? null : ExpTypes.valueOf(growth);
+		s.m_stepsToHatch = in.getInt();
+		s.m_color = readString(in);
+		s.m_habitat = readString(in);
+		s.m_effortPoints = readInts(in);
+		s.m_abilities = readStrings(in);
+		s.m_compatibility = readInts(in);
+		s.m_height = in.getFloat();
+		s.m_weight = in.getFloat();
+		s.m_femalePercentage = in.getInt();
+		int moves = in.getInt();
+		if(moves >= 0) {
+			HashMap<Integer, String> levelMoves = new HashMap<Integer, String>();
+			for(int i = 0; i < moves; i++)
+				levelMoves.put(in.getInt(), readString(in));
+			s.m_levelMoves = levelMoves;
+		}
+		s.m_starterMoves = readStrings(in);
+		s.m_eggMoves = readStrings(in);
+		int evolutions = in.getInt();
+		if(evolutions >= 0) {
+			s.m_evolutions = new PokemonEvolution[evolutions];
+			for(int i = 0; i < evolutions; i++) {
+				if(in.get() == 0)
+					continue;
+				PokemonEvolution evo = new PokemonEvolution();
+				String type = readString(in);
+				evo.setType(type == null ? null : EvolutionTypes.valueOf(type));
+				evo.setLevel(in.getInt());
+				evo.setAttribute(readString(in));
+				evo.setEvolveTo(readString(in));
+				s.m_evolutions[i] = evo;
+			}
+		}
+		s.m_tmMoves = readStrings(in);
+		int drops = in.getInt();
+		if(drops >= 0) {
+			s.m_drops = new DropData[drops];
+			for(int i = 0; i < drops; i++) {
+				if(in.get() != 0)
+					s.m_drops[i] = new DropData(in.getInt(), in.getInt());
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Writes a move set
+	 * @param out
+	 * @param set
+	 */
+	private static void writeMoveSet(DataOutputStream out, MoveSet set) throws IOException {
+		out.writeBoolean(set != null);
+		if(set == null)
+			return;
+		writeInts(out, set.getNaturalLevels());
+		String [][] moves = set.getMoves();
+		if(moves == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(moves.length);
+			for(int i = 0; i < moves.length; i++)
+				writeStrings(out, moves[i]);
+		}
+	}
+
+	/**
+	 * Reads a move set
+	 * @param in
+	 * @return
+	 */
+	private static MoveSet readMoveSet(ByteBuffer in) throws IOException {
+		if(in.get() == 0)
+			return null;
+		int [] level = readInts(in);
+		int categories = in.getInt();
+		String [][] moves = null;
+		if(categories >= 0) {
+			moves = new String[categories][];
+			for(int i = 0; i < categories; i++)
+				moves[i] = readStrings(in);
+		}
+		return new MoveSet(moves, level);
+	}
+
+	/**
+	 * Writes a string as UTF-8, or -1 if it is null
+	 * @param out
+	 * @param s
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if(s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte [] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString
+	 * @param in
+	 * @return
+	 */
+	private static String readString(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if(length < 0)
+			return null;
+		byte [] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Writes an array of strings, or -1 if it is null
+	 * @param out
+	 * @param s
+	 */
+	private static void writeStrings(DataOutputStream out, String [] s) throws IOException {
+		out.writeInt(s == null ? -1 : s.length);
+		if(s != null) {
+			for(int i = 0; i < s.length; i++)
+				writeString(out, s[i]);
+		}
+	}
+
+	/**
+	 * Reads an array of strings written by writeStrings
+	 * @param in
+	 * @return
+	 */
+	private static String [] readStrings(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if(length < 0)
+			return null;
+		String [] s = new String[length];
+		for(int i = 0; i < length; i++)
+			s[i] = readString(in);
+		return s;
+	}
+
+	/**
+	 * Writes an array of ints, or -1 if it is null
+	 * @param out
+	 * @param a
+	 */
+	private static void writeInts(DataOutputStream out, int [] a) throws IOException {
+		out.writeInt(a == null ? -1 : a.length);
+		if(a != null) {
+			for(int i = 0; i < a.length; i++)
+				out.writeInt(a[i]);
+		}
+	}
+
+	/**
+	 * Reads an array of ints written by writeInts
+	 * @param in
+	 * @return
+	 */
+	private static int [] readInts(ByteBuffer in) {
+		int length = in.getInt();
+		if(length < 0)
+			return null;
+		int [] a = new int[length];
+		for(int i = 0; i < length; i++)
+			a[i] = in.getInt();
+		return a;
+	}
+
+	/**
+	 * Builds the data pack from the sources. Run from the server directory.
+	 * @param args
+	 */
+	public static void main(String [] args) {
+		try {
+			File pack = new File(args.length > 0 ? args[0] : FILE);
+			new DataService(false);
+			write(pack, PokemonSpecies.getDefaultData(), DataService.getMoveSetData());
+			ExecutorService pool = Executors.newSingleThreadExecutor();
+			try {
+				if(load(pack, pool) == null)
+					throw new IOException(pack.getPath() + " could not be read back");
+			} finally {
+				pool.shutdown();
+			}
+			System.out.println("INFO: Wrote " + pack.getPath() + " (" + pack.length() + " bytes)");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -7,6 +7,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Scanner;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.ini4j.Ini;
 import org.ini4j.Ini.Section;
@@ -34,25 +38,78 @@ public class DataService {
 	private static ArrayList<String> m_nonTrades;
 	
 	/**
-	 * Default constructor. Loads data immediately.
+	 * Default constructor. Loads data immediately, from the data pack if it is up to date.
 	 */
 	public DataService() {
+		this(true);
+	}
+
+	/**
+	 * Constructor. Loads data immediately, on several threads.
+	 * @param usePack - if true, the data pack is used if it is up to date, and
+	 * 	written if it is not. If false, the sources are always loaded.
+	 */
+	public DataService(boolean usePack) {
+		ExecutorService pool = Executors.newFixedThreadPool(
+				Math.max(2, Runtime.getRuntime().availableProcessors()));
 		try {
-			Persister stream = new Persister();
 			/*
 			 * Load all of shoddy's databases
 			 */
-			m_moveList = new MoveList(true);
-			m_moveSetData = new MoveSetData();
-			m_speciesData = new PokemonSpeciesData();
 			m_mechanics = new JewelMechanics(5);
-			m_fishingData = new FishDatabase();
-			m_fishingData.reinitialise();
-			JewelMechanics.loadMoveTypes("res/movetypes.txt");
-			File f = new File(".");
-			m_moveSetData = stream.read(MoveSetData.class, new File(f.getCanonicalPath() + "/res/movesets.xml"));
-			initialiseSpecies();
+			Future<Object> moves = pool.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					m_moveList = new MoveList(true);
+					JewelMechanics.loadMoveTypes("res/movetypes.txt");
+					return null;
+				}
+			});
+			Future<Object> fishing = pool.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					m_fishingData = new FishDatabase();
+					m_fishingData.reinitialise();
+					return null;
+				}
+			});
+			m_speciesData = new PokemonSpeciesData();
+			File file = new File(DataPack.FILE);
+			DataPack pack = null;
+			if(usePack) {
+				try {
+					pack = DataPack.load(file, pool);
+				} catch (Exception e) {
+					System.err.println("ERROR: Could not read " + file.getPath() + ", loading sources");
+					e.printStackTrace();
+				}
+			}
+			if(pack != null) {
+				m_speciesData.setSpeciesDatabase(pack.getSpecies());
+				m_moveSetData = new MoveSetData(pack.getMoveSets());
+				System.out.println("INFO: Loaded " + file.getPath());
+			} else {
+				/* The move sets are parsed while the species are loaded */
+				Future<MoveSetData> moveSets = pool.submit(new Callable<MoveSetData>() {
+					public MoveSetData call() throws Exception {
+						return new Persister().read(MoveSetData.class,
+								new File(new File(".").getCanonicalPath() + "/res/movesets.xml"));
+					}
+				});
+				boolean loaded = initialiseSpecies();
+				m_moveSetData = moveSets.get();
+				if(usePack && loaded) {
+					try {
+						DataPack.write(file, m_speciesData, m_moveSetData);
+						System.out.println("INFO: Wrote " + file.getPath());
+					} catch (Exception e) {
+						System.err.println("ERROR: Could not write " + file.getPath());
+						e.printStackTrace();
+					}
+				}
+			}
+			moves.get();
+			fishing.get();
 			PokemonSpecies.setDefaultData(m_speciesData);
+			LearnsetTable.rebuild();
 			System.out.println("INFO: Pokemon Databases loaded.");
 			/*
 			 * List of non-tradeable Pokemon
@@ -97,6 +154,8 @@ public class DataService {
 			System.out.println("INFO: Trade Block List established.");
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			pool.shutdown();
 		}
 	}
 	
@@ -114,15 +173,16 @@ public class DataService {
 	}
 	
 	/**
-	 * Initializes the species database
+	 * Initializes the species database from its sources
+	 * @return true if everything was loaded
 	 */
-	public void initialiseSpecies() {
+	public boolean initialiseSpecies() {
 		/* Load shoddy database */
 		try {
 			m_speciesData.loadSpeciesDatabase(new File("./res/dpspecies.db"));
 		} catch (Exception e1) {
 			e1.printStackTrace();
-			return;
+			return false;
 		}
 		Ini ini = null;
 		/* Load updated POLR db */
@@ -130,7 +190,7 @@ public class DataService {
 			ini = new Ini(new FileInputStream("./res/pokemon.ini"));
 		} catch (Exception e) {
 			e.printStackTrace();
-			return;
+			return false;
 		}
 		for (int i = 0; i < 493; i++) {
 			Ini.Section s = ini.get(String.valueOf(i+1));
@@ -175,7 +235,7 @@ public class DataService {
 			ini = new Ini(new FileInputStream("./res/tms.ini"));
 		} catch (Exception e) {
 			e.printStackTrace();
-			return;
+			return false;
 		}
 		Iterator<String> iterator = ini.keySet().iterator();
 		while(iterator.hasNext()) {
@@ -246,8 +306,9 @@ public class DataService {
 			s.close();
 		} catch (Exception e) {
 			e.printStackTrace();
-			return;
+			return false;
 		}
+		return true;
 	}
 	
 	/**
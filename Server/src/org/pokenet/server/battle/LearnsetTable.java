@@ -0,0 +1,165 @@
+package org.pokenet.server.battle;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.pokenet.server.battle.mechanics.moves.MoveList;
+
+/**
+ * The moves each species can know at each level, computed once from the species data.
+ * For every species the starter moves and level-up moves are stored as move ids in the
+ * order they are learned, along with how many of them are known at each level.
+ * The moves a Pokemon can know at a level are then simply the first few ids of its species.
+ * @author shadowkanji
+ *
+ */
+public class LearnsetTable {
+	public static final int MAX_LEVEL = 100;
+	private static volatile LearnsetTable m_default = null;
+	
+	private final int [][] m_moves;
+	private final int [][] m_counts;
+	
+	/**
+	 * Returns the table for the default species data and move list, building it if needed
+	 * @return
+	 */
+	public static LearnsetTable getDefault() {
+		LearnsetTable table = m_default;
+		if(table == null) {
+			synchronized(LearnsetTable.class) {
+				if(m_default == null)
+					m_default = new LearnsetTable(PokemonSpecies.getDefaultData(), MoveList.getDefaultData());
+				table = m_default;
+			}
+		}
+		return table;
+	}
+	
+	/**
+	 * Rebuilds the default table. Called once the species data is loaded.
+	 */
+	public static synchronized void rebuild() {
+		m_default = new LearnsetTable(PokemonSpecies.getDefaultData(), MoveList.getDefaultData());
+	}
+	
+	/**
+	 * Constructor
+	 * @param data
+	 * @param moveList
+	 */
+	public LearnsetTable(PokemonSpeciesData data, MoveList moveList) {
+		int species = data.getSpeciesCount();
+		m_moves = new int[species][];
+		m_counts = new int[species][];
+		int [] moves = new int[64];
+		for(int i = 0; i < species; i++) {
+			PokemonSpecies ps = data.getSpecies()[i];
+			int count = 0;
+			int [] counts = new int[MAX_LEVEL + 1];
+			if(ps != null) {
+				/* Starter moves are known from level 0 */
+				String [] starters = ps.getStarterMoves();
+				if(starters != null) {
+					for(int j = 0; j < starters.length; j++) {
+						moves = add(moves, count, moveList.getMoveId(starters[j]));
+						if(moves[count] >= 0)
+							count++;
+					}
+				}
+				/* Then the level-up moves, lowest level first */
+				TreeMap<Integer, String> levelMoves = new TreeMap<Integer, String>();
+				if(ps.getLevelMoves() != null)
+					levelMoves.putAll(ps.getLevelMoves());
+				int level = 0;
+				Iterator<Map.Entry<Integer, String>> it = levelMoves.entrySet().iterator();
+				while(it.hasNext()) {
+					Map.Entry<Integer, String> e = it.next();
+					if(e.getKey() > MAX_LEVEL)
+						break;
+					for(; level < e.getKey(); level++)
+						counts[level] = count;
+					moves = add(moves, count, moveList.getMoveId(e.getValue()));
+					if(moves[count] >= 0)
+						count++;
+				}
+				for(; level <= MAX_LEVEL; level++)
+					counts[level] = count;
+			}
+			m_moves[i] = new int[count];
+			System.arraycopy(moves, 0, m_moves[i], 0, count);
+			m_counts[i] = counts;
+		}
+	}
+	
+	/**
+	 * Stores a move id at moves[count], or -1 if the move does not exist or is already known.
+	 * Returns the array, grown if needed.
+	 * @param moves
+	 * @param count
+	 * @param id
+	 * @return
+	 */
+	private static int [] add(int [] moves, int count, int id) {
+		if(count == moves.length) {
+			int [] grown = new int[moves.length * 2];
+			System.arraycopy(moves, 0, grown, 0, count);
+			moves = grown;
+		}
+		for(int i = 0; i < count && id >= 0; i++) {
+			if(moves[i] == id)
+				id = -1;
+		}
+		moves[count] = id;
+		return moves;
+	}
+	
+	/**
+	 * Returns how many moves a species can know at a level
+	 * @param species
+	 * @param level
+	 * @return
+	 */
+	public int getMoveCount(int species, int level) {
+		if(species < 0 || species >= m_counts.length)
+			return 0;
+		return m_counts[species][Math.max(0, Math.min(level, MAX_LEVEL))];
+	}
+	
+	/**
+	 * Returns the id of the i'th move a species learns
+	 * @param species
+	 * @param i
+	 * @return
+	 */
+	public int getMove(int species, int i) {
+		return m_moves[species][i];
+	}
+	
+	/**
+	 * Picks random moves a species can know at a level, without repeats.
+	 * If the species knows no more moves than fit in result, all of them are returned in order.
+	 * Returns how many move ids were stored in result.
+	 * @param species
+	 * @param level
+	 * @param random
+	 * @param result
+	 * @return
+	 */
+	public int chooseMoves(int species, int level, Random random, int [] result) {
+		int count = getMoveCount(species, level);
+		int [] moves = m_moves[Math.max(species, 0)];
+		int chosen = Math.min(count, result.length);
+		/* Reservoir sampling */
+		for(int i = 0; i < chosen; i++)
+			result[i] = moves[i];
+		for(int i = chosen; i < count; i++) {
+			int j = random.nextInt(i + 1);
+			if(j < chosen)
+				result[j] = moves[i];
+		}
+		return chosen;
+	}
+}
@@ -0,0 +1,73 @@
+package org.pokenet.server.battle;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * A case-insensitive index from names to values.
+ * Names are lowercased once when the index is built, so a lookup is a single hash probe.
+ * The index is not modified once built and may be shared between threads.
+ * @author shadowkanji
+ *
+ * @param <T>
+ */
+public class NameIndex<T> {
+	private final HashMap<String, T> m_index;
+	
+	/**
+	 * Constructor
+	 * @param capacity - the expected amount of names
+	 */
+	public NameIndex(int capacity) {
+		m_index = new HashMap<String, T>(capacity * 4 / 3 + 1);
+	}
+	
+	/**
+	 * Adds a name. If the name was already added the first value is kept,
+	 * matching a linear search which stops at the first match.
+	 * Only call this while building the index.
+	 * @param name
+	 * @param value
+	 */
+	public void put(String name, T value) {
+		if(name == null)
+			return;
+		String key = normalize(name);
+		if(!m_index.containsKey(key))
+			m_index.put(key, value);
+	}
+	
+	/**
+	 * Returns the value for a name, ignoring case, or null
+	 * @param name
+	 * @return
+	 */
+	public T get(String name) {
+		if(name == null)
+			return null;
+		return m_index.get(normalize(name));
+	}
+	
+	/**
+	 * Returns how many names are indexed
+	 * @return
+	 */
+	public int size() {
+		return m_index.size();
+	}
+	
+	/**
+	 * Returns a name in lower case. Names already in lower case are returned as they are.
+	 * The English locale is used so names match whatever the server's default locale is.
+	 * @param name
+	 * @return
+	 */
+	public static String normalize(String name) {
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(Character.toLowerCase(c) != c)
+				return name.toLowerCase(Locale.ENGLISH);
+		}
+		return name;
+	}
+}
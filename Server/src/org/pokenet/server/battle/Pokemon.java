@@ -22,8 +22,6 @@ import java.io.ObjectOutputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -55,6 +53,7 @@ import org.pokenet.server.battle.mechanics.statuses.PercentEffect;
 import org.pokenet.server.battle.mechanics.statuses.PoisonEffect;
 import org.pokenet.server.battle.mechanics.statuses.StatChangeEffect;
 import org.pokenet.server.battle.mechanics.statuses.StatusEffect;
+import org.pokenet.server.battle.mechanics.statuses.StatusList;
 import org.pokenet.server.battle.mechanics.statuses.StatusListener;
 import org.pokenet.server.battle.mechanics.statuses.ToxicEffect;
 import org.pokenet.server.battle.mechanics.statuses.abilities.IntrinsicAbility;
@@ -85,7 +84,7 @@ public class Pokemon extends PokemonSpecies {
 	transient private StatMultiplier[]        m_multiplier;
 	transient private StatMultiplier          m_accuracy;
 	transient private StatMultiplier          m_evasion;
-	transient private ArrayList<StatusEffect> m_statuses;
+	transient private StatusList<StatusEffect> m_statuses;
 	@ElementArray
 	transient private int[]                   m_pp;
 	@ElementArray
@@ -164,6 +163,8 @@ public class Pokemon extends PokemonSpecies {
 	private long                              m_originalNo;
 
 	private int                               m_databaseID     = -1;
+	/* The column values last read from or written to the database */
+	private Object [][]                       m_savedValues    = null;
 
 	// Battle mechanics.
 	private BattleMechanics                   m_mech;
@@ -436,6 +437,25 @@ public class Pokemon extends PokemonSpecies {
 		return m_databaseID;
 	}
 
+	/**
+	 * Returns the column values this pokemon had when it was last saved, or null if it was never saved.
+	 * Used to only write the columns that have changed.
+	 * 
+	 * @return
+	 */
+	public Object [][] getSavedValues() {
+		return m_savedValues;
+	}
+
+	/**
+	 * Sets the column values this pokemon had when it was last saved
+	 * 
+	 * @param values
+	 */
+	public void setSavedValues(Object [][] values) {
+		m_savedValues = values;
+	}
+
 	/**
 	 * Create a substitute to take hits for this pokemon.
 	 */
@@ -701,78 +721,37 @@ public class Pokemon extends PokemonSpecies {
 	 * @return
 	 */
 	public static Pokemon getRandomPokemon(String species, int level) {
+		return getRandomPokemon(species, level, BattleMechanics.getThreadRandom());
+	}
+
+	/**
+	 * Generates a Pokemon using the random numbers given
+	 * 
+	 * @param species
+	 * @param level
+	 * @param random
+	 * @return
+	 */
+	public static Pokemon getRandomPokemon(String species, int level, Random random) {
 		Pokemon p;
-		Random random = DataService.getBattleMechanics().getRandom();
 		/*
 		 * First obtain species data
 		 */
 		PokemonSpecies ps = PokemonSpecies.getDefaultData().getPokemonByName(species);
 		MoveListEntry[] moves = new MoveListEntry[4];
 		/*
-		 * Generate a list of possible moves this Pokemon could have at this level
+		 * Pick up to 4 of the moves this Pokemon could have at this level
 		 */
-		ArrayList<MoveListEntry> possibleMoves = new ArrayList<MoveListEntry>();
 		MoveList moveList = MoveList.getDefaultData();
-		/*
-		 * Get all starter moves
-		 */
-		for (int i = 0; i < ps.getStarterMoves().length; i++) {
-			possibleMoves.add(moveList.getMove(ps.getStarterMoves()[i]));
-		}
-		/*
-		 * Get moves learned by levelling up
-		 */
-		for (int i = 1; i <= level; i++) {
-			if (ps.getLevelMoves().containsKey(i)) {
-				MoveListEntry m = moveList.getMove(ps.getLevelMoves().get(i));
-				boolean exists = false;
-				/* Check if this move is already in the list of possible moves */
-				for (int j = 0; j < possibleMoves.size(); j++) {
-					if (possibleMoves.get(j) != null
-							&& possibleMoves.get(j).getName() != null && m != null
-							&& m.getName() != null
-							&& possibleMoves.get(j).getName().equalsIgnoreCase(m.getName())) {
-						exists = true;
-						break;
-					}
-				}
-				/* If the move is not already in the list, add it to the list */
-				if (!exists) possibleMoves.add(m);
-			}
-		}
-		/*
-		 * possibleMoves sometimes has null moves stored in it, get rid of them
-		 */
-		for (int i = 0; i < possibleMoves.size(); i++) {
-			if (possibleMoves.get(i) == null) possibleMoves.remove(i);
-		}
-		possibleMoves.trimToSize();
-		/*
-		 * Now the store the final set of moves for the Pokemon
-		 */
-		if (possibleMoves.size() <= 4) {
-			for (int i = 0; i < possibleMoves.size(); i++) {
-				moves[i] = possibleMoves.get(i);
-			}
-		} else {
-			MoveListEntry m = null;
-			for (int i = 0; i < 4; i++) {
-				if (possibleMoves.size() == 0) {
-					moves[i] = null;
-				} else {
-					m = possibleMoves.get(random.nextInt(possibleMoves.size()));
-					moves[i] = m;
-					possibleMoves.remove(m);
-					possibleMoves.trimToSize();
-					m = null;
-				}
-			}
+		int[] moveIds = new int[4];
+		int moveCount = LearnsetTable.getDefault().chooseMoves(ps.getSpeciesNumber(), level, random, moveIds);
+		for (int i = 0; i < moveCount; i++) {
+			moves[i] = moveList.getMove(moveIds[i]);
 		}
 		/*
 		 * Get all possible abilities
 		 */
-		String[] abilities = PokemonSpecies.getDefaultData().getPokemonByName(
-				species).getAbilities();
+		String[] abilities = ps.getAbilities();
 		/* First select an ability randomly */
 		String ab = abilities[random.nextInt(abilities.length)];
 		/*
@@ -780,7 +759,7 @@ public class Pokemon extends PokemonSpecies {
 		 */
 		p = new Pokemon(DataService.getBattleMechanics(), ps, PokemonNature
 				.getNature(random.nextInt(PokemonNature.getNatureNames().length)), ab,
-				null, Pokemon.generateGender(ps.getPossibleGenders()), level, new int[] {
+				null, Pokemon.generateGender(ps.getPossibleGenders(), random), level, new int[] {
 			random.nextInt(32), // IVs
 			random.nextInt(32), random.nextInt(32), random.nextInt(32),
 			random.nextInt(32), random.nextInt(32) },
@@ -795,6 +774,16 @@ public class Pokemon extends PokemonSpecies {
 	}
 
 	public static int generateGender(int possibleGenders) {
+		return generateGender(possibleGenders, BattleMechanics.getThreadRandom());
+	}
+
+	/**
+	 * Generates a gender using the random numbers given
+	 * @param possibleGenders
+	 * @param random
+	 * @return
+	 */
+	public static int generateGender(int possibleGenders, Random random) {
 		switch (possibleGenders) {
 		case 0:
 			return 0;
@@ -803,7 +792,7 @@ public class Pokemon extends PokemonSpecies {
 		case 2:
 			return 2;
 		case 3:
-			if (DataService.getBattleMechanics().getRandom().nextBoolean()) return 1;
+			if (random.nextBoolean()) return 1;
 			else
 				return 2;
 		default:
@@ -1052,7 +1041,7 @@ public class Pokemon extends PokemonSpecies {
 		m_movesLearning = new ArrayList<String>();
 		m_accuracy = new StatMultiplier(true);
 		m_evasion = new StatMultiplier(true);
-		m_statuses = new ArrayList<StatusEffect>();
+		m_statuses = new StatusList<StatusEffect>();
 		m_pp = new int[4];
 		m_maxPp = new int[m_pp.length];
 		m_fainted = false;
@@ -1236,7 +1225,7 @@ public class Pokemon extends PokemonSpecies {
 	 * Switch out this pokemon.
 	 */
 	public void switchOut() {
-		ArrayList<StatusEffect> list = new ArrayList<StatusEffect>(m_statuses);
+		StatusList<StatusEffect> list = new StatusList<StatusEffect>(m_statuses);
 		Iterator<StatusEffect> i = list.iterator();
 		while (i.hasNext()) {
 			StatusEffect effect = i.next();
@@ -1396,6 +1385,13 @@ public class Pokemon extends PokemonSpecies {
 	 */
 	public List<StatusEffect> getStatusesByTier(int tier) {
 		List<StatusEffect> ret = new ArrayList<StatusEffect>();
+		if ((tier >= 0) && (tier < StatusEffect.getTierCount())) {
+			StatusEffect[] effects = m_statuses.getTier(tier);
+			for (int i = 0; i < effects.length; ++i) {
+				if (effects[i].isActive()) ret.add(effects[i]);
+			}
+			return ret;
+		}
 		synchronized (m_statuses) {
 			Iterator<StatusEffect> i = m_statuses.iterator();
 			while (i.hasNext()) {
@@ -1620,6 +1616,18 @@ public class Pokemon extends PokemonSpecies {
 	public static double getEffectiveness(List<?> statuses, PokemonType move,
 			PokemonType pokemon, boolean enemy) {
 		double expected = move.getMultiplier(pokemon);
+		if (statuses instanceof StatusList) {
+			// The list locks itself while building the array, which is never modified.
+			StatusEffect[] effects = ((StatusList<?>) statuses).getEffectivenessTransformers(enemy);
+			for (int i = 0; i < effects.length; ++i) {
+				StatusEffect eff = effects[i];
+				if (eff.isActive()) {
+					double actual = eff.getEffectiveness(move, pokemon, enemy);
+					if (actual != expected) return actual;
+				}
+			}
+			return expected;
+		}
 		synchronized (statuses) {
 			Iterator<?> i = statuses.iterator();
 			while (i.hasNext()) {
@@ -1646,16 +1654,9 @@ public class Pokemon extends PokemonSpecies {
 	 */
 	public boolean isImmobilised(Class<?> exception) {
 		synchronized (m_statuses) {
-			Collections.sort(m_statuses, new Comparator<Object>() {
-				public int compare(Object o1, Object o2) {
-					StatusEffect e1 = (StatusEffect) o1;
-					StatusEffect e2 = (StatusEffect) o2;
-					return e1.getTier() - e2.getTier();
-				}
-			});
-			Iterator<StatusEffect> i = m_statuses.iterator();
-			while (i.hasNext()) {
-				StatusEffect eff = i.next();
+			m_statuses.sortByTier();
+			for (int i = 0; i < m_statuses.size(); ++i) {
+				StatusEffect eff = m_statuses.get(i);
 				if (eff.isActive() && eff.immobilises(this)) {
 					if ((exception == null)
 							|| !exception.isAssignableFrom(eff.getClass())) {
@@ -1677,14 +1678,12 @@ public class Pokemon extends PokemonSpecies {
 	 */
 	protected MoveListEntry getTransformedMove(MoveListEntry move, boolean enemy) {
 		// For now, do this in no particular order.
-		synchronized (m_statuses) {
-			Iterator<StatusEffect> i = m_statuses.iterator();
-			while (i.hasNext()) {
-				StatusEffect eff = i.next();
-				if (eff.isActive() && eff.isMoveTransformer(enemy)) {
-					move = eff.getMove(this, (MoveListEntry) move.clone(), enemy);
-					if (move == null) { return null; }
-				}
+		StatusEffect[] effects = m_statuses.getMoveTransformers(enemy);
+		for (int i = 0; i < effects.length; ++i) {
+			StatusEffect eff = effects[i];
+			if (eff.isActive()) {
+				move = eff.getMove(this, (MoveListEntry) move.clone(), enemy);
+				if (move == null) { return null; }
 			}
 		}
 		return move;
@@ -1760,10 +1759,10 @@ public class Pokemon extends PokemonSpecies {
 	 * Inform that this pokemon was damaged.
 	 */
 	private void informDamaged(Pokemon source, MoveListEntry entry, int damage) {
-		int size = m_statuses.size();
-		for (int i = 0; i < size; ++i) {
-			StatusEffect eff = m_statuses.get(i);
-			if (eff.isActive() && eff.isListener()) {
+		StatusEffect[] listeners = m_statuses.getListeners();
+		for (int i = 0; i < listeners.length; ++i) {
+			StatusEffect eff = listeners[i];
+			if (eff.isActive()) {
 				eff.informDamaged(source, this, entry, damage);
 			}
 		}
@@ -2003,17 +2002,15 @@ public class Pokemon extends PokemonSpecies {
 	 * Get a stat multiplier, including the ones for accuracy and evasion.
 	 */
 	public StatMultiplier getMultiplier(int i) throws StatException {
-		if (i < m_multiplier.length) {
-			if (m_multiplier == null) {
-				m_multiplier = new StatMultiplier[m_stat.length];
-			}
-			if (m_multiplier[i] == null) m_multiplier[i] = new StatMultiplier(false);
-			if (i < 0) throw new StatException();
-			if (i < 6) return m_multiplier[i];
-			if (i == S_ACCURACY) return m_accuracy;
-			if (i == S_EVASION) return m_evasion;
+		if (i < 0) throw new StatException();
+		if (i == S_ACCURACY) return m_accuracy;
+		if (i == S_EVASION) return m_evasion;
+		if (m_multiplier == null) {
+			m_multiplier = new StatMultiplier[m_stat.length];
 		}
-		throw new StatException();
+		if (i >= m_multiplier.length) throw new StatException();
+		if (m_multiplier[i] == null) m_multiplier[i] = new StatMultiplier(false);
+		return m_multiplier[i];
 	}
 
 	public int getRawStat(int i) {
@@ -2087,7 +2084,7 @@ public class Pokemon extends PokemonSpecies {
 		}
 		m_accuracy = new StatMultiplier(true);
 		m_evasion = new StatMultiplier(true);
-		m_statuses = new ArrayList<StatusEffect>();
+		m_statuses = new StatusList<StatusEffect>();
 		m_movesLearning = new ArrayList<String>();
 		/*
 		 * m_pp = new int[4]; m_maxPp = new int[4]; m_ppUp = new int[4];
@@ -2153,8 +2150,7 @@ public class Pokemon extends PokemonSpecies {
 		try {
 			String[] abilities = PokemonSpecies.getDefaultData()
 			.getPossibleAbilities(getSpeciesName());
-			m_ability = IntrinsicAbility.getInstance(abilities[DataService
-			                                                   .getBattleMechanics().getRandom().nextInt(abilities.length)]);
+			m_ability = IntrinsicAbility.getInstance(abilities[BattleMechanics.getThreadRandom().nextInt(abilities.length)]);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -9,6 +9,7 @@ import java.util.Map;
 
 import org.pokenet.server.backend.item.DropData;
 import org.pokenet.server.battle.Pokemon.ExpTypes;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
 import org.pokenet.server.battle.mechanics.PokemonType;
 import org.pokenet.server.battle.mechanics.StatException;
 import org.pokenet.server.battle.mechanics.moves.MoveSet;
@@ -119,17 +120,16 @@ public class PokemonSpecies {
 			System.err.println("INFO: Drop data null for " + m_name);
 			return -1;
 		}
-		if(DataService.getBattleMechanics().getRandom().nextInt(99) < 30) {
+		if(BattleMechanics.getThreadRandom().nextInt(99) < 30) {
             int r = 100;
             ArrayList<Integer> m_result = new ArrayList<Integer>();
             for(int i = 0; i < m_drops.length; i++) {
-                    r = DataService.getBattleMechanics().getRandom().nextInt(100) + 1;
+                    r = BattleMechanics.getThreadRandom().nextInt(100) + 1;
                     if(m_drops[i] != null && r < m_drops[i].getProbability())
                             m_result.add(m_drops[i].getItemNumber());
             }
             return m_result.size() > 0 ? 
-                            m_result.get(DataService.getBattleMechanics()
-                                            .getRandom().nextInt(m_result.size())) : -1;
+                            m_result.get(BattleMechanics.getThreadRandom().nextInt(m_result.size())) : -1;
 		}
 		return - 1;
 	}
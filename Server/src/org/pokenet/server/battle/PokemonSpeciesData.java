@@ -64,6 +64,11 @@ public class PokemonSpeciesData {
     @ElementArray
     private PokemonSpecies[] m_database;
     
+    /**
+     * Index of species by name, built once the database is loaded.
+     */
+    private volatile NameIndex<PokemonSpecies> m_index = null;
+    
     /**
      * Get the date when the database was last modified.
      */
@@ -124,6 +129,7 @@ public class PokemonSpeciesData {
             System.out.println("Unimplemented intrinsic ability: " + ability);
         }
         m_unimplemented = null;
+        buildIndex();
     }
     
     /**
@@ -257,6 +263,14 @@ public class PokemonSpeciesData {
         return m_database;
     }
     
+    /**
+     * Set the species database, e.g. when it was loaded from a data pack.
+     */
+    public void setSpeciesDatabase(PokemonSpecies[] database) {
+        m_database = database;
+        buildIndex();
+    }
+    
     /**
      * Get a single species.
      */
@@ -287,20 +301,39 @@ public class PokemonSpeciesData {
         return m_database.length;
     }
     
+    /**
+     * Build the index of species names. Called once the database is loaded.
+     */
+    public void buildIndex() {
+        NameIndex<PokemonSpecies> index = new NameIndex<PokemonSpecies>(m_database.length);
+        for (int i = 0; i < m_database.length; ++i) {
+            if (m_database[i] != null)
+                index.put(m_database[i].getName(), m_database[i]);
+        }
+        m_index = index;
+    }
+    
     /**
      * Find a pokemon by name.
      */
     public PokemonSpecies getPokemonByName(String name) {
-        for (int i = 0; i < m_database.length; ++i) {
-            if (m_database[i] != null && m_database[i].getName() != null && 
-            		m_database[i].getName().equalsIgnoreCase(name)) {
-                return m_database[i];
-            }
+        NameIndex<PokemonSpecies> index = m_index;
+        if (index == null) {
+            /* Loaded without loadSpeciesDatabase(), e.g. by the xml serializer */
+            buildIndex();
+            index = m_index;
         }
-        return null;
+        return index.get(name);
     }
     
-
+    /**
+     * Return the id of a species, or -1 if there is no such species.
+     * Callers can keep the id and use getSpecies(int) instead of the name.
+     */
+    public int getSpeciesId(String name) {
+        PokemonSpecies species = getPokemonByName(name);
+        return species == null ? -1 : species.getSpeciesNumber();
+    }
     
     /**
      * Return whether this species can learn a particular move.
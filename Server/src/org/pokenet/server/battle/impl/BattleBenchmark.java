@@ -0,0 +1,298 @@
+package org.pokenet.server.battle.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.pokenet.server.backend.map.EncounterTable;
+import org.pokenet.server.battle.BattleField;
+import org.pokenet.server.battle.DataService;
+import org.pokenet.server.battle.Pokemon;
+import org.pokenet.server.battle.PokemonSpecies;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
+import org.pokenet.server.battle.mechanics.moves.MoveListEntry;
+import org.pokenet.server.battle.mechanics.moves.PokemonMove;
+import org.pokenet.server.battle.mechanics.statuses.BurnEffect;
+import org.pokenet.server.battle.mechanics.statuses.ConfuseEffect;
+import org.pokenet.server.battle.mechanics.statuses.StatusEffect;
+
+/**
+ * Simulates random battles on every core and times the hot paths of the battle mechanics
+ * (turns, damage calculation, status ticks, switching and wild encounters), so that performance regressions
+ * can be spotted before deploying. Run it from the server directory so res/ can be loaded.
+ * Any battle which throws an exception is reported with its seed.
+ * @author shadowkanji
+ *
+ */
+public class BattleBenchmark {
+	private static volatile long m_sink;
+
+	private final BattleMechanics m_mechanics;
+	private final String [] m_species;
+
+	/**
+	 * Constructor. Loads the battle data.
+	 */
+	public BattleBenchmark() {
+		new DataService();
+		m_mechanics = DataService.getBattleMechanics();
+		/* Only keep species which can be generated */
+		ArrayList<String> species = new ArrayList<String>();
+		for(String name : PokemonSpecies.getDefaultData().getSpeciesNames()) {
+			try {
+				if(name != null && Pokemon.getRandomPokemon(name, 50) != null)
+					species.add(name);
+			} catch (Exception e) {}
+		}
+		m_species = species.toArray(new String[species.size()]);
+		System.out.println("INFO: " + m_species.length + " species available for battles");
+	}
+
+	/**
+	 * Returns a random party of six
+	 * @param random
+	 * @return
+	 */
+	private Pokemon [] createParty(Random random) {
+		Pokemon [] party = new Pokemon[6];
+		for(int i = 0; i < party.length; i++)
+			party[i] = Pokemon.getRandomPokemon(m_species[random.nextInt(m_species.length)],
+					random.nextInt(100) + 1, random);
+		return party;
+	}
+
+	/**
+	 * Creates a battle between two random parties
+	 * @param seed
+	 * @return
+	 */
+	private SimulatedBattleField createBattle(long seed) {
+		Random random = new Random(seed);
+		return new SimulatedBattleField(m_mechanics, createParty(random), createParty(random),
+				SimulatedBattleField.RANDOM_TRAINER, SimulatedBattleField.RANDOM_TRAINER, seed);
+	}
+
+	/**
+	 * Simulates random battles across several threads
+	 * @param battles
+	 * @param threads
+	 * @param maxTurns
+	 * @param seed - the seed of the first battle, the others follow on from it
+	 */
+	public void simulate(final int battles, int threads, final int maxTurns, final long seed) throws Exception {
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicLong turns = new AtomicLong(0);
+		final AtomicLong switches = new AtomicLong(0);
+		final AtomicInteger unfinished = new AtomicInteger(0);
+		final AtomicInteger errors = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for(int i = 0; i < threads; i++) {
+			workers.add(pool.submit(new Runnable() {
+				public void run() {
+					int battle;
+					while((battle = next.getAndIncrement()) < battles) {
+						long battleSeed = seed + battle;
+						SimulatedBattleField field = null;
+						try {
+							field = createBattle(battleSeed);
+							if(field.run(maxTurns) < 0)
+								unfinished.incrementAndGet();
+							turns.addAndGet(field.getTurnCount());
+							switches.addAndGet(field.getSwitchCount());
+						} catch (Throwable t) {
+							if(errors.incrementAndGet() <= 10) {
+								System.err.println("ERROR: Battle with seed " + battleSeed + " failed");
+								t.printStackTrace();
+							}
+						} finally {
+							if(field != null)
+								field.dispose();
+						}
+					}
+				}
+			}));
+		}
+		for(Future<?> f : workers)
+			f.get();
+		pool.shutdown();
+		double seconds = (System.nanoTime() - start) / 1000000000.0;
+		System.out.println("INFO: Simulated " + battles + " battles on " + threads + " threads in " +
+				format(seconds) + "s (" + format(battles / seconds) + " battles/s, " +
+				format(turns.get() / seconds) + " turns/s)");
+		System.out.println("INFO: " + turns.get() + " turns, " + switches.get() + " switches, " +
+				unfinished.get() + " unfinished after " + maxTurns + " turns, " + errors.get() + " errors");
+	}
+
+	/**
+	 * Times the mechanics on a single thread
+	 * @param iterations
+	 * @param seed
+	 */
+	public void benchmark(int iterations, long seed) {
+		final SimulatedBattleField field = createBattle(seed);
+		final Pokemon attacker = field.getActivePokemon()[0];
+		final Pokemon defender = field.getActivePokemon()[1];
+		MoveListEntry entry = null;
+		for(int i = 0; i < 4 && entry == null; i++) {
+			MoveListEntry move = attacker.getMove(i);
+			if(move != null && move.getMove().getPower() > 0)
+				entry = move;
+		}
+		if(entry == null)
+			entry = BattleField.getStruggle();
+		final PokemonMove move = entry.getMove();
+		time("Damage calculation", iterations, new Runnable() {
+			public void run() {
+				m_sink += m_mechanics.calculateDamage(move, attacker, defender, true);
+			}
+		});
+		time("Type effectiveness", iterations, new Runnable() {
+			public void run() {
+				m_sink += (long) (move.getEffectiveness(attacker, defender) * 4);
+			}
+		});
+		attacker.addStatus(defender, new BurnEffect());
+		attacker.addStatus(defender, new ConfuseEffect());
+		time("Status ticks", iterations, new Runnable() {
+			public void run() {
+				for(int i = 0; i < StatusEffect.getTierCount(); i++)
+					m_sink += attacker.getStatusesByTier(i).size();
+				m_sink += attacker.isImmobilised(ConfuseEffect.class) ? 1 : 0;
+			}
+		});
+		final int [] slots = new int[2];
+		for(int i = 1; i < field.getParty(0).length; i++) {
+			if(field.getParty(0)[i] != null)
+				slots[1] = i;
+		}
+		time("Switching", iterations, new Runnable() {
+			private int m_slot = 0;
+
+			public void run() {
+				m_slot = 1 - m_slot;
+				field.switchInPokemon(0, slots[m_slot]);
+			}
+		});
+		field.dispose();
+		/* Whole turns, a new battle whenever one ends */
+		final long [] nextSeed = { seed + 1 };
+		time("Battle turns", iterations / 10, new Runnable() {
+			private SimulatedBattleField m_field = null;
+
+			public void run() {
+				if(m_field == null || m_field.getWinner() >= 0) {
+					if(m_field != null)
+						m_field.dispose();
+					m_field = createBattle(nextSeed[0]++);
+				}
+				try {
+					m_field.run(m_field.getTurnCount() + 1);
+				} catch (RuntimeException e) {
+					/* Failures are reported by the simulation, start a new battle */
+					m_field.dispose();
+					m_field = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Times generating wild pokemon the way a map does, from an encounter table
+	 * with a mix of common and rare species
+	 * @param iterations
+	 * @param seed
+	 */
+	public void encounters(int iterations, long seed) {
+		final Random random = new Random(seed);
+		int [] chances = { 60, 40, 25, 15, 10, 5, 2, 1 };
+		HashMap<String, Integer> table = new HashMap<String, Integer>();
+		for(int i = 0; i < chances.length && i < m_species.length; i++)
+			table.put(m_species[random.nextInt(m_species.length)], chances[i]);
+		final EncounterTable encounters = new EncounterTable(table);
+		time("Encounter sampling", iterations, new Runnable() {
+			public void run() {
+				m_sink += encounters.getSpecies(random).length();
+			}
+		});
+		time("Wild pokemon generation", iterations / 10, new Runnable() {
+			public void run() {
+				m_sink += Pokemon.getRandomPokemon(encounters.getSpecies(random), random.nextInt(10) + 2, random).getLevel();
+			}
+		});
+	}
+
+	/**
+	 * Runs an operation for a warm up round and then times it
+	 * @param name
+	 * @param iterations
+	 * @param op
+	 */
+	private static void time(String name, int iterations, Runnable op) {
+		for(int i = 0; i < iterations; i++)
+			op.run();
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			op.run();
+		long time = System.nanoTime() - start;
+		System.out.println("INFO: " + name + ": " + format(time / (double) iterations) + "ns/op");
+	}
+
+	/**
+	 * Formats a number with two decimal places
+	 * @param d
+	 * @return
+	 */
+	private static String format(double d) {
+		return String.valueOf(Math.round(d * 100) / 100.0);
+	}
+
+	/**
+	 * Starts the benchmark
+	 * @param args
+	 */
+	public static void main(String [] args) {
+		Options options = new Options();
+		options.addOption("b", "battles", true, "Sets how many battles are simulated.");
+		options.addOption("t", "threads", true, "Sets how many threads simulate battles.");
+		options.addOption("n", "turns", true, "Sets the most turns a battle may last.");
+		options.addOption("i", "iterations", true, "Sets how many times each mechanic is timed.");
+		options.addOption("s", "seed", true, "Sets the seed of the first battle.");
+		options.addOption("h", "help", false, "Shows this menu.");
+		try {
+			CommandLine line = new GnuParser().parse(options, args);
+			if(line.hasOption("help")) {
+				new HelpFormatter().printHelp("java BattleBenchmark [param] <args>", options);
+				return;
+			}
+			int battles = Integer.parseInt(line.getOptionValue("battles", "10000"));
+			int threads = Integer.parseInt(line.getOptionValue("threads",
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			int turns = Integer.parseInt(line.getOptionValue("turns", "500"));
+			int iterations = Integer.parseInt(line.getOptionValue("iterations", "100000"));
+			long seed = line.hasOption("seed") ? Long.parseLong(line.getOptionValue("seed"))
+					: BattleMechanics.nextSeed();
+			System.out.println("INFO: Seed " + seed);
+			BattleBenchmark benchmark = new BattleBenchmark();
+			benchmark.benchmark(iterations, seed);
+			benchmark.encounters(iterations, seed);
+			benchmark.simulate(battles, threads, turns, seed);
+		} catch (ParseException e) {
+			new HelpFormatter().printHelp("java BattleBenchmark [param] <args>", options);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -52,6 +52,7 @@ public class NpcBattleField extends BattleField {
 		/* Store the player and npc */
 		m_player = p;
 		m_npc = n;
+		logStart("npc", new String[] { p.getName(), n.getName() });
 
 		/* Start the battle */
 		TcpProtocolHandler.writeMessage(p.getTcpSession(), 
@@ -260,15 +261,6 @@ public class NpcBattleField extends BattleField {
 		m_player.setBattling(false);
 		m_player.setTalking(false);
 		dispose();
-		if (m_dispatch != null) {
-			/*
-			 * This very bad programming but shoddy does it and forces us to do
-			 * it
-			 */
-			/*Thread t = m_dispatch;
-			m_dispatch = null;
-			t.stop(); let the thread manually return.*/
-		}
 	}
 
 	@Override
@@ -284,9 +276,7 @@ public class NpcBattleField extends BattleField {
 		if(m_isWaiting && m_replace != null && m_replace[trainer]) {
 			if(!move.isMoveTurn()) {
 				if(getActivePokemon()[trainer].compareTo(this.getParty(trainer)[move.getId()]) != 0) {
-					this.switchInPokemon(trainer, move.getId());
-					m_replace[trainer] = false;
-					m_isWaiting = false;
+					replacePokemon(trainer, move.getId());
 					return;
 				}
 			}
@@ -300,34 +290,22 @@ public class NpcBattleField extends BattleField {
 				if(getActivePokemon()[0].getHappiness() <= 40) {
 					/* Pokemon is unhappy, they'll do what they feel like */
 					showMessage(getActivePokemon()[0].getSpeciesName() + " is unhappy!");
-					int moveID = getMechanics().getRandom().nextInt(4);
-					while (getActivePokemon()[0].getMove(moveID) == null)
-						moveID = getMechanics().getRandom().nextInt(4);
-					move = BattleTurn.getMoveTurn(moveID);
+					move = BattleTurn.getMoveTurn(getRandomMove(0));
 				} else if(getActivePokemon()[0].getHappiness() < 70) {
 					/* Pokemon is partially unhappy, 50% chance they'll listen to you */
 					if(getMechanics().getRandom().nextInt(2) == 1) {
 						showMessage(getActivePokemon()[0].getSpeciesName() + " is unhappy!");
-						int moveID = getMechanics().getRandom().nextInt(4);
-						while (getActivePokemon()[0].getMove(moveID) == null)
-							moveID = getMechanics().getRandom().nextInt(4);
-						move = BattleTurn.getMoveTurn(moveID);
+						move = BattleTurn.getMoveTurn(getRandomMove(0));
 					}
 				}
 			}
-			if (move.getId() == -1) {
-				if (m_dispatch == null
-						&& ((trainer == 0 && m_turn[1] != null) ||
-								(trainer == 1 && m_turn[0] != null))) {
-					m_dispatch = new Thread(new Runnable() {
-						public void run() {
-							executeTurn(m_turn);
-							m_dispatch = null;
-						}
-					});
-					m_dispatch.start();
-					return;
-				}
+			if (move.getId() == -1 && move.isMoveTurn() && !getActivePokemon()[trainer].isFainted()) {
+				/* None of the pokemon's moves have pp left, so it struggles */
+				m_turn[trainer] = move;
+			} else if (move.getId() == -1 && !move.isMoveTurn()) {
+				/* There is no party slot -1 to switch to */
+				requestMove(trainer);
+				return;
 			} else {
 				// Handle a fainted pokemon
 				if (this.getActivePokemon()[trainer].isFainted()) {
@@ -393,20 +371,18 @@ public class NpcBattleField extends BattleField {
 			requestMove(1);
 			return;
 		}
-		if (m_dispatch != null)
+		if (isDispatching())
 			return;
 		// Both turns are ready to be performed 
 		if (m_turn[0] != null && m_turn[1] != null) {
-			m_dispatch = new Thread(new Runnable() {
+			dispatchTurn(new Runnable() {
 				public void run() {
 					executeTurn(m_turn);
 					for (int i = 0; i < m_participants; ++i) {
 						m_turn[i] = null;
 					}
-					m_dispatch = null;
 				}
 			});
-			m_dispatch.start();
 		}
 	}
 
@@ -426,16 +402,7 @@ public class NpcBattleField extends BattleField {
 			if (!m_replace[party]) {
 				return;
 			}
-			m_isWaiting = true;
-			do {
-				synchronized (m_dispatch) {
-					try {
-						m_dispatch.wait(1000);
-					} catch (InterruptedException e) {
-
-					}
-				}
-			} while ((m_replace != null) && m_replace[party]);
+			waitForSwitch(party);
 		}
 	}
 
@@ -453,24 +420,15 @@ public class NpcBattleField extends BattleField {
 					/* The npc should switch out a different Pokemon */
 					/* 50:50 chance they will switch */
 					if(this.getMechanics().getRandom().nextInt(3) == 0) {
-						int index = 0;
-						while(this.getParty(1)[index] == null ||
-								this.getParty(1)[index].isFainted() ||
-								this.getParty(1)[index].compareTo(getActivePokemon()[1]) == 0) {
-							try {
-								Thread.sleep(100);
-							} catch (Exception e) {}
-							index = getMechanics().getRandom().nextInt(6);
+						int index = getRandomSwitch(1);
+						if(index >= 0) {
+							this.queueMove(1, BattleTurn.getSwitchTurn(index));
+							return;
 						}
-						this.queueMove(1, BattleTurn.getSwitchTurn(index));
-						return;
 					}
 				}
 				/* If they did not switch, select a move */
-				int moveID = getMechanics().getRandom().nextInt(4);
-				while (getActivePokemon()[1].getMove(moveID) == null)
-					moveID = getMechanics().getRandom().nextInt(4);
-				queueMove(1, BattleTurn.getMoveTurn(moveID));
+				queueMove(1, BattleTurn.getMoveTurn(getRandomMove(1)));
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -496,15 +454,7 @@ public class NpcBattleField extends BattleField {
 				informVictory(0);
 			} else {
 				try {
-					int index = 0;
-
-					while(this.getParty(1)[index] == null ||
-							this.getParty(1)[index].isFainted()) {
-						try {
-							Thread.sleep(100);
-						} catch (Exception e) {}
-						index = getMechanics().getRandom().nextInt(6);
-					}
+					int index = getRandomSwitch(1);
 					this.switchInPokemon(1, BattleTurn.getSwitchTurn(index).getId());
 	                requestMoves();
 				} catch (Exception e) {
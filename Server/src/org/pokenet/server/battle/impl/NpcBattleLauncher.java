@@ -3,6 +3,7 @@ package org.pokenet.server.battle.impl;
 import org.pokenet.server.backend.entity.NonPlayerChar;
 import org.pokenet.server.backend.entity.PlayerChar;
 import org.pokenet.server.backend.entity.Positionable.Direction;
+import org.pokenet.server.battle.BattleExecutor;
 import org.pokenet.server.battle.DataService;
 
 /**
@@ -27,7 +28,7 @@ public class NpcBattleLauncher implements Runnable {
 	}
 	
 	/**
-	 * Moves the player to the npc and starts the battle
+	 * Moves the player to the npc and starts the battle a moment later
 	 */
 	public void run() {
 		try {
@@ -37,8 +38,23 @@ public class NpcBattleLauncher implements Runnable {
 			 */
 			m_player.setBattling(true);
 			m_npc.challengePlayer(m_player);
-			/* Sleep for a moment */
-			Thread.sleep(1000);
+			/* Wait a moment without holding a thread */
+			BattleExecutor.schedule(new Runnable() {
+				public void run() {
+					launch();
+				}
+			}, 1000);
+		} catch (Exception e) {
+			m_player.setBattling(false);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Makes the player face the npc and starts the battle
+	 */
+	private void launch() {
+		try {
 			/* Make the player face the npc */
 			switch(m_npc.getFacing()) {
 			case Up:
@@ -67,6 +83,6 @@ public class NpcBattleLauncher implements Runnable {
 	 * Starts the battle launcher
 	 */
 	public void start() {
-		new Thread(this).start();
+		run();
 	}
 }
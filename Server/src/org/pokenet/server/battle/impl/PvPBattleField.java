@@ -52,6 +52,7 @@ public class PvPBattleField extends BattleField {
 		m_players = new PlayerChar[2];
 		m_players[0] = p1;
 		m_players[1] = p2;
+		logStart("pvp", new String[] { p1.getName(), p2.getName() });
 		/*
 		 *Set the player to battling 
 		 */
@@ -299,15 +300,6 @@ public class PvPBattleField extends BattleField {
 		m_players[0].setBattling(false);
 		m_players[1].setBattling(false);
 		dispose();
-		if (m_dispatch != null) {
-			/*
-			 * This very bad programming but shoddy does it and forces us to do
-			 * it
-			 */
-			//Thread t = m_dispatch;
-			//m_dispatch = null;
-			//t.stop(); let the thread manually return.
-		}
 	}
 
 	@Override
@@ -323,9 +315,7 @@ public class PvPBattleField extends BattleField {
 		if(m_isWaiting && m_replace != null && m_replace[trainer]) {
 			if(!move.isMoveTurn()) {
 				if(getActivePokemon()[trainer].compareTo(this.getParty(trainer)[move.getId()]) != 0) {
-					this.switchInPokemon(trainer, move.getId());
-					m_replace[trainer] = false;
-					m_isWaiting = false;
+					replacePokemon(trainer, move.getId());
 					return;
 				}
 			}
@@ -339,34 +329,22 @@ public class PvPBattleField extends BattleField {
 				if(getActivePokemon()[trainer].getHappiness() <= 40) {
 					/* Pokemon is unhappy, they'll do what they feel like */
 					showMessage(getActivePokemon()[trainer].getSpeciesName() + " is unhappy!");
-					int moveID = getMechanics().getRandom().nextInt(4);
-					while (getActivePokemon()[trainer].getMove(moveID) == null)
-						moveID = getMechanics().getRandom().nextInt(4);
-					move = BattleTurn.getMoveTurn(moveID);
+					move = BattleTurn.getMoveTurn(getRandomMove(trainer));
 				} else if(getActivePokemon()[trainer].getHappiness() < 70) {
 					/* Pokemon is partially unhappy, 50% chance they'll listen to you */
 					if(getMechanics().getRandom().nextInt(2) == 1) {
 						showMessage(getActivePokemon()[trainer].getSpeciesName() + " is unhappy!");
-						int moveID = getMechanics().getRandom().nextInt(4);
-						while (getActivePokemon()[trainer].getMove(moveID) == null)
-							moveID = getMechanics().getRandom().nextInt(4);
-						move = BattleTurn.getMoveTurn(moveID);
+						move = BattleTurn.getMoveTurn(getRandomMove(trainer));
 					}
 				}
 			}
-			if (move.getId() == -1) {
-				if (m_dispatch == null
-						&& ((trainer == 0 && m_turn[1] != null) ||
-								(trainer == 1 && m_turn[0] != null))) {
-					m_dispatch = new Thread(new Runnable() {
-						public void run() {
-							executeTurn(m_turn);
-							m_dispatch = null;
-						}
-					});
-					m_dispatch.start();
-					return;
-				}
+			if (move.getId() == -1 && move.isMoveTurn() && !getActivePokemon()[trainer].isFainted()) {
+				/* None of the pokemon's moves have pp left, so it struggles */
+				m_turn[trainer] = move;
+			} else if (move.getId() == -1 && !move.isMoveTurn()) {
+				/* There is no party slot -1 to switch to */
+				requestMove(trainer);
+				return;
 			} else {
 				// Handle a fainted pokemon
 				if (this.getActivePokemon()[trainer].isFainted()) {
@@ -427,20 +405,18 @@ public class PvPBattleField extends BattleField {
 				}
 			}
 		}
-		if (m_dispatch != null)
+		if (isDispatching())
 			return;
 		// Both turns are ready to be performed 
 		if (m_turn[0] != null && m_turn[1] != null) {
-			m_dispatch = new Thread(new Runnable() {
+			dispatchTurn(new Runnable() {
 				public void run() {
 					executeTurn(m_turn);
 					for (int i = 0; i < m_participants; ++i) {
 						m_turn[i] = null;
 					}
-					m_dispatch = null;
 				}
 			});
-			m_dispatch.start();
 		}
 	}
 
@@ -465,15 +441,7 @@ public class PvPBattleField extends BattleField {
 		if (!m_replace[party]) {
 			return;
 		}
-		m_isWaiting = true;
-		do {
-			synchronized (m_dispatch) {
-				try {
-					m_dispatch.wait(1000);
-				} catch (InterruptedException e) {
-				}
-			}
-		} while ((m_replace != null) && m_replace[party]);
+		waitForSwitch(party);
 	}
 
 	@Override
@@ -0,0 +1,231 @@
+package org.pokenet.server.battle.impl;
+
+import java.util.Random;
+
+import org.pokenet.server.battle.BattleField;
+import org.pokenet.server.battle.BattleTurn;
+import org.pokenet.server.battle.Pokemon;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
+import org.pokenet.server.battle.mechanics.statuses.StatusEffect;
+
+/**
+ * A battlefield with no players or network attached.
+ * Each side is controlled by a Trainer and turns are executed on the calling thread,
+ * so battles can be simulated and benchmarked without a client.
+ * @author shadowkanji
+ *
+ */
+public class SimulatedBattleField extends BattleField {
+	/**
+	 * Chooses the turns of one side of a simulated battle
+	 */
+	public interface Trainer {
+		/**
+		 * Returns the turn of the trainer's active pokemon
+		 * @param field
+		 * @param trainer
+		 * @return
+		 */
+		public BattleTurn getTurn(SimulatedBattleField field, int trainer);
+
+		/**
+		 * Returns the index of the pokemon to switch in, or -1 if there are none
+		 * @param field
+		 * @param trainer
+		 * @return
+		 */
+		public int getReplacement(SimulatedBattleField field, int trainer);
+	}
+
+	/**
+	 * Uses random moves, switches out now and then and sends in random replacements.
+	 * Uses the field's random numbers, so a battle is reproduced by its seed.
+	 */
+	public static final Trainer RANDOM_TRAINER = new Trainer() {
+		public BattleTurn getTurn(SimulatedBattleField field, int trainer) {
+			Pokemon poke = field.getActivePokemon()[trainer];
+			Random random = field.getRandom();
+			if (poke.mustStruggle())
+				return BattleTurn.getMoveTurn(-1);
+			if (random.nextInt(10) == 0 && poke.canSwitch()) {
+				int replacement = getReplacement(field, trainer);
+				if (replacement >= 0)
+					return BattleTurn.getSwitchTurn(replacement);
+			}
+			return BattleTurn.getMoveTurn(field.getRandomMove(trainer));
+		}
+
+		public int getReplacement(SimulatedBattleField field, int trainer) {
+			return field.getRandomSwitch(trainer);
+		}
+	};
+
+	private static final String [] TRAINER_NAMES = { "Trainer 0", "Trainer 1" };
+
+	private Trainer [] m_trainers;
+	private BattleTurn [] m_turn = new BattleTurn[2];
+	private int m_winner = -1;
+	private int m_turns;
+	private int m_switches;
+	private int m_messages;
+
+	/**
+	 * Constructor
+	 * @param mech
+	 * @param p1
+	 * @param p2
+	 * @param t1
+	 * @param t2
+	 * @param seed
+	 */
+	public SimulatedBattleField(BattleMechanics mech, Pokemon [] p1, Pokemon [] p2,
+			Trainer t1, Trainer t2, long seed) {
+		super(mech, new Pokemon[][] { p1, p2 }, seed);
+		m_trainers = new Trainer[] { t1, t2 };
+	}
+
+	/**
+	 * Plays the battle until one side wins or maxTurns turns were executed
+	 * @param maxTurns
+	 * @return the winner, or -1 if there was none
+	 */
+	public int run(int maxTurns) {
+		while (m_winner < 0 && m_turns < maxTurns) {
+			for (int i = 0; i < m_turn.length; i++)
+				m_turn[i] = m_trainers[i].getTurn(this, i);
+			m_turns++;
+			executeTurn(m_turn);
+			clearQueue();
+		}
+		return m_winner;
+	}
+
+	/**
+	 * Returns the winner, or -1 if the battle has not finished
+	 * @return
+	 */
+	public int getWinner() {
+		return m_winner;
+	}
+
+	/**
+	 * Returns the amount of turns executed
+	 * @return
+	 */
+	public int getTurnCount() {
+		return m_turns;
+	}
+
+	/**
+	 * Returns the amount of pokemon switched in, including replacements
+	 * @return
+	 */
+	public int getSwitchCount() {
+		return m_switches;
+	}
+
+	/**
+	 * Returns the amount of battle messages shown
+	 * @return
+	 */
+	public int getMessageCount() {
+		return m_messages;
+	}
+
+	@Override
+	public void applyWeather() {
+		/* There is no map, so there is no weather */
+	}
+
+	@Override
+	public void clearQueue() {
+		m_turn[0] = null;
+		m_turn[1] = null;
+	}
+
+	@Override
+	public void forceExecuteTurn() {
+		for (int i = 0; i < m_turn.length; i++) {
+			if (m_turn[i] == null)
+				m_turn[i] = BattleTurn.getMoveTurn(-1);
+		}
+		executeTurn(m_turn);
+	}
+
+	@Override
+	public BattleTurn[] getQueuedTurns() {
+		return m_turn;
+	}
+
+	@Override
+	public String getTrainerName(int idx) {
+		return TRAINER_NAMES[idx];
+	}
+
+	@Override
+	public void informPokemonFainted(int trainer, int idx) {}
+
+	@Override
+	public void informPokemonHealthChanged(Pokemon poke, int change) {}
+
+	@Override
+	public void informStatusApplied(Pokemon poke, StatusEffect eff) {}
+
+	@Override
+	public void informStatusRemoved(Pokemon poke, StatusEffect eff) {}
+
+	@Override
+	public void informSwitchInPokemon(int trainer, Pokemon poke) {
+		m_switches++;
+	}
+
+	@Override
+	public void informUseMove(Pokemon poke, String name) {}
+
+	@Override
+	public void informVictory(int winner) {
+		if (m_winner < 0)
+			m_winner = winner;
+	}
+
+	@Override
+	public void queueMove(int trainer, BattleTurn move) {
+		m_turn[trainer] = move;
+	}
+
+	@Override
+	public void refreshActivePokemon() {}
+
+	@Override
+	public void requestAndWaitForSwitch(int party) {
+		int replacement = m_trainers[party].getReplacement(this, party);
+		if (replacement >= 0)
+			switchInPokemon(party, replacement);
+	}
+
+	@Override
+	protected void requestMove(int trainer) {
+		/* Turns are requested from the trainers by run() */
+	}
+
+	@Override
+	protected void requestMoves() {
+		/* Turns are requested from the trainers by run() */
+	}
+
+	@Override
+	protected void requestPokemonReplacement(int i) {
+		if (m_winner >= 0)
+			return;
+		int replacement = m_trainers[i].getReplacement(this, i);
+		if (replacement < 0)
+			informVictory(i == 0 ? 1 : 0);
+		else
+			switchInPokemon(i, replacement);
+	}
+
+	@Override
+	public void showMessage(String message) {
+		m_messages++;
+	}
+}
@@ -74,6 +74,7 @@ public class WildBattleField extends BattleField {
 		m_player = p;
 		m_wildPoke = wild;
 		m_participatingPokemon.add(p.getParty()[0]);
+		logStart("wild", new String[] { p.getName(), "wild" });
 
 		/* Call methods */
 		// applyWeather();
@@ -201,7 +202,6 @@ public class WildBattleField extends BattleField {
 					new BattleMoveMessage(poke.getSpeciesName(), name));
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
 	public void informVictory(int winner) {
 		m_finished = true;
@@ -218,14 +218,10 @@ public class WildBattleField extends BattleField {
 		m_player.setBattling(false);
 		dispose();
 		m_wildPoke = null;
-		if (m_dispatch != null) {
-			/*
-			 * This very bad programming but shoddy does it and forces us to do it
-			 */
-			Thread t = m_dispatch;
-			m_dispatch = null;
-			t.stop();
-		}
+		/*
+		 * This very bad programming but shoddy does it and forces us to do it
+		 */
+		stopTurn();
 	}
 
 	/**
@@ -244,9 +240,7 @@ public class WildBattleField extends BattleField {
 			if (!move.isMoveTurn()) {
 				if (getActivePokemon()[trainer].compareTo(this.getParty(trainer)[move
 				                                                                 .getId()]) != 0) {
-					this.switchInPokemon(trainer, move.getId());
-					m_replace[trainer] = false;
-					m_isWaiting = false;
+					replacePokemon(trainer, move.getId());
 					return;
 				}
 			}
@@ -260,32 +254,22 @@ public class WildBattleField extends BattleField {
 				if (getActivePokemon()[0].getHappiness() <= 40) {
 					/* Pokemon is unhappy, they'll do what they feel like */
 					showMessage(getActivePokemon()[0].getSpeciesName() + " is unhappy!");
-					int moveID = getMechanics().getRandom().nextInt(4);
-					while (getActivePokemon()[0].getMove(moveID) == null)
-						moveID = getMechanics().getRandom().nextInt(4);
-					move = BattleTurn.getMoveTurn(moveID);
+					move = BattleTurn.getMoveTurn(getRandomMove(0));
 				} else if (getActivePokemon()[0].getHappiness() < 70) {
 					/* Pokemon is partially unhappy, 50% chance they'll listen to you */
 					if (getMechanics().getRandom().nextInt(2) == 1) {
 						showMessage(getActivePokemon()[0].getSpeciesName() + " is unhappy!");
-						int moveID = getMechanics().getRandom().nextInt(4);
-						while (getActivePokemon()[0].getMove(moveID) == null)
-							moveID = getMechanics().getRandom().nextInt(4);
-						move = BattleTurn.getMoveTurn(moveID);
+						move = BattleTurn.getMoveTurn(getRandomMove(0));
 					}
 				}
 			}
-			if (move.getId() == -1) {
-				if (m_dispatch == null && (trainer == 0 && m_turn[1] != null)) {
-					m_dispatch = new Thread(new Runnable() {
-						public void run() {
-							executeTurn(m_turn);
-							m_dispatch = null;
-						}
-					});
-					m_dispatch.start();
-					return;
-				}
+			if (move.getId() == -1 && move.isMoveTurn() && !getActivePokemon()[trainer].isFainted()) {
+				/* None of the pokemon's moves have pp left, so it struggles */
+				m_turn[trainer] = move;
+			} else if (move.getId() == -1 && !move.isMoveTurn()) {
+				/* There is no party slot -1 to switch to */
+				requestMove(trainer);
+				return;
 			} else {
 				if (this.getActivePokemon()[trainer].isFainted()) {
 					if (!move.isMoveTurn()
@@ -348,18 +332,16 @@ public class WildBattleField extends BattleField {
 			requestMove(1);
 			return;
 		}
-		if (m_dispatch != null) return;
+		if (isDispatching()) return;
 		if (m_turn[0] != null && m_turn[1] != null) {
-			m_dispatch = new Thread(new Runnable() {
+			dispatchTurn(new Runnable() {
 				public void run() {
 					executeTurn(m_turn);
 					for (int i = 0; i < m_participants; ++i) {
 						m_turn[i] = null;
 					}
-					m_dispatch = null;
 				}
 			});
-			m_dispatch.start();
 		}
 	}
 
@@ -382,40 +364,17 @@ public class WildBattleField extends BattleField {
 		if (party == 0) {
 			requestPokemonReplacement(party);
 			if (!m_replace[party]) { return; }
-			m_isWaiting = true;
-			do {
-				synchronized (m_dispatch) {
-					try {
-						m_dispatch.wait(1000);
-					} catch (InterruptedException e) {
-
-					}
-				}
-			} while ((m_replace != null) && m_replace[party]);
+			waitForSwitch(party);
 		}
 	}
 
 	/**
-	 * Generates a wild Pokemon move
+	 * Generates a wild Pokemon move from the moves it has pp left for
 	 */
 	protected void getWildPokemonMove() {
 		if (getActivePokemon()[1] == null) return;
 		try {
-			int moveID = getMechanics().getRandom().nextInt(4);
-			while (getActivePokemon()[1].getMove(moveID) == null) {
-				try {
-					Thread.sleep(100);
-				} catch (Exception e) {
-				}
-				moveID = getMechanics().getRandom().nextInt(4);
-				/*
-				 * Stop infinite loops when player disconnects
-				 */
-				if (m_player.getTcpSession() == null
-						|| m_player.getTcpSession().isClosing()
-						|| !m_player.getTcpSession().isConnected()) break;
-			}
-			queueMove(1, BattleTurn.getMoveTurn(moveID));
+			queueMove(1, BattleTurn.getMoveTurn(getRandomMove(1)));
 		} catch (MoveQueueException x) {
 			x.printStackTrace();
 		}
@@ -506,12 +465,7 @@ public class WildBattleField extends BattleField {
 	 */
 	public boolean throwPokeball(PokeBall p) {
 		/* Ensure user doesn't throw a Pokeball while battling */
-		while (m_dispatch != null) {
-			try {
-				Thread.sleep(500);
-			} catch (Exception e) {
-			}
-		}
+		waitForTurn();
 		switch (p) {
 		case POKEBALL:
 			showMessage(m_player.getName() + " threw a Pokeball!");
@@ -21,6 +21,15 @@ public class AdvanceMechanics extends BattleMechanics {
     public AdvanceMechanics(int bytes) {
         super(bytes);
     }
+
+    /** Creates a new instance of AdvanceMechanics seeded with the given seed */
+    protected AdvanceMechanics(long seed) {
+        super(seed);
+    }
+
+    public BattleMechanics createInstance(long seed) {
+        return new AdvanceMechanics(seed);
+    }
     
     public int calculateStat(Pokemon p, int i) throws StatException {
         if ((i < 0) || (i > 5)) throw new StatException();
@@ -25,14 +25,29 @@ public abstract class BattleMechanics implements Serializable {
 	 * server so that there are not several identical streams of random
 	 * numbers kicking around.
 	 */
-	@SuppressWarnings("unused")
 	private static final Random m_masterRandom;
 
+	/**
+	 * Random number generators for code running outside of battles (e.g. wild
+	 * encounters), one per thread so that threads do not contend for one instance.
+	 */
+	private static final ThreadLocal<Random> m_threadRandom = new ThreadLocal<Random>() {
+		protected Random initialValue() {
+			return new Random(nextSeed());
+		}
+	};
+
 	/**
 	 * A random number generator specific to this instance of the mechanics.
 	 */
 	private final Random m_random;
 
+	/**
+	 * The seed of m_random, only valid if m_seeded is true.
+	 */
+	private final long m_seed;
+	private final boolean m_seeded;
+
 	/**
 	 * Calculate the initial value of a stat from a pokemon's base stats and
 	 * hidden stats.
@@ -96,6 +111,52 @@ public abstract class BattleMechanics implements Serializable {
 		} else {
 			m_random = getRandomSource(bytes);
 		}
+		m_seed = 0;
+		m_seeded = false;
+	}
+
+	/**
+	 * Initialise an instance of the mechanics whose random numbers
+	 * are generated from a seed, so that they can be reproduced.
+	 */
+	protected BattleMechanics(long seed) {
+		m_random = new Random(seed);
+		m_seed = seed;
+		m_seeded = true;
+	}
+
+	/**
+	 * Returns a copy of these mechanics with its own random number generator,
+	 * generated from the seed given. Battles use this so that each battle has
+	 * its own stream of random numbers which can be replayed from its seed.
+	 */
+	public abstract BattleMechanics createInstance(long seed);
+
+	/**
+	 * Returns the seed of this instance's random number generator
+	 * @throws IllegalStateException if this instance was not seeded
+	 */
+	public long getSeed() {
+		if (!m_seeded)
+			throw new IllegalStateException("These mechanics were not seeded");
+		return m_seed;
+	}
+
+	/**
+	 * Returns a new seed drawn from the universal random number generator.
+	 */
+	public static long nextSeed() {
+		synchronized (m_masterRandom) {
+			return m_masterRandom.nextLong();
+		}
+	}
+
+	/**
+	 * Returns the random number generator of the current thread. Use this
+	 * rather than getRandom() outside of battles.
+	 */
+	public static Random getThreadRandom() {
+		return m_threadRandom.get();
 	}
 
 	static {
@@ -28,6 +28,15 @@ public class JewelMechanics extends AdvanceMechanics {
         super(bytes);
     }
 
+    /** Creates a new instance of JewelMechanics seeded with the given seed */
+    protected JewelMechanics(long seed) {
+        super(seed);
+    }
+
+    public BattleMechanics createInstance(long seed) {
+        return new JewelMechanics(seed);
+    }
+
     /**
      * Load the move types from the given file.
      */
@@ -24,6 +24,7 @@
 package org.pokenet.server.battle.mechanics;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.simpleframework.xml.Element;
 
@@ -124,6 +125,25 @@ public class PokemonType implements Serializable {
         { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 }
     };
     
+    /**
+     * The multipliers as one flat array, indexed by attacker * TYPE_COUNT + defender.
+     * Rows missing from the table above are treated as 1.
+     */
+    private static final int TYPE_COUNT = 18;
+    private static final double m_effectiveness[] = flatten(m_multiplier);
+    
+    /**
+     * Copy a table of multipliers into a flat array.
+     */
+    private static double[] flatten(double[][] table) {
+        double[] result = new double[TYPE_COUNT * TYPE_COUNT];
+        Arrays.fill(result, 1.0);
+        for (int i = 0; i < table.length; ++i) {
+            System.arraycopy(table[i], 0, result, i * TYPE_COUNT, table[i].length);
+        }
+        return result;
+    }
+    
     /**
      * Return the list of types.
      */
@@ -175,7 +195,7 @@ public class PokemonType implements Serializable {
      * @param type the type of the defending pokemon
      */
     public double getMultiplier(PokemonType type) {
-        return m_multiplier[m_type][type.m_type];
+        return m_effectiveness[m_type * TYPE_COUNT + type.m_type];
     }
     
     /**
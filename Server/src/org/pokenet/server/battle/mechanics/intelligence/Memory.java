@@ -50,4 +50,14 @@ public class Memory implements Serializable {
             && (mem.m_low == m_low)
             && (mem.m_move.equals(m_move)));
     }
+
+    /**
+     * Return a hash code consistent with equals.
+     */
+    public int hashCode() {
+        int hash = (m_me == null) ? 0 : m_me.getType();
+        hash = hash * 31 + ((m_opponent == null) ? 0 : m_opponent.getType());
+        hash = hash * 2 + (m_low ? 1 : 0);
+        return hash * 31 + ((m_move == null) ? 0 : m_move.hashCode());
+    }
 }
@@ -1,213 +1,294 @@
 package org.pokenet.server.battle.mechanics.intelligence;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.pokenet.server.battle.mechanics.BattleMechanics;
 import org.pokenet.server.battle.mechanics.PokemonType;
 
 /**
- *
+ * Remembers how well moves worked in each situation. Situations are indexed by
+ * (my type, opponent type, low health), and each one maps a move to its score,
+ * so looking up the best move only touches the moves being considered.
+ * Updates are lock free. Changes are appended to a log which is replayed on start up.
  * @author Colin
  */
 public class Situation {
-    
-    private ArrayList<Memory> m_memory = new ArrayList<Memory>();
-    private static final Random m_random = new Random();
-    private static final Situation m_inst = new Situation();
+
+    /* The old serialized snapshot, imported if there is no log yet */
     private static final String m_file = "knowledge";
-    private static int m_saves = 0;
-    
+    private static final String m_logFile = "knowledge.log";
+    private static final int m_types = PokemonType.getTypes().length;
+    private static final Situation m_inst = new Situation();
+
+    private final Bucket[] m_buckets = new Bucket[m_types * m_types * 2];
+    private final ConcurrentLinkedQueue<String> m_pending = new ConcurrentLinkedQueue<String>();
+    private final Object m_logLock = new Object();
+
+    /**
+     * The scores of the moves used in one situation.
+     */
+    private static class Bucket {
+        final ConcurrentHashMap<String, AtomicInteger> m_scores =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+        /**
+         * Add delta to the score of a move, remembering the move if it is new.
+         */
+        void add(String move, int delta) {
+            AtomicInteger score = m_scores.get(move);
+            if (score == null) {
+                AtomicInteger created = new AtomicInteger(0);
+                score = m_scores.putIfAbsent(move, created);
+                if (score == null) score = created;
+            }
+            score.addAndGet(delta);
+        }
+    }
+
     /**
      * Create a single Situation class.
      */
     private Situation() {
-        File f = new File(m_file);
-        if (f.exists()) {
+        for (int i = 0; i < m_buckets.length; ++i) {
+            m_buckets[i] = new Bucket();
+        }
+        if (new File(m_logFile).exists()) {
+            loadFromLog();
+        } else if (new File(m_file).exists()) {
             loadFromFile();
+            compactLog();
         } else {
-            m_memory.add(new Memory(PokemonType.T_BUG,
+            add(new Memory(PokemonType.T_BUG,
                     PokemonType.T_DARK,
                     true,
-                    "Tackle")
-                );
+                    "Tackle"), 1, false);
         }
     }
-    
+
+    /**
+     * Get the index of a situation.
+     */
+    private static int getIndex(PokemonType me, PokemonType opponent, boolean low) {
+        return ((me.getType() * m_types) + opponent.getType()) * 2 + (low ? 1 : 0);
+    }
+
+    /**
+     * Get the bucket of a memory, or null if its types are unknown.
+     */
+    private Bucket getBucket(Memory mem) {
+        if ((mem.m_me == null) || (mem.m_opponent == null)) {
+            return null;
+        }
+        return m_buckets[getIndex(mem.m_me, mem.m_opponent, mem.m_low)];
+    }
+
     /**
-     * Load the Situations database from a file.
+     * Add delta to the score of a memory, and queue the change for the log if asked.
+     */
+    private void add(Memory mem, int delta, boolean log) {
+        Bucket bucket = getBucket(mem);
+        if ((bucket == null) || (mem.m_move == null)) {
+            return;
+        }
+        bucket.add(mem.m_move, delta);
+        if (log) {
+            m_pending.add(toLine(mem.m_me, mem.m_opponent, mem.m_low, mem.m_move, delta));
+        }
+    }
+
+    /**
+     * Get the log line for a change in score.
+     */
+    private static String toLine(PokemonType me, PokemonType opponent, boolean low,
+            String move, int delta) {
+        return me + "\t" + opponent + "\t" + low + "\t" + move + "\t" + delta;
+    }
+
+    /**
+     * Replay the log of changes. The log is compacted if it has grown
+     * to more than twice the number of memories.
+     */
+    private void loadFromLog() {
+        int lines = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(m_logFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length != 5) {
+                    continue;
+                }
+                PokemonType me = PokemonType.getType(parts[0]);
+                PokemonType opponent = PokemonType.getType(parts[1]);
+                if ((me == null) || (opponent == null)) {
+                    continue;
+                }
+                try {
+                    add(new Memory(me, opponent, Boolean.parseBoolean(parts[2]), parts[3]),
+                            Integer.parseInt(parts[4]), false);
+                    ++lines;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+            reader.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        if (lines > getMemoryCount() * 2) {
+            compactLog();
+        }
+    }
+
+    /**
+     * Load the Situations database from an old serialized snapshot.
      */
     @SuppressWarnings("unchecked")
-	private void loadFromFile() {
+    private void loadFromFile() {
         try {
             File f = new File(m_file);
             FileInputStream file = new FileInputStream(f);
             ObjectInputStream obj = new ObjectInputStream(file);
-            m_memory = (ArrayList)obj.readObject();
+            ArrayList<Memory> memories = (ArrayList<Memory>)obj.readObject();
             obj.close();
+            for (Memory mem : memories) {
+                add(mem, mem.m_score, false);
+            }
         } catch (IOException e) {
             System.out.println(e.getMessage());
         } catch (ClassNotFoundException e) {
             System.out.println(e.getMessage());
         }
     }
-    
+
     /**
-     * Save the Situations database to a file.
+     * Rewrite the log with one line per memory.
      */
-    public synchronized void saveToFile() {
-        try {
-            File f = new File(m_file + m_saves++);
-            FileOutputStream file = new FileOutputStream(f);
-            ObjectOutputStream obj = new ObjectOutputStream(file);
-            obj.writeObject(m_memory);
-            obj.close();
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
+    private void compactLog() {
+        synchronized (m_logLock) {
+            File temp = new File(m_logFile + ".tmp");
+            try {
+                PrintWriter writer = new PrintWriter(new FileWriter(temp));
+                for (int i = 0; i < m_buckets.length; ++i) {
+                    PokemonType me = PokemonType.getType(i / 2 / m_types);
+                    PokemonType opponent = PokemonType.getType(i / 2 % m_types);
+                    Iterator<Map.Entry<String, AtomicInteger>> j =
+                        m_buckets[i].m_scores.entrySet().iterator();
+                    while (j.hasNext()) {
+                        Map.Entry<String, AtomicInteger> entry = j.next();
+                        writer.println(toLine(me, opponent, (i % 2) == 1,
+                                entry.getKey(), entry.getValue().get()));
+                    }
+                }
+                writer.close();
+                File log = new File(m_logFile);
+                if (log.exists() && !log.delete()) {
+                    throw new IOException("Could not replace " + m_logFile);
+                }
+                if (!temp.renameTo(log)) {
+                    throw new IOException("Could not rename " + temp.getName());
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
         }
     }
-    
+
     /**
-     * Get an instance of this class.
+     * Append the changes made since the last save to the log.
      */
-    public static Situation getInstance() {
-        return m_inst;
+    public void saveToFile() {
+        synchronized (m_logLock) {
+            if (m_pending.isEmpty()) {
+                return;
+            }
+            try {
+                PrintWriter writer = new PrintWriter(new FileWriter(m_logFile, true));
+                String line;
+                while ((line = m_pending.poll()) != null) {
+                    writer.println(line);
+                }
+                writer.close();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
     }
-    
+
     /**
-     * Get the score of a memory, based on past experience and its closeness
-     * to a target.
+     * Get an instance of this class.
      */
-    private static int getMemoryScore(Memory target, Memory mem) {
-        // Offer a multiplicative factor based on closeness to the target.
-        int factor = 0;
-        if (target.m_low == mem.m_low)
-            ++factor;
-        if (target.m_me.equals(target.m_me))
-            ++factor;
-        if (target.m_opponent.equals(target.m_opponent))
-            ++factor;
-        
-        // If it doesn't match at all, it will get a score of zero!
-        return (target.m_score * factor);
+    public static Situation getInstance() {
+        return m_inst;
     }
-    
+
     /**
-     * Find an exact match for a memory.
+     * Get the number of memories.
      */
-    private synchronized Memory findMemory(Memory target) {
-        Iterator<Memory> i = m_memory.iterator();
-        while (i.hasNext()) {
-            Memory mem = (Memory)i.next();
-            if (target.equals(mem)) {
-                return mem;
-            }
+    public int getMemoryCount() {
+        int count = 0;
+        for (int i = 0; i < m_buckets.length; ++i) {
+            count += m_buckets[i].m_scores.size();
         }
-        return null;
+        return count;
     }
-    
+
     /**
-     * Find whether a String is in a move list.
+     * Find the best move to use for the situation. Now and then a random move
+     * is chosen instead, so that new moves are tried out.
      */
-    private boolean isInMoveList(String entry, String[] moves) {
-        /**if (entry == null) {
-            return true;
-        }**/
-        for (int i = 0; i < moves.length; ++i) {
-            if (moves[i].equals(entry)) {
-                return true;
-            }
+    public String getBestMemory(final Memory target, String[] moves) {
+        Random random = BattleMechanics.getThreadRandom();
+        Bucket bucket = getBucket(target);
+        if ((bucket == null) || (random.nextDouble() <= 0.2)) {
+            return moves[random.nextInt(moves.length)];
         }
-        return false;
-    }
-    
-    /**
-     * Find the best move to use for the situation.
-     */
-    @SuppressWarnings("unchecked")
-	public synchronized String getBestMemory(final Memory target, String[] moves) {
-        Comparator comp = new Comparator() {
-                public int compare(Object o1, Object o2) {
-                    Memory a = (Memory)o1, b = (Memory)o2;
-                    int scoreA = getMemoryScore(target, a);
-                    int scoreB = getMemoryScore(target, b);
-                    if (scoreA < scoreB) {
-                        return -1;
-                    } else if (scoreA > scoreB) {
-                        return 1;
-                    }
-                    return 0;
-                }
-            };
-            
-        TreeSet items = new TreeSet(comp);
-        Iterator i = m_memory.iterator();
-        while (i.hasNext()) {
-            Memory mem = (Memory)i.next();
-            if (!isInMoveList(mem.m_move, moves)) {
+        String best = null;
+        int bestScore = 0;
+        int ties = 0;
+        for (int i = 0; i < moves.length; ++i) {
+            AtomicInteger score = bucket.m_scores.get(moves[i]);
+            if (score == null) {
                 continue;
             }
-            if (getMemoryScore(target, mem) != 0) {
-                items.add(mem);
+            int value = score.get();
+            if ((best == null) || (value > bestScore)) {
+                best = moves[i];
+                bestScore = value;
+                ties = 1;
+            } else if ((value == bestScore) && (random.nextInt(++ties) == 0)) {
+                best = moves[i];
             }
         }
-        
-        if ((items.size() == 0) || (m_random.nextDouble() <= 0.2)) {
-            Memory best = (Memory)m_memory.get(m_random.nextInt(m_memory.size()));
-            if (!isInMoveList(best.m_move, moves)) {
-                return moves[m_random.nextInt(moves.length)];
-            }
+        if ((best == null) || (bestScore <= 0)) {
+            return moves[random.nextInt(moves.length)];
         }
-        
-        if (m_random.nextDouble() <= 0.4) {
-            Memory mem = (Memory)items.last();
-            return mem.m_move;
-        }
-        
-        int half = items.size() / 2;
-        if (half == 0) {
-            Memory mem = (Memory)items.last();
-            return mem.m_move;
-        }
-        int start = m_random.nextInt(2) * half;
-        int idx = start + m_random.nextInt(half);
-        
-        Iterator j = items.iterator();
-        int k = 0;
-        while (j.hasNext()) {
-            if (k++ == idx) {
-                break;
-            }
-            j.next();
-        }
-        Memory mem = (Memory)j.next();
-        return mem.m_move;
+        return best;
     }
-    
+
     /**
      * Update a set of memories -- were they positive experiences?
      */
-    public synchronized void updateMemories(ArrayList<?> memories, boolean positive, int factor) {
+    public void updateMemories(ArrayList<?> memories, boolean positive, int factor) {
+        int delta = (positive ? 1 : -1) * factor;
         Iterator<?> i = memories.iterator();
         while (i.hasNext()) {
-            Memory target = (Memory)i.next();
-            Memory mem = findMemory(target);
-            int delta = (positive ? 1 : -1) * factor;
-            if (mem == null) {
-                target.m_score = delta;
-                m_memory.add(target);
-            } else {
-                mem.m_score += delta;
-            }
+            add((Memory)i.next(), delta, true);
         }
     }
-    
+
 }
@@ -37,6 +37,7 @@ import java.util.Set;
 
 import org.pokenet.server.battle.BattleField;
 import org.pokenet.server.battle.BattleTurn;
+import org.pokenet.server.battle.NameIndex;
 import org.pokenet.server.battle.Pokemon;
 import org.pokenet.server.battle.PokemonSpecies;
 import org.pokenet.server.battle.mechanics.BattleMechanics;
@@ -77,6 +78,9 @@ public class MoveList {
 
 	private static MoveList m_inst = new MoveList(true);
 	private ArrayList<MoveListEntry> m_moves;
+	/* Maps move names to their position in m_moves */
+	private volatile NameIndex<Integer> m_index = null;
+	private int m_indexedSize = -1;
 
 	/**
 	 * Get the default MoveList.
@@ -86,13 +90,49 @@ public class MoveList {
 	}
 
 	public boolean containsMove(String moveName) {
-		for(int i = 0; i < m_moves.size() / 2; i++) {
-			if(m_moves.get(i).getName().equalsIgnoreCase(moveName))
-				return true;
-			else if(m_moves.get(m_moves.size() - 1 - i).getName().equalsIgnoreCase(moveName))
-				return true;
+		return getMoveId(moveName) >= 0;
+	}
+
+	/**
+	 * Builds the index of move names. Called once the moves are loaded.
+	 */
+	public synchronized void buildIndex() {
+		NameIndex<Integer> index = new NameIndex<Integer>(m_moves.size());
+		for(int i = 0; i < m_moves.size(); i++) {
+			index.put(m_moves.get(i).getName(), i);
 		}
-		return false;
+		m_indexedSize = m_moves.size();
+		m_index = index;
+	}
+
+	/**
+	 * Returns the id of a move, which stays the same while the server is running, or -1 if
+	 * there is no such move. Callers can keep the id and use getMove(int) instead of the name.
+	 * @param name
+	 * @return
+	 */
+	public int getMoveId(String name) {
+		if(name == null || m_moves == null)
+			return -1;
+		NameIndex<Integer> index = m_index;
+		if(index == null || m_indexedSize != m_moves.size()) {
+			/* Moves were added to the list after it was indexed */
+			buildIndex();
+			index = m_index;
+		}
+		Integer id = index.get(name);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Returns a move by its id
+	 * @param id
+	 * @return
+	 */
+	public MoveListEntry getMove(int id) {
+		if(id < 0 || id >= m_moves.size())
+			return null;
+		return m_moves.get(id);
 	}
 
 	/**
@@ -1676,14 +1716,21 @@ public class MoveList {
 					return 0;
 				}
 				Random random = mech.getRandom();
-				Pokemon teammate;
-				do {
-					teammate = teammates[random.nextInt(teammates.length)];
-				} while (teammate == user);
-				MoveListEntry move;
-				do {
-					move = teammate.getMove(random.nextInt(4));
-				} while (move == null);
+				// Teammates without moves would make this loop forever, so pick
+				// from all of the teammates' moves at once.
+				ArrayList<MoveListEntry> moves = new ArrayList<MoveListEntry>();
+				for (int i = 0; i < teammates.length; ++i) {
+					if (teammates[i] == user) continue;
+					for (int j = 0; j < 4; ++j) {
+						MoveListEntry entry = teammates[i].getMove(j);
+						if (entry != null) moves.add(entry);
+					}
+				}
+				if (moves.size() == 0) {
+					user.getField().showMessage("But it failed!");
+					return 0;
+				}
+				MoveListEntry move = moves.get(random.nextInt(moves.size()));
 				if (move.getName().equals("Focus Punch")) {
 					user.getField().showMessage("But it failed!");
 					return 0;
@@ -7505,6 +7552,7 @@ public class MoveList {
 		 m_moves = new ArrayList<MoveListEntry>();
 		 initNonStatusMoves();
 		 initStatusMoves();
+		 buildIndex();
 	 }
 
 	 /**
@@ -7518,16 +7566,7 @@ public class MoveList {
 	  * Get a move by its name.
 	  */
 	 public MoveListEntry getMove(String name) {
-		 if (name == null)
-			 return null;
-		 Iterator<MoveListEntry> i = m_moves.iterator();
-		 while (i.hasNext()) {
-			 MoveListEntry move = (MoveListEntry)i.next();
-			 if (name.equalsIgnoreCase(move.getName())) {
-				 return move;
-			 }
-		 }
-		 return null;
+		 return getMove(getMoveId(name));
 	 }
 
 	 /**
@@ -7589,6 +7628,7 @@ public class MoveList {
 				 throw new InternalError();
 			 }
 		 }
+		 buildIndex();
 	 }
 
 	 /*
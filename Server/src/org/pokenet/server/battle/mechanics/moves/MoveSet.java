@@ -119,6 +119,14 @@ public class MoveSet implements Serializable {
      * @param moveName
      * @return
      */
+    /**
+     * Create a move set from its categories of moves, in the order of getMoveType().
+     */
+    public MoveSet(String[][] moves, int[] level) {
+        m_level = level;
+        m_moves = moves;
+    }
+    
     public boolean canLearn(String moveName) {
     	for(int i = 0; i < m_moves.length; i++) {
     		for(int j = 0; j < m_moves[i].length; j++) {
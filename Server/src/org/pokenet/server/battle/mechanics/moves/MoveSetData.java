@@ -53,6 +53,25 @@ public class MoveSetData {
 	@ElementArray
     private MoveSet[] m_movesets = null;
 	
+    /**
+     * Create an empty set of move sets.
+     */
+    public MoveSetData() {}
+    
+    /**
+     * Create a set of move sets from an array, indexed by species.
+     */
+    public MoveSetData(MoveSet[] movesets) {
+        m_movesets = movesets;
+    }
+    
+    /**
+     * Return all of the move sets, indexed by species.
+     */
+    public MoveSet[] getMoveSets() {
+        return m_movesets;
+    }
+    
     /**
      * Save the move sets to a file.
      */
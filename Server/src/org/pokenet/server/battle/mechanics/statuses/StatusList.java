@@ -0,0 +1,175 @@
+package org.pokenet.server.battle.mechanics.statuses;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A list of status effects which keeps its effects bucketed by tier and by what they
+ * can do (transform effectiveness, transform moves, listen for damage), so that damage
+ * calculations do not walk every effect. The buckets are rebuilt lazily whenever the list
+ * is structurally modified. Whether an effect is active is still checked by the caller.
+ * Items used outside of a battle turn can remove effects, so the list locks itself while it
+ * is indexed or sorted, the same lock Pokemon holds when it changes its statuses.
+ * The arrays returned are never modified, so they can be read without holding the lock.
+ * @author shadowkanji
+ *
+ * @param <T>
+ */
+public class StatusList<T extends StatusEffect> extends ArrayList<T> {
+	private static final long serialVersionUID = -2410379962530171924L;
+	private static final StatusEffect [] NONE = new StatusEffect[0];
+
+	private transient int m_indexed = -1;
+	private transient StatusEffect [][] m_effectivenessTransformers = new StatusEffect[2][];
+	private transient StatusEffect [][] m_moveTransformers = new StatusEffect[2][];
+	private transient StatusEffect [] m_listeners;
+	private transient StatusEffect [][] m_tiers = new StatusEffect[StatusEffect.getTierCount()][];
+
+	/**
+	 * Default constructor
+	 */
+	public StatusList() {
+		super();
+	}
+
+	/**
+	 * Creates a list containing the effects given
+	 * @param effects
+	 */
+	public StatusList(Collection<? extends T> effects) {
+		super(effects);
+	}
+
+	/**
+	 * Rebuilds the buckets if the list was modified since they were built
+	 */
+	private synchronized void index() {
+		if(m_indexed == modCount)
+			return;
+		m_effectivenessTransformers[0] = filter(0, false);
+		m_effectivenessTransformers[1] = filter(0, true);
+		m_moveTransformers[0] = filter(1, false);
+		m_moveTransformers[1] = filter(1, true);
+		m_listeners = filter(2, false);
+		for(int i = 0; i < m_tiers.length; i++)
+			m_tiers[i] = filter(3 + i, false);
+		m_indexed = modCount;
+	}
+
+	/**
+	 * Returns the effects which match a bucket, in list order
+	 * @param bucket - 0 for effectiveness transformers, 1 for move transformers,
+	 * 	2 for listeners, 3 and up for tiers
+	 * @param enemy
+	 * @return
+	 */
+	private synchronized StatusEffect [] filter(int bucket, boolean enemy) {
+		int size = size();
+		int count = 0;
+		StatusEffect [] result = null;
+		/* Count on the first pass, fill on the second */
+		for(int pass = 0; pass < 2; pass++) {
+			for(int i = 0; i < size; i++) {
+				StatusEffect eff = get(i);
+				if(eff == null || !matches(eff, bucket, enemy))
+					continue;
+				if(result != null)
+					result[count] = eff;
+				count++;
+			}
+			if(count == 0)
+				return NONE;
+			if(result != null)
+				break;
+			result = new StatusEffect[count];
+			count = 0;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if an effect belongs in a bucket
+	 * @param eff
+	 * @param bucket
+	 * @param enemy
+	 * @return
+	 */
+	private static boolean matches(StatusEffect eff, int bucket, boolean enemy) {
+		switch(bucket) {
+		case 0:
+			return eff.isEffectivenessTransformer(enemy);
+		case 1:
+			return eff.isMoveTransformer(enemy);
+		case 2:
+			return eff.isListener();
+		default:
+			return eff.getTier() == bucket - 3;
+		}
+	}
+
+	/**
+	 * Returns the effects which transform effectiveness
+	 * @param enemy
+	 * @return
+	 */
+	public synchronized StatusEffect [] getEffectivenessTransformers(boolean enemy) {
+		index();
+		return m_effectivenessTransformers[enemy ? 1 : 0];
+	}
+
+	/**
+	 * Returns the effects which transform moves
+	 * @param enemy
+	 * @return
+	 */
+	public synchronized StatusEffect [] getMoveTransformers(boolean enemy) {
+		index();
+		return m_moveTransformers[enemy ? 1 : 0];
+	}
+
+	/**
+	 * Returns the effects which listen for damage
+	 * @return
+	 */
+	public synchronized StatusEffect [] getListeners() {
+		index();
+		return m_listeners;
+	}
+
+	/**
+	 * Returns the effects of a tier, or none if the tier is not ticked
+	 * @param tier
+	 * @return
+	 */
+	public synchronized StatusEffect [] getTier(int tier) {
+		if(tier < 0 || tier >= m_tiers.length)
+			return NONE;
+		index();
+		return m_tiers[tier];
+	}
+
+	/**
+	 * Sorts the effects by tier, keeping the order of effects in the same tier.
+	 * Does nothing if they are already sorted.
+	 */
+	public synchronized void sortByTier() {
+		int size = size();
+		boolean sorted = true;
+		for(int i = 1; i < size && sorted; i++)
+			sorted = get(i - 1).getTier() <= get(i).getTier();
+		if(sorted)
+			return;
+		/* Insertion sort, lists are short and nearly sorted */
+		for(int i = 1; i < size; i++) {
+			T eff = get(i);
+			int tier = eff.getTier();
+			int j = i - 1;
+			while(j >= 0 && get(j).getTier() > tier) {
+				set(j + 1, get(j));
+				j--;
+			}
+			set(j + 1, eff);
+		}
+		m_indexed = -1;
+	}
+}
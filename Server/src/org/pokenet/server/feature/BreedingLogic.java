@@ -7,6 +7,7 @@ import org.pokenet.server.battle.DataService;
 import org.pokenet.server.battle.Pokemon;
 import org.pokenet.server.battle.PokemonEgg;
 import org.pokenet.server.battle.PokemonSpecies;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
 import org.pokenet.server.battle.mechanics.PokemonNature;
 import org.pokenet.server.battle.mechanics.moves.MoveList;
 import org.pokenet.server.battle.mechanics.moves.MoveListEntry;
@@ -91,14 +92,14 @@ public class BreedingLogic {
 			if (femalePoke.getSpeciesName() == "NidoranF"
 					|| femalePoke.getSpeciesName() == "Nidorina"
 					|| femalePoke.getSpeciesName() == "Nidoqueen") {
-				if (DataService.getBattleMechanics().getRandom().nextInt(2) == 0)
+				if (BattleMechanics.getThreadRandom().nextInt(2) == 0)
 					return PokemonSpecies.getDefaultData().getPokemonByName("NidoranM").getSpeciesNumber();
 				else
 					return PokemonSpecies.getDefaultData().getPokemonByName("NidoranF").getSpeciesNumber();
 			}
 			// Volbeat and Illumise
 			else if (femalePoke.getSpeciesName() == "Illumise") {
-				if (DataService.getBattleMechanics().getRandom().nextInt(2) == 0)
+				if (BattleMechanics.getThreadRandom().nextInt(2) == 0)
 					return PokemonSpecies.getDefaultData().getPokemonByName("Illumise").getSpeciesNumber();
 				else
 					return PokemonSpecies.getDefaultData().getPokemonByName("Volbeat").getSpeciesNumber();
@@ -174,7 +175,7 @@ public class BreedingLogic {
 		try{
 		PokemonSpecies speciesData = PokemonSpecies.getDefaultData()
 				.getSpecies(species);
-		Random random = DataService.getBattleMechanics().getRandom();
+		Random random = BattleMechanics.getThreadRandom();
 
 		// get Nature if female or ditto is holding an everstone, 50% chance
 		String nature = "";
@@ -203,7 +204,7 @@ public class BreedingLogic {
 
 		int[] attempt = new int[3];
 		for (int i = 0; i < 3; i++) {
-			int randomNum = DataService.getBattleMechanics().getRandom()
+			int randomNum = BattleMechanics.getThreadRandom()
 					.nextInt(2);
 			attempt[i] = randomNum;
 			if (i == 2) {
@@ -213,7 +214,7 @@ public class BreedingLogic {
 					randomNum = 0;
 				}
 			}
-			int iv = DataService.getBattleMechanics().getRandom().nextInt(6);
+			int iv = BattleMechanics.getThreadRandom().nextInt(6);
 			if (randomNum == 0) {
 				ivs[iv] = malePoke.getBaseStats()[iv];
 			} else {
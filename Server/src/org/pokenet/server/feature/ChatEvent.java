@@ -0,0 +1,62 @@
+package org.pokenet.server.feature;
+
+import org.pokenet.server.backend.entity.PlayerChar;
+
+/**
+ * A chat message sent by a player, to their map or to another player
+ * @author shadowkanji
+ *
+ */
+public class ChatEvent {
+	public enum ChatEventType { LOCAL, PRIVATE, ANNOUNCEMENT }
+	private final ChatEventType m_type;
+	private final PlayerChar m_sender;
+	private final PlayerChar m_receiver;
+	private final String m_message;
+
+	/**
+	 * Constructor
+	 * @param type
+	 * @param sender
+	 * @param receiver - the receiver of a private message, otherwise null
+	 * @param message
+	 */
+	public ChatEvent(ChatEventType type, PlayerChar sender, PlayerChar receiver, String message) {
+		m_type = type;
+		m_sender = sender;
+		m_receiver = receiver;
+		m_message = message;
+	}
+
+	/**
+	 * Returns the type of message
+	 * @return
+	 */
+	public ChatEventType getType() {
+		return m_type;
+	}
+
+	/**
+	 * Returns the player who sent the message
+	 * @return
+	 */
+	public PlayerChar getSender() {
+		return m_sender;
+	}
+
+	/**
+	 * Returns the receiver of a private message
+	 * @return
+	 */
+	public PlayerChar getReceiver() {
+		return m_receiver;
+	}
+
+	/**
+	 * Returns the message
+	 * @return
+	 */
+	public String getMessage() {
+		return m_message;
+	}
+}
@@ -0,0 +1,85 @@
+package org.pokenet.server.feature;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed size ring buffer of the most recent chat messages.
+ * Once full, each new message replaces the oldest one. Messages are numbered as they are added,
+ * so a reader can ask for only the messages it has not seen yet.
+ * The game server and chat server each keep a copy of this class, as they are built and
+ * deployed separately and share no code (see also MySqlManager). Keep the copies the same.
+ * @author shadowkanji
+ *
+ * @param <T>
+ */
+public class ChatHistory<T> {
+	private final Object [] m_messages;
+	private int m_next = 0;
+	private int m_size = 0;
+	private long m_sequence = 0;
+
+	/**
+	 * Constructor
+	 * @param capacity - how many messages are kept
+	 */
+	public ChatHistory(int capacity) {
+		m_messages = new Object[capacity];
+	}
+
+	/**
+	 * Adds a message, replacing the oldest one if the history is full
+	 * @param message
+	 */
+	public synchronized void add(T message) {
+		m_messages[m_next] = message;
+		m_next = (m_next + 1) % m_messages.length;
+		if(m_size < m_messages.length)
+			m_size++;
+		m_sequence++;
+	}
+
+	/**
+	 * Returns the number of the latest message, or 0 if none were added
+	 * @return
+	 */
+	public synchronized long getSequence() {
+		return m_sequence;
+	}
+
+	/**
+	 * Returns the messages kept which were added after a message, oldest first
+	 * @param sequence - the number of the last message seen
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<T> getMessagesSince(long sequence) {
+		int count = (int) Math.max(0, Math.min(m_sequence - sequence, m_size));
+		List<T> result = new ArrayList<T>(count);
+		int start = (m_next - count + m_messages.length) % m_messages.length;
+		for(int i = 0; i < count; i++)
+			result.add((T) m_messages[(start + i) % m_messages.length]);
+		return result;
+	}
+
+	/**
+	 * Returns the messages kept, oldest first
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<T> getMessages() {
+		List<T> result = new ArrayList<T>(m_size);
+		int start = (m_next - m_size + m_messages.length) % m_messages.length;
+		for(int i = 0; i < m_size; i++)
+			result.add((T) m_messages[(start + i) % m_messages.length]);
+		return result;
+	}
+
+	/**
+	 * Returns how many messages are kept
+	 * @return
+	 */
+	public synchronized int size() {
+		return m_size;
+	}
+}
@@ -0,0 +1,188 @@
+package org.pokenet.server.feature;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends chat messages to log files for moderators to search. Other low volume events, such as the
+ * start of battles, can be logged the same way to files with their own prefix.
+ * Messages are queued and written by the log's own thread, so chat delivery never waits on the disk.
+ * A new segment is started once the current one reaches SEGMENT_SIZE and the oldest segments are
+ * deleted so no more than MAX_SEGMENTS are kept. Each line is: time, channel, message, separated by tabs.
+ * The game server and chat server each keep a copy of this class, as they are built and
+ * deployed separately and share no code (see also MySqlManager). Keep the copies the same.
+ * @author shadowkanji
+ *
+ */
+public class ChatLog implements Runnable {
+	public static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final int MAX_SEGMENTS = 50;
+	/* Messages logged while this many are waiting to be written are dropped */
+	private static final int MAX_QUEUE_SIZE = 10000;
+	private final File m_directory;
+	/* Segments are named prefix-time.log */
+	private final String m_prefix;
+	private final LinkedBlockingQueue<Object []> m_queue = new LinkedBlockingQueue<Object []>(MAX_QUEUE_SIZE);
+	private final SimpleDateFormat m_format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private Thread m_thread;
+	private volatile boolean m_isRunning = false;
+	private Writer m_writer;
+	/* Bytes written to the current segment */
+	private long m_segmentSize;
+	/* Statistics */
+	private AtomicLong m_logged = new AtomicLong(0);
+	private AtomicLong m_dropped = new AtomicLong(0);
+
+	/**
+	 * Constructor
+	 * @param directory - where the segments are written
+	 */
+	public ChatLog(File directory) {
+		this(directory, "chat");
+	}
+
+	/**
+	 * Constructor
+	 * @param directory - where the segments are written
+	 * @param prefix - the start of the segments' names
+	 */
+	public ChatLog(File directory, String prefix) {
+		m_directory = directory;
+		m_prefix = prefix;
+	}
+
+	/**
+	 * Queues a message to be logged
+	 * @param channel - where it was said, e.g. a map or chat room
+	 * @param message
+	 */
+	public void log(String channel, String message) {
+		if(!m_isRunning)
+			return;
+		if(m_queue.offer(new Object[] {System.currentTimeMillis(), channel, message}))
+			m_logged.incrementAndGet();
+		else
+			m_dropped.incrementAndGet();
+	}
+
+	/**
+	 * Called by m_thread.start(). Writes queued messages in batches.
+	 */
+	public void run() {
+		ArrayList<Object []> batch = new ArrayList<Object []>();
+		while(m_isRunning || !m_queue.isEmpty()) {
+			try {
+				Object [] first = m_queue.poll(1, TimeUnit.SECONDS);
+				if(first == null)
+					continue;
+				batch.add(first);
+				m_queue.drainTo(batch);
+				for(int i = 0; i < batch.size(); i++)
+					write(batch.get(i));
+				m_writer.flush();
+			} catch (InterruptedException e) {
+				/* Stopping, write what's left */
+			} catch (Exception e) {
+				e.printStackTrace();
+				closeSegment();
+			}
+			batch.clear();
+		}
+		closeSegment();
+	}
+
+	/**
+	 * Writes a message, starting a new segment if needed
+	 * @param o
+	 * @throws Exception
+	 */
+	private void write(Object [] o) throws Exception {
+		if(m_writer == null || m_segmentSize >= SEGMENT_SIZE)
+			openSegment();
+		String line = m_format.format(new Date((Long) o[0])) + "\t" + o[1] + "\t" +
+			((String) o[2]).replace('\n', ' ').replace('\r', ' ') + "\n";
+		m_writer.write(line);
+		m_segmentSize += line.getBytes("UTF-8").length;
+	}
+
+	/**
+	 * Closes the current segment, starts a new one and deletes the oldest segments
+	 * @throws Exception
+	 */
+	private void openSegment() throws Exception {
+		closeSegment();
+		File segment = new File(m_directory, m_prefix + "-" + System.currentTimeMillis() + ".log");
+		m_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(segment, true), "UTF-8"));
+		m_segmentSize = segment.length();
+		String [] segments = m_directory.list();
+		if(segments == null)
+			return;
+		ArrayList<String> logs = new ArrayList<String>();
+		for(int i = 0; i < segments.length; i++) {
+			if(segments[i].startsWith(m_prefix + "-") && segments[i].endsWith(".log"))
+				logs.add(segments[i]);
+		}
+		String [] sorted = logs.toArray(new String[logs.size()]);
+		Arrays.sort(sorted);
+		for(int i = 0; i < sorted.length - MAX_SEGMENTS; i++)
+			new File(m_directory, sorted[i]).delete();
+	}
+
+	/**
+	 * Closes the current segment
+	 */
+	private void closeSegment() {
+		if(m_writer == null)
+			return;
+		try {
+			m_writer.close();
+		} catch (Exception e) {}
+		m_writer = null;
+	}
+
+	/**
+	 * Starts the log
+	 */
+	public synchronized void start() {
+		if(m_isRunning)
+			return;
+		if(!m_directory.isDirectory() && !m_directory.mkdirs()) {
+			System.err.println("ERROR: Could not create " + m_prefix + " log directory " + m_directory);
+			return;
+		}
+		m_isRunning = true;
+		m_thread = new Thread(this, "ChatLog-" + m_prefix);
+		m_thread.start();
+		System.out.println("INFO: Log of " + m_prefix + " started in " + m_directory);
+	}
+
+	/**
+	 * Stops the log once all queued messages are written
+	 */
+	public synchronized void stop() {
+		if(!m_isRunning)
+			return;
+		m_isRunning = false;
+		try {
+			m_thread.join(5000);
+		} catch (InterruptedException e) {}
+		System.out.println("INFO: " + toString());
+	}
+
+	/**
+	 * Returns a summary of the log's statistics
+	 */
+	public String toString() {
+		return "Log of " + m_prefix + ": " + m_logged.get() + " messages logged, " + m_dropped.get() + " dropped";
+	}
+}
@@ -1,116 +1,82 @@
 package org.pokenet.server.feature;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.mina.core.session.IoSession;
-import org.pokenet.server.GameServer;
-import org.pokenet.server.backend.entity.PlayerChar.Language;
+import org.pokenet.server.backend.entity.PlayerChar;
 import org.pokenet.server.backend.map.ServerMap;
+import org.pokenet.server.feature.ChatEvent.ChatEventType;
 import org.pokenet.server.network.TcpProtocolHandler;
 import org.pokenet.server.network.message.ChatMessage;
 import org.pokenet.server.network.message.ChatMessage.ChatMessageType;
 
 /**
- * Handles chat messages sent by players
+ * Handles chat messages sent by players.
+ * Messages are delivered as soon as they are sent, local chat goes straight to the sender's map.
+ * Each player is rate limited, messages over their limit are dropped.
+ * If chat is logged, each message is queued to the chat log as it is sent.
  * @author shadowkanji
  *
  */
-public class ChatManager implements Runnable {
-        private Thread m_thread;
-        @SuppressWarnings("unused")
-        private boolean m_isRunning;
-        /*
-         * Local chat queue
-         * [Message, x, y]
-         */
-        private Queue<Object []> m_localQueue;
-        /*
-         * Private chat queue
-         * [session, sender, message]
-         */
-        private Queue<Object []> m_privateQueue;
+public class ChatManager {
+        private ChatLog m_chatLog;
+        /* Statistics */
+        private AtomicLong m_delivered = new AtomicLong(0);
+        private AtomicLong m_limited = new AtomicLong(0);
         
         /**
-         * Default Constructor
+         * Constructor
+         * @param log - the chat log, or null if chat is not logged
          */
-        public ChatManager() {
-                m_thread = new Thread(this);
-                m_localQueue = new ConcurrentLinkedQueue<Object []>();
-                m_privateQueue = new ConcurrentLinkedQueue<Object []>();
+        public ChatManager(ChatLog log) {
+                m_chatLog = log;
         }
         
         /**
-         * Returns how many messages are queued in this chat manager
+         * Delivers a chat message. Returns false if it was not delivered.
+         * @param e
          * @return
          */
-        public int getProcessingLoad() {
-                return m_localQueue.size() + m_privateQueue.size();
-        }
-        
-        /**
-         * Queues a local chat message
-         * @param message
-         * @param mapX
-         * @param mapY
-         */
-        public void queueLocalChatMessage(String message, int mapX, int mapY, Language l) {
-                m_localQueue.add(new Object[]{message, String.valueOf(mapX), String.valueOf(mapY), String.valueOf(l)});
-        }
-        
-        /**
-         * Queues a private chat message
-         * @param message
-         * @param receiver
-         * @param sender
-         */
-        public void queuePrivateMessage(String message, IoSession receiver, String sender) {
-                m_privateQueue.add(new Object[]{receiver, sender, message});
-        }
-        
-        /**
-         * Called by m_thread.start()
-         */
-        public void run() {
-                Object [] o;
-                ServerMap m;
-                IoSession s;
-                while(true) {
-                        //Send next local chat message
-                        if(m_localQueue.peek() != null) {
-                                o = m_localQueue.poll();
-                                m = GameServer.getServiceManager().getMovementService().
-                                        getMapMatrix().getMapByGamePosition(Integer.parseInt((String) o[1]), Integer.parseInt((String) o[2]));
-                                if(m != null)
-                                        m.sendChatMessage((String) o[0], Language.valueOf(((String)o[3])));
-                        }
-                        //Send next private chat message
-                        if(m_privateQueue.peek() != null) {
-                                o = m_privateQueue.poll();
-                                s = (IoSession) o[0];
-                                if(s.isConnected() && !s.isClosing())
-                                        TcpProtocolHandler.writeMessage(s, new ChatMessage(
-                                                        ChatMessageType.PRIVATE, ((String) o[1]) + "," + ((String) o[2])));
-                        }
-                        try {
-                                Thread.sleep(250);
-                        } catch (Exception e) {}
+        public boolean dispatch(ChatEvent e) {
+                PlayerChar sender = e.getSender();
+                if(e.getType() != ChatEventType.ANNOUNCEMENT && !sender.getChatRateLimiter().tryChat()) {
+                        m_limited.incrementAndGet();
+                        TcpProtocolHandler.writeMessage(sender.getTcpSession(), new ChatMessage(
+                                        ChatMessageType.LOCAL, "<SERVER> You are sending messages too quickly."));
+                        return false;
                 }
+                switch(e.getType()) {
+                case LOCAL:
+                case ANNOUNCEMENT:
+                        ServerMap m = sender.getMap();
+                        if(m == null)
+                                return false;
+                        String message = (e.getType() == ChatEventType.LOCAL ? "<" + sender.getName() : "<SERVER") +
+                                "> " + e.getMessage();
+                        m.sendChatMessage(message, sender.getLanguage());
+                        if(m_chatLog != null)
+                                m_chatLog.log("map " + m.getX() + "," + m.getY() + " " + sender.getLanguage(), message);
+                        break;
+                case PRIVATE:
+                        PlayerChar receiver = e.getReceiver();
+                        if(receiver.getTcpSession() == null || !receiver.getTcpSession().isConnected() ||
+                                        receiver.getTcpSession().isClosing())
+                                return false;
+                        TcpProtocolHandler.writeMessage(receiver.getTcpSession(), new ChatMessage(
+                                        ChatMessageType.PRIVATE, sender.getName() + "," + e.getMessage()));
+                        if(m_chatLog != null)
+                                m_chatLog.log("pm " + sender.getName() + ">" + receiver.getName(), e.getMessage());
+                        break;
+                }
+                m_delivered.incrementAndGet();
+                return true;
         }
         
         /**
-         * Start this chat manager
-         */
-        public void start() {
-                m_isRunning = true;
-                m_thread.start();
-        }
-        
-        /**
-         * Stop this chat manager
+         * Returns a summary of the chat statistics
          */
-        public void stop() {
-                m_isRunning = false;
+        public String toString() {
+                return "Chat Manager: " + m_delivered.get() + " messages delivered, " + m_limited.get() +
+                        " dropped by the rate limit";
         }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,31 @@
+package org.pokenet.server.feature;
+
+/**
+ * Limits how often a player may chat. A player may send up to BURST messages at once,
+ * after which they earn one message every INTERVAL milliseconds.
+ * @author shadowkanji
+ *
+ */
+public class ChatRateLimiter {
+	public static final int BURST = 5;
+	public static final long INTERVAL = 1000;
+	private int m_allowance = BURST;
+	private long m_lastRefill = System.currentTimeMillis();
+
+	/**
+	 * Returns true if the player may send a message now, using up one of their allowance
+	 * @return
+	 */
+	public synchronized boolean tryChat() {
+		long now = System.currentTimeMillis();
+		long earned = (now - m_lastRefill) / INTERVAL;
+		if(earned > 0) {
+			m_allowance = (int) Math.min(BURST, m_allowance + earned);
+			m_lastRefill = m_allowance == BURST ? now : m_lastRefill + earned * INTERVAL;
+		}
+		if(m_allowance == 0)
+			return false;
+		m_allowance--;
+		return true;
+	}
+}
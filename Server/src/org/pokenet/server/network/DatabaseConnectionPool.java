@@ -0,0 +1,309 @@
+package org.pokenet.server.network;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pokenet.server.GameServer;
+
+/**
+ * A bounded pool of MySQL connections. Each pooled connection keeps a cache of
+ * prepared statements so frequently run queries are only prepared once.
+ * The pool also records how often callers had to wait for a connection and how long queries take.
+ * @author shadowkanji
+ *
+ */
+public class DatabaseConnectionPool {
+	/* How long a caller will wait for a free connection before giving up */
+	private static final long BORROW_TIMEOUT = 10000;
+	private static HashMap<String, DatabaseConnectionPool> m_pools = new HashMap<String, DatabaseConnectionPool>();
+
+	private final String m_url;
+	private final String m_username;
+	private final String m_password;
+	private final int m_maxConnections;
+	private final LinkedBlockingQueue<PooledConnection> m_idle;
+	private final AtomicInteger m_created = new AtomicInteger(0);
+	/* Statistics */
+	private final AtomicInteger m_inUse = new AtomicInteger(0);
+	private final AtomicInteger m_waiting = new AtomicInteger(0);
+	private final AtomicLong m_borrows = new AtomicLong(0);
+	private final AtomicLong m_waits = new AtomicLong(0);
+	private final AtomicLong m_timeouts = new AtomicLong(0);
+	private final AtomicLong m_maxWaitTime = new AtomicLong(0);
+	private final AtomicLong m_queries = new AtomicLong(0);
+	private final AtomicLong m_queryTime = new AtomicLong(0);
+	private final AtomicLong m_maxQueryTime = new AtomicLong(0);
+
+	/**
+	 * Represents a connection owned by the pool
+	 */
+	public static class PooledConnection {
+		private final Connection m_connection;
+		private final HashMap<String, PreparedStatement> m_statements = new HashMap<String, PreparedStatement>();
+		private String m_database = null;
+		private boolean m_isBroken = false;
+
+		private PooledConnection(Connection c) {
+			m_connection = c;
+		}
+
+		/**
+		 * Returns the underlying JDBC connection
+		 * @return
+		 */
+		public Connection getConnection() {
+			return m_connection;
+		}
+
+		/**
+		 * Returns a cached prepared statement, preparing it if this is the first time it is used
+		 * @param sql
+		 * @param generatedKeys - true if the statement returns auto-increment keys
+		 * @return
+		 * @throws SQLException
+		 */
+		public PreparedStatement prepare(String sql, boolean generatedKeys) throws SQLException {
+			PreparedStatement s = m_statements.get(sql);
+			if(s == null) {
+				s = generatedKeys ? m_connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+					m_connection.prepareStatement(sql);
+				m_statements.put(sql, s);
+			} else {
+				s.clearParameters();
+			}
+			return s;
+		}
+
+		/**
+		 * Selects a database, only talking to the server if it is not already selected
+		 * @param database
+		 * @throws SQLException
+		 */
+		public void selectDatabase(String database) throws SQLException {
+			if(database.equals(m_database))
+				return;
+			Statement stm = m_connection.createStatement();
+			try {
+				stm.execute("USE " + database);
+				m_database = database;
+			} finally {
+				stm.close();
+			}
+		}
+
+		/**
+		 * Marks this connection as unusable, it will be discarded instead of being returned to the pool
+		 */
+		public void setBroken() {
+			m_isBroken = true;
+		}
+
+		/**
+		 * Closes all cached statements and the connection
+		 */
+		private void dispose() {
+			Iterator<PreparedStatement> it = m_statements.values().iterator();
+			while(it.hasNext()) {
+				try {
+					it.next().close();
+				} catch (Exception e) {}
+			}
+			m_statements.clear();
+			try {
+				m_connection.close();
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Returns the pool for a server and login, creating it if needed
+	 * @param server
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	public static synchronized DatabaseConnectionPool getPool(String server, String username, String password) {
+		String key = server + "/" + username;
+		DatabaseConnectionPool pool = m_pools.get(key);
+		if(pool == null) {
+			pool = new DatabaseConnectionPool(server, username, password,
+					Math.max(1, GameServer.getDatabaseConnectionAmount()));
+			m_pools.put(key, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Closes all connections in all pools
+	 */
+	public static synchronized void shutdown() {
+		for(DatabaseConnectionPool pool : m_pools.values()) {
+			System.out.println("INFO: " + pool.toString());
+			PooledConnection c;
+			while((c = pool.m_idle.poll()) != null) {
+				c.dispose();
+				pool.m_created.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param server
+	 * @param username
+	 * @param password
+	 * @param maxConnections
+	 */
+	private DatabaseConnectionPool(String server, String username, String password, int maxConnections) {
+		m_url = "jdbc:mysql://" + server + "?autoReconnect=true&rewriteBatchedStatements=true";
+		m_username = username;
+		m_password = password;
+		m_maxConnections = maxConnections;
+		m_idle = new LinkedBlockingQueue<PooledConnection>();
+	}
+
+	/**
+	 * Takes a connection from the pool. Opens a new connection if none are free and the pool is not full,
+	 * otherwise waits for one to be released. Returns null if no connection could be obtained.
+	 * @return
+	 */
+	public PooledConnection borrow() {
+		m_borrows.incrementAndGet();
+		PooledConnection c = m_idle.poll();
+		try {
+			while(c == null || c.getConnection().isClosed()) {
+				if(c != null) {
+					/* Stale connection, throw it away */
+					c.dispose();
+					m_created.decrementAndGet();
+				}
+				if(m_created.incrementAndGet() <= m_maxConnections) {
+					try {
+						c = new PooledConnection(DriverManager.getConnection(m_url, m_username, m_password));
+					} catch (SQLException e) {
+						m_created.decrementAndGet();
+						throw e;
+					}
+				} else {
+					/* The pool is saturated, wait for a connection to be released */
+					m_created.decrementAndGet();
+					m_waits.incrementAndGet();
+					m_waiting.incrementAndGet();
+					long start = System.currentTimeMillis();
+					try {
+						c = m_idle.poll(BORROW_TIMEOUT, TimeUnit.MILLISECONDS);
+					} finally {
+						m_waiting.decrementAndGet();
+					}
+					long wait = System.currentTimeMillis() - start;
+					updateMax(m_maxWaitTime, wait);
+					if(c == null) {
+						m_timeouts.incrementAndGet();
+						System.err.println("ERROR: Timed out waiting for a database connection. " + toString());
+						return null;
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		m_inUse.incrementAndGet();
+		return c;
+	}
+
+	/**
+	 * Returns a connection to the pool
+	 * @param c
+	 */
+	public void release(PooledConnection c) {
+		if(c == null)
+			return;
+		m_inUse.decrementAndGet();
+		boolean closed = true;
+		try {
+			closed = c.getConnection().isClosed();
+		} catch (Exception e) {}
+		if(c.m_isBroken || closed) {
+			c.dispose();
+			m_created.decrementAndGet();
+		} else {
+			m_idle.offer(c);
+		}
+	}
+
+	/**
+	 * Records how long a query took
+	 * @param nanos
+	 */
+	public void recordQuery(long nanos) {
+		m_queries.incrementAndGet();
+		m_queryTime.addAndGet(nanos);
+		updateMax(m_maxQueryTime, nanos);
+	}
+
+	/**
+	 * Stores value in max if it is larger
+	 * @param max
+	 * @param value
+	 */
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while(value > (current = max.get())) {
+			if(max.compareAndSet(current, value))
+				return;
+		}
+	}
+
+	/**
+	 * Returns how many connections are currently borrowed
+	 * @return
+	 */
+	public int getConnectionsInUse() {
+		return m_inUse.get();
+	}
+
+	/**
+	 * Returns how many threads are waiting for a connection
+	 * @return
+	 */
+	public int getWaitingCount() {
+		return m_waiting.get();
+	}
+
+	/**
+	 * Returns how many times a caller had to wait because the pool was saturated
+	 * @return
+	 */
+	public long getWaitCount() {
+		return m_waits.get();
+	}
+
+	/**
+	 * Returns the average query time in nanoseconds
+	 * @return
+	 */
+	public long getAverageQueryTime() {
+		long queries = m_queries.get();
+		return queries == 0 ? 0 : m_queryTime.get() / queries;
+	}
+
+	/**
+	 * Returns a summary of the pool's statistics
+	 */
+	public String toString() {
+		return "Database pool " + m_url + ": " + m_inUse.get() + "/" + m_maxConnections + " in use, " +
+			m_waiting.get() + " waiting, " + m_waits.get() + " of " + m_borrows.get() + " borrows waited (max " +
+			m_maxWaitTime.get() + "ms, " + m_timeouts.get() + " timed out), " + m_queries.get() + " queries (avg " +
+			(getAverageQueryTime() / 1000) + "us, max " + (m_maxQueryTime.get() / 1000) + "us)";
+	}
+}
@@ -3,8 +3,15 @@ package org.pokenet.server.network;
 import java.net.Socket;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.mina.core.session.IoSession;
 import org.pokenet.server.GameServer;
@@ -21,17 +28,29 @@ import org.pokenet.server.battle.mechanics.moves.MoveListEntry;
 import org.pokenet.server.feature.TimeService;
 
 /**
- * Handles logging players in
+ * Handles logging players in.
+ * Logins are processed by several worker threads from a bounded queue. When the queue is full,
+ * players are told the server is full. Logins of the same username are processed one at a time.
+ * The player's pokemon and bag are loaded concurrently by a loader pool that is kept smaller than
+ * the free part of the database pool, so loaders can never starve the login threads of connections.
  * @author shadowkanji
  *
  */
 public class LoginManager implements Runnable {
-	private Queue<Object []> m_loginQueue;
-	private Thread m_thread;
-	private boolean m_isRunning;
-	private MySqlManager m_database;
-	
-	private Queue<Object []> m_passChangeQueue;
+	/* The most logins that can be waiting at once before players are turned away */
+	public static final int MAX_QUEUE_SIZE = 500;
+	/* How many locks usernames are spread over */
+	private static final int USERNAME_LOCKS = 64;
+	private BlockingQueue<Object []> m_loginQueue;
+	private BlockingQueue<Object []> m_passChangeQueue;
+	private Thread [] m_threads;
+	private ExecutorService m_loader;
+	private final Object [] m_usernameLocks;
+	private volatile boolean m_isRunning;
+	/* Statistics */
+	private AtomicLong m_logins = new AtomicLong(0);
+	private AtomicLong m_rejected = new AtomicLong(0);
+	private AtomicLong m_loginTime = new AtomicLong(0);
 	
 	/**
 	 * Default constructor. Requires a logout manager to be passed in so the server
@@ -39,10 +58,22 @@ public class LoginManager implements Runnable {
 	 * @param manager
 	 */
 	public LoginManager(LogoutManager manager) {
-		m_database = new MySqlManager();
-		m_loginQueue = new LinkedList<Object []>();
-		m_passChangeQueue = new LinkedList<Object []>();
-		m_thread = null;
+		m_loginQueue = new LinkedBlockingQueue<Object []>(MAX_QUEUE_SIZE);
+		m_passChangeQueue = new LinkedBlockingQueue<Object []>(MAX_QUEUE_SIZE);
+		m_threads = null;
+		m_usernameLocks = new Object[USERNAME_LOCKS];
+		for(int i = 0; i < USERNAME_LOCKS; i++)
+			m_usernameLocks[i] = new Object();
+	}
+	
+	/**
+	 * Returns the lock held while a username is being logged in.
+	 * Usernames are compared without case, as they are in the database.
+	 * @param username
+	 * @return
+	 */
+	private Object getUsernameLock(String username) {
+		return m_usernameLocks[(username.toLowerCase().hashCode() & 0x7fffffff) % USERNAME_LOCKS];
 	}
 	
 	/**
@@ -63,12 +94,13 @@ public class LoginManager implements Runnable {
 	
 	/**
 	 * Attempts to login a player. Upon success, it sends a packet to the player to inform them they are logged in.
+	 * @param db
 	 * @param session
 	 * @param l
 	 * @param username
 	 * @param password
 	 */
-	private void attemptLogin(IoSession session, char l, String username, String password) {
+	private void attemptLogin(MySqlManager db, IoSession session, char l, String username, String password) {
 		try {
 			//Check if we haven't reach the player limit
 			if(TcpProtocolHandler.getPlayerCount() >= GameServer.getMaxPlayers()) {
@@ -76,25 +108,24 @@ public class LoginManager implements Runnable {
 				return;
 			}
 			//First connect to the database
-			m_database = new MySqlManager();
-			if(!m_database.connect(GameServer.getDatabaseHost(), GameServer.getDatabaseUsername(), GameServer.getDatabasePassword())) {
+			if(!db.connect(GameServer.getDatabaseHost(), GameServer.getDatabaseUsername(), GameServer.getDatabasePassword())) {
 				session.write("l1");
 				return;
 			}
 			//Select the database
-			if(!m_database.selectDatabase(GameServer.getDatabaseName())) {
+			if(!db.selectDatabase(GameServer.getDatabaseName())) {
 				session.write("l1");
 				return;
 			}
 			//Now, check they are not banned
-			ResultSet result = m_database.query("SELECT * FROM pn_bans WHERE ip='" + getIp(session) + "'");
+			ResultSet result = db.executeQuery("SELECT * FROM pn_bans WHERE ip=?", getIp(session));
 			if(result != null && result.first()) {
 				//This is player is banned, inform them
 				session.write("l4");
 				return;
 			}
 			//Then find the member's information
-			result = m_database.query("SELECT * FROM pn_members WHERE username='" + MySqlManager.parseSQL(username) + "'");
+			result = db.executeQuery("SELECT * FROM pn_members WHERE username=?", username);
 			if(!result.first()){
 				//Member doesn't exist, say user or pass wrong. We don't want someone to guess usernames. 
 				session.write("le");
@@ -118,9 +149,7 @@ public class LoginManager implements Runnable {
 						p.getTcpSession().close(true);
 						p.setTcpSession(session);
 						p.setLanguage(Language.values()[Integer.parseInt(String.valueOf(l))]);
-						m_database.query("UPDATE pn_members SET lastLoginServer='" + MySqlManager.parseSQL(GameServer.getServerName()) + "', lastLoginTime='" + time + "' WHERE username='" + MySqlManager.parseSQL(username) + "'");
-						m_database.query("UPDATE pn_members SET lastLoginIP='" + getIp(session) + "' WHERE username='" + MySqlManager.parseSQL(username) + "'");
-						m_database.query("UPDATE pn_members SET lastLanguageUsed='" + l + "' WHERE username='" + MySqlManager.parseSQL(username) + "'");
+						updateLoginInformation(db, username, time, session, l);
 						session.setAttribute("player", p);
 						this.initialiseClient(p, session);
 					} else {
@@ -131,7 +160,7 @@ public class LoginManager implements Runnable {
 					/*
 					 * They are not logged in elsewhere, log them in
 					 */
-					this.login(username, l, session, result);
+					this.login(db, username, l, session, result);
 				} else {
 					/*
 					 * They are logged in somewhere else.
@@ -158,7 +187,7 @@ public class LoginManager implements Runnable {
 						return;
 					}catch(Exception e){
 						//The server they were on went down and they are trying to login elsewhere
-						this.login(username, l, session, result);
+						this.login(db, username, l, session, result);
 					}
 				}
 			} else {
@@ -166,30 +195,58 @@ public class LoginManager implements Runnable {
 				session.write("le");
 				return;
 			}
-			m_database.close();
 		} catch (Exception e) {
 			e.printStackTrace();
 			session.write("lu");
 			/*
 			 * Something went wrong so make sure the player is registered as logged out
 			 */
-			m_database.query("UPDATE pn_members SET lastLoginServer='null' WHERE username='" + MySqlManager.parseSQL(username) + "'");
-			m_database.close();
+			try {
+				db.executeUpdate("UPDATE pn_members SET lastLoginServer='null' WHERE username=?", username);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		} finally {
+			//Return the connection to the pool
+			db.close();
 		}
 	}
 	
 	/**
-	 * Places a player in the login queue
+	 * Stores the server, time, ip and language of a login in a single update
+	 * @param db
+	 * @param username
+	 * @param time
+	 * @param session
+	 * @param language
+	 * @throws SQLException
+	 */
+	private void updateLoginInformation(MySqlManager db, String username, long time, IoSession session, char language) throws SQLException {
+		db.executeUpdate("UPDATE pn_members SET lastLoginServer=?, lastLoginTime=?, lastLoginIP=?, " +
+				"lastLanguageUsed=? WHERE username=?",
+				GameServer.getServerName(), String.valueOf(time), getIp(session), String.valueOf(language), username);
+	}
+	
+	/**
+	 * Places a player in the login queue. If the queue is full the player is told the server is full,
+	 * otherwise if they have to wait they are sent their position in the queue.
 	 * @param session
 	 * @param username
 	 * @param password
-	 * @param forceLogin - true if player wants to force login
 	 */
 	public void queuePlayer(IoSession session, String username, String password) {
-		if(m_thread == null || !m_thread.isAlive()) {
+		if(!isRunning()) {
 			start();
 		}
-		m_loginQueue.offer(new Object[] {session, username, password});
+		if(!m_loginQueue.offer(new Object[] {session, username, password})) {
+			m_rejected.incrementAndGet();
+			session.write("l2");
+			return;
+		}
+		/* Let the client know where they are in the queue if they're waiting behind other logins */
+		int position = m_loginQueue.size();
+		if(position > m_threads.length)
+			session.write("lq" + position);
 	}
 	
 	/**
@@ -200,16 +257,26 @@ public class LoginManager implements Runnable {
 	 * @param oldPassword
 	 */
 	public void queuePasswordChange(IoSession session, String username, String newPassword, String oldPassword) {
-		if(m_thread == null || !m_thread.isAlive()) {
+		if(!isRunning()) {
 			start();
 		}
-		m_passChangeQueue.offer(new Object[] {session, username, newPassword, oldPassword});
+		if(!m_passChangeQueue.offer(new Object[] {session, username, newPassword, oldPassword}))
+			session.write("pe");
+	}
+	
+	/**
+	 * Returns how many logins are waiting to be processed
+	 * @return
+	 */
+	public int getQueueSize() {
+		return m_loginQueue.size();
 	}
 
 	/**
-	 * Called by Thread.start()
+	 * Called by Thread.start(). Each login thread has its own database manager.
 	 */
 	public void run() {
+		MySqlManager db = new MySqlManager();
 		Object [] o;
 		IoSession session;
 		String username;
@@ -217,91 +284,120 @@ public class LoginManager implements Runnable {
 		String newPassword;
 		char l;
 		while(m_isRunning) {
-			synchronized(m_loginQueue) {
-				try {
-					if(m_loginQueue.peek() != null) {
-						o = m_loginQueue.poll();
-						session = (IoSession) o[0];
-						l = ((String) o[1]).charAt(0);
-						username = ((String) o[1]).substring(1);
-						password = (String) o[2];
-						this.attemptLogin(session, l, username, password);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
 			try {
-				Thread.sleep(500);
-			} catch (Exception e) {}
-			
-			synchronized(m_passChangeQueue) {
-				try {
-					if(m_passChangeQueue.peek() != null) {
-						o = m_passChangeQueue.poll();
-						session = (IoSession) o[0];
-						username = (String) o[1];
-						newPassword = (String) o[2];
-						password = (String) o[3];
-						this.changePass(username, newPassword, password, session);
+				o = m_loginQueue.poll(250, TimeUnit.MILLISECONDS);
+				if(o != null) {
+					long start = System.currentTimeMillis();
+					session = (IoSession) o[0];
+					l = ((String) o[1]).charAt(0);
+					username = ((String) o[1]).substring(1);
+					password = (String) o[2];
+					/*
+					 * Only one login per username may run at a time, otherwise two logins could both
+					 * see lastLoginServer as null and load the same player twice
+					 */
+					synchronized(getUsernameLock(username)) {
+						this.attemptLogin(db, session, l, username, password);
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
+					m_logins.incrementAndGet();
+					m_loginTime.addAndGet(System.currentTimeMillis() - start);
+				}
+				o = m_passChangeQueue.poll();
+				if(o != null) {
+					session = (IoSession) o[0];
+					username = (String) o[1];
+					newPassword = (String) o[2];
+					password = (String) o[3];
+					this.changePass(db, username, newPassword, password, session);
 				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-			try {
-				Thread.sleep(500);
-			} catch (Exception e) {}
 		}
-		m_thread = null;
+	}
+	
+	/**
+	 * Returns true if the login threads are running
+	 * @return
+	 */
+	private synchronized boolean isRunning() {
+		return m_isRunning && m_threads != null;
 	}
 	
 	/**
 	 * Starts the login manager
 	 */
-	public void start() {
-		if(m_thread == null || !m_thread.isAlive()) {
-			m_thread = new Thread(this);
-			m_isRunning = true;
-			m_thread.start();
+	public synchronized void start() {
+		if(m_isRunning && m_threads != null)
+			return;
+		int threads = Math.max(1, GameServer.getLoginThreadAmount());
+		/*
+		 * Every login thread holds a connection while its loads run, and one connection is left for
+		 * saving players, so loaders only ever wait for connections that are not held by a login.
+		 * If the pool is too small for that, logins load everything on their own connection.
+		 */
+		int loaders = Math.min(threads * 2, GameServer.getDatabaseConnectionAmount() - threads - 1);
+		m_loader = loaders > 0 ? Executors.newFixedThreadPool(loaders) : null;
+		m_isRunning = true;
+		m_threads = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			m_threads[i] = new Thread(this, "LoginManager-" + i);
+			m_threads[i].start();
 		}
+		System.out.println("INFO: Login Manager started with " + threads + " threads and " +
+				Math.max(0, loaders) + " loaders.");
 	}
 	
 	/**
 	 * Stops the login manager
 	 */
-	public void stop() {
+	public synchronized void stop() {
 		m_isRunning = false;
+		if(m_loader != null)
+			m_loader.shutdown();
+		System.out.println("INFO: " + toString());
+	}
+	
+	/**
+	 * Returns a summary of the login statistics
+	 */
+	public String toString() {
+		long logins = m_logins.get();
+		return "Login Manager: " + logins + " logins processed (avg " +
+			(logins == 0 ? 0 : m_loginTime.get() / logins) + "ms), " + m_rejected.get() +
+			" turned away, " + m_loginQueue.size() + " queued";
 	}
 	
 	/**
 	 * Changes the password of a player
+	 * @param db
 	 * @param username
 	 * @param newPassword
 	 * @param oldPassword
 	 * @param session
 	 */
-	private void changePass(String username, String newPassword, String oldPassword, IoSession session) {
-		m_database = new MySqlManager();
-	
-		if(m_database.connect(GameServer.getDatabaseHost(), GameServer.getDatabaseUsername(), GameServer.getDatabasePassword())) {
-			if(m_database.selectDatabase(GameServer.getDatabaseName())) {
-				ResultSet result = m_database.query("SELECT * FROM pn_members WHERE username='" + MySqlManager.parseSQL(username) + "'");
-				try {
+	private void changePass(MySqlManager db, String username, String newPassword, String oldPassword, IoSession session) {
+		if(db.connect(GameServer.getDatabaseHost(), GameServer.getDatabaseUsername(), GameServer.getDatabasePassword())) {
+			try {
+				if(db.selectDatabase(GameServer.getDatabaseName())) {
+					ResultSet result = db.executeQuery("SELECT * FROM pn_members WHERE username=?", username);
 					if(result.first()){
 						// if we got a result, compare their old password to the one we have stored for them
 						if(result.getString("password").compareTo(oldPassword) == 0) {
 							// old password matches the one on file, therefore they got their old password correct, so it can be changed to their new one
-							m_database.query("UPDATE pn_members SET password='" + MySqlManager.parseSQL(newPassword) + "' WHERE username='" + MySqlManager.parseSQL(username) + "'");
+							db.executeUpdate("UPDATE pn_members SET password=? WHERE username=?", newPassword, username);
 							// tell them their password was changed successfully
 							session.write("ps");
 							return;
 						}
 					}
-				} catch (SQLException e) {
-					e.printStackTrace();
 				}
-				m_database.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			} finally {
+				db.close();
 			}
 		}
 		// tell them we failed to change their password
@@ -310,27 +406,28 @@ public class LoginManager implements Runnable {
 	
 	/**
 	 * Logs in a player
+	 * @param db
 	 * @param username
 	 * @param language
 	 * @param session
 	 * @param result
 	 */
-	private void login(String username, char language, IoSession session, ResultSet result) {
+	private void login(MySqlManager db, String username, char language, IoSession session, ResultSet result) throws SQLException {
 		//They are not logged in elsewhere, set the current login to the current server
 		long time = System.currentTimeMillis();
 		/*
 		 * Attempt to log the player in
 		 */
-		PlayerChar p = getPlayerObject(result);
+		PlayerChar p = getPlayerObject(db, result);
+		if(p == null)
+			throw new SQLException("Could not load player " + username);
 		p.setLastLoginTime(time);
 		p.setTcpSession(session);
 		p.setLanguage(Language.values()[Integer.parseInt(String.valueOf(language))]);
 		/*
 		 * Update the database with login information
 		 */
-		m_database.query("UPDATE pn_members SET lastLoginServer='" + MySqlManager.parseSQL(GameServer.getServerName()) + "', lastLoginTime='" + time + "' WHERE username='" + MySqlManager.parseSQL(username) + "'");
-		m_database.query("UPDATE pn_members SET lastLoginIP='" + getIp(session) + "' WHERE username='" + MySqlManager.parseSQL(username) + "'");
-		m_database.query("UPDATE pn_members SET lastLanguageUsed='" + language + "' WHERE username='" + MySqlManager.parseSQL(username) + "'");
+		updateLoginInformation(db, username, time, session, language);
 		session.setAttribute("player", p);
 		/*
 		 * Send success packet to player, set their map and add them to a movement service
@@ -355,7 +452,7 @@ public class LoginManager implements Runnable {
 		//Add them to the map
 		p.setMap(GameServer.getServiceManager().getMovementService().getMapMatrix().getMapByGamePosition(p.getMapX(), p.getMapY()), null);
 		//Add them to a movement service
-		GameServer.getServiceManager().getMovementService().getMovementManager().addPlayer(p);
+		GameServer.getServiceManager().getMovementService().getMovementManager(p.getMap()).addPlayer(p);
 		//Send their Pokemon information to them
 		p.updateClientParty();
 		//Send bag to them
@@ -368,26 +465,131 @@ public class LoginManager implements Runnable {
 		p.updateClientBadges();
 		p.initializeClientSkills();
 	}
+	
+	/**
+	 * Loads part of a player. Runs on a loader thread with its own connection,
+	 * or on the login thread's connection if no loader picked it up in time.
+	 * @author shadowkanji
+	 *
+	 */
+	private abstract class Loader<T> implements Callable<T> {
+		/**
+		 * Loads the data using the given connection
+		 * @param db
+		 * @return
+		 * @throws SQLException
+		 */
+		public abstract T load(MySqlManager db) throws SQLException;
+		
+		public T call() throws Exception {
+			MySqlManager db = new MySqlManager();
+			if(!db.connect(GameServer.getDatabaseHost(), GameServer.getDatabaseUsername(), GameServer.getDatabasePassword()))
+				throw new SQLException("Could not connect to the database");
+			try {
+				db.selectDatabase(GameServer.getDatabaseName());
+				return load(db);
+			} finally {
+				db.close();
+			}
+		}
+	}
+	
+	/**
+	 * Loads all pokemon belonging to a trainer
+	 * @author shadowkanji
+	 *
+	 */
+	private class PokemonLoader extends Loader<ArrayList<Pokemon>> {
+		private String m_trainer;
+		
+		public PokemonLoader(String trainer) {
+			m_trainer = trainer;
+		}
+		
+		public ArrayList<Pokemon> load(MySqlManager db) throws SQLException {
+			ArrayList<Pokemon> result = new ArrayList<Pokemon>();
+			ResultSet pokemons = db.executeQuery("SELECT * FROM pn_pokemon WHERE currentTrainerName=?", m_trainer);
+			while(pokemons.next()) {
+				Pokemon p = getPokemonObject(pokemons);
+				if(p != null) {
+					/* Remember what is stored so only changes are saved */
+					p.setSavedValues(PlayerSave.getPokemonValues(p, m_trainer));
+					result.add(p);
+				}
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * Loads a player's bag
+	 * @author shadowkanji
+	 *
+	 */
+	private class BagLoader extends Loader<Bag> {
+		private int m_memberId;
+		
+		public BagLoader(int memberId) {
+			m_memberId = memberId;
+		}
+		
+		public Bag load(MySqlManager db) throws SQLException {
+			return getBagObject(db.executeQuery("SELECT * FROM pn_bag WHERE member=?", m_memberId), m_memberId);
+		}
+	}
+	
+	/**
+	 * Starts a loader on the loader pool. Returns null if there is no loader pool.
+	 * @param loader
+	 * @return
+	 */
+	private <T> Future<T> submit(Loader<T> loader) {
+		ExecutorService pool = m_loader;
+		return pool == null ? null : pool.submit(loader);
+	}
+	
+	/**
+	 * Returns the result of a loader. If no loader thread has started it yet,
+	 * it is run on the login thread's connection instead of waiting.
+	 * @param task
+	 * @param loader
+	 * @param db
+	 * @return
+	 * @throws Exception
+	 */
+	private <T> T await(Future<T> task, Loader<T> loader, MySqlManager db) throws Exception {
+		if(task == null || task.cancel(false))
+			return loader.load(db);
+		return task.get();
+	}
 
 	/**
-	 * Returns a playerchar object from a resultset of player data
+	 * Returns a playerchar object from a resultset of player data.
+	 * The player's pokemon and bag are loaded at the same time as their party.
+	 * @param db
 	 * @param data
 	 * @return
 	 */
-	private PlayerChar getPlayerObject(ResultSet result) {
+	private PlayerChar getPlayerObject(MySqlManager db, ResultSet result) {
 		try {
 			PlayerChar p = new PlayerChar();
 			Pokemon [] party = new Pokemon[6];
 			PokemonBox[] boxes = new PokemonBox[9];
 			
 			p.setName(result.getString("username"));
+			p.setId(result.getInt("id"));
+			/* Start loading pokemon and bag while the rest of the player is set up */
+			PokemonLoader pokemonLoader = new PokemonLoader(p.getName());
+			BagLoader bagLoader = new BagLoader(p.getId());
+			Future<ArrayList<Pokemon>> pokemonTask = submit(pokemonLoader);
+			Future<Bag> bagTask = submit(bagLoader);
+			
 			p.setVisible(true);
 			//Set co-ordinates
 			p.setX(result.getInt("x"));
 			p.setY(result.getInt("y"));
 			p.setMapX(result.getInt("mapX"));
 			p.setMapY(result.getInt("mapY"));
-			p.setId(result.getInt("id"));
 			p.setAdminLevel(result.getInt("adminLevel"));
 			p.setMuted(result.getBoolean("muted"));
 			p.setLastHeal(result.getInt("healX"), result.getInt("healY"), result.getInt("healMapX"), result.getInt("healMapY"));
@@ -401,49 +603,43 @@ public class LoginManager implements Runnable {
 			p.setTrainingExp(result.getInt("skTrain"));
 			p.setCoordinatingExp(result.getInt("skCoord"));
 			p.setBreedingExp(result.getInt("skBreed"));
+			//Attach badges
+			p.generateBadges(result.getString("badges"));
 			//Retrieve refences to all Pokemon
-			int partyId = result.getInt("party");
-			ResultSet partyData = m_database.query("SELECT * FROM pn_party WHERE id='" + partyId + "'");
+			int [] partyIds = new int[6];
+			ResultSet partyData = db.executeQuery("SELECT * FROM pn_party WHERE id=?", result.getInt("party"));
 			partyData.first();
+			for(int i = 0; i < 6; i++)
+				partyIds[i] = partyData.getInt("pokemon" + i);
 			
-			ResultSet pokemons = m_database.query("SELECT * FROM pn_pokemon WHERE currentTrainerName='" + p.getName() + "'");
 			int boxNumber = 0;
 			int boxPosition = 0;
 			/* Loop through all Pokemon belonging to this player and add them to their party/box */
-			while(pokemons.next()) {
-				boolean isParty = false;
+			for(Pokemon pokemon : await(pokemonTask, pokemonLoader, db)) {
 				int partyIndex = -1;
 				/* Checks if Pokemon is in party */
 				for(int i = 0; i < 6; i++) {
-					if(partyData.getInt("pokemon" + i) == pokemons.getInt("id")) {
-						isParty = true;
+					if(partyIds[i] == pokemon.getDatabaseID()) {
 						partyIndex = i;
 						break;
 					}
 				}
 				/* If the pokemon is in party, add it to party */
-				if(isParty) {
-					party[partyIndex] = getPokemonObject(pokemons);
+				if(partyIndex > -1) {
+					party[partyIndex] = pokemon;
 				} else {
-					/* Else, add it to box if space is available */
+					/* Else, add it to box, opening up a new box if this one is full */
+					if(boxPosition >= 30) {
+						boxPosition = 0;
+						boxNumber++;
+					}
 					if(boxNumber < 9) {
 						/* Avoid null pointers */
 						if(boxes[boxNumber] == null)
 							boxes[boxNumber] = new PokemonBox();
 						if(boxes[boxNumber].getPokemon() == null)
 							boxes[boxNumber].setPokemon(new Pokemon[30]);
-						/* If there's space in this box, add it to the box */
-						if(boxPosition < 30) {
-							boxes[boxNumber].setPokemon(boxPosition, getPokemonObject(pokemons));
-						} else {
-							/* Else open up a new box and add it to box */
-							boxPosition = 0;
-							boxNumber++;
-							if(boxNumber < 9) {
-								boxes[boxNumber].setPokemon(new Pokemon[30]);
-								boxes[boxNumber].setPokemon(boxPosition, getPokemonObject(pokemons));
-							}
-						}
+						boxes[boxNumber].setPokemon(boxPosition, pokemon);
 						boxPosition++;
 					}
 				}
@@ -452,10 +648,13 @@ public class LoginManager implements Runnable {
 			p.setBoxes(boxes);
 			
 			//Attach bag
-			p.setBag(getBagObject(m_database.query("SELECT * FROM pn_bag WHERE member='" + result.getInt("id") + "'"),p.getId()));
-
-			//Attach badges
-			p.generateBadges(result.getString("badges"));
+			p.setBag(await(bagTask, bagLoader, db));
+			/* Everything was just loaded, so nothing needs saving yet */
+			for(int i = 0; i < boxes.length; i++) {
+				if(boxes[i] != null)
+					boxes[i].setDirty(false);
+			}
+			p.setSavedValues(PlayerSave.getPlayerValues(p));
 			return p;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -583,6 +782,8 @@ public class LoginManager implements Runnable {
 			while(data.next()){
 				b.addItem(data.getInt("item"), data.getInt("quantity"));
 			}
+			b.setSavedItems(b.getItemQuantities());
+			b.setDirty(false);
 			return b;
 		} catch (Exception e) {
 			e.printStackTrace();
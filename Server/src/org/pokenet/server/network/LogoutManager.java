@@ -1,34 +1,61 @@
 package org.pokenet.server.network;
 
 import java.sql.ResultSet;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.pokenet.server.GameServer;
-import org.pokenet.server.backend.entity.Bag;
 import org.pokenet.server.backend.entity.PlayerChar;
-import org.pokenet.server.battle.DataService;
-import org.pokenet.server.battle.Pokemon;
-import org.pokenet.server.battle.PokemonSpecies;
-import org.pokenet.server.battle.mechanics.statuses.abilities.IntrinsicAbility;
 
 /**
- * Handles logging players out
+ * Handles logging players out and saving players while they're online.
+ * All saving is done on this manager's thread so a player is never saved twice at once.
+ * Logouts are written in batches, and every few minutes whatever changed for online players
+ * is written so a crash only loses what happened since the last autosave.
+ * If a batch can't be saved its players are saved one at a time, and those that still fail
+ * are retried later with an increasing delay so they don't hold up everyone else.
+ * Both players of a trade are saved together in one transaction as soon as the trade is done,
+ * and autosaves skip them until then, so a trade is never stored for only one of its players.
  * @author shadowkanji
  *
  */
 public class LogoutManager implements Runnable {
-	private Queue<PlayerChar> m_logoutQueue;
+	/* The most players written in one transaction */
+	public static final int BATCH_SIZE = 50;
+	/* How many times the queue is retried when shutting down */
+	private static final int SHUTDOWN_ATTEMPTS = 3;
+	/* The delay before the first retry of a failed save, doubled each time up to MAX_RETRY_DELAY */
+	private static final long RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 60000;
+	private LinkedBlockingQueue<PlayerChar> m_logoutQueue;
+	/* Players whose save failed, and when they are tried again */
+	private ConcurrentHashMap<PlayerChar, Long> m_retryAt = new ConcurrentHashMap<PlayerChar, Long>();
+	private HashMap<PlayerChar, Integer> m_failures = new HashMap<PlayerChar, Integer>();
+	/* Players who traded since they were last saved, and the number of their last trade */
+	private ConcurrentHashMap<PlayerChar, Long> m_tradeSaves = new ConcurrentHashMap<PlayerChar, Long>();
+	private AtomicLong m_trades = new AtomicLong(0);
+	private long m_nextTradeSave = 0;
 	private Thread m_thread;
-	private boolean m_isRunning;
+	private volatile boolean m_isRunning;
 	private MySqlManager m_database;
+	private long m_nextAutosave;
+	/* Statistics */
+	private long m_autosaves = 0;
+	private long m_playersSaved = 0;
+	private long m_lastAutosaveTime = 0;
 	
 	/**
 	 * Default constructor
 	 */
 	public LogoutManager() {
 		m_database = new MySqlManager();
-		m_logoutQueue = new LinkedList<PlayerChar>();
+		m_logoutQueue = new LinkedBlockingQueue<PlayerChar>();
 		m_thread = null;
 	}
 	
@@ -37,423 +64,317 @@ public class LogoutManager implements Runnable {
 	 * @return
 	 */
 	public int getPlayerAmount() {
-		return m_logoutQueue.size();
+		return m_logoutQueue.size() + m_retryAt.size();
 	}
 	
 	/**
-	 * Attempts to logout a player by saving their data. Returns true on success
-	 * @param player
+	 * Attempts to logout a batch of players by saving their data.
+	 * If the batch fails each player is saved on their own, those that still fail are retried later.
+	 * @param players
+	 * @return true if every player was saved
 	 */
-	private boolean attemptLogout(PlayerChar player) {
-		//Remove player from their map if it hasn't been done already
-		if(player.getMap() != null)
-			player.getMap().removeChar(player);
-		TcpProtocolHandler.removePlayer(player);
-		UdpProtocolHandler.removePlayer(player);
+	private boolean attemptLogout(List<PlayerChar> players) {
+		/* Store finished trades first so they are never written for only one of the traders */
+		saveTrades();
+		ArrayList<PlayerChar> ready = new ArrayList<PlayerChar>();
+		for(PlayerChar player : players) {
+			//Remove player from their map if it hasn't been done already
+			if(player.getMap() != null)
+				player.getMap().removeChar(player);
+			TcpProtocolHandler.removePlayer(player);
+			UdpProtocolHandler.removePlayer(player);
+			/* Check they are not trading, if the trade is still executing, don't save them yet */
+			if(player.isTrading() && !player.getTrade().endTrade())
+				m_logoutQueue.offer(player);
+			else
+				ready.add(player);
+		}
 		GameServer.getInstance().updatePlayerCount();
-		m_database = new MySqlManager();
-		if(!m_database.connect(GameServer.getDatabaseHost(), GameServer.getDatabaseUsername(), GameServer.getDatabasePassword()))
-			return false;
-		m_database.selectDatabase(GameServer.getDatabaseName());
-		//Store all player information
-		if(!savePlayer(player)) {
-			m_database.close();
-			return false;
+		boolean success = true;
+		if(!savePlayers(ready, true, false)) {
+			/* Find out who can't be saved so the others aren't held up */
+			ArrayList<PlayerChar> saved = new ArrayList<PlayerChar>();
+			ArrayList<PlayerChar> single = new ArrayList<PlayerChar>(1);
+			for(PlayerChar player : ready) {
+				single.clear();
+				single.add(player);
+				if(savePlayers(single, true, false)) {
+					saved.add(player);
+				} else {
+					retryLater(player);
+					success = false;
+				}
+			}
+			ready = saved;
+		}
+		for(PlayerChar player : ready) {
+			m_failures.remove(player);
+			m_tradeSaves.remove(player);
+			GameServer.getServiceManager().getMovementService().removePlayer(player.getName());
+			player.dispose();
+			System.out.println("INFO: " + player.getName() + " logged out.");
 		}
-		//Finally, store that the player is logged out and close connection
-		m_database.query("UPDATE pn_members SET lastLoginServer='null' WHERE id='" + player.getId() + "'");
-		m_database.close();
-		GameServer.getServiceManager().getMovementService().removePlayer(player.getName());
-		return true;
+		return success;
 	}
 	
 	/**
-	 * Queues a player to be logged out
+	 * Schedules a player whose save failed to be saved again after a delay
 	 * @param player
 	 */
-	public void queuePlayer(PlayerChar player) {
-		if(m_thread == null || !m_thread.isAlive())
-			start();
-		if(!m_logoutQueue.contains(player))
-			m_logoutQueue.offer(player);
+	private void retryLater(PlayerChar player) {
+		Integer failures = m_failures.get(player);
+		int count = failures == null ? 1 : failures.intValue() + 1;
+		m_failures.put(player, count);
+		long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(count - 1, 16));
+		System.err.println("ERROR: Could not save " + player.getName() + ", retrying in " + delay + "ms");
+		m_retryAt.put(player, System.currentTimeMillis() + delay);
 	}
-
+	
 	/**
-	 * Called by m_thread.start()
+	 * Queues the players whose retry delay has passed
+	 * @param all - true to queue every player waiting to be retried
 	 */
-	public void run() {
-		while(m_isRunning) {
-			synchronized(m_logoutQueue) {
-				if(m_logoutQueue.peek() != null) {
-					PlayerChar p = m_logoutQueue.poll();
-					synchronized(p) {
-						if(p != null) {
-							if(!attemptLogout(p)) {
-								m_logoutQueue.add(p);
-							} else {
-								p.dispose();
-								System.out.println("INFO: " + p.getName() + " logged out.");
-								p = null;
-							}
-						}
-					}
-				}
+	private void queueRetries(boolean all) {
+		long now = System.currentTimeMillis();
+		Iterator<PlayerChar> it = m_retryAt.keySet().iterator();
+		while(it.hasNext()) {
+			PlayerChar p = it.next();
+			Long time = m_retryAt.get(p);
+			if(all || (time != null && time.longValue() <= now)) {
+				it.remove();
+				m_logoutQueue.offer(p);
 			}
-			try {
-				Thread.sleep(500);
-			} catch (Exception e) {}
 		}
-		m_thread = null;
-		System.out.println("INFO: All player data saved successfully.");
 	}
 	
 	/**
-	 * Start this logout manager
+	 * Saves both players of every trade that finished since the last time, in one transaction.
+	 * If that fails they are tried again after a delay.
 	 */
-	public void start() {
-		if(m_thread == null || !m_thread.isAlive()) {
-			m_thread = new Thread(this);
-			m_isRunning = true;
-			m_thread.start();
+	private void saveTrades() {
+		if(m_tradeSaves.isEmpty() || System.currentTimeMillis() < m_nextTradeSave)
+			return;
+		HashMap<PlayerChar, Long> trades = new HashMap<PlayerChar, Long>(m_tradeSaves);
+		ArrayList<PlayerChar> players = new ArrayList<PlayerChar>(trades.keySet());
+		if(savePlayers(players, false, false)) {
+			/* Players who traded again while being saved stay queued */
+			for(PlayerChar p : players)
+				m_tradeSaves.remove(p, trades.get(p));
+			m_nextTradeSave = 0;
+		} else {
+			System.err.println("ERROR: Could not save " + players.size() + " players after trading, retrying in " +
+					RETRY_DELAY + "ms");
+			m_nextTradeSave = System.currentTimeMillis() + RETRY_DELAY;
 		}
 	}
 	
 	/**
-	 * Stop this logout manager
-	 */
-	public void stop() {
-		//Stop the thread
-		m_isRunning = false;
-	}
-	
-	/**
-	 * Saves a player object to the database (Updates an existing player)
-	 * @param p
-	 * @return
+	 * Saves everything that changed for a batch of players in one transaction.
+	 * Players who have since logged in elsewhere are not saved.
+	 * @param players
+	 * @param logout - true if the players should be marked as logged out
+	 * @param skipTraded - true to leave out players who traded and are waiting for saveTrades()
+	 * @return true on success
 	 */
-	private boolean savePlayer(PlayerChar p) {
+	private boolean savePlayers(List<PlayerChar> players, boolean logout, boolean skipTraded) {
+		if(players.size() == 0)
+			return true;
+		if(!m_database.connect(GameServer.getDatabaseHost(), GameServer.getDatabaseUsername(), GameServer.getDatabasePassword()))
+			return false;
+		ArrayList<PlayerSave> saves = new ArrayList<PlayerSave>();
+		ArrayList<PlayerSave> snapshots = new ArrayList<PlayerSave>();
 		try {
+			m_database.selectDatabase(GameServer.getDatabaseName());
 			/*
 			 * First, check if they have logged in somewhere else.
 			 * This is useful for when as server loses its internet connection
 			 */
-			ResultSet data = m_database.query("SELECT * FROM pn_members WHERE id='" + p.getId() +  "'");
-			data.first();
-			if(data.getLong("lastLoginTime") == p.getLastLoginTime()) {
-				/* Check they are not trading */
-				if(p.isTrading()) {
-					/* If the trade is still executing, don't save them yet */
-					if(!p.getTrade().endTrade())
-						return false;
-				}
-				/*
-				 * Update the player row
-				 */
-				String badges = "";
-				for(int i = 0; i < 42; i++) {
-					if(p.getBadges()[i] == 1)
-						badges = badges + "1";
-					else
-						badges = badges + "0";
-				}
-				m_database.query("UPDATE pn_members SET " +
-						"muted='" + p.isMuted() + "', " +
-						"sprite='" + p.getRawSprite() + "', " +
-						"money='" + p.getMoney() + "', " +
-						"skHerb='" + p.getHerbalismExp() + "', " +
-						"skCraft='" + p.getCraftingExp() + "', " +
-						"skFish='" + p.getFishingExp() + "', " +
-						"skTrain='" + p.getTrainingExp() + "', " +
-						"skCoord='" + p.getCoordinatingExp() + "', " +
-						"skBreed='" + p.getBreedingExp() + "', " +
-						"x='" + p.getX() + "', " +
-						"y='" + p.getY() + "', " +
-						"mapX='" + p.getMapX() + "', " +
-						"mapY='" + p.getMapY() + "', " +
-						"healX='" + p.getHealX() + "', " +
-						"healY='" + p.getHealY() + "', " +
-						"healMapX='" + p.getHealMapX() + "', " +
-						"healMapY='" + p.getHealMapY() + "', " +
-						"isSurfing='" + String.valueOf(p.isSurfing()) + "', " +
-						"badges='" + badges + "' " +
-						"WHERE id='" + p.getId() + "'");
-				/*
-				 * Second, update the party
-				 */
-				//Save all the Pokemon
-				for(int i = 0; i < 6; i++) {
-					if(p.getParty() != null && p.getParty()[i] != null) {
-						if(p.getParty()[i].getDatabaseID() < 1) {
-							//This is a new Pokemon, add it to the database
-							if(saveNewPokemon(p.getParty()[i], p.getName(), m_database) < 1)
-								return false;
-						} else {
-							//Old Pokemon, just update
-							if(!savePokemon(p.getParty()[i], p.getName()))
-								return false;
-						}
-					}
-				}
-				//Save all the Pokemon id's in the player's party
-				if(p.getParty() != null) {
-					m_database.query("UPDATE pn_party SET " +
-							"pokemon0='" + (p.getParty()[0] != null ? p.getParty()[0].getDatabaseID() : -1) + "', " +
-							"pokemon1='" + (p.getParty()[1] != null ? p.getParty()[1].getDatabaseID() : -1) + "', " +
-							"pokemon2='" + (p.getParty()[2] != null ? p.getParty()[2].getDatabaseID() : -1) + "', " +
-							"pokemon3='" + (p.getParty()[3] != null ? p.getParty()[3].getDatabaseID() : -1) + "', " +
-							"pokemon4='" + (p.getParty()[4] != null ? p.getParty()[4].getDatabaseID() : -1) + "', " +
-							"pokemon5='" + (p.getParty()[5] != null ? p.getParty()[5].getDatabaseID() : -1) + "' " +
-							"WHERE member='" + p.getId() + "'");
-				} else
-					return true;
-				/*
-				 * Save the player's bag
-				 */
-				if(p.getBag() == null || !saveBag(p.getBag()))
-					return false;
-				/*
-				 * Finally, update all the boxes
-				 */
-				if(p.getBoxes() != null) {
-					for(int i = 0; i < 9; i++) {
-						if(p.getBoxes()[i] != null) {
-							/* Save all pokemon in box */
-							for(int j = 0; j < p.getBoxes()[i].getPokemon().length; j++) {
-								if(p.getBoxes()[i].getPokemon()[j] != null) {
-									if(p.getBoxes()[i].getPokemon()[j].getDatabaseID() < 1) {
-										/* This is a new Pokemon, create it in the database */
-										if(saveNewPokemon(p.getBoxes()[i].getPokemon(j), p.getName(), m_database) < 1)
-											return false;
-									} else {
-										/* Update an existing pokemon */
-										if(!savePokemon(p.getBoxes()[i].getPokemon()[j], p.getName())) {
-											return false;
-										}
-									}
-								}
-							}
-						}
+			HashMap<Integer, Long> logins = new HashMap<Integer, Long>();
+			ResultSet data = m_database.executeQuery("SELECT id, lastLoginTime FROM pn_members WHERE lastLoginServer=?",
+					GameServer.getServerName());
+			while(data.next())
+				logins.put(data.getInt("id"), data.getLong("lastLoginTime"));
+			/*
+			 * Snapshots insert new pokemon, so they are taken in the same transaction
+			 * as the rest of the changes
+			 */
+			m_database.beginTransaction();
+			ArrayList<PlayerChar> current = new ArrayList<PlayerChar>();
+			for(PlayerChar p : players) {
+				Long time = logins.get(p.getId());
+				if(time != null && time.longValue() == p.getLastLoginTime()) {
+					/*
+					 * Trades hold the player's lock and queue the trade save before releasing it,
+					 * so checking here can't miss a trade that finishes before the snapshot
+					 */
+					synchronized(p) {
+						if(skipTraded && m_tradeSaves.containsKey(p))
+							continue;
+						current.add(p);
+						PlayerSave save = new PlayerSave(m_database, p);
+						snapshots.add(save);
+						if(save.hasChanges())
+							saves.add(save);
 					}
 				}
-				//Dispose of the player object
-				if(p.getMap() != null)
-					p.getMap().removeChar(p);
-				return true;
-			} else
-				return true;
+			}
+			/*
+			 * Write all the changes at once
+			 */
+			for(PlayerSave save : saves)
+				save.write(m_database);
+			if(logout) {
+				//Finally, store that the players are logged out
+				for(PlayerChar p : current)
+					m_database.addBatch("UPDATE pn_members SET lastLoginServer='null' WHERE id=?", p.getId());
+			}
+			m_database.executeBatch();
+			m_database.commit();
+			for(PlayerSave save : saves)
+				save.committed();
+			m_playersSaved += saves.size();
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
+			m_database.rollback();
+			for(PlayerSave save : snapshots)
+				save.rolledBack();
 			return false;
+		} finally {
+			m_database.close();
 		}
 	}
 	
 	/**
-	 * Saves a pokemon to the database that didn't exist in it before
-	 * @param p
+	 * Saves the changes of all online players, except those waiting for their trade to be saved
 	 */
-	private int saveNewPokemon(Pokemon p, String currentTrainer, MySqlManager db) {
-		try {
-			/*
-			 * Due to issues with Pokemon not receiving abilities,
-			 * we're going to ensure they have one
-			 */
-			if(p.getAbility() == null || p.getAbility().getName().equalsIgnoreCase("")) {
-				String [] abilities = PokemonSpecies.getDefaultData().getPossibleAbilities(p.getSpeciesName());
-		        /* First select an ability randomly */
-		        String ab = "";
-		        if(abilities.length == 1)
-		        	ab = abilities[0];
-		        else
-		        	ab = abilities[DataService.getBattleMechanics().getRandom().nextInt(abilities.length)];
-		        p.setAbility(IntrinsicAbility.getInstance(ab), true);
+	private void autosave() {
+		long start = System.currentTimeMillis();
+		ArrayList<PlayerChar> players = TcpProtocolHandler.getPlayers();
+		ArrayList<PlayerChar> batch = new ArrayList<PlayerChar>();
+		long saved = m_playersSaved;
+		for(int i = 0; i < players.size(); i++) {
+			batch.add(players.get(i));
+			if(batch.size() >= BATCH_SIZE || (i == players.size() - 1 && batch.size() > 0)) {
+				if(!savePlayers(batch, false, true))
+					System.err.println("ERROR: Could not autosave " + batch.size() + " players");
+				batch.clear();
 			}
-			/*
-			 * Insert the Pokemon into the database
-			 */
-			db.query("INSERT INTO pn_pokemon" +
-					"(name, speciesName, exp, baseExp, expType, isFainted, level, happiness, " +
-					"gender, nature, abilityName, itemName, isShiny, currentTrainerName, originalTrainerName, date, contestStats)" +
-					"VALUES (" +
-					"'" + MySqlManager.parseSQL(p.getName()) +"', " +
-					"'" + MySqlManager.parseSQL(p.getSpeciesName()) +"', " +
-					"'" + String.valueOf(p.getExp()) +"', " +
-					"'" + p.getBaseExp() +"', " +
-					"'" + MySqlManager.parseSQL(p.getExpType().name()) +"', " +
-					"'" + String.valueOf(p.isFainted()) +"', " +
-					"'" + p.getLevel() +"', " +
-					"'" + p.getHappiness() +"', " +
-					"'" + p.getGender() +"', " +
-					"'" + MySqlManager.parseSQL(p.getNature().getName()) +"', " +
-					"'" + MySqlManager.parseSQL(p.getAbilityName()) +"', " +
-					"'" + MySqlManager.parseSQL(p.getItemName()) +"', " +
-					"'" + String.valueOf(p.isShiny()) +"', " +
-					"'" + currentTrainer + "', " +
-					"'" + MySqlManager.parseSQL(p.getOriginalTrainer()) + "', " +
-					"'" + MySqlManager.parseSQL(p.getDateCaught()) + "', " +
-					"'" + p.getContestStatsAsString() + "')");
-			/*
-			 * Get the pokemon's database id and attach it to the pokemon.
-			 * This needs to be done so it can be attached to the player in the database later.
-			 */
-			ResultSet result = db.query("SELECT * FROM pn_pokemon WHERE originalTrainerName='"  + MySqlManager.parseSQL(p.getOriginalTrainer()) + 
-					"' AND date='" + MySqlManager.parseSQL(p.getDateCaught()) + "' AND name='" + p.getSpeciesName() + "' AND exp='" + 
-					String.valueOf(p.getExp()) + "'");
-			result.first();
-			p.setDatabaseID(result.getInt("id"));
-			db.query("UPDATE pn_pokemon SET move0='" + MySqlManager.parseSQL(p.getMove(0).getName()) +
-					"', move1='" + (p.getMove(1) == null ? "null" : MySqlManager.parseSQL(p.getMove(1).getName())) +
-					"', move2='" + (p.getMove(2) == null ? "null" : MySqlManager.parseSQL(p.getMove(2).getName())) +
-					"', move3='" + (p.getMove(3) == null ? "null" : MySqlManager.parseSQL(p.getMove(3).getName())) +
-					"', hp='" + p.getHealth() +
-					"', atk='" + p.getStat(1) +
-					"', def='" + p.getStat(2) +
-					"', speed='" + p.getStat(3) +
-					"', spATK='" + p.getStat(4) +
-					"', spDEF='" + p.getStat(5) +
-					"', evHP='" + p.getEv(0) +
-					"', evATK='" + p.getEv(1) +
-					"', evDEF='" + p.getEv(2) +
-					"', evSPD='" + p.getEv(3) +
-					"', evSPATK='" + p.getEv(4) +
-					"', evSPDEF='" + p.getEv(5) +
-					"' WHERE id='" + p.getDatabaseID() + "'");
-			db.query("UPDATE pn_pokemon SET ivHP='" + p.getIv(0) +
-					"', ivATK='" + p.getIv(1) +
-					"', ivDEF='" + p.getIv(2) +
-					"', ivSPD='" + p.getIv(3) +
-					"', ivSPATK='" + p.getIv(4) +
-					"', ivSPDEF='" + p.getIv(5) +
-					"', pp0='" + p.getPp(0) +
-					"', pp1='" + p.getPp(1) +
-					"', pp2='" + p.getPp(2) +
-					"', pp3='" + p.getPp(3) +
-					"', maxpp0='" + p.getMaxPp(0) +
-					"', maxpp1='" + p.getMaxPp(1) +
-					"', maxpp2='" + p.getMaxPp(2) +
-					"', maxpp3='" + p.getMaxPp(3) +
-					"', ppUp0='" + p.getPpUpCount(0) +
-					"', ppUp1='" + p.getPpUpCount(1) +
-					"', ppUp2='" + p.getPpUpCount(2) +
-					"', ppUp3='" + p.getPpUpCount(3) +
-					"' WHERE id='" + p.getDatabaseID() + "'");
-			return result.getInt("id");
-		} catch (Exception e) {
-			e.printStackTrace();
-			return -1;
 		}
+		m_autosaves++;
+		m_lastAutosaveTime = System.currentTimeMillis() - start;
+		System.out.println("INFO: Autosaved " + (m_playersSaved - saved) + " of " + players.size() +
+				" players in " + m_lastAutosaveTime + "ms");
 	}
 	
 	/**
-	 * Updates a pokemon in the database
-	 * @param p
+	 * Sets when the next autosave happens
 	 */
-	private boolean savePokemon(Pokemon p, String currentTrainer) {
-		try {
-			/*
-			 * Update the pokemon in the database
-			 */
-			m_database.query("UPDATE pn_pokemon SET " +
-					"name='" + MySqlManager.parseSQL(p.getName()) +"', " +
-					"speciesName='" + MySqlManager.parseSQL(p.getSpeciesName()) +"', " +
-					"exp='" + String.valueOf(p.getExp()) +"', " +
-					"baseExp='" + p.getBaseExp() +"', " +
-					"expType='" + MySqlManager.parseSQL(p.getExpType().name()) +"', " +
-					"isFainted='" + String.valueOf(p.isFainted()) +"', " +
-					"level='" + p.getLevel() +"', " +
-					"happiness='" + p.getHappiness() +"', " +
-					"itemName='" + MySqlManager.parseSQL(p.getItemName()) +"', " +
-					"currentTrainerName='" + currentTrainer +"', " +
-					"contestStats='" + p.getContestStatsAsString() +"' " +
-					"WHERE id='" + p.getDatabaseID() + "'");
-try {			m_database.query("UPDATE pn_pokemon SET move0='" + (p.getMove(0) == null ? "null" : MySqlManager.parseSQL(p.getMove(0).getName())) +
-					"', move1='" + (p.getMove(1) == null ? "null" : MySqlManager.parseSQL(p.getMove(1).getName())) +
-					"', move2='" + (p.getMove(2) == null ? "null" : MySqlManager.parseSQL(p.getMove(2).getName())) +
-					"', move3='" + (p.getMove(3) == null ? "null" : MySqlManager.parseSQL(p.getMove(3).getName())) +
-					"', hp='" + p.getHealth() +
-					"', atk='" + p.getStat(1) +
-					"', def='" + p.getStat(2) +
-					"', speed='" + p.getStat(3) +
-					"', spATK='" + p.getStat(4) +
-					"', spDEF='" + p.getStat(5) +
-					"', evHP='" + p.getEv(0) +
-					"', evATK='" + p.getEv(1) +
-					"', evDEF='" + p.getEv(2) +
-					"', evSPD='" + p.getEv(3) +
-					"', evSPATK='" + p.getEv(4) +
-					"', evSPDEF='" + p.getEv(5) +
-					"' WHERE id='" + p.getDatabaseID() + "'");
-}
-catch (NullPointerException e) {
-	e.printStackTrace();
-	System.out.println("Database is " + m_database);
-	System.out.println("Pokemon object is " + p);
-	System.out.println("Database ID is " + p.getDatabaseID());
-		System.out.println("Pokemon name is " + p.getName());
-	System.out.println("Pokemon moves are " + p.getMove(0).getName() + "|" + p.getMove(1).getName() + "|" + p.getMove(2).getName() + "|" + p.getMove(3).getName());
-	System.out.println("', hp='" + p.getHealth() +
-					"', atk='" + p.getStat(1) +
-					"', def='" + p.getStat(2) +
-					"', speed='" + p.getStat(3) +
-					"', spATK='" + p.getStat(4) +
-					"', spDEF='" + p.getStat(5) +
-					"', evHP='" + p.getEv(0) +
-					"', evATK='" + p.getEv(1) +
-					"', evDEF='" + p.getEv(2) +
-					"', evSPD='" + p.getEv(3) +
-					"', evSPATK='" + p.getEv(4) +
-					"', evSPDEF='" + p.getEv(5));
-}
-			m_database.query("UPDATE pn_pokemon SET ivHP='" + p.getIv(0) +
-					"', ivATK='" + p.getIv(1) +
-					"', ivDEF='" + p.getIv(2) +
-					"', ivSPD='" + p.getIv(3) +
-					"', ivSPATK='" + p.getIv(4) +
-					"', ivSPDEF='" + p.getIv(5) +
-					"', pp0='" + p.getPp(0) +
-					"', pp1='" + p.getPp(1) +
-					"', pp2='" + p.getPp(2) +
-					"', pp3='" + p.getPp(3) +
-					"', maxpp0='" + p.getMaxPp(0) +
-					"', maxpp1='" + p.getMaxPp(1) +
-					"', maxpp2='" + p.getMaxPp(2) +
-					"', maxpp3='" + p.getMaxPp(3) +
-					"', ppUp0='" + p.getPpUpCount(0) +
-					"', ppUp1='" + p.getPpUpCount(1) +
-					"', ppUp2='" + p.getPpUpCount(2) +
-					"', ppUp3='" + p.getPpUpCount(3) +
-					"' WHERE id='" + p.getDatabaseID() + "'");
-			return true;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return false;
-		}
+	private void scheduleAutosave() {
+		int interval = GameServer.getAutosaveInterval();
+		m_nextAutosave = interval > 0 ? System.currentTimeMillis() + interval * 60000L : Long.MAX_VALUE;
 	}
 	
 	/**
-	 * Saves a bag to the database.
-	 * @param b
-	 * @return
+	 * Queues both players of a finished trade to be saved together.
+	 * Must be called while holding both players' locks.
+	 * @param player1
+	 * @param player2
 	 */
-	private boolean saveBag(Bag b) {
-		try {
-			//Destroy item data to prevent dupes. 
-			m_database.query("DELETE FROM pn_bag WHERE member='" + b.getMemberId() + "'");
-			for(int i = 0; i < b.getItems().size(); i++) {
-				if(b.getItems().get(i) != null) {
-					/*
-					 * NOTE: Items are stored as values 1 - 999
-					 */
-					m_database.query("INSERT INTO pn_bag (member,item,quantity) VALUES ('" +
-							b.getMemberId()+"', '" + 
-							b.getItems().get(i).getItemNumber()+"', '"+
-							b.getItems().get(i).getQuantity()+"')");
+	public void queueTradeSave(PlayerChar player1, PlayerChar player2) {
+		Long trade = m_trades.incrementAndGet();
+		m_tradeSaves.put(player1, trade);
+		m_tradeSaves.put(player2, trade);
+	}
+	
+	/**
+	 * Queues a player to be logged out
+	 * @param player
+	 */
+	public void queuePlayer(PlayerChar player) {
+		if(m_thread == null || !m_thread.isAlive())
+			start();
+		if(!m_logoutQueue.contains(player) && !m_retryAt.containsKey(player))
+			m_logoutQueue.offer(player);
+	}
+
+	/**
+	 * Called by m_thread.start()
+	 */
+	public void run() {
+		ArrayList<PlayerChar> batch = new ArrayList<PlayerChar>();
+		scheduleAutosave();
+		while(m_isRunning) {
+			try {
+				queueRetries(false);
+				saveTrades();
+				PlayerChar p = m_logoutQueue.poll(250, TimeUnit.MILLISECONDS);
+				if(p != null) {
+					batch.add(p);
+					m_logoutQueue.drainTo(batch, BATCH_SIZE - 1);
+					attemptLogout(batch);
+					batch.clear();
+				}
+				if(System.currentTimeMillis() >= m_nextAutosave) {
+					autosave();
+					scheduleAutosave();
 				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				batch.clear();
 			}
-			return true;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return false;
 		}
+		/*
+		 * The server is shutting down, write everyone still waiting to be saved.
+		 * Most of their changes were written by the last autosave so this is quick.
+		 */
+		int attempts = 0;
+		queueRetries(true);
+		while(m_logoutQueue.size() > 0 && attempts < SHUTDOWN_ATTEMPTS) {
+			m_logoutQueue.drainTo(batch, BATCH_SIZE);
+			if(!attemptLogout(batch))
+				attempts++;
+			batch.clear();
+			queueRetries(true);
+		}
+		if(m_logoutQueue.size() > 0)
+			System.err.println("ERROR: " + m_logoutQueue.size() + " players could not be saved.");
+		else
+			System.out.println("INFO: All player data saved successfully.");
+		System.out.println("INFO: " + toString());
+		m_thread = null;
+	}
+	
+	/**
+	 * Start this logout manager
+	 */
+	public void start() {
+		if(m_thread == null || !m_thread.isAlive()) {
+			m_thread = new Thread(this, "LogoutManager");
+			m_isRunning = true;
+			m_thread.start();
+		}
+	}
+	
+	/**
+	 * Stop this logout manager. Waits until every queued player has been saved.
+	 */
+	public void stop() {
+		//Stop the thread
+		m_isRunning = false;
+		Thread t = m_thread;
+		if(t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {}
+		}
+	}
+	
+	/**
+	 * Returns a summary of the save statistics
+	 */
+	public String toString() {
+		return "Logout Manager: " + m_playersSaved + " players saved, " + m_autosaves +
+			" autosaves (last took " + m_lastAutosaveTime + "ms), " + m_logoutQueue.size() + " queued";
 	}
-
 }
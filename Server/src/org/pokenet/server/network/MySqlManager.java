@@ -4,20 +4,28 @@ package org.pokenet.server.network;
  * Simple MySQL Java Class
  * Makes it similair to PHP
  */
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+import org.pokenet.server.network.DatabaseConnectionPool.PooledConnection;
 
 /**
- * Handles MySql connections
+ * Handles MySql connections.
+ * Connections are borrowed from a DatabaseConnectionPool on connect() and returned on close(),
+ * so close() must always be called once finished.
  * @author Daniel Morante
  */
 public class MySqlManager {
-    private Connection mysql_connection;
-    private ResultSet mysql_result;    
-    private String mysql_connectionURL;
-    
+    private DatabaseConnectionPool mysql_pool;
+    private PooledConnection mysql_connection;
+    private ResultSet mysql_result;
+    private ArrayList<Statement> mysql_statements = new ArrayList<Statement>();
+    private LinkedHashSet<PreparedStatement> mysql_batches = new LinkedHashSet<PreparedStatement>();
+
     /**
      * Connects to the server. Returns true on success.
      * @param server
@@ -27,19 +35,18 @@ public class MySqlManager {
      */
     public boolean connect(String server, String username, String password) {
         try {
-            //Open Connection
-            mysql_connectionURL = "jdbc:mysql://" + server+"?autoReconnect=true";
-            mysql_connection = DriverManager.getConnection(mysql_connectionURL, username, password);
-            if(!mysql_connection.isClosed())
-            	return true;
-            else
-            	return false;
+            //Borrow a connection from the pool
+            if(mysql_connection != null)
+            	close();
+            mysql_pool = DatabaseConnectionPool.getPool(server, username, password);
+            mysql_connection = mysql_pool.borrow();
+            return mysql_connection != null;
         } catch( Exception x ) {
           x.printStackTrace();
           return false;
         }
     }
-    
+
     /**
      * Selects the current database. Returns true on success
      * @param database
@@ -47,31 +54,54 @@ public class MySqlManager {
      */
     public boolean selectDatabase(String database) {
     	try {
-        	Statement stm = mysql_connection.createStatement();
-        	stm.executeQuery("USE " + database);
+        	mysql_connection.selectDatabase(database);
         	return true;
     	} catch (Exception e) {
     		e.printStackTrace();
     		return false;
     	}
     }
-    
+
     /**
-     * Closes the connection to the mysql server. Returns true on success.
+     * Returns the connection to the pool. Returns true on success.
      * @return
      */
     public boolean close(){
         try{
-            mysql_connection.close();
+        	for(int i = 0; i < mysql_statements.size(); i++) {
+        		try {
+        			mysql_statements.get(i).close();
+        		} catch (Exception e) {}
+        	}
+        	mysql_statements.clear();
+        	for(PreparedStatement s : mysql_batches) {
+        		try {
+        			s.clearBatch();
+        		} catch (Exception e) {}
+        	}
+        	mysql_batches.clear();
+        	if(mysql_connection != null) {
+        		if(!mysql_connection.getConnection().getAutoCommit()) {
+        			/* Never hand a connection with an open transaction back to the pool */
+        			mysql_connection.getConnection().rollback();
+        			mysql_connection.getConnection().setAutoCommit(true);
+        		}
+        		mysql_pool.release(mysql_connection);
+        	}
             mysql_connection = null;
             return true;
         }
         catch (Exception x) {
-             x.printStackTrace();
-             return false;
+        	if(mysql_connection != null) {
+        		mysql_connection.setBroken();
+        		mysql_pool.release(mysql_connection);
+        		mysql_connection = null;
+        	}
+            x.printStackTrace();
+            return false;
         }
     }
-    
+
     /**
      * Returns a result set for a query
      * @param query
@@ -80,32 +110,35 @@ public class MySqlManager {
     public ResultSet query(String query){
         //Create Statement object
         Statement stmt;
-        
+        long start = System.nanoTime();
+
         /*
          * We want to keep things simple, so...
          *
-         * Detect whether this is an INSERT, DELETE, or UPDATE statement      
+         * Detect whether this is an INSERT, DELETE, or UPDATE statement
          * And use the executeUpdate() function
          *
          * Or...
-         * 
+         *
          * Detect whether this is a SELECT statement and use the executeQuery()
-         * Function. 
-         * 
-        */  
-        
+         * Function.
+         *
+        */
+
         if (query.startsWith("SELECT")) {
             //Use the "executeQuery" function because we have to retrieve data
             //Return the data as a resultset
             try{
                 //Execute Query
-                stmt = mysql_connection.createStatement();
+                stmt = mysql_connection.getConnection().createStatement();
+                mysql_statements.add(stmt);
                 mysql_result = stmt.executeQuery(query);
             }
             catch(Exception x) {
                 x.printStackTrace();
             }
-            
+            mysql_pool.recordQuery(System.nanoTime() - start);
+
             //Return Result
             return mysql_result;
         }
@@ -114,18 +147,183 @@ public class MySqlManager {
             //Use the"executeUpdaye" function and return a null result
             try{
                 //Execute Query
-                stmt = mysql_connection.createStatement();
-                stmt.executeUpdate(query);
+                stmt = mysql_connection.getConnection().createStatement();
+                try {
+                	stmt.executeUpdate(query);
+                } finally {
+                	stmt.close();
+                }
             }
             catch(Exception x) {
                 x.printStackTrace();
             }
-            
+            mysql_pool.recordQuery(System.nanoTime() - start);
+
             //Return nothing
             return null;
         }
-    }    
-    
+    }
+
+    /**
+     * Marks the connection as broken if the exception means it can no longer be used.
+     * Errors caused by the statement itself (duplicate keys, bad SQL, etc) leave the connection in the pool.
+     * @param e
+     */
+    private void failed(SQLException e) {
+    	String state = e.getSQLState();
+    	if((state != null && state.startsWith("08"))
+    			|| e instanceof com.mysql.jdbc.CommunicationsException
+    			|| e instanceof com.mysql.jdbc.exceptions.jdbc4.CommunicationsException)
+    		mysql_connection.setBroken();
+    }
+
+    /**
+     * Returns a cached prepared statement with its parameters set
+     * @param sql
+     * @param generatedKeys
+     * @param params
+     * @return
+     * @throws SQLException
+     */
+    private PreparedStatement prepare(String sql, boolean generatedKeys, Object... params) throws SQLException {
+    	PreparedStatement s = mysql_connection.prepare(sql, generatedKeys);
+    	for(int i = 0; i < params.length; i++) {
+    		s.setObject(i + 1, params[i]);
+    	}
+    	return s;
+    }
+
+    /**
+     * Runs a SELECT using a cached prepared statement.
+     * NOTE: The result set is closed the next time the same query is run on this connection.
+     * @param sql
+     * @param params
+     * @return
+     * @throws SQLException
+     */
+    public ResultSet executeQuery(String sql, Object... params) throws SQLException {
+    	long start = System.nanoTime();
+    	try {
+    		return prepare(sql, false, params).executeQuery();
+    	} catch (SQLException e) {
+    		failed(e);
+    		throw e;
+    	} finally {
+    		mysql_pool.recordQuery(System.nanoTime() - start);
+    	}
+    }
+
+    /**
+     * Runs an INSERT, UPDATE or DELETE using a cached prepared statement.
+     * Returns the amount of rows changed.
+     * @param sql
+     * @param params
+     * @return
+     * @throws SQLException
+     */
+    public int executeUpdate(String sql, Object... params) throws SQLException {
+    	long start = System.nanoTime();
+    	try {
+    		return prepare(sql, false, params).executeUpdate();
+    	} catch (SQLException e) {
+    		failed(e);
+    		throw e;
+    	} finally {
+    		mysql_pool.recordQuery(System.nanoTime() - start);
+    	}
+    }
+
+    /**
+     * Runs an INSERT using a cached prepared statement and returns the generated id, or -1 if there was none
+     * @param sql
+     * @param params
+     * @return
+     * @throws SQLException
+     */
+    public int executeInsert(String sql, Object... params) throws SQLException {
+    	long start = System.nanoTime();
+    	try {
+    		PreparedStatement s = prepare(sql, true, params);
+    		s.executeUpdate();
+    		ResultSet keys = s.getGeneratedKeys();
+    		try {
+    			return keys.next() ? keys.getInt(1) : -1;
+    		} finally {
+    			keys.close();
+    		}
+    	} catch (SQLException e) {
+    		failed(e);
+    		throw e;
+    	} finally {
+    		mysql_pool.recordQuery(System.nanoTime() - start);
+    	}
+    }
+
+    /**
+     * Adds a statement to be run the next time executeBatch() is called.
+     * Statements with the same SQL are sent to the server together.
+     * @param sql
+     * @param params
+     * @throws SQLException
+     */
+    public void addBatch(String sql, Object... params) throws SQLException {
+    	PreparedStatement s = prepare(sql, false, params);
+    	s.addBatch();
+    	mysql_batches.add(s);
+    }
+
+    /**
+     * Runs all statements added with addBatch(), in the order their SQL was first added.
+     * Returns the amount of statements run.
+     * @return
+     * @throws SQLException
+     */
+    public int executeBatch() throws SQLException {
+    	long start = System.nanoTime();
+    	int count = 0;
+    	try {
+    		for(PreparedStatement s : mysql_batches) {
+    			count += s.executeBatch().length;
+    		}
+    		return count;
+    	} catch (SQLException e) {
+    		failed(e);
+    		throw e;
+    	} finally {
+    		mysql_batches.clear();
+    		mysql_pool.recordQuery(System.nanoTime() - start);
+    	}
+    }
+
+    /**
+     * Starts a transaction. Nothing is stored until commit() is called.
+     * @throws SQLException
+     */
+    public void beginTransaction() throws SQLException {
+    	mysql_connection.getConnection().setAutoCommit(false);
+    }
+
+    /**
+     * Stores all changes made since beginTransaction()
+     * @throws SQLException
+     */
+    public void commit() throws SQLException {
+    	mysql_connection.getConnection().commit();
+    	mysql_connection.getConnection().setAutoCommit(true);
+    }
+
+    /**
+     * Discards all changes made since beginTransaction()
+     */
+    public void rollback() {
+    	try {
+    		mysql_connection.getConnection().rollback();
+    		mysql_connection.getConnection().setAutoCommit(true);
+    	} catch (Exception e) {
+    		mysql_connection.setBroken();
+    	}
+    }
+
     public static String parseSQL(String text)
 	{
 		try {
@@ -1,7 +1,10 @@
 package org.pokenet.server.network;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 
+import org.apache.mina.core.buffer.CachedBufferAllocator;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
 import org.apache.mina.core.service.IoAcceptor;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
@@ -9,6 +12,7 @@ import org.apache.mina.transport.socket.DatagramSessionConfig;
 import org.apache.mina.transport.socket.nio.NioDatagramAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.pokenet.server.GameServer;
+import org.pokenet.server.feature.ChatLog;
 import org.pokenet.server.feature.ChatManager;
 import org.pokenet.server.network.codec.PokenetCodecFactory;
 
@@ -23,7 +27,10 @@ public class NetworkService {
 	private LogoutManager m_logoutManager;
 	private IoAcceptor m_tcpAcceptor;
 	private NioDatagramAcceptor m_udpAcceptor;
-	private ChatManager [] m_chatManager;
+	private ChatManager m_chatManager;
+	private ChatLog m_chatLog;
+	private ChatLog m_battleLog;
+	private OutboundFilter m_outboundFilter;
 	
 	
 	/**
@@ -34,7 +41,6 @@ public class NetworkService {
 		m_loginManager = new LoginManager(m_logoutManager);
 		m_tcpProtocolHandler = new TcpProtocolHandler(m_loginManager, m_logoutManager);
 		m_udpProtocolHandler = new UdpProtocolHandler();
-		m_chatManager = new ChatManager[3];
 	}
 	
 	/**
@@ -53,18 +59,21 @@ public class NetworkService {
 		return m_logoutManager;
 	}
 	
-	 /**
-     * Returns the chat manager with the least amount of processing to be done
-     * @return
-     */
-    public ChatManager getChatManager() {
-            int smallest = 0;
-            for(int i = 1; i < m_chatManager.length; i++) {
-                    if(m_chatManager[i].getProcessingLoad() < m_chatManager[smallest].getProcessingLoad())
-                            smallest = i;
-            }
-            return m_chatManager[smallest];
-    }
+	/**
+	 * Returns the chat manager
+	 * @return
+	 */
+	public ChatManager getChatManager() {
+		return m_chatManager;
+	}
+	
+	/**
+	 * Returns the log battles are recorded in, or null if battles are not logged
+	 * @return
+	 */
+	public ChatLog getBattleLog() {
+		return m_battleLog;
+	}
 	
 	/**
 	 * Returns the connection manager (packet handler)
@@ -105,18 +114,31 @@ public class NetworkService {
 		m_loginManager.start();
 		
 		/*
-         * Start the chat managers
+         * Start the chat log if chat is logged, and the chat manager
          */
-        for(int i = 0; i < m_chatManager.length; i++) {
-                m_chatManager[i] = new ChatManager();
-                m_chatManager[i].start();
+        if(GameServer.getChatLogDirectory() != null) {
+                m_chatLog = new ChatLog(new File(GameServer.getChatLogDirectory()));
+                m_chatLog.start();
+        }
+        m_chatManager = new ChatManager(m_chatLog);
+        if(GameServer.getBattleLogDirectory() != null) {
+                m_battleLog = new ChatLog(new File(GameServer.getBattleLogDirectory()), "battle");
+                m_battleLog.start();
         }
         
+		/*
+		 * Reuse encoder buffers rather than allocating one per packet
+		 */
+		IoBuffer.setAllocator(new CachedBufferAllocator());
+		
 		/*
 		 * Bind the TCP port
 		 */
 		m_tcpAcceptor = new NioSocketAcceptor();
 		m_tcpAcceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new PokenetCodecFactory()));
+		m_outboundFilter = new OutboundFilter();
+		m_outboundFilter.start();
+		m_tcpAcceptor.getFilterChain().addLast("outbound", m_outboundFilter);
 		m_tcpAcceptor.setHandler(m_tcpProtocolHandler);
 		try {
 			m_tcpAcceptor.bind(new InetSocketAddress(7002)); 
@@ -151,9 +173,14 @@ public class NetworkService {
 	public void stop() {
 		//Stop all threads (do not use thread.stop() )
 		//Unbind network address
-		for(int i = 0; i < m_chatManager.length; i++)
-             m_chatManager[i].stop();
+		System.out.println("INFO: " + m_chatManager.toString());
 		m_tcpAcceptor.unbind();
 		m_tcpProtocolHandler.logoutAll();
+		m_outboundFilter.stop();
+		if(m_chatLog != null)
+			m_chatLog.stop();
+		if(m_battleLog != null)
+			m_battleLog.stop();
+		DatabaseConnectionPool.shutdown();
 	}
 }
@@ -0,0 +1,232 @@
+package org.pokenet.server.network;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.NothingWrittenException;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.core.write.WriteToClosedSessionException;
+import org.pokenet.server.GameServer;
+import org.pokenet.server.backend.entity.PlayerChar;
+import org.pokenet.server.backend.map.ServerMap;
+import org.pokenet.server.network.codec.BinaryMessage;
+import org.pokenet.server.network.message.MovementMessage;
+
+/**
+ * Queues the packets sent to a logged in player so they are written to the socket once per tick.
+ * If a player's connection can not keep up, movement packets are dropped and once the backlog has
+ * drained the player's map resends the positions of everyone nearby. Players who fall too far behind
+ * are disconnected.
+ * The future of each queued write completes once the write it was sent in does, or fails if
+ * the message was dropped.
+ * @author shadowkanji
+ *
+ */
+public class OutboundChannel {
+	public static final String ATTRIBUTE = "outbound";
+	/* Once this many bytes are queued the channel is flushed without waiting for the next tick */
+	public static final int MAX_PENDING = 16384;
+	/* Statistics */
+	private static AtomicLong m_messages = new AtomicLong(0);
+	private static AtomicLong m_flushes = new AtomicLong(0);
+	private static AtomicLong m_dropped = new AtomicLong(0);
+	private static AtomicLong m_disconnects = new AtomicLong(0);
+	
+	private final IoSession m_session;
+	private final PlayerChar m_player;
+	private final Object m_flushLock = new Object();
+	private NextFilter m_next;
+	private ArrayList<WriteRequest> m_pending = new ArrayList<WriteRequest>();
+	private int m_pendingBytes = 0;
+	private boolean m_isScheduled = false;
+	/* True if movements were dropped and the map has not resent them yet */
+	private boolean m_resyncPending = false;
+	
+	/**
+	 * Constructor
+	 * @param session
+	 * @param player - the player the session belongs to
+	 */
+	public OutboundChannel(IoSession session, PlayerChar player) {
+		m_session = session;
+		m_player = player;
+	}
+	
+	/**
+	 * Queues a write. Returns true if the channel must be scheduled to be flushed.
+	 * @param next - the filter the flushed messages are passed to
+	 * @param request
+	 * @return
+	 */
+	public synchronized boolean queue(NextFilter next, WriteRequest request) {
+		m_next = next;
+		m_pending.add(request);
+		m_pendingBytes += getSize(request.getMessage());
+		m_messages.incrementAndGet();
+		if(m_isScheduled)
+			return false;
+		m_isScheduled = true;
+		return true;
+	}
+	
+	/**
+	 * Returns roughly how many bytes are queued
+	 * @return
+	 */
+	public synchronized int getPendingBytes() {
+		return m_pendingBytes;
+	}
+	
+	/**
+	 * Returns roughly how many bytes are waiting to be sent, both queued here and scheduled by MINA
+	 * @return
+	 */
+	public long getScheduledBytes() {
+		return m_session.getScheduledWriteBytes() + getPendingBytes();
+	}
+	
+	/**
+	 * Writes all queued messages to the session as one write.
+	 * If movements had to be dropped the player's map is asked to resend everything nearby,
+	 * but only once the backlog has drained so the resend doesn't add to it.
+	 */
+	public void flush() {
+		boolean dropped = write();
+		boolean resync;
+		synchronized(this) {
+			if(dropped)
+				m_resyncPending = true;
+			/* Wait until the client is well below the point where movements are dropped */
+			resync = m_resyncPending && m_session.getScheduledWriteBytes() <= GameServer.getWriteLimit() / 8;
+			if(resync)
+				m_resyncPending = false;
+		}
+		if(!resync)
+			return;
+		/* Not done while flushing, the map writes to this channel while holding its own locks */
+		ServerMap map = m_player.getMap();
+		if(map != null)
+			map.resync(m_player);
+	}
+	
+	/**
+	 * Marks the channel as scheduled if it is waiting for its backlog to drain before resyncing.
+	 * Returns true if it must be flushed again on the next tick.
+	 * @return
+	 */
+	public synchronized boolean reschedule() {
+		if(!m_resyncPending || m_isScheduled || !m_session.isConnected())
+			return false;
+		m_isScheduled = true;
+		return true;
+	}
+	
+	/**
+	 * Writes all queued messages to the session as one write. Returns true if movements were dropped.
+	 * @return
+	 */
+	private boolean write() {
+		synchronized(m_flushLock) {
+			final ArrayList<WriteRequest> batch;
+			NextFilter next;
+			synchronized(this) {
+				m_isScheduled = false;
+				if(m_pending.isEmpty())
+					return false;
+				batch = m_pending;
+				next = m_next;
+				m_pending = new ArrayList<WriteRequest>();
+				m_pendingBytes = 0;
+			}
+			if(!m_session.isConnected()) {
+				fail(batch, new WriteToClosedSessionException(batch));
+				return false;
+			}
+			long scheduled = m_session.getScheduledWriteBytes();
+			if(scheduled > GameServer.getWriteLimit()) {
+				/* The client has stopped reading, drop them before they use up the server's memory */
+				m_disconnects.incrementAndGet();
+				System.out.println("INFO: Disconnected " + m_session.getRemoteAddress() + ", " +
+						scheduled + " bytes were waiting to be sent");
+				fail(batch, new WriteToClosedSessionException(batch));
+				m_session.close(true);
+				return false;
+			}
+			boolean dropped = false;
+			if(scheduled > GameServer.getWriteLimit() / 4) {
+				/* The client is falling behind, movements are the only packets that can be resent later */
+				for(int i = batch.size() - 1; i >= 0; i--) {
+					if(batch.get(i).getMessage() instanceof MovementMessage) {
+						WriteRequest r = batch.remove(i);
+						r.getFuture().setException(new NothingWrittenException(r, "Dropped for a slow client"));
+						m_dropped.incrementAndGet();
+						dropped = true;
+					}
+				}
+				if(batch.isEmpty())
+					return dropped;
+			}
+			m_flushes.incrementAndGet();
+			if(batch.size() == 1) {
+				next.filterWrite(m_session, batch.get(0));
+				return dropped;
+			}
+			ArrayList<Object> messages = new ArrayList<Object>(batch.size());
+			for(int i = 0; i < batch.size(); i++)
+				messages.add(batch.get(i).getMessage());
+			/* Complete the queued writes once the whole batch is written */
+			WriteFuture future = new DefaultWriteFuture(m_session);
+			future.addListener(new IoFutureListener<WriteFuture>() {
+				public void operationComplete(WriteFuture f) {
+					if(f.isWritten()) {
+						for(int i = 0; i < batch.size(); i++)
+							batch.get(i).getFuture().setWritten();
+					} else {
+						fail(batch, f.getException());
+					}
+				}
+			});
+			next.filterWrite(m_session, new DefaultWriteRequest(messages, future));
+			return dropped;
+		}
+	}
+	
+	/**
+	 * Fails the futures of writes that were not sent
+	 * @param batch
+	 * @param cause
+	 */
+	private static void fail(ArrayList<WriteRequest> batch, Throwable cause) {
+		for(int i = 0; i < batch.size(); i++)
+			batch.get(i).getFuture().setException(cause);
+	}
+	
+	/**
+	 * Returns roughly how many bytes a message will take once encoded
+	 * @param message
+	 * @return
+	 */
+	private static int getSize(Object message) {
+		if(message instanceof String)
+			return ((String) message).length() + 1;
+		if(message instanceof BinaryMessage)
+			return ((BinaryMessage) message).getSize() + 5;
+		return 32;
+	}
+	
+	/**
+	 * Returns a summary of the statistics of all channels
+	 * @return
+	 */
+	public static String getStatistics() {
+		return "Outbound channels: " + m_messages.get() + " messages in " + m_flushes.get() +
+			" writes, " + m_dropped.get() + " movement packets dropped, " + m_disconnects.get() +
+			" slow clients disconnected";
+	}
+}
@@ -0,0 +1,95 @@
+package org.pokenet.server.network;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.pokenet.server.backend.MovementManager;
+
+/**
+ * Passes messages written to a logged in player's session to their OutboundChannel,
+ * and flushes all channels with queued messages once per movement tick.
+ * Sessions without a channel (players who have not logged in yet) are written to directly.
+ * @author shadowkanji
+ *
+ */
+public class OutboundFilter extends IoFilterAdapter implements Runnable {
+	private LinkedBlockingQueue<OutboundChannel> m_scheduled = new LinkedBlockingQueue<OutboundChannel>();
+	private Thread m_thread;
+	private volatile boolean m_isRunning = false;
+	
+	@Override
+	public void filterWrite(NextFilter next, IoSession session, WriteRequest request) throws Exception {
+		OutboundChannel channel = (OutboundChannel) session.getAttribute(OutboundChannel.ATTRIBUTE);
+		if(channel == null || !m_isRunning) {
+			next.filterWrite(session, request);
+			return;
+		}
+		if(channel.queue(next, request))
+			m_scheduled.offer(channel);
+		if(channel.getPendingBytes() > OutboundChannel.MAX_PENDING)
+			channel.flush();
+	}
+	
+	@Override
+	public void filterClose(NextFilter next, IoSession session) throws Exception {
+		OutboundChannel channel = (OutboundChannel) session.getAttribute(OutboundChannel.ATTRIBUTE);
+		if(channel != null)
+			channel.flush();
+		next.filterClose(session);
+	}
+	
+	/**
+	 * Called by m_thread.start(). Flushes all scheduled channels every movement tick.
+	 */
+	public void run() {
+		OutboundChannel channel;
+		while(m_isRunning) {
+			long start = System.currentTimeMillis();
+			int count = m_scheduled.size();
+			for(int i = 0; i < count && (channel = m_scheduled.poll()) != null; i++) {
+				try {
+					channel.flush();
+					/* Check again next tick if the channel is waiting to resync */
+					if(channel.reschedule())
+						m_scheduled.offer(channel);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			long delay = MovementManager.TICK_INTERVAL - (System.currentTimeMillis() - start);
+			if(delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {}
+			}
+		}
+		/* Send anything still queued */
+		while((channel = m_scheduled.poll()) != null) {
+			channel.flush();
+		}
+	}
+	
+	/**
+	 * Starts flushing channels
+	 */
+	public void start() {
+		m_isRunning = true;
+		m_thread = new Thread(this, "OutboundFilter");
+		m_thread.start();
+	}
+	
+	/**
+	 * Stops flushing channels, sending any queued messages first
+	 */
+	public void stop() {
+		m_isRunning = false;
+		if(m_thread != null) {
+			try {
+				m_thread.join();
+			} catch (InterruptedException e) {}
+		}
+		System.out.println("INFO: " + OutboundChannel.getStatistics());
+	}
+}
@@ -0,0 +1,271 @@
+package org.pokenet.server.network;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.mina.core.session.IoSession;
+import org.pokenet.server.backend.entity.PlayerChar;
+
+/**
+ * Passes packets to the handler registered for their opcode (the first character of the packet).
+ * Fast handlers run on the network thread that received the packet, slow handlers are
+ * offloaded to a pool of workers so they never hold up the network threads.
+ * While a client has offloaded packets waiting, its other packets are queued behind them
+ * so every packet from the same client is still handled in the order it arrived.
+ * Keeps a count and a latency histogram for each opcode.
+ * Errors thrown by handlers are passed on to the session's handler as before.
+ * @author shadowkanji
+ *
+ */
+public class PacketDispatcher {
+	/* Latency buckets are powers of two in microseconds, the last bucket holds everything slower */
+	private static final int BUCKETS = 20;
+	private static final int WORKER_THREADS = 4;
+	private static final String WORKER = "packetWorker";
+	
+	private final Handler [] m_loginHandlers = new Handler[128];
+	private final Handler [] m_playerHandlers = new Handler[128];
+	private ExecutorService m_workers;
+	/* Statistics, indexed by opcode */
+	private final AtomicLongArray m_counts = new AtomicLongArray(128);
+	private final AtomicLongArray m_totalTime = new AtomicLongArray(128);
+	private final AtomicLongArray m_histogram = new AtomicLongArray(128 * BUCKETS);
+	private final AtomicLongArray m_dropped = new AtomicLongArray(128);
+	
+	/**
+	 * A registered handler
+	 */
+	private static class Handler {
+		private final PacketHandler m_handler;
+		private final boolean m_isOffloaded;
+		
+		public Handler(PacketHandler h, boolean offload) {
+			m_handler = h;
+			m_isOffloaded = offload;
+		}
+	}
+	
+	/**
+	 * Runs the queued packets of one client in order
+	 */
+	private class SessionWorker implements Runnable {
+		private final ConcurrentLinkedQueue<Object []> m_queue = new ConcurrentLinkedQueue<Object []>();
+		private final AtomicBoolean m_isScheduled = new AtomicBoolean(false);
+		
+		/**
+		 * Queues a packet to be handled
+		 * @param h
+		 * @param session
+		 * @param p
+		 * @param message
+		 */
+		public void queue(Handler h, IoSession session, PlayerChar p, String message) {
+			m_queue.offer(new Object [] {h, session, p, message});
+			schedule();
+		}
+		
+		/**
+		 * Returns true if this worker has packets waiting or is running them
+		 * @return
+		 */
+		public boolean isBusy() {
+			return m_isScheduled.get();
+		}
+		
+		/**
+		 * Submits this worker to the pool if it is not already waiting to run
+		 */
+		private void schedule() {
+			if(!m_queue.isEmpty() && m_isScheduled.compareAndSet(false, true))
+				m_workers.execute(this);
+		}
+		
+		public void run() {
+			Object [] packet;
+			while((packet = m_queue.poll()) != null) {
+				try {
+					invoke((Handler) packet[0], (IoSession) packet[1], (PlayerChar) packet[2],
+							(String) packet[3]);
+				} catch (RuntimeException e) {
+					/* Treated the same as an error on the network thread */
+					((IoSession) packet[1]).getFilterChain().fireExceptionCaught(e);
+				}
+			}
+			m_isScheduled.set(false);
+			/* A packet may have been queued after the last poll */
+			schedule();
+		}
+	}
+	
+	/**
+	 * Starts the worker threads
+	 */
+	public void start() {
+		m_workers = Executors.newFixedThreadPool(WORKER_THREADS);
+	}
+	
+	/**
+	 * Stops the worker threads once queued packets are handled
+	 */
+	public void stop() {
+		if(m_workers != null)
+			m_workers.shutdown();
+		System.out.println("INFO: " + toString());
+	}
+	
+	/**
+	 * Registers a handler for packets sent before the client has logged in
+	 * @param opcode
+	 * @param h
+	 */
+	public void registerLogin(char opcode, PacketHandler h) {
+		m_loginHandlers[opcode] = new Handler(h, false);
+	}
+	
+	/**
+	 * Registers a handler for packets sent by logged in players
+	 * @param opcode
+	 * @param offload - true if the handler is slow and should run on a worker thread
+	 * @param h
+	 */
+	public void register(char opcode, boolean offload, PacketHandler h) {
+		m_playerHandlers[opcode] = new Handler(h, offload);
+	}
+	
+	/**
+	 * Passes a packet to its handler
+	 * @param session
+	 * @param p - the player, or null if the client has not logged in
+	 * @param message
+	 */
+	public void dispatch(IoSession session, PlayerChar p, String message) {
+		if(message.length() == 0)
+			return;
+		char opcode = message.charAt(0);
+		if(opcode >= 128)
+			return;
+		Handler h = p == null ? m_loginHandlers[opcode] : m_playerHandlers[opcode];
+		if(h == null) {
+			m_dropped.incrementAndGet(opcode);
+			return;
+		}
+		if(m_workers == null || m_workers.isShutdown()) {
+			invoke(h, session, p, message);
+			return;
+		}
+		SessionWorker w;
+		synchronized(session) {
+			w = (SessionWorker) session.getAttribute(WORKER);
+			if(w == null && h.m_isOffloaded) {
+				w = new SessionWorker();
+				session.setAttribute(WORKER, w);
+			}
+		}
+		/*
+		 * Packets of a session are only queued by the network thread reading it,
+		 * so if its worker is idle nothing can be queued ahead of this packet
+		 */
+		if(h.m_isOffloaded || (w != null && w.isBusy()))
+			w.queue(h, session, p, message);
+		else
+			invoke(h, session, p, message);
+	}
+	
+	/**
+	 * Runs a handler and records how long it took
+	 * @param h
+	 * @param session
+	 * @param p
+	 * @param message
+	 */
+	private void invoke(Handler h, IoSession session, PlayerChar p, String message) {
+		char opcode = message.charAt(0);
+		long start = System.nanoTime();
+		try {
+			h.m_handler.handle(session, p, message);
+		} catch (RuntimeException e) {
+			m_dropped.incrementAndGet(opcode);
+			throw e;
+		} finally {
+			long time = (System.nanoTime() - start) / 1000;
+			m_counts.incrementAndGet(opcode);
+			m_totalTime.addAndGet(opcode, time);
+			int bucket = 0;
+			while(time > 1 && bucket < BUCKETS - 1) {
+				time >>= 1;
+				bucket++;
+			}
+			m_histogram.incrementAndGet(opcode * BUCKETS + bucket);
+		}
+	}
+	
+	/**
+	 * Returns how many packets with an opcode were handled
+	 * @param opcode
+	 * @return
+	 */
+	public long getCount(char opcode) {
+		return m_counts.get(opcode);
+	}
+	
+	/**
+	 * Returns the average time handling a packet with an opcode took, in microseconds
+	 * @param opcode
+	 * @return
+	 */
+	public long getAverageTime(char opcode) {
+		long count = m_counts.get(opcode);
+		return count == 0 ? 0 : m_totalTime.get(opcode) / count;
+	}
+	
+	/**
+	 * Returns the latency histogram of an opcode.
+	 * Bucket i counts packets that took less than 2^(i+1) microseconds.
+	 * @param opcode
+	 * @return
+	 */
+	public long [] getHistogram(char opcode) {
+		long [] result = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++)
+			result[i] = m_histogram.get(opcode * BUCKETS + i);
+		return result;
+	}
+	
+	/**
+	 * Returns the time under which the given fraction of packets with an opcode were handled,
+	 * rounded up to a power of two microseconds
+	 * @param opcode
+	 * @param fraction - e.g. 0.99
+	 * @return
+	 */
+	public long getPercentile(char opcode, double fraction) {
+		long count = m_counts.get(opcode);
+		if(count == 0)
+			return 0;
+		long [] histogram = getHistogram(opcode);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += histogram[i];
+			if(seen >= count * fraction)
+				return 1L << (i + 1);
+		}
+		return 1L << BUCKETS;
+	}
+	
+	/**
+	 * Returns a summary of the packets handled for each opcode
+	 */
+	public String toString() {
+		StringBuilder result = new StringBuilder("Packet Dispatcher:");
+		for(char c = 0; c < 128; c++) {
+			if(m_counts.get(c) == 0 && m_dropped.get(c) == 0)
+				continue;
+			result.append(" " + c + "=" + m_counts.get(c) + " (avg " + getAverageTime(c) + "us, p99 <" +
+					getPercentile(c, 0.99) + "us, " + m_dropped.get(c) + " failed or unhandled)");
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,19 @@
+package org.pokenet.server.network;
+
+import org.apache.mina.core.session.IoSession;
+import org.pokenet.server.backend.entity.PlayerChar;
+
+/**
+ * Handles one type of packet received from a client
+ * @author shadowkanji
+ *
+ */
+public interface PacketHandler {
+	/**
+	 * Handles a packet
+	 * @param session - the client's session
+	 * @param p - the player, or null if the client has not logged in
+	 * @param message - the full packet, including its opcode
+	 */
+	public void handle(IoSession session, PlayerChar p, String message);
+}
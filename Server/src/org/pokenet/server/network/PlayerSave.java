@@ -0,0 +1,391 @@
+package org.pokenet.server.network;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.pokenet.server.backend.entity.Bag;
+import org.pokenet.server.backend.entity.PlayerChar;
+import org.pokenet.server.backend.entity.PokemonBox;
+import org.pokenet.server.battle.Pokemon;
+import org.pokenet.server.battle.PokemonSpecies;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
+import org.pokenet.server.battle.mechanics.statuses.abilities.IntrinsicAbility;
+
+/**
+ * A snapshot of everything about a player that changed since they were last saved.
+ * Saving happens in three steps so that many players can be stored in one transaction:
+ * the snapshot is taken, it is written into the current transaction and once the
+ * transaction is committed the player is marked as saved.
+ * @author shadowkanji
+ *
+ */
+public class PlayerSave {
+	/* pn_members columns that are saved, grouped so only the groups that changed are written */
+	static final String [][] MEMBER_COLUMNS = {
+		{"x", "y", "mapX", "mapY", "isSurfing"},
+		{"muted", "sprite", "money", "skHerb", "skCraft", "skFish", "skTrain", "skCoord", "skBreed",
+			"healX", "healY", "healMapX", "healMapY"},
+		{"badges"}
+	};
+	/* pn_pokemon columns that are updated, grouped so only the groups that changed are written */
+	static final String [][] POKEMON_COLUMNS = {
+		{"name", "speciesName", "exp", "baseExp", "expType", "isFainted", "level", "happiness", "itemName",
+			"currentTrainerName", "contestStats"},
+		{"move0", "move1", "move2", "move3", "pp0", "pp1", "pp2", "pp3",
+			"maxpp0", "maxpp1", "maxpp2", "maxpp3", "ppUp0", "ppUp1", "ppUp2", "ppUp3"},
+		{"hp", "atk", "def", "speed", "spATK", "spDEF"},
+		{"evHP", "evATK", "evDEF", "evSPD", "evSPATK", "evSPDEF", "ivHP", "ivATK", "ivDEF", "ivSPD", "ivSPATK", "ivSPDEF"}
+	};
+	private PlayerChar m_player;
+	private Object [][] m_values;
+	/* Pokemon that changed and the values they had when the snapshot was taken */
+	private ArrayList<Pokemon> m_pokemon = new ArrayList<Pokemon>();
+	private ArrayList<Object [][]> m_pokemonValues = new ArrayList<Object [][]>();
+	/* Boxes that were marked as saved by this snapshot */
+	private ArrayList<PokemonBox> m_boxes = new ArrayList<PokemonBox>();
+	/* The bag's contents, or null if the bag didn't change */
+	private HashMap<Integer, Integer> m_items = null;
+	/* Pokemon inserted by this snapshot, they get new ids again if the transaction is rolled back */
+	private ArrayList<Pokemon> m_inserted = new ArrayList<Pokemon>();
+
+	/**
+	 * Takes a snapshot of a player. Pokemon that were never saved are inserted
+	 * straight away so the player's party can refer to them, so the snapshot must
+	 * be taken inside the transaction it is written in.
+	 * The player's lock is held so trades and party changes can't happen halfway through,
+	 * and the bag is copied under its own lock.
+	 * @param db
+	 * @param p
+	 * @throws SQLException
+	 */
+	public PlayerSave(MySqlManager db, PlayerChar p) throws SQLException {
+		m_player = p;
+		synchronized(p) {
+			try {
+				takeSnapshot(db, p);
+			} catch (SQLException e) {
+				rolledBack();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Stores the current state of a player
+	 * @param db
+	 * @param p
+	 * @throws SQLException
+	 */
+	private void takeSnapshot(MySqlManager db, PlayerChar p) throws SQLException {
+		if(p.getParty() != null) {
+			for(int i = 0; i < 6; i++) {
+				if(p.getParty()[i] != null)
+					addPokemon(db, p.getParty()[i]);
+			}
+		}
+		if(p.getBoxes() != null) {
+			for(int i = 0; i < p.getBoxes().length; i++) {
+				PokemonBox box = p.getBoxes()[i];
+				if(box != null && box.isDirty() && box.getPokemon() != null) {
+					box.setDirty(false);
+					m_boxes.add(box);
+					for(int j = 0; j < box.getPokemon().length; j++) {
+						if(box.getPokemon(j) != null)
+							addPokemon(db, box.getPokemon(j));
+					}
+				}
+			}
+		}
+		Bag b = p.getBag();
+		if(b != null && (b.isDirty() || b.getSavedItems() == null)) {
+			b.setDirty(false);
+			m_items = b.getItemQuantities();
+		}
+		m_values = getPlayerValues(p);
+	}
+
+	/**
+	 * Adds a pokemon to the snapshot if it changed
+	 * @param db
+	 * @param poke
+	 * @throws SQLException
+	 */
+	private void addPokemon(MySqlManager db, Pokemon poke) throws SQLException {
+		if(poke.getDatabaseID() < 1) {
+			if(saveNewPokemon(poke, m_player.getName(), db) < 1)
+				throw new SQLException("Could not save new pokemon for " + m_player.getName());
+			m_inserted.add(poke);
+		}
+		Object [][] values = getPokemonValues(poke, m_player.getName());
+		if(!Arrays.deepEquals(values, poke.getSavedValues())) {
+			m_pokemon.add(poke);
+			m_pokemonValues.add(values);
+		}
+	}
+
+	/**
+	 * Returns the player this snapshot was taken of
+	 * @return
+	 */
+	public PlayerChar getPlayer() {
+		return m_player;
+	}
+
+	/**
+	 * Returns true if anything changed since the player was last saved
+	 * @return
+	 */
+	public boolean hasChanges() {
+		return m_pokemon.size() > 0 || m_items != null || !Arrays.deepEquals(m_values, m_player.getSavedValues());
+	}
+
+	/**
+	 * Adds the changes in this snapshot to the current batch
+	 * @param db
+	 * @throws SQLException
+	 */
+	public void write(MySqlManager db) throws SQLException {
+		Object [][] previous = m_player.getSavedValues();
+		batchChanges(db, "pn_members", MEMBER_COLUMNS, m_values, previous, m_player.getId());
+		if(m_player.getParty() != null && (previous == null || !Arrays.equals(m_values[3], previous[3]))) {
+			db.addBatch("UPDATE pn_party SET " +
+					"pokemon0=?, pokemon1=?, pokemon2=?, pokemon3=?, pokemon4=?, pokemon5=? WHERE member=?",
+					m_values[3][0], m_values[3][1], m_values[3][2], m_values[3][3], m_values[3][4], m_values[3][5],
+					m_player.getId());
+		}
+		for(int i = 0; i < m_pokemon.size(); i++) {
+			batchChanges(db, "pn_pokemon", POKEMON_COLUMNS, m_pokemonValues.get(i), m_pokemon.get(i).getSavedValues(),
+					m_pokemon.get(i).getDatabaseID());
+		}
+		if(m_items != null)
+			writeBag(db, m_player.getBag());
+	}
+
+	/**
+	 * Adds the items that changed in a bag to the current batch.
+	 * Bags that were never loaded are rewritten completely, in the same batch.
+	 * @param db
+	 * @param b
+	 * @throws SQLException
+	 */
+	private void writeBag(MySqlManager db, Bag b) throws SQLException {
+		HashMap<Integer, Integer> stored = b.getSavedItems();
+		if(stored == null) {
+			/*
+			 * Destroy item data to prevent dupes. Batched statements run in the order their SQL was
+			 * first added, so the rewrite uses its own INSERT which is always added after this DELETE.
+			 */
+			db.addBatch("DELETE FROM pn_bag WHERE member=?", b.getMemberId());
+			for(Integer item : m_items.keySet())
+				db.addBatch("INSERT INTO pn_bag (member,item,quantity) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE quantity=?",
+						b.getMemberId(), item, m_items.get(item), m_items.get(item));
+			return;
+		}
+		HashSet<Integer> removed = new HashSet<Integer>(stored.keySet());
+		/*
+		 * NOTE: Items are stored as values 1 - 999
+		 */
+		for(Integer item : m_items.keySet()) {
+			Integer quantity = m_items.get(item);
+			removed.remove(item);
+			if(!quantity.equals(stored.get(item)))
+				db.addBatch("INSERT INTO pn_bag (member,item,quantity) VALUES (?, ?, ?) " +
+						"ON DUPLICATE KEY UPDATE quantity=VALUES(quantity)",
+						b.getMemberId(), item, quantity);
+		}
+		for(Integer item : removed) {
+			db.addBatch("DELETE FROM pn_bag WHERE member=? AND item=?", b.getMemberId(), item);
+		}
+	}
+
+	/**
+	 * Called once the transaction this snapshot was written in is committed
+	 */
+	public void committed() {
+		m_player.setSavedValues(m_values);
+		for(int i = 0; i < m_pokemon.size(); i++)
+			m_pokemon.get(i).setSavedValues(m_pokemonValues.get(i));
+		if(m_items != null)
+			m_player.getBag().setSavedItems(m_items);
+	}
+
+	/**
+	 * Called if the transaction this snapshot was written in failed, so it is saved again next time
+	 */
+	public void rolledBack() {
+		for(int i = 0; i < m_inserted.size(); i++) {
+			m_inserted.get(i).setDatabaseID(-1);
+			m_inserted.get(i).setSavedValues(null);
+		}
+		m_inserted.clear();
+		for(int i = 0; i < m_boxes.size(); i++)
+			m_boxes.get(i).setDirty(true);
+		if(m_items != null)
+			m_player.getBag().setDirty(true);
+	}
+
+	/**
+	 * Adds an update of the column groups that changed since the last save to the current batch.
+	 * Returns false if nothing changed.
+	 * @param db
+	 * @param table
+	 * @param columns
+	 * @param values
+	 * @param saved - the values when last saved, or null to write everything
+	 * @param id
+	 * @return
+	 * @throws SQLException
+	 */
+	private static boolean batchChanges(MySqlManager db, String table, String [][] columns, Object [][] values,
+			Object [][] saved, int id) throws SQLException {
+		StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+		ArrayList<Object> params = new ArrayList<Object>();
+		for(int i = 0; i < columns.length; i++) {
+			if(saved != null && Arrays.equals(values[i], saved[i]))
+				continue;
+			for(int j = 0; j < columns[i].length; j++) {
+				if(params.size() > 0)
+					sql.append(", ");
+				sql.append(columns[i][j]).append("=?");
+				params.add(values[i][j]);
+			}
+		}
+		if(params.size() == 0)
+			return false;
+		sql.append(" WHERE id=?");
+		params.add(id);
+		db.addBatch(sql.toString(), params.toArray());
+		return true;
+	}
+
+	/**
+	 * Returns the values of a player's pn_members columns (grouped as in MEMBER_COLUMNS)
+	 * followed by their party's pokemon ids
+	 * @param p
+	 * @return
+	 */
+	public static Object [][] getPlayerValues(PlayerChar p) {
+		String badges = "";
+		for(int i = 0; i < 42; i++) {
+			if(p.getBadges()[i] == 1)
+				badges = badges + "1";
+			else
+				badges = badges + "0";
+		}
+		Object [] party = new Object[6];
+		for(int i = 0; i < 6; i++)
+			party[i] = (p.getParty() != null && p.getParty()[i] != null ? p.getParty()[i].getDatabaseID() : -1);
+		return new Object[][] {
+				{p.getX(), p.getY(), p.getMapX(), p.getMapY(), String.valueOf(p.isSurfing())},
+				{String.valueOf(p.isMuted()), p.getRawSprite(), p.getMoney(), p.getHerbalismExp(), p.getCraftingExp(),
+					p.getFishingExp(), p.getTrainingExp(), p.getCoordinatingExp(), p.getBreedingExp(),
+					p.getHealX(), p.getHealY(), p.getHealMapX(), p.getHealMapY()},
+				{badges},
+				party
+		};
+	}
+
+	/**
+	 * Returns the values of a pokemon's pn_pokemon columns (grouped as in POKEMON_COLUMNS)
+	 * @param p
+	 * @param currentTrainer
+	 * @return
+	 */
+	public static Object [][] getPokemonValues(Pokemon p, String currentTrainer) {
+		return new Object[][] {
+				{p.getName(), p.getSpeciesName(), String.valueOf(p.getExp()), p.getBaseExp(), p.getExpType().name(),
+					String.valueOf(p.isFainted()), p.getLevel(), p.getHappiness(), p.getItemName(), currentTrainer,
+					p.getContestStatsAsString()},
+				{getMoveName(p, 0), getMoveName(p, 1), getMoveName(p, 2), getMoveName(p, 3),
+					p.getPp(0), p.getPp(1), p.getPp(2), p.getPp(3),
+					p.getMaxPp(0), p.getMaxPp(1), p.getMaxPp(2), p.getMaxPp(3),
+					p.getPpUpCount(0), p.getPpUpCount(1), p.getPpUpCount(2), p.getPpUpCount(3)},
+				{p.getHealth(), p.getStat(1), p.getStat(2), p.getStat(3), p.getStat(4), p.getStat(5)},
+				{p.getEv(0), p.getEv(1), p.getEv(2), p.getEv(3), p.getEv(4), p.getEv(5),
+					p.getIv(0), p.getIv(1), p.getIv(2), p.getIv(3), p.getIv(4), p.getIv(5)}
+		};
+	}
+
+	/**
+	 * Returns the name of a pokemon's move, or "null" if the slot is empty
+	 * @param p
+	 * @param i
+	 * @return
+	 */
+	private static String getMoveName(Pokemon p, int i) {
+		return p.getMove(i) == null ? "null" : p.getMove(i).getName();
+	}
+
+	/**
+	 * Saves a pokemon to the database that didn't exist in it before. Returns its new id or -1 on failure.
+	 * @param p
+	 * @param currentTrainer
+	 * @param db
+	 * @return
+	 */
+	public static int saveNewPokemon(Pokemon p, String currentTrainer, MySqlManager db) {
+		try {
+			/*
+			 * Due to issues with Pokemon not receiving abilities,
+			 * we're going to ensure they have one
+			 */
+			if(p.getAbility() == null || p.getAbility().getName().equalsIgnoreCase("")) {
+				String [] abilities = PokemonSpecies.getDefaultData().getPossibleAbilities(p.getSpeciesName());
+		        /* First select an ability randomly */
+		        String ab = "";
+		        if(abilities.length == 1)
+		        	ab = abilities[0];
+		        else
+		        	ab = abilities[BattleMechanics.getThreadRandom().nextInt(abilities.length)];
+		        p.setAbility(IntrinsicAbility.getInstance(ab), true);
+			}
+			/*
+			 * Insert the Pokemon into the database and attach its database id to it.
+			 * This needs to be done so it can be attached to the player in the database later.
+			 */
+			int id = db.executeInsert("INSERT INTO pn_pokemon" +
+					"(name, speciesName, exp, baseExp, expType, isFainted, level, happiness, " +
+					"gender, nature, abilityName, itemName, isShiny, currentTrainerName, originalTrainerName, date, contestStats, " +
+					"move0, move1, move2, move3, hp, atk, def, speed, spATK, spDEF, " +
+					"evHP, evATK, evDEF, evSPD, evSPATK, evSPDEF, ivHP, ivATK, ivDEF, ivSPD, ivSPATK, ivSPDEF, " +
+					"pp0, pp1, pp2, pp3, maxpp0, maxpp1, maxpp2, maxpp3, ppUp0, ppUp1, ppUp2, ppUp3) " +
+					"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " +
+					"?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " +
+					"?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " +
+					"?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+					p.getName(),
+					p.getSpeciesName(),
+					String.valueOf(p.getExp()),
+					p.getBaseExp(),
+					p.getExpType().name(),
+					String.valueOf(p.isFainted()),
+					p.getLevel(),
+					p.getHappiness(),
+					p.getGender(),
+					p.getNature().getName(),
+					p.getAbilityName(),
+					p.getItemName(),
+					String.valueOf(p.isShiny()),
+					currentTrainer,
+					p.getOriginalTrainer(),
+					p.getDateCaught(),
+					p.getContestStatsAsString(),
+					getMoveName(p, 0), getMoveName(p, 1), getMoveName(p, 2), getMoveName(p, 3),
+					p.getHealth(), p.getStat(1), p.getStat(2), p.getStat(3), p.getStat(4), p.getStat(5),
+					p.getEv(0), p.getEv(1), p.getEv(2), p.getEv(3), p.getEv(4), p.getEv(5),
+					p.getIv(0), p.getIv(1), p.getIv(2), p.getIv(3), p.getIv(4), p.getIv(5),
+					p.getPp(0), p.getPp(1), p.getPp(2), p.getPp(3),
+					p.getMaxPp(0), p.getMaxPp(1), p.getMaxPp(2), p.getMaxPp(3),
+					p.getPpUpCount(0), p.getPpUpCount(1), p.getPpUpCount(2), p.getPpUpCount(3));
+			p.setDatabaseID(id);
+			p.setSavedValues(getPokemonValues(p, currentTrainer));
+			return id;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+}
@@ -13,6 +13,7 @@ import org.pokenet.server.GameServer;
 import org.pokenet.server.battle.DataService;
 import org.pokenet.server.battle.Pokemon;
 import org.pokenet.server.battle.PokemonSpecies;
+import org.pokenet.server.battle.mechanics.BattleMechanics;
 import org.pokenet.server.battle.mechanics.PokemonNature;
 import org.pokenet.server.battle.mechanics.moves.MoveListEntry;
 
@@ -85,10 +86,9 @@ public class RegistrationManager implements Runnable {
 			/*
 			 * Check if the user exists
 			 */
-			ResultSet data = m_database.query("SELECT * FROM pn_members WHERE username='" + MySqlManager.parseSQL(info[0]) + "'");
-			data.first();
+			ResultSet data = m_database.executeQuery("SELECT username FROM pn_members WHERE username=?", info[0]);
 			try {				
-				if(data != null && data.getString("username") != null && data.getString("username").equalsIgnoreCase(MySqlManager.parseSQL(info[0]))) {
+				if(data.first() && data.getString("username") != null && data.getString("username").equalsIgnoreCase(info[0])) {
 					session.resumeRead();
 					session.resumeWrite();
 					session.write("r2");
@@ -98,10 +98,9 @@ public class RegistrationManager implements Runnable {
 			/*
 			 * Check if an account is already registered with the email
 			 */
-			data = m_database.query("SELECT * FROM pn_members WHERE email='" + MySqlManager.parseSQL(info[2]) + "'");
-			data.first();
+			data = m_database.executeQuery("SELECT email FROM pn_members WHERE email=?", info[2]);
 			try {				
-				if(data != null && data.getString("email") != null && data.getString("email").equalsIgnoreCase(MySqlManager.parseSQL(info[2]))) {
+				if(data.first() && data.getString("email") != null && data.getString("email").equalsIgnoreCase(info[2])) {
 					session.resumeRead();
 					session.resumeWrite();
 					session.write("r5");
@@ -161,20 +160,11 @@ public class RegistrationManager implements Runnable {
 			/*
 			 * Insert player into database
 			 */
-			m_database.query("INSERT INTO pn_members (username, password, dob, email, lastLoginTime, lastLoginServer, " +
+			int playerId = m_database.executeInsert("INSERT INTO pn_members (username, password, dob, email, lastLoginTime, lastLoginServer, " +
 					"sprite, money, skHerb, skCraft, skFish, skTrain, skCoord, skBreed, " +
-					"x, y, mapX, mapY, badges, healX, healY, healMapX, healMapY, isSurfing, adminLevel, muted) VALUE " +
-					"('" + MySqlManager.parseSQL(info[0]) + "', '" + MySqlManager.parseSQL(info[1]) + "', '" + MySqlManager.parseSQL(info[3]) + "', '" + MySqlManager.parseSQL(info[2]) + "', " +
-							"'0', 'null', '" + MySqlManager.parseSQL(info[5]) + "', '0', '0', " +
-									"'0', '0', '0', '0', '0', '" + x + "', '" + y + "', " +
-									"'" + mapX + "', '" + mapY + "', '" + badges + "', '" + x + "', '" + y + "', '" 
-									+ mapX + "', '" + mapY + "', 'false', '0', 'false')");
-			/*
-			 * Retrieve the player's unique id
-			 */
-			data = m_database.query("SELECT * FROM pn_members WHERE username='" + MySqlManager.parseSQL(info[0]) + "'");
-			data.first();
-			int playerId = data.getInt("id");
+					"x, y, mapX, mapY, badges, healX, healY, healMapX, healMapY, isSurfing, adminLevel, muted) VALUES " +
+					"(?, ?, ?, ?, '0', 'null', ?, '0', '0', '0', '0', '0', '0', '0', ?, ?, ?, ?, ?, ?, ?, ?, ?, 'false', '0', 'false')",
+					info[0], info[1], info[3], info[2], info[5], x, y, mapX, mapY, badges, x, y, mapX, mapY);
 			//Player's bag is now created "on the fly" as soon as player gets his first item. 
 			/*
 			 * Create the players party
@@ -182,18 +172,17 @@ public class RegistrationManager implements Runnable {
 			Pokemon p = this.createStarter(s);
 			p.setOriginalTrainer(info[0]);
 			p.setDateCaught(new SimpleDateFormat("yyyy-MM-dd:HH-mm-ss").format(new Date()));
-			this.saveNewPokemon(p, m_database);
+			if(PlayerSave.saveNewPokemon(p, info[0], m_database) < 0)
+				throw new Exception("Could not save the starter of " + info[0]);
 			
-			m_database.query("INSERT INTO pn_party (member, pokemon0, pokemon1, pokemon2, pokemon3, pokemon4, pokemon5) VALUES ('" +
-					+ playerId + "','" + p.getDatabaseID() + "','-1','-1','-1','-1','-1')");
-			data = m_database.query("SELECT * FROM pn_party WHERE member='" + playerId + "'");
-			data.first();
+			int partyId = m_database.executeInsert("INSERT INTO pn_party (member, pokemon0, pokemon1, pokemon2, pokemon3, pokemon4, pokemon5) " +
+					"VALUES (?, ?, -1, -1, -1, -1, -1)", playerId, p.getDatabaseID());
 			/*
 			 * Attach pokemon to the player
 			 */
-			m_database.query("UPDATE pn_members SET party='" + data.getInt("id") + "' WHERE id='" + playerId + "'");
+			m_database.executeUpdate("UPDATE pn_members SET party=? WHERE id=?", partyId, playerId);
 			/* Attach a bag of 5 pokeballs to the player */
-			m_database.query("INSERT INTO pn_bag (member,item,quantity) VALUES ('" + playerId + "', '35', '5')");
+			m_database.executeUpdate("INSERT INTO pn_bag (member,item,quantity) VALUES (?, 35, 5)", playerId);
 			/*
 			 * Finish
 			 */
@@ -225,6 +214,9 @@ public class RegistrationManager implements Runnable {
 						session.resumeRead();
 						session.resumeWrite();
 						session.write("r3");
+					} finally {
+						/* Always return the connection to the pool, even on early returns */
+						m_database.close();
 					}
 				}
 			}
@@ -252,87 +244,6 @@ public class RegistrationManager implements Runnable {
 		m_isRunning = false;
 	}
 	
-	/**
-	 * Saves a pokemon to the database that didn't exist in it before
-	 * @param p
-	 */
-	private boolean saveNewPokemon(Pokemon p, MySqlManager db) {
-		try {
-			/*
-			 * Insert the Pokemon into the database
-			 */
-			db.query("INSERT INTO pn_pokemon" +
-					"(name, speciesName, exp, baseExp, expType, isFainted, level, happiness, " +
-					"gender, nature, abilityName, itemName, isShiny, currentTrainerName, originalTrainerName, date, contestStats)" +
-					"VALUES (" +
-					"'" + MySqlManager.parseSQL(p.getName()) +"', " +
-					"'" + MySqlManager.parseSQL(p.getSpeciesName()) +"', " +
-					"'" + String.valueOf(p.getExp()) +"', " +
-					"'" + p.getBaseExp() +"', " +
-					"'" + MySqlManager.parseSQL(p.getExpType().name()) +"', " +
-					"'" + String.valueOf(p.isFainted()) +"', " +
-					"'" + p.getLevel() +"', " +
-					"'" + p.getHappiness() +"', " +
-					"'" + p.getGender() +"', " +
-					"'" + MySqlManager.parseSQL(p.getNature().getName()) +"', " +
-					"'" + MySqlManager.parseSQL(p.getAbilityName()) +"', " +
-					"'" + MySqlManager.parseSQL(p.getItemName()) +"', " +
-					"'" + String.valueOf(p.isShiny()) +"', " +
-					"'" + MySqlManager.parseSQL(p.getOriginalTrainer()) + "', " +
-					"'" + MySqlManager.parseSQL(p.getOriginalTrainer()) + "', " +
-					"'" + MySqlManager.parseSQL(p.getDateCaught()) + "', " +
-					"'" + p.getContestStatsAsString() + "')");
-			/*
-			 * Get the pokemon's database id and attach it to the pokemon.
-			 * This needs to be done so it can be attached to the player in the database later.
-			 */
-			ResultSet result = db.query("SELECT * FROM pn_pokemon WHERE originalTrainerName='"  + MySqlManager.parseSQL(p.getOriginalTrainer()) + 
-					"' AND date='" + MySqlManager.parseSQL(p.getDateCaught()) + "'");
-			result.first();
-			p.setDatabaseID(result.getInt("id"));
-			db.query("UPDATE pn_pokemon SET move0='" + MySqlManager.parseSQL(p.getMove(0).getName()) +
-					"', move1='" + (p.getMove(1) == null ? "null" : MySqlManager.parseSQL(p.getMove(1).getName())) +
-					"', move2='" + (p.getMove(2) == null ? "null" : MySqlManager.parseSQL(p.getMove(2).getName())) +
-					"', move3='" + (p.getMove(3) == null ? "null" : MySqlManager.parseSQL(p.getMove(3).getName())) +
-					"', hp='" + p.getHealth() +
-					"', atk='" + p.getStat(1) +
-					"', def='" + p.getStat(2) +
-					"', speed='" + p.getStat(3) +
-					"', spATK='" + p.getStat(4) +
-					"', spDEF='" + p.getStat(5) +
-					"', evHP='" + p.getEv(0) +
-					"', evATK='" + p.getEv(1) +
-					"', evDEF='" + p.getEv(2) +
-					"', evSPD='" + p.getEv(3) +
-					"', evSPATK='" + p.getEv(4) +
-					"', evSPDEF='" + p.getEv(5) +
-					"' WHERE id='" + p.getDatabaseID() + "'");
-			db.query("UPDATE pn_pokemon SET ivHP='" + p.getIv(0) +
-					"', ivATK='" + p.getIv(1) +
-					"', ivDEF='" + p.getIv(2) +
-					"', ivSPD='" + p.getIv(3) +
-					"', ivSPATK='" + p.getIv(4) +
-					"', ivSPDEF='" + p.getIv(5) +
-					"', pp0='" + p.getPp(0) +
-					"', pp1='" + p.getPp(1) +
-					"', pp2='" + p.getPp(2) +
-					"', pp3='" + p.getPp(3) +
-					"', maxpp0='" + p.getMaxPp(0) +
-					"', maxpp1='" + p.getMaxPp(1) +
-					"', maxpp2='" + p.getMaxPp(2) +
-					"', maxpp3='" + p.getMaxPp(3) +
-					"', ppUp0='" + p.getPpUpCount(0) +
-					"', ppUp1='" + p.getPpUpCount(1) +
-					"', ppUp2='" + p.getPpUpCount(2) +
-					"', ppUp3='" + p.getPpUpCount(3) +
-					"' WHERE id='" + p.getDatabaseID() + "'");
-			return true;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return false;
-		}
-	}
-	
 	/**
 	 * Creates a starter Pokemon
 	 * @param speciesIndex
@@ -388,7 +299,7 @@ public class RegistrationManager implements Runnable {
         
         ArrayList<MoveListEntry> possibleMoves = new ArrayList<MoveListEntry>();
         MoveListEntry[] moves = new MoveListEntry[4];
-        Random random = DataService.getBattleMechanics().getRandom();
+        Random random = BattleMechanics.getThreadRandom();
         for (int i = 0; i < species.getStarterMoves().length; i++) {
                 possibleMoves.add(DataService.getMovesList().getMove(
                 		species.getStarterMoves()[i]));
@@ -1,8 +1,8 @@
 package org.pokenet.server.network;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
@@ -14,6 +14,10 @@ import org.pokenet.server.backend.entity.Positionable.Direction;
 import org.pokenet.server.battle.BattleTurn;
 import org.pokenet.server.battle.impl.PvPBattleField;
 import org.pokenet.server.battle.impl.WildBattleField;
+import org.pokenet.server.battle.mechanics.MoveQueueException;
+import org.pokenet.server.feature.ChatEvent;
+import org.pokenet.server.feature.ChatEvent.ChatEventType;
+import org.pokenet.server.network.codec.BinaryProtocol;
 import org.pokenet.server.network.message.ItemMessage;
 import org.pokenet.server.network.message.PokenetMessage;
 import org.pokenet.server.network.message.RequestMessage;
@@ -28,6 +32,7 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 	private LoginManager m_loginManager;
 	private LogoutManager m_logoutManager;
 	private RegistrationManager m_regManager;
+	private PacketDispatcher m_dispatcher;
 	
 	/**
 	 * Constructor
@@ -39,6 +44,9 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 		m_logoutManager = logout;
 		m_regManager = new RegistrationManager();
 		m_regManager.start();
+		m_dispatcher = new PacketDispatcher();
+		registerHandlers();
+		m_dispatcher.start();
 	}
 	
 	static {
@@ -78,64 +86,92 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 	
 	/**
 	    * Once the server receives a packet from the client, this method is run.
+	    * The packet is passed to the handler registered for its opcode.
 	    * @param IoSession session - A client session
 	    * @param Object msg - The packet received from the client
 		*/
 	public void messageReceived(IoSession session, Object msg) throws Exception {
 		String message = (String) msg;
-		String [] details;
-		if (!message.equals("L") && !message.equals("R") && !message.equals("D") && !message.equals("U")) {
-			System.out.println(message);
+		if(message.equals(BinaryProtocol.HANDSHAKE)) {
+			/* The client supports binary frames, confirm in text then switch */
+			session.write(BinaryProtocol.HANDSHAKE);
+			OutboundChannel channel = (OutboundChannel) session.getAttribute(OutboundChannel.ATTRIBUTE);
+			if(channel != null)
+				channel.flush();
+			session.setAttribute(BinaryProtocol.BINARY_OUT, Boolean.TRUE);
+			return;
 		}
-		if(session.getAttribute("player") == null) {
-			/*
-			 * The player hasn't been logged in, only allow login and registration packets
-			 */
-			switch(message.charAt(0)) {
-			case 'l':
-				//Login packet
-				details = message.substring(1).split(",");
+		PlayerChar p = (PlayerChar) session.getAttribute("player");
+		if(p != null)
+			p.lastPacket = System.currentTimeMillis();
+		m_dispatcher.dispatch(session, p, message);
+	}
+
+	/**
+	 * Returns the packet dispatcher
+	 * @return
+	 */
+	public PacketDispatcher getDispatcher() {
+		return m_dispatcher;
+	}
+
+	/**
+	 * Registers the handlers for each packet type.
+	 * Shop, box, trade, item and moderation packets are slow (they may touch the database
+	 * or sleep during battle) so they are handled on the dispatcher's worker threads.
+	 * A client's packets that arrive while its slow packets are waiting are queued behind them.
+	 */
+	private void registerHandlers() {
+		/*
+		 * The player hasn't been logged in, only allow login and registration packets
+		 */
+		PacketHandler login = new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
+				//Login packet (l) or force login (f)
+				String [] details = message.substring(1).split(",");
 				m_loginManager.queuePlayer(session, details[0], details[1]);
-				break;
-			case 'r':
+			}
+		};
+		m_dispatcher.registerLogin('l', login);
+		m_dispatcher.registerLogin('f', login);
+		m_dispatcher.registerLogin('r', new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Registration packet
 				m_regManager.queueRegistration(session, message.substring(1));
-				break;
-			case 'c':
+			}
+		});
+		m_dispatcher.registerLogin('c', new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Change password packet
-				details = message.substring(1).split(",");
+				String [] details = message.substring(1).split(",");
 				m_loginManager.queuePasswordChange(session, details[0], details[1], details[2]);
-				break;
-			case 'f':
-				//Force login
-				details = message.substring(1).split(",");
-				m_loginManager.queuePlayer(session, details[0], details[1]);
-				break;
 			}
-		} else {
-			/*
-			 * Player is logged in, allow interaction with their player object
-			 */
-			PlayerChar p = (PlayerChar) session.getAttribute("player");
-			p.lastPacket = System.currentTimeMillis();
-			switch(message.charAt(0)) {
-			case 'U':
-				//Move up
+		});
+		/*
+		 * Player is logged in, allow interaction with their player object
+		 */
+		m_dispatcher.register('U', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				p.queueMovement(Direction.Up);
-				break;
-			case 'D':
-				//Move down
+			}
+		});
+		m_dispatcher.register('D', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				p.queueMovement(Direction.Down);
-				break;
-			case 'L':
-				//Move left
+			}
+		});
+		m_dispatcher.register('L', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				p.queueMovement(Direction.Left);
-				break;
-			case 'R':
-				//Move right
+			}
+		});
+		m_dispatcher.register('R', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				p.queueMovement(Direction.Right);
-				break;
-			case 'P':
+			}
+		});
+		m_dispatcher.register('P', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Pokemon interaction
 				int pokemonIndex = 0;
 				String move;
@@ -180,13 +216,17 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 					}
 					break;
 				}
-				break;
-			case 's':
+			}
+		});
+		m_dispatcher.register('s', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Party swapping
-				p.swapPokemon(Integer.parseInt(message.substring(1, message.indexOf(','))), 
+				p.swapPokemon(Integer.parseInt(message.substring(1, message.indexOf(','))),
 						Integer.parseInt(message.substring(message.indexOf(',') + 1)));
-				break;
-			case 'S':
+			}
+		});
+		m_dispatcher.register('S', true, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Shop interaction
 				if(p.isShopping()) {
 					int item = -1;
@@ -222,44 +262,44 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 						}
 					}
 				}
-				break;
-			case 'r':
+			}
+		});
+		m_dispatcher.register('r', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				String player = message.substring(2);
+				PlayerChar o = getPlayer(player);
+				if(o == null)
+					return;
 				//A request was sent
 				switch(message.charAt(1)) {
 				case 'b':
 					//Battle Request rbUSERNAME
-					if(m_players.containsKey(player)) {
-						TcpProtocolHandler.writeMessage(m_players.get(player).getTcpSession(), 
-								new RequestMessage(RequestType.BATTLE, p.getName()));
-						p.addRequest(player, RequestType.BATTLE);
-					}
+					TcpProtocolHandler.writeMessage(o.getTcpSession(),
+							new RequestMessage(RequestType.BATTLE, p.getName()));
+					p.addRequest(player, RequestType.BATTLE);
 					break;
 				case 't':
 					//Trade Request rtUSERNAME
-					if(m_players.containsKey(player)) {
-						TcpProtocolHandler.writeMessage(m_players.get(player).getTcpSession(), 
-								new RequestMessage(RequestType.TRADE, p.getName()));
-						p.addRequest(player, RequestType.TRADE);
-					}
+					TcpProtocolHandler.writeMessage(o.getTcpSession(),
+							new RequestMessage(RequestType.TRADE, p.getName()));
+					p.addRequest(player, RequestType.TRADE);
 					break;
 				case 'a':
 					//Request accepted raUSERNAME
-					if(m_players.containsKey(player)) {
-						m_players.get(player).requestAccepted(p.getName());
-					}
+					o.requestAccepted(p.getName());
 					break;
 				case 'c':
 					//Request declined rcUSERNAME
-					if(m_players.containsKey(player)) {
-						m_players.get(player).removeRequest(p.getName());
-					}
+					o.removeRequest(p.getName());
 					break;
 				}
-				break;
-			case 'B':
+			}
+		});
+		m_dispatcher.register('B', true, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Box interaction
 				if(p.isBoxing()) {
+					String [] details;
 					switch(message.charAt(1)) {
 					case 'r':
 						//Requesting info for box number - e.g. Br0
@@ -275,7 +315,7 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 					case 's':
 						//Swap pokemon between box and party - sent as BsBOXNUM,BOXSLOT,PARTYSLOT, e.g.Bs0,1,0
 						details = message.substring(2).split(",");
-						p.swapFromBox(Integer.parseInt(details[0]), 
+						p.swapFromBox(Integer.parseInt(details[0]),
 								Integer.parseInt(details[1]), Integer.parseInt(details[2]));
 						break;
 					case 'f':
@@ -284,200 +324,95 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 						break;
 					}
 				}
-				break;
-			case 'M':
+			}
+		});
+		m_dispatcher.register('M', true, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Moderation
 				if(message.charAt(1) == 'c') {
-					p.getTcpSession().write("Cl" + m_players.size() + " players online");
+					p.getTcpSession().write("Cl" + getPlayerCount() + " players online");
 				} else if(p.getAdminLevel() > 0) {
+					try {
+						moderate(p, message);
+					} catch (Exception e) {}
+				}
+			}
+		});
+		m_dispatcher.register('b', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
+				//Battle information
+				if(p.isBattling()) {
+					BattleTurn turn;
 					try {
 						switch(message.charAt(1)) {
-						case 'a':
-							//Server announcement
-							for (String s : m_players.keySet()){
-								m_players.get(s).getTcpSession().write("q" + message.substring(2));
-							}
-							break;						
-						case 'l':
-							//Send an alert
-							if(p.getAdminLevel()>1)
-								for (String s : m_players.keySet()){
-									m_players.get(s).getTcpSession().write("!" + message.substring(2));
-								}
-							break;
-						case 'b':
-							//Ban player
-							if(m_players.containsKey(message.substring(2))) {
-								PlayerChar o = m_players.get(message.substring(2));
-								MySqlManager m = new MySqlManager();
-								if(m.connect(GameServer.getDatabaseHost(), 
-										GameServer.getDatabaseUsername(), 
-										GameServer.getDatabasePassword())) {
-									m.selectDatabase(GameServer.getDatabaseName());
-									m.query("INSERT INTO pn_bans (ip) VALUE ('" + 
-											o.getIpAddress()
-											+ "')");
-									m.close();
-								}
-							}
-							break;
-						case 'B':
-							//Unban ip
-							MySqlManager m = new MySqlManager();
-							if(m.connect(GameServer.getDatabaseHost(), 
-									GameServer.getDatabaseUsername(), 
-									GameServer.getDatabasePassword())) {
-								m.selectDatabase(GameServer.getDatabaseName());
-								m.query("DELETE FROM pn_bans WHERE ip='" + 
-										message.substring(2)
-										+ "'");
-								m.close();
-							}
-							break;
-						case 'W':
-							//Warp to player
-							if(m_players.containsKey(message.substring(2))) {
-								PlayerChar o = m_players.get(message.substring(2));
-								p.setX(o.getX());
-								p.setY(o.getY());
-								p.setMap(o.getMap(), null);
-							}
-							break;
 						case 'm':
-							//Mute player
-							if(m_players.containsKey(message.substring(2))) {
-								PlayerChar o = m_players.get(message.substring(2));
-								o.setMuted(true);
-								o.getTcpSession().write("!You have been muted.");
-							}
-							break;
-						case 'u':
-							//Unmute player
-							if(m_players.containsKey(message.substring(2))) {
-								PlayerChar o = m_players.get(message.substring(2));
-								o.setMuted(false);
-								o.getTcpSession().write("!You have been unmuted.");
-							}
+							//Move selected (bmINDEXOFMOVE)
+							turn = BattleTurn.getMoveTurn(Integer.parseInt(message.substring(2)));
+							p.getBattleField().queueMove(p.getBattleId(), turn);
 							break;
-						case 'k':
-							if(m_players.containsKey(message.substring(2))) {
-								PlayerChar o = m_players.get(message.substring(2));
-								o.getTcpSession().write("!You have been kicked from the server.");
-								o.getTcpSession().close(true);
-							}
-							break;
-						case 'w':
-							//Change weather on current map
-							switch(message.charAt(2)) {
-							case 'n':
-								//Normal
-								GameServer.getServiceManager().getTimeService().setForcedWeather(0);
-								break;
-							case 'r':
-								//Rain
-								GameServer.getServiceManager().getTimeService().setForcedWeather(1);
-								break;
-							case 's':
-								//Snow/Hail
-								GameServer.getServiceManager().getTimeService().setForcedWeather(2);
-								break;		
-							case 'f':
-								//Fog
-								GameServer.getServiceManager().getTimeService().setForcedWeather(3);
-								break;
-							case 'S':
-								//Sandstorm
-								GameServer.getServiceManager().getTimeService().setForcedWeather(4);
-								break;
-							case 'R':
-								//Random
-								GameServer.getServiceManager().getTimeService().setForcedWeather(9);
-								break;
-							}
 						case 's':
-							if(p.getAdminLevel() == 2) {
-								GameServer.getServiceManager().stop();
-								return;
+							//Pokemon switch (bsPARTYINDEX)
+							int pIndex = Integer.parseInt(message.substring(2));
+							if(p.getParty()[pIndex] != null) {
+								if(!p.getParty()[pIndex].isFainted()) {
+									turn = BattleTurn.getSwitchTurn(pIndex);
+									p.getBattleField().queueMove(p.getBattleId(), turn);
+								}
 							}
 							break;
-						case 'n':
-							//Announce message to server
-							if(p.getAdminLevel() == 2) {
-								//TODO: add code?
-								  String mes = message.substring(3);
-                                  GameServer.getServiceManager().getNetworkService().getChatManager().
-                                  queueLocalChatMessage("<SERVER> " + mes, p.getMapX(), p.getMapY(), p.getLanguage());
+						case 'r':
+							//Run
+							if(p.getBattleField() instanceof WildBattleField) {
+								((WildBattleField) p.getBattleField()).run();
 							}
 							break;
 						}
-					} catch (Exception e) {}
-				}
-				break;
-			case 'b':
-				//Battle information
-				if(p.isBattling()) {
-					BattleTurn turn;
-					switch(message.charAt(1)) {
-					case 'm':
-						//Move selected (bmINDEXOFMOVE)
-						turn = BattleTurn.getMoveTurn(Integer.parseInt(message.substring(2)));
-						p.getBattleField().queueMove(p.getBattleId(), turn);
-						break;
-					case 's':
-						//Pokemon switch (bsPARTYINDEX)
-						int pIndex = Integer.parseInt(message.substring(2));
-						if(p.getParty()[pIndex] != null) {
-							if(!p.getParty()[pIndex].isFainted()) {
-								turn = BattleTurn.getSwitchTurn(pIndex);
-								p.getBattleField().queueMove(p.getBattleId(), turn);
-							}
-						}
-						break;
-					case 'r':
-						//Run
-						if(p.getBattleField() instanceof WildBattleField) {
-							((WildBattleField) p.getBattleField()).run();
-						}
-						break;
+					} catch (MoveQueueException e) {
+						/* Handled like any other exception, the player is logged out */
+						throw new RuntimeException(e);
 					}
 				}
-				break;
-			case 'F':
+			}
+		});
+		m_dispatcher.register('F', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Friend list
-				String friend = message.substring(2);
 				switch(message.charAt(1)) {
 				case 'a':
 					//Add a friend
-					if(m_players.containsKey(friend));
-						p.addFriend(message.substring(2));
+					p.addFriend(message.substring(2));
 					break;
 				case 'r':
 					//Remove a friend
 					p.removeFriend(message.substring(2));
 					break;
 				}
-				break;
-			case 'I':
+			}
+		});
+		m_dispatcher.register('I', true, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Use an item, applies inside and outside of battle
-				details = message.substring(1).split(",");
-				System.out.println("Item used. "+message);
-				new Thread(new ItemProcessor(p, details)).start();
-				break;
-			case 'i':
+				new ItemProcessor(p, message.substring(1).split(",")).run();
+			}
+		});
+		m_dispatcher.register('i', true, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Drop item
 				if(p.getBag().removeItem(Integer.parseInt(message.substring(1)), 1)) {
-					TcpProtocolHandler.writeMessage(p.getTcpSession(), new ItemMessage(false, 
+					TcpProtocolHandler.writeMessage(p.getTcpSession(), new ItemMessage(false,
 							Integer.parseInt(message.substring(1)), 1));
 				}
-				break;
-			case 'T':
+			}
+		});
+		m_dispatcher.register('T', true, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Trade packets
 				if(p.isTrading()) {
 					switch (message.charAt(1)){
 					case 'o':
 						//Make an offer ToPOKENUM,MONEYAMOUNT
-						details = message.substring(2).split(",");
-						p.getTrade().setOffer(p, Integer.parseInt(String.valueOf(details[0])) , 
+						String [] details = message.substring(2).split(",");
+						p.getTrade().setOffer(p, Integer.parseInt(String.valueOf(details[0])) ,
 								Integer.parseInt(String.valueOf(details[1])));
 						break;
 					case 't':
@@ -494,25 +429,28 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 						break;
 					}
 				}
-				break;
-			case 'C':
+			}
+		});
+		m_dispatcher.register('C', false, new PacketHandler() {
+			public void handle(IoSession session, PlayerChar p, String message) {
 				//Chat/Interact
-                switch(message.charAt(1)) {
-                case 'l':
-                        //Local chat
-                        String mes = message.substring(2);
-                        if(!p.isMuted())
-                                GameServer.getServiceManager().getNetworkService().getChatManager().
-                                queueLocalChatMessage("<" + p.getName() + "> " + mes, p.getMapX(), p.getMapY(), p.getLanguage());
-                        break;
-                case 'p':
-                        //Private chat
-                        details = message.substring(2).split(",");
-                        if(m_players.containsKey(details[0])) {
-                                GameServer.getServiceManager().getNetworkService().getChatManager().
-                                queuePrivateMessage(details[1], m_players.get(details[0]).getTcpSession(), p.getName());
-                        }
-                        break;
+				switch(message.charAt(1)) {
+				case 'l':
+					//Local chat
+					String mes = message.substring(2);
+					if(!p.isMuted())
+						GameServer.getServiceManager().getNetworkService().getChatManager().
+						dispatch(new ChatEvent(ChatEventType.LOCAL, p, null, mes));
+					break;
+				case 'p':
+					//Private chat
+					String [] details = message.substring(2).split(",");
+					PlayerChar o = getPlayer(details[0]);
+					if(o != null) {
+						GameServer.getServiceManager().getNetworkService().getChatManager().
+						dispatch(new ChatEvent(ChatEventType.PRIVATE, p, o, details[1]));
+					}
+					break;
 				case 't':
 					//Start talking
 					if(!p.isTalking() && !p.isBattling())
@@ -524,11 +462,137 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 						p.setTalking(false);
 					break;
 				}
+			}
+		});
+	}
+
+	/**
+	 * Handles a moderation packet from a player with an admin level above 0
+	 * @param p
+	 * @param message
+	 */
+	private void moderate(PlayerChar p, String message) {
+		PlayerChar o;
+		switch(message.charAt(1)) {
+		case 'a':
+			//Server announcement
+			for(PlayerChar c : getPlayers()) {
+				c.getTcpSession().write("q" + message.substring(2));
+			}
+			break;
+		case 'l':
+			//Send an alert
+			if(p.getAdminLevel()>1)
+				for(PlayerChar c : getPlayers()) {
+					c.getTcpSession().write("!" + message.substring(2));
+				}
+			break;
+		case 'b':
+			//Ban player
+			o = getPlayer(message.substring(2));
+			if(o != null) {
+				MySqlManager m = new MySqlManager();
+				if(m.connect(GameServer.getDatabaseHost(),
+						GameServer.getDatabaseUsername(),
+						GameServer.getDatabasePassword())) {
+					m.selectDatabase(GameServer.getDatabaseName());
+					m.query("INSERT INTO pn_bans (ip) VALUE ('" +
+							o.getIpAddress()
+							+ "')");
+					m.close();
+				}
+			}
+			break;
+		case 'B':
+			//Unban ip
+			MySqlManager m = new MySqlManager();
+			if(m.connect(GameServer.getDatabaseHost(),
+					GameServer.getDatabaseUsername(),
+					GameServer.getDatabasePassword())) {
+				m.selectDatabase(GameServer.getDatabaseName());
+				m.query("DELETE FROM pn_bans WHERE ip='" +
+						message.substring(2)
+						+ "'");
+				m.close();
+			}
+			break;
+		case 'W':
+			//Warp to player
+			o = getPlayer(message.substring(2));
+			if(o != null) {
+				p.setX(o.getX());
+				p.setY(o.getY());
+				p.setMap(o.getMap(), null);
+			}
+			break;
+		case 'm':
+			//Mute player
+			o = getPlayer(message.substring(2));
+			if(o != null) {
+				o.setMuted(true);
+				o.getTcpSession().write("!You have been muted.");
+			}
+			break;
+		case 'u':
+			//Unmute player
+			o = getPlayer(message.substring(2));
+			if(o != null) {
+				o.setMuted(false);
+				o.getTcpSession().write("!You have been unmuted.");
+			}
+			break;
+		case 'k':
+			o = getPlayer(message.substring(2));
+			if(o != null) {
+				o.getTcpSession().write("!You have been kicked from the server.");
+				o.getTcpSession().close(true);
+			}
+			break;
+		case 'w':
+			//Change weather on current map
+			switch(message.charAt(2)) {
+			case 'n':
+				//Normal
+				GameServer.getServiceManager().getTimeService().setForcedWeather(0);
+				break;
+			case 'r':
+				//Rain
+				GameServer.getServiceManager().getTimeService().setForcedWeather(1);
+				break;
+			case 's':
+				//Snow/Hail
+				GameServer.getServiceManager().getTimeService().setForcedWeather(2);
 				break;
+			case 'f':
+				//Fog
+				GameServer.getServiceManager().getTimeService().setForcedWeather(3);
+				break;
+			case 'S':
+				//Sandstorm
+				GameServer.getServiceManager().getTimeService().setForcedWeather(4);
+				break;
+			case 'R':
+				//Random
+				GameServer.getServiceManager().getTimeService().setForcedWeather(9);
+				break;
+			}
+			break;
+		case 's':
+			if(p.getAdminLevel() == 2) {
+				GameServer.getServiceManager().stop();
 			}
+			break;
+		case 'n':
+			//Announce message to server
+			if(p.getAdminLevel() == 2) {
+				String mes = message.substring(3);
+				GameServer.getServiceManager().getNetworkService().getChatManager().
+				dispatch(new ChatEvent(ChatEventType.ANNOUNCEMENT, p, null, mes));
+			}
+			break;
 		}
 	}
-	
+
 	/**
 	 * When a user disconnects voluntarily, this method is called
 	 */
@@ -568,19 +632,17 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 	public void logoutAll() {
 		m_regManager.stop();
 		m_loginManager.stop();
+		m_dispatcher.stop();
 		/*
 		 * Queue all players to be saved
 		 */
-		Iterator<PlayerChar> it = m_players.values().iterator();
-		PlayerChar p;
-		while(it.hasNext()) {
-			p = it.next();
+		for(PlayerChar p : getPlayers()) {
 			m_logoutManager.queuePlayer(p);
 		}
 		/*
-		 * Since the method is called during a server shutdown, wait for all players to be logged out
+		 * Since the method is called during a server shutdown, wait for all players to be logged out.
+		 * The logout manager writes them in batches before its thread finishes.
 		 */
-		while(m_logoutManager.getPlayerAmount() > 0);
 		m_logoutManager.stop();
 	}
 	
@@ -615,6 +677,16 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 		}
 	}
 	
+	/**
+	 * Returns a copy of the list of players
+	 * @return
+	 */
+	public static ArrayList<PlayerChar> getPlayers() {
+		synchronized(m_players) {
+			return new ArrayList<PlayerChar>(m_players.values());
+		}
+	}
+	
 	/**
 	 * Returns true if the player list contains a player
 	 * @param username
@@ -655,6 +727,6 @@ public class TcpProtocolHandler extends IoHandlerAdapter {
 	 */
 	public static void writeMessage(IoSession session, PokenetMessage m) {
 		if(session.isConnected())
-			session.write(m.getMessage());
+			session.write(m);
 	}
 }
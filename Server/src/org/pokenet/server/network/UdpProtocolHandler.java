@@ -60,7 +60,7 @@ public class UdpProtocolHandler extends IoHandlerAdapter {
 	public static void writeMessage(IoSession s, PokenetMessage m) {
 		try {
 			if(s.isConnected())
-				s.write(m.getMessage());
+				s.write(m);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
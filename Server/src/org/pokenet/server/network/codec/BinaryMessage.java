@@ -0,0 +1,28 @@
+package org.pokenet.server.network.codec;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A message which can be written as a binary frame without building a String first
+ * @author shadowkanji
+ *
+ */
+public interface BinaryMessage {
+	/**
+	 * Returns the opcode of this message
+	 * @return
+	 */
+	public byte getOpcode();
+	
+	/**
+	 * Returns the size of the payload in bytes
+	 * @return
+	 */
+	public int getSize();
+	
+	/**
+	 * Writes the payload
+	 * @param buf
+	 */
+	public void encode(IoBuffer buf);
+}
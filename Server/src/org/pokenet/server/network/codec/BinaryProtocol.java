@@ -0,0 +1,92 @@
+package org.pokenet.server.network.codec;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Constants and helpers for the binary protocol.
+ * The server always starts a session in text mode by sending its revision. A client that
+ * supports the binary protocol answers with HANDSHAKE as its first line, the server replies
+ * with HANDSHAKE and from then on both sides send frames of:
+ * 
+ * [int length][byte opcode][payload]
+ * 
+ * where length counts the opcode and payload. Strings are sent as a short length followed by ASCII bytes.
+ * @author shadowkanji
+ *
+ */
+public final class BinaryProtocol {
+	public static final int VERSION = 1;
+	public static final String HANDSHAKE = "Rb" + VERSION;
+	/* The largest frame either side may send */
+	public static final int MAX_FRAME_SIZE = 65536;
+	/* Session attributes set once each direction has switched to binary */
+	public static final String BINARY_IN = BinaryProtocol.class.getName() + ".in";
+	public static final String BINARY_OUT = BinaryProtocol.class.getName() + ".out";
+	
+	/*
+	 * Server to client opcodes
+	 */
+	/* One or more text packets separated by '\n' */
+	public static final byte OP_TEXT = 0;
+	/* short chars, then for each char: int id, byte steps, then a byte direction ('U', 'D', 'L', 'R') per step */
+	public static final byte OP_MOVEMENT = 1;
+	/* int id, int sprite */
+	public static final byte OP_SPRITE_CHANGE = 2;
+	/* byte pokemon (0 = ours, 1 = enemy), int change */
+	public static final byte OP_HEALTH_CHANGE = 3;
+	/* string species, string move */
+	public static final byte OP_BATTLE_MOVE = 4;
+	/* string species */
+	public static final byte OP_FAINT = 5;
+	
+	/*
+	 * Client to server opcodes
+	 */
+	/* One or more text packets separated by '\n' */
+	public static final byte OP_IN_TEXT = 0;
+	/* byte direction ('U', 'D', 'L', 'R') */
+	public static final byte OP_IN_MOVE = 1;
+	
+	private BinaryProtocol() {}
+	
+	/**
+	 * Returns true if messages to this session are sent as binary frames
+	 * @param session
+	 * @return
+	 */
+	public static boolean isBinary(IoSession session) {
+		return session != null && session.getAttribute(BINARY_OUT) != null;
+	}
+	
+	/**
+	 * Returns how many bytes a string takes up in a frame
+	 * @param s
+	 * @return
+	 */
+	public static int getSize(String s) {
+		return 2 + s.length();
+	}
+	
+	/**
+	 * Writes a string as a short length followed by its characters as ASCII
+	 * @param buf
+	 * @param s
+	 */
+	public static void putString(IoBuffer buf, String s) {
+		buf.putShort((short) s.length());
+		putAscii(buf, s);
+	}
+	
+	/**
+	 * Writes the characters of a string as ASCII, characters outside of ASCII are written as '?'
+	 * @param buf
+	 * @param s
+	 */
+	public static void putAscii(IoBuffer buf, CharSequence s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			buf.put(c < 128 ? (byte) c : (byte) '?');
+		}
+	}
+}
@@ -1,32 +1,130 @@
 package org.pokenet.server.network.codec;
 
-import java.nio.charset.Charset;
-
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
-import org.apache.mina.filter.codec.textline.LineDelimiter;
-import org.apache.mina.filter.codec.textline.TextLineDecoder;
 
 /**
- * Decodes messages received from a client
+ * Decodes messages received from a client.
+ * Clients start out sending lines of ASCII text. Once a client sends the binary handshake
+ * everything after it is decoded as binary frames, even if it arrived in the same read.
  * @author shadowkanji
  *
  */
-public class PokenetDecoder extends TextLineDecoder {
+public class PokenetDecoder extends CumulativeProtocolDecoder {
+	/* The longest text line a client may send */
+	public static final int MAX_LINE_LENGTH = 1024;
+	/* Movement packets are reused rather than creating a String per step */
+	private static final String [] MOVEMENTS = new String[128];
+	
+	static {
+		MOVEMENTS['U'] = "U";
+		MOVEMENTS['D'] = "D";
+		MOVEMENTS['L'] = "L";
+		MOVEMENTS['R'] = "R";
+	}
 	
 	/**
-	 * Default constructor
+	 * Decodes as many messages as are available
 	 */
-	public PokenetDecoder() {
-		super(Charset.forName("US-ASCII"), LineDelimiter.AUTO);
+	protected boolean doDecode(IoSession session, IoBuffer in,
+			ProtocolDecoderOutput out) throws Exception {
+		if(session.getAttribute(BinaryProtocol.BINARY_IN) != null)
+			return decodeFrame(in, out);
+		return decodeLine(session, in, out);
 	}
 	
 	/**
-	 * Decodes a message
+	 * Decodes a line of text. Returns false if a full line hasn't been received yet.
+	 * @param session
+	 * @param in
+	 * @param out
+	 * @return
+	 * @throws Exception
 	 */
-	public void decode(IoSession session, IoBuffer in,
-			ProtocolDecoderOutput out) throws Exception {
-		super.decode(session, in, out);
+	private boolean decodeLine(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+		int start = in.position();
+		int end = -1;
+		for(int i = start; i < in.limit(); i++) {
+			byte b = in.get(i);
+			if(b == '\n' || b == '\r') {
+				end = i;
+				break;
+			}
+		}
+		if(end < 0) {
+			if(in.remaining() > MAX_LINE_LENGTH)
+				throw new ProtocolDecoderException("Line too long: " + in.remaining());
+			return false;
+		}
+		String line = readAscii(in, end - start);
+		/* Skip the delimiter */
+		in.get();
+		if(line.length() > 0) {
+			if(line.equals(BinaryProtocol.HANDSHAKE)) {
+				/* Everything the client sends after this is binary */
+				session.setAttribute(BinaryProtocol.BINARY_IN, Boolean.TRUE);
+			}
+			out.write(line);
+		}
+		return true;
+	}
+	
+	/**
+	 * Decodes a binary frame. Returns false if a full frame hasn't been received yet.
+	 * @param in
+	 * @param out
+	 * @return
+	 * @throws Exception
+	 */
+	private boolean decodeFrame(IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+		if(in.remaining() < 4)
+			return false;
+		int length = in.getInt(in.position());
+		if(length < 1 || length > BinaryProtocol.MAX_FRAME_SIZE)
+			throw new ProtocolDecoderException("Invalid frame length: " + length);
+		if(in.remaining() < 4 + length)
+			return false;
+		in.getInt();
+		byte opcode = in.get();
+		switch(opcode) {
+		case BinaryProtocol.OP_IN_TEXT:
+			String text = readAscii(in, length - 1);
+			int lineStart = 0;
+			for(int i = 0; i <= text.length(); i++) {
+				if(i == text.length() || text.charAt(i) == '\n') {
+					if(i > lineStart)
+						out.write(text.substring(lineStart, i));
+					lineStart = i + 1;
+				}
+			}
+			break;
+		case BinaryProtocol.OP_IN_MOVE:
+			if(length < 2)
+				throw new ProtocolDecoderException("Invalid move frame");
+			byte direction = in.get();
+			in.skip(length - 2);
+			if(direction > 0 && MOVEMENTS[direction] != null)
+				out.write(MOVEMENTS[direction]);
+			break;
+		default:
+			throw new ProtocolDecoderException("Unknown opcode: " + opcode);
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads ASCII characters from a buffer
+	 * @param in
+	 * @param length
+	 * @return
+	 */
+	private static String readAscii(IoBuffer in, int length) {
+		char [] chars = new char[length];
+		for(int i = 0; i < length; i++)
+			chars[i] = (char) (in.get() & 0x7f);
+		return new String(chars);
 	}
 }
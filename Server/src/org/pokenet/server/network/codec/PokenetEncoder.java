@@ -1,51 +1,59 @@
 package org.pokenet.server.network.codec;
 
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
+import java.util.List;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
-import org.apache.mina.filter.codec.textline.LineDelimiter;
-import org.apache.mina.filter.codec.textline.TextLineEncoder;
+import org.pokenet.server.network.message.PokenetMessage;
 
 /**
- * Encodes messages to be sent to the client
+ * Encodes messages to be sent to the client.
+ * Messages are sent as lines of ASCII text unless the client switched to the binary protocol.
+ * A list of messages is encoded into a single buffer.
+ * Buffers are allocated at their exact size so they can be reused by a pooling allocator.
  * @author shadowkanji
  *
  */
 public class PokenetEncoder extends ProtocolEncoderAdapter {
-	private static final String ENCODER = TextLineEncoder.class.getName() + ".encoder";
-	private final Charset m_charset;
-	private final LineDelimiter m_delimiter;
-	
-	/**
-	 * Default constructor
-	 */
-	public PokenetEncoder() {
-		m_charset = Charset.forName("US-ASCII");
-		m_delimiter = LineDelimiter.UNIX;
-	}
 
 	public void encode(IoSession session, Object message, ProtocolEncoderOutput out)
 			throws Exception {
-		CharsetEncoder encoder = (CharsetEncoder) session.getAttribute(ENCODER);
-        if (encoder == null) {
-            encoder = m_charset.newEncoder();
-            session.setAttribute(ENCODER, encoder);
-        }
-
-        String value = message.toString();
-        IoBuffer buf = IoBuffer.allocate(value.length())
-                .setAutoExpand(true);
-        buf.putString(value, encoder);
-        if (buf.position() > Integer.MAX_VALUE) {
-            throw new IllegalArgumentException("Line length: " + buf.position());
-        }
-        buf.putString(m_delimiter.getValue(), encoder);
-        buf.flip();
-        out.write(buf);
+		boolean binary = BinaryProtocol.isBinary(session);
+		/* Outbound channels pass all messages queued during a tick as one list */
+		Object [] parts = message instanceof List ? ((List<?>) message).toArray() : new Object [] {message};
+		int size = 0;
+		for(int i = 0; i < parts.length; i++) {
+			if(binary && parts[i] instanceof BinaryMessage) {
+				size += 5 + ((BinaryMessage) parts[i]).getSize();
+			} else {
+				parts[i] = parts[i] instanceof PokenetMessage ?
+						((PokenetMessage) parts[i]).getMessage() : parts[i].toString();
+				size += (binary ? 5 : 1) + ((String) parts[i]).length();
+			}
+		}
+		IoBuffer buf = IoBuffer.allocate(size);
+		for(int i = 0; i < parts.length; i++) {
+			if(parts[i] instanceof BinaryMessage) {
+				BinaryMessage m = (BinaryMessage) parts[i];
+				buf.putInt(m.getSize() + 1);
+				buf.put(m.getOpcode());
+				m.encode(buf);
+			} else {
+				String value = (String) parts[i];
+				if(binary) {
+					buf.putInt(value.length() + 1);
+					buf.put(BinaryProtocol.OP_TEXT);
+					BinaryProtocol.putAscii(buf, value);
+				} else {
+					BinaryProtocol.putAscii(buf, value);
+					buf.put((byte) '\n');
+				}
+			}
+		}
+		buf.flip();
+		out.write(buf);
 	}
 
 }
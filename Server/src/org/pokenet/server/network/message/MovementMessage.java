@@ -0,0 +1,112 @@
+package org.pokenet.server.network.message;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.pokenet.server.network.codec.BinaryMessage;
+import org.pokenet.server.network.codec.BinaryProtocol;
+
+/**
+ * The movements of several chars during one movement tick.
+ * Text clients receive M packets, binary clients receive one byte per step.
+ * Outbound channels may drop these messages for slow clients.
+ * @author shadowkanji
+ *
+ */
+public class MovementMessage extends PokenetMessage implements BinaryMessage {
+	/* M packets never exceed the client's line length */
+	public static final int MAX_LINE = 960;
+
+	private int [] m_ids = new int[16];
+	private byte [][] m_steps = new byte[16][];
+	private int [] m_counts = new int[16];
+	private CharSequence [] m_text = new CharSequence[16];
+	private int m_chars = 0;
+	private int m_entries = 0;
+	private int m_size = 2;
+
+	/**
+	 * Adds the steps a char took
+	 * @param id
+	 * @param steps - the direction of each step ('U', 'D', 'L' or 'R')
+	 * @param count - the amount of steps
+	 * @param text - the steps encoded as M packet tokens, e.g. U5,U5
+	 */
+	public void addMovement(int id, byte [] steps, int count, CharSequence text) {
+		if(m_chars == m_ids.length)
+			grow();
+		m_ids[m_chars] = id;
+		m_steps[m_chars] = steps;
+		m_counts[m_chars] = count;
+		m_text[m_chars] = text;
+		m_chars++;
+		/* The step count is a byte, so long movements are split into several entries */
+		int entries = (count + 254) / 255;
+		m_entries += entries;
+		m_size += entries * 5 + count;
+	}
+
+	/**
+	 * Doubles the capacity of this message
+	 */
+	private void grow() {
+		int [] ids = new int[m_ids.length * 2];
+		byte [][] steps = new byte[ids.length][];
+		int [] counts = new int[ids.length];
+		CharSequence [] text = new CharSequence[ids.length];
+		System.arraycopy(m_ids, 0, ids, 0, m_chars);
+		System.arraycopy(m_steps, 0, steps, 0, m_chars);
+		System.arraycopy(m_counts, 0, counts, 0, m_chars);
+		System.arraycopy(m_text, 0, text, 0, m_chars);
+		m_ids = ids;
+		m_steps = steps;
+		m_counts = counts;
+		m_text = text;
+	}
+
+	/**
+	 * Returns true if no movements were added
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return m_chars == 0;
+	}
+
+	/**
+	 * Returns the movements as M packets, one per line
+	 */
+	public String getMessage() {
+		StringBuilder result = new StringBuilder();
+		int lineStart = -1;
+		for(int i = 0; i < m_chars; i++) {
+			if(lineStart >= 0 && result.length() - lineStart + m_text[i].length() < MAX_LINE) {
+				result.append(',');
+			} else {
+				if(result.length() > 0)
+					result.append('\n');
+				lineStart = result.length();
+				result.append('M');
+			}
+			result.append(m_text[i]);
+		}
+		return result.toString();
+	}
+
+	public byte getOpcode() {
+		return BinaryProtocol.OP_MOVEMENT;
+	}
+
+	public int getSize() {
+		return m_size;
+	}
+
+	public void encode(IoBuffer buf) {
+		buf.putShort((short) m_entries);
+		for(int i = 0; i < m_chars; i++) {
+			for(int offset = 0; offset < m_counts[i]; offset += 255) {
+				int count = Math.min(255, m_counts[i] - offset);
+				buf.putInt(m_ids[i]);
+				buf.put((byte) count);
+				buf.put(m_steps[i], offset, count);
+			}
+		}
+	}
+}
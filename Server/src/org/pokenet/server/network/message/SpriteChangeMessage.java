@@ -1,17 +1,45 @@
 package org.pokenet.server.network.message;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.pokenet.server.network.codec.BinaryMessage;
+import org.pokenet.server.network.codec.BinaryProtocol;
+
 /**
  * A sprite change packet
  * @author shadowkanji
  *
  */
-public class SpriteChangeMessage extends PokenetMessage {
+public class SpriteChangeMessage extends PokenetMessage implements BinaryMessage {
+	private int m_playerId;
+	private int m_sprite;
+	
 	/**
 	 * Constructor
 	 * @param playerId
 	 * @param sprite
 	 */
 	public SpriteChangeMessage(int playerId, int sprite) {
-		m_message = "cS" + playerId + "," + sprite;
+		m_playerId = playerId;
+		m_sprite = sprite;
+	}
+	
+	/**
+	 * Returns the message
+	 */
+	public String getMessage() {
+		return "cS" + m_playerId + "," + m_sprite;
+	}
+	
+	public byte getOpcode() {
+		return BinaryProtocol.OP_SPRITE_CHANGE;
+	}
+	
+	public int getSize() {
+		return 8;
+	}
+	
+	public void encode(IoBuffer buf) {
+		buf.putInt(m_playerId);
+		buf.putInt(m_sprite);
 	}
 }
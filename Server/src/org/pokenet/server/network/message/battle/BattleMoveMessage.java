@@ -1,5 +1,8 @@
 package org.pokenet.server.network.message.battle;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.pokenet.server.network.codec.BinaryMessage;
+import org.pokenet.server.network.codec.BinaryProtocol;
 import org.pokenet.server.network.message.PokenetMessage;
 
 /**
@@ -7,13 +10,37 @@ import org.pokenet.server.network.message.PokenetMessage;
  * @author shadowkanji
  *
  */
-public class BattleMoveMessage extends PokenetMessage {
+public class BattleMoveMessage extends PokenetMessage implements BinaryMessage {
+	private String m_species;
+	private String m_move;
+	
 	/**
 	 * Constructor
 	 * @param speciesName
 	 * @param moveName
 	 */
 	public BattleMoveMessage(String speciesName, String moveName) {
-		m_message = "bM" + speciesName + "," + moveName;
+		m_species = speciesName;
+		m_move = moveName;
+	}
+	
+	/**
+	 * Returns the message
+	 */
+	public String getMessage() {
+		return "bM" + m_species + "," + m_move;
+	}
+	
+	public byte getOpcode() {
+		return BinaryProtocol.OP_BATTLE_MOVE;
+	}
+	
+	public int getSize() {
+		return BinaryProtocol.getSize(m_species) + BinaryProtocol.getSize(m_move);
+	}
+	
+	public void encode(IoBuffer buf) {
+		BinaryProtocol.putString(buf, m_species);
+		BinaryProtocol.putString(buf, m_move);
 	}
 }
@@ -1,5 +1,8 @@
 package org.pokenet.server.network.message.battle;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.pokenet.server.network.codec.BinaryMessage;
+import org.pokenet.server.network.codec.BinaryProtocol;
 import org.pokenet.server.network.message.PokenetMessage;
 
 /**
@@ -7,13 +10,33 @@ import org.pokenet.server.network.message.PokenetMessage;
  * @author shadowkanji
  *
  */
-public class FaintMessage extends PokenetMessage {
+public class FaintMessage extends PokenetMessage implements BinaryMessage {
+	private String m_pokeName;
+	
 	/**
 	 * Constructor
 	 * @param pokeName
 	 */
 	public FaintMessage(String pokeName) {
-		m_message = "bF" + pokeName;
+		m_pokeName = pokeName;
+	}
+	
+	/**
+	 * Returns the message
+	 */
+	public String getMessage() {
+		return "bF" + m_pokeName;
+	}
+	
+	public byte getOpcode() {
+		return BinaryProtocol.OP_FAINT;
+	}
+	
+	public int getSize() {
+		return BinaryProtocol.getSize(m_pokeName);
+	}
+	
+	public void encode(IoBuffer buf) {
+		BinaryProtocol.putString(buf, m_pokeName);
 	}
-
 }
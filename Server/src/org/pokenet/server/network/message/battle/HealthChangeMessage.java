@@ -1,5 +1,8 @@
 package org.pokenet.server.network.message.battle;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.pokenet.server.network.codec.BinaryMessage;
+import org.pokenet.server.network.codec.BinaryProtocol;
 import org.pokenet.server.network.message.PokenetMessage;
 
 /**
@@ -7,13 +10,37 @@ import org.pokenet.server.network.message.PokenetMessage;
  * @author shadowkanji
  *
  */
-public class HealthChangeMessage extends PokenetMessage {
+public class HealthChangeMessage extends PokenetMessage implements BinaryMessage {
+	private int m_id;
+	private int m_change;
+	
 	/**
 	 * Constructor
 	 * @param id
 	 * @param healthChange
 	 */
 	public HealthChangeMessage(int id, int healthChange) {
-		m_message = "bh" + id + "," + healthChange;
+		m_id = id;
+		m_change = healthChange;
+	}
+	
+	/**
+	 * Returns the message
+	 */
+	public String getMessage() {
+		return "bh" + m_id + "," + m_change;
+	}
+	
+	public byte getOpcode() {
+		return BinaryProtocol.OP_HEALTH_CHANGE;
+	}
+	
+	public int getSize() {
+		return 5;
+	}
+	
+	public void encode(IoBuffer buf) {
+		buf.put((byte) m_id);
+		buf.putInt(m_change);
 	}
 }